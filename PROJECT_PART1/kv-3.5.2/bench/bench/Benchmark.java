@@ -0,0 +1,121 @@
+/*-
+ *
+ *  This file is part of Oracle NoSQL Database
+ *  Copyright (C) 2011, 2015 Oracle and/or its affiliates.  All rights reserved.
+ *
+ *  Oracle NoSQL Database is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation, version 3.
+ *
+ *  Oracle NoSQL Database is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public
+ *  License in the LICENSE file along with Oracle NoSQL Database.  If not,
+ *  see <http://www.gnu.org/licenses/>.
+ *
+ *  An active Oracle commercial licensing agreement for this product
+ *  supercedes this license.
+ *
+ *  For more information please contact:
+ *
+ *  Vice President Legal, Development
+ *  Oracle America, Inc.
+ *  5OP-10
+ *  500 Oracle Parkway
+ *  Redwood Shores, CA 94065
+ *
+ *  or
+ *
+ *  berkeleydb-info_us@oracle.com
+ *
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  EOF
+ *
+ */
+
+package bench;
+
+/**
+ * A single microbenchmark, run by {@link BenchmarkRunner}.
+ * <p>
+ * The runner calls {@link #setUp} once for each thread count, then calls
+ * {@link #run} repeatedly from each of the benchmark threads for a number of
+ * warmup and measurement iterations, and finally calls {@link #tearDown}.
+ * Since run is called concurrently when more than one thread is used, any
+ * state it modifies must either be thread-safe or be kept per thread, indexed
+ * by the threadIndex argument.
+ * <p>
+ * The value returned by run is consumed by the runner, so that the JIT
+ * compiler cannot eliminate the work done to compute it.
+ */
+public abstract class Benchmark {
+
+    /* Cursors are spaced apart so that threads don't share cache lines. */
+    private static final int CURSOR_SPACING = 16;
+
+    private final String name;
+    private int[] cursors = new int[CURSOR_SPACING];
+
+    protected Benchmark(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Returns the name under which the results are reported.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the next index, from 0 to nInputs - 1, into an array of inputs
+     * prepared by setUp.  Each thread cycles through the inputs
+     * independently, starting at a different offset.
+     */
+    protected int nextInput(int threadIndex, int nInputs) {
+        final int i = threadIndex * CURSOR_SPACING;
+        final int next = cursors[i] + 1;
+        cursors[i] = (next < nInputs) ? next : 0;
+        return (next + threadIndex * 31) % nInputs;
+    }
+
+    /**
+     * Called by the runner before setUp to allocate the per thread state.
+     */
+    void allocateCursors(int nThreads) {
+        cursors = new int[nThreads * CURSOR_SPACING];
+    }
+
+    /**
+     * Prepares the benchmark state for a run with nThreads threads.
+     */
+    public void setUp(int nThreads)
+        throws Exception {
+    }
+
+    /**
+     * Performs a single operation.
+     *
+     * @param threadIndex the index, from 0 to nThreads - 1, of the calling
+     * thread
+     *
+     * @return the result of the operation
+     */
+    public abstract Object run(int threadIndex)
+        throws Exception;
+
+    /**
+     * Releases the benchmark state after a run.
+     */
+    public void tearDown()
+        throws Exception {
+    }
+}
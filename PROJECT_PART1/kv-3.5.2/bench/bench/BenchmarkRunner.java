@@ -0,0 +1,438 @@
+/*-
+ *
+ *  This file is part of Oracle NoSQL Database
+ *  Copyright (C) 2011, 2015 Oracle and/or its affiliates.  All rights reserved.
+ *
+ *  Oracle NoSQL Database is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation, version 3.
+ *
+ *  Oracle NoSQL Database is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public
+ *  License in the LICENSE file along with Oracle NoSQL Database.  If not,
+ *  see <http://www.gnu.org/licenses/>.
+ *
+ *  An active Oracle commercial licensing agreement for this product
+ *  supercedes this license.
+ *
+ *  For more information please contact:
+ *
+ *  Vice President Legal, Development
+ *  Oracle America, Inc.
+ *  5OP-10
+ *  500 Oracle Parkway
+ *  Redwood Shores, CA 94065
+ *
+ *  or
+ *
+ *  berkeleydb-info_us@oracle.com
+ *
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  EOF
+ *
+ */
+
+package bench;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Runs the microbenchmark suites for the examples' hot paths and reports the
+ * throughput, time per operation and bytes allocated per operation of each
+ * benchmark.
+ * <p>
+ * A suite is a class with a public static {@code benchmarks()} method
+ * returning a {@code List<Benchmark>}.  The suites live in the packages of
+ * the code they measure, so that they can use package-private classes, and
+ * use {@link StubKVStore} and {@link StubAvroCatalog} in place of a real
+ * store, so that only client side code is measured.
+ * <p>
+ * Each benchmark is run for a number of warmup iterations, whose results are
+ * discarded, followed by a number of measurement iterations.  Each iteration
+ * runs the benchmark from all threads for a fixed time.  The reported score
+ * is the mean throughput over the measurement iterations, with the error
+ * being the standard deviation.  When the JVM supports it, the bytes
+ * allocated per operation are reported as well.
+ * <p>
+ * Usage:
+ * <pre>
+ * java -cp &lt;classes&gt;:&lt;examples dir&gt;:KVHOME/lib/kvclient.jar \
+ *     bench.BenchmarkRunner [-suite &lt;class&gt;[,&lt;class&gt;]*] \
+ *     [-filter &lt;name substring&gt;] [-threads &lt;n&gt;[,&lt;n&gt;]*] \
+ *     [-warmup &lt;iterations&gt;] [-iterations &lt;iterations&gt;] \
+ *     [-time &lt;ms per iteration&gt;] [-csv &lt;file&gt;] [-label &lt;label&gt;]
+ * </pre>
+ * The -threads option takes a list of thread counts, so that the scaling of
+ * a benchmark across cores can be measured in a single run.  The -csv option
+ * appends the results to a file, tagged with the -label value (a commit id,
+ * for example), so that results can be tracked from one commit to the next.
+ */
+public class BenchmarkRunner {
+
+    /* The suites run when no -suite option is given. */
+    private static final String[] DEFAULT_SUITES = {
+        "schema.SchemaBenchmarks",
+        "secondaryindex.SecondaryIndexBenchmarks",
+        "externaltables.ExternalTablesBenchmarks",
+        "seqnum.SequenceNumberBenchmarks",
+    };
+
+    /* The number of operations between checks of the iteration deadline. */
+    private static final int OPS_PER_TIME_CHECK = 16;
+
+    private final List<String> suites = new ArrayList<String>();
+    private String filter = null;
+    private final List<Integer> threadCounts = new ArrayList<Integer>();
+    private int warmupIterations = 5;
+    private int measurementIterations = 5;
+    private long iterationMs = 1000;
+    private String csvFile = null;
+    private String label = "";
+
+    /* Used to measure allocation, if supported by the JVM. */
+    private final ThreadMXBean threadBean =
+        ManagementFactory.getThreadMXBean();
+    private final Method allocatedBytesMethod = findAllocatedBytesMethod();
+
+    /* Receives the benchmark results, so they can't be optimized away. */
+    private volatile int sink;
+
+    public static void main(String[] args) {
+        try {
+            new BenchmarkRunner(args).runAll();
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    BenchmarkRunner(String[] argv) {
+        final int nArgs = argv.length;
+        int argc = 0;
+
+        while (argc < nArgs) {
+            final String thisArg = argv[argc++];
+
+            if (argc >= nArgs) {
+                usage(thisArg + " requires an argument");
+            }
+            final String value = argv[argc++];
+
+            if (thisArg.equals("-suite")) {
+                for (String suite : value.split(",")) {
+                    suites.add(suite);
+                }
+            } else if (thisArg.equals("-filter")) {
+                filter = value;
+            } else if (thisArg.equals("-threads")) {
+                for (String n : value.split(",")) {
+                    threadCounts.add(Integer.parseInt(n));
+                }
+            } else if (thisArg.equals("-warmup")) {
+                warmupIterations = Integer.parseInt(value);
+            } else if (thisArg.equals("-iterations")) {
+                measurementIterations = Integer.parseInt(value);
+            } else if (thisArg.equals("-time")) {
+                iterationMs = Long.parseLong(value);
+            } else if (thisArg.equals("-csv")) {
+                csvFile = value;
+            } else if (thisArg.equals("-label")) {
+                label = value;
+            } else {
+                usage("Unknown argument: " + thisArg);
+            }
+        }
+
+        if (suites.isEmpty()) {
+            for (String suite : DEFAULT_SUITES) {
+                suites.add(suite);
+            }
+        }
+        if (threadCounts.isEmpty()) {
+            threadCounts.add(1);
+        }
+    }
+
+    private void usage(String message) {
+        if (message != null) {
+            System.err.println("\n" + message + "\n");
+        }
+        System.err.println("usage: " + getClass().getName());
+        System.err.println
+            ("\t[-suite <suite class>[,<suite class>]*]\n" +
+             "\t[-filter <benchmark name substring>]\n" +
+             "\t[-threads <thread count>[,<thread count>]* (default: 1)]\n" +
+             "\t[-warmup <warmup iterations> (default: 5)]\n" +
+             "\t[-iterations <measurement iterations> (default: 5)]\n" +
+             "\t[-time <milliseconds per iteration> (default: 1000)]\n" +
+             "\t[-csv <file to append results to>]\n" +
+             "\t[-label <label for the csv results>]\n");
+        System.exit(1);
+    }
+
+    private void runAll()
+        throws Exception {
+
+        final List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        for (String suite : suites) {
+            benchmarks.addAll(loadSuite(suite));
+        }
+
+        System.out.println(String.format
+            ("%-52s %7s %14s %12s %12s %10s",
+             "Benchmark", "Threads", "ops/s", "error", "ns/op", "B/op"));
+
+        final List<Result> results = new ArrayList<Result>();
+        for (Benchmark benchmark : benchmarks) {
+            if (filter != null && benchmark.getName().indexOf(filter) < 0) {
+                continue;
+            }
+            for (int nThreads : threadCounts) {
+                final Result result = runBenchmark(benchmark, nThreads);
+                System.out.println(result);
+                results.add(result);
+            }
+        }
+
+        if (csvFile != null) {
+            writeCsv(results);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Benchmark> loadSuite(String suiteClassName)
+        throws Exception {
+
+        final Method method =
+            Class.forName(suiteClassName).getMethod("benchmarks");
+        return (List<Benchmark>) method.invoke(null);
+    }
+
+    private Result runBenchmark(Benchmark benchmark, int nThreads)
+        throws Exception {
+
+        benchmark.allocateCursors(nThreads);
+        benchmark.setUp(nThreads);
+        try {
+            for (int i = 0; i < warmupIterations; i++) {
+                runIteration(benchmark, nThreads);
+            }
+            final double[] opsPerSec = new double[measurementIterations];
+            long totalOps = 0;
+            long totalBytes = 0;
+            for (int i = 0; i < measurementIterations; i++) {
+                final Iteration iteration = runIteration(benchmark, nThreads);
+                opsPerSec[i] = iteration.getOpsPerSec();
+                totalOps += iteration.ops;
+                totalBytes += iteration.allocatedBytes;
+            }
+            final long bytesPerOp = (allocatedBytesMethod == null ||
+                                     totalOps == 0) ?
+                -1 : totalBytes / totalOps;
+            return new Result(benchmark.getName(), nThreads, opsPerSec,
+                              bytesPerOp);
+        } finally {
+            benchmark.tearDown();
+        }
+    }
+
+    private Iteration runIteration(final Benchmark benchmark,
+                                   final int nThreads)
+        throws InterruptedException {
+
+        final CountDownLatch startGate = new CountDownLatch(1);
+        final long[] ops = new long[nThreads];
+        final long[] bytes = new long[nThreads];
+        final Throwable[] failures = new Throwable[nThreads];
+        final Thread[] threads = new Thread[nThreads];
+        final long[] deadline = new long[1];
+
+        for (int t = 0; t < nThreads; t++) {
+            final int threadIndex = t;
+            threads[t] = new Thread(benchmark.getName() + "-" + t) {
+                @Override
+                public void run() {
+                    try {
+                        startGate.await();
+                        final long startBytes = getAllocatedBytes();
+                        long n = 0;
+                        int nulls = 0;
+                        do {
+                            for (int i = 0; i < OPS_PER_TIME_CHECK; i++) {
+                                if (benchmark.run(threadIndex) == null) {
+                                    nulls++;
+                                }
+                            }
+                            n += OPS_PER_TIME_CHECK;
+                        } while (System.nanoTime() < deadline[0]);
+                        bytes[threadIndex] = getAllocatedBytes() - startBytes;
+                        ops[threadIndex] = n;
+                        sink += nulls;
+                    } catch (Throwable e) {
+                        failures[threadIndex] = e;
+                    }
+                }
+            };
+            threads[t].start();
+        }
+
+        final long start = System.nanoTime();
+        deadline[0] = start + iterationMs * 1000000L;
+        startGate.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        final long elapsedNanos = System.nanoTime() - start;
+
+        for (Throwable failure : failures) {
+            if (failure != null) {
+                throw new RuntimeException
+                    ("Benchmark " + benchmark.getName() + " failed", failure);
+            }
+        }
+
+        long totalOps = 0;
+        long totalBytes = 0;
+        for (int t = 0; t < nThreads; t++) {
+            totalOps += ops[t];
+            totalBytes += bytes[t];
+        }
+        return new Iteration(totalOps, elapsedNanos, totalBytes);
+    }
+
+    /**
+     * Returns the number of bytes allocated by the current thread, or 0 if
+     * the JVM does not support allocation measurement.
+     */
+    private long getAllocatedBytes() {
+        if (allocatedBytesMethod == null) {
+            return 0;
+        }
+        try {
+            return (Long) allocatedBytesMethod.invoke
+                (threadBean, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Returns the HotSpot specific ThreadMXBean.getThreadAllocatedBytes(long)
+     * method, or null if it is not available.
+     */
+    private Method findAllocatedBytesMethod() {
+        try {
+            final Method method =
+                Class.forName("com.sun.management.ThreadMXBean").getMethod
+                ("getThreadAllocatedBytes", long.class);
+            method.invoke(threadBean, Thread.currentThread().getId());
+            return method;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private void writeCsv(List<Result> results)
+        throws IOException {
+
+        final PrintWriter out =
+            new PrintWriter(new FileWriter(csvFile, true /* append */));
+        try {
+            for (Result result : results) {
+                out.println(label + "," + result.toCsv());
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * The operations performed in a single iteration.
+     */
+    private static class Iteration {
+        final long ops;
+        final long elapsedNanos;
+        final long allocatedBytes;
+
+        Iteration(long ops, long elapsedNanos, long allocatedBytes) {
+            this.ops = ops;
+            this.elapsedNanos = elapsedNanos;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        double getOpsPerSec() {
+            return (ops * 1e9) / elapsedNanos;
+        }
+    }
+
+    /**
+     * The measured performance of a benchmark with a given thread count.
+     */
+    private static class Result {
+        private final String name;
+        private final int nThreads;
+        private final double mean;
+        private final double stdDev;
+        private final long bytesPerOp;
+
+        Result(String name,
+               int nThreads,
+               double[] opsPerSec,
+               long bytesPerOp) {
+            this.name = name;
+            this.nThreads = nThreads;
+            this.bytesPerOp = bytesPerOp;
+
+            double sum = 0;
+            for (double x : opsPerSec) {
+                sum += x;
+            }
+            mean = sum / opsPerSec.length;
+            double squares = 0;
+            for (double x : opsPerSec) {
+                squares += (x - mean) * (x - mean);
+            }
+            stdDev = (opsPerSec.length < 2) ?
+                0 : Math.sqrt(squares / (opsPerSec.length - 1));
+        }
+
+        /**
+         * Returns the average time per operation as seen by each thread.
+         */
+        double getNanosPerOp() {
+            return (mean == 0) ? 0 : (nThreads * 1e9) / mean;
+        }
+
+        String toCsv() {
+            return name + "," + nThreads + "," +
+                String.format("%.1f,%.1f,%.1f,%d",
+                              mean, stdDev, getNanosPerOp(), bytesPerOp);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-52s %7d %14.1f %12.1f %12.1f %10s",
+                                 name, nThreads, mean, stdDev,
+                                 getNanosPerOp(),
+                                 (bytesPerOp < 0) ?
+                                 "n/a" : Long.toString(bytesPerOp));
+        }
+    }
+}
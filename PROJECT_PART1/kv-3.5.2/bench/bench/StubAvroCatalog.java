@@ -0,0 +1,289 @@
+/*-
+ *
+ *  This file is part of Oracle NoSQL Database
+ *  Copyright (C) 2011, 2015 Oracle and/or its affiliates.  All rights reserved.
+ *
+ *  Oracle NoSQL Database is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation, version 3.
+ *
+ *  Oracle NoSQL Database is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public
+ *  License in the LICENSE file along with Oracle NoSQL Database.  If not,
+ *  see <http://www.gnu.org/licenses/>.
+ *
+ *  An active Oracle commercial licensing agreement for this product
+ *  supercedes this license.
+ *
+ *  For more information please contact:
+ *
+ *  Vice President Legal, Development
+ *  Oracle America, Inc.
+ *  5OP-10
+ *  500 Oracle Parkway
+ *  Redwood Shores, CA 94065
+ *
+ *  or
+ *
+ *  berkeleydb-info_us@oracle.com
+ *
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  EOF
+ *
+ */
+
+package bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import oracle.kv.Consistency;
+import oracle.kv.Value;
+import oracle.kv.avro.AvroCatalog;
+import oracle.kv.avro.GenericAvroBinding;
+import oracle.kv.avro.JsonAvroBinding;
+import oracle.kv.avro.RawAvroBinding;
+import oracle.kv.avro.RawRecord;
+import oracle.kv.avro.SchemaNotAllowedException;
+import oracle.kv.avro.SpecificAvroBinding;
+import oracle.kv.avro.UndefinedSchemaException;
+
+import org.apache.avro.Schema;
+import org.apache.avro.Schema.Parser;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificRecord;
+
+import com.sleepycat.util.PackedInteger;
+
+/**
+ * An in-memory stand-in for the AvroCatalog of a store, used by the
+ * benchmarks together with {@link StubKVStore}.
+ * <p>
+ * The schemas are registered with the catalog when it is created, rather
+ * than being added to the store with the administrative CLI.  The generic
+ * and raw bindings use the same Value format as a real store: the schema id,
+ * written as a sorted packed integer, followed by the Avro binary encoding of
+ * the record.  The specific and JSON bindings are not supported.
+ */
+public class StubAvroCatalog implements AvroCatalog {
+
+    private final Map<String, Schema> schemasByName =
+        new HashMap<String, Schema>();
+    private final Map<Integer, Schema> schemasById =
+        new HashMap<Integer, Schema>();
+    private final Map<String, Integer> idsByName =
+        new HashMap<String, Integer>();
+
+    /**
+     * Creates a catalog holding the record schemas defined in the given
+     * resource files, which are loaded relative to resourceClass, in the
+     * same way as the examples load their schemas.
+     */
+    public StubAvroCatalog(Class<?> resourceClass, String... resourceNames) {
+        final Parser parser = new Parser();
+        for (String resourceName : resourceNames) {
+            final InputStream in =
+                resourceClass.getResourceAsStream(resourceName);
+            if (in == null) {
+                throw new RuntimeException("Resource not found in classpath: " +
+                                           resourceName);
+            }
+            try {
+                try {
+                    parser.parse(in);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Unexpected error parsing schema: " +
+                                           resourceName, e);
+            }
+        }
+
+        /* Ids are assigned in name order, so they are stable across runs. */
+        final Map<String, Schema> types =
+            new TreeMap<String, Schema>(parser.getTypes());
+        for (Schema schema : types.values()) {
+            if (schema.getType() == Schema.Type.RECORD) {
+                final int id = schemasById.size() + 1;
+                schemasByName.put(schema.getFullName(), schema);
+                schemasById.put(id, schema);
+                idsByName.put(schema.getFullName(), id);
+            }
+        }
+    }
+
+    @Override
+    public GenericAvroBinding getGenericBinding(Schema schema) {
+        return new StubGenericBinding
+            (Collections.singletonMap(schema.getFullName(), schema));
+    }
+
+    @Override
+    public GenericAvroBinding
+        getGenericMultiBinding(Map<String, Schema> schemas) {
+        return new StubGenericBinding(new HashMap<String, Schema>(schemas));
+    }
+
+    @Override
+    public RawAvroBinding getRawBinding() {
+        return new RawAvroBinding() {
+            @Override
+            public RawRecord toObject(Value value) {
+                final Schema schema = getWriterSchema(value);
+                final byte[] bytes = value.getValue();
+                final int headerLength =
+                    PackedInteger.getReadSortedIntLength(bytes, 0);
+                final byte[] rawData = new byte[bytes.length - headerLength];
+                System.arraycopy(bytes, headerLength, rawData, 0,
+                                 rawData.length);
+                return new RawRecord(rawData, schema);
+            }
+
+            @Override
+            public Value toValue(RawRecord record) {
+                final byte[] rawData = record.getRawData();
+                final ByteArrayOutputStream out =
+                    new ByteArrayOutputStream(rawData.length + 4);
+                writeHeader(out, record.getSchema());
+                out.write(rawData, 0, rawData.length);
+                return Value.internalCreateValue(out.toByteArray(),
+                                                 Value.Format.AVRO);
+            }
+        };
+    }
+
+    @Override
+    public Map<String, Schema> getCurrentSchemas() {
+        return Collections.unmodifiableMap(schemasByName);
+    }
+
+    @Override
+    public void refreshSchemaCache(Consistency consistency) {
+        /* The schemas never change. */
+    }
+
+    @Override
+    public <T extends SpecificRecord> SpecificAvroBinding<T>
+        getSpecificBinding(Class<T> cls) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public SpecificAvroBinding<SpecificRecord> getSpecificMultiBinding() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public JsonAvroBinding getJsonBinding(Schema schema) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public JsonAvroBinding getJsonMultiBinding(Map<String, Schema> schemas) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Returns the schema whose id is stored at the start of a Value.
+     */
+    private Schema getWriterSchema(Value value) {
+        if (value.getFormat() != Value.Format.AVRO) {
+            throw new IllegalArgumentException("Value is not in Avro format");
+        }
+        final byte[] bytes = value.getValue();
+        final int id = PackedInteger.readSortedInt(bytes, 0);
+        final Schema schema = schemasById.get(id);
+        if (schema == null) {
+            throw new IllegalArgumentException("Unknown schema id: " + id);
+        }
+        return schema;
+    }
+
+    private void writeHeader(ByteArrayOutputStream out, Schema schema) {
+        final Integer id = idsByName.get(schema.getFullName());
+        if (id == null) {
+            throw new UndefinedSchemaException
+                ("Schema is not in the catalog", schema.getFullName());
+        }
+        final byte[] header =
+            new byte[PackedInteger.getWriteSortedIntLength(id)];
+        PackedInteger.writeSortedInt(header, 0, id);
+        out.write(header, 0, header.length);
+    }
+
+    /**
+     * A generic binding for a set of allowed schemas.
+     */
+    private class StubGenericBinding implements GenericAvroBinding {
+        private final Map<String, Schema> allowedSchemas;
+
+        StubGenericBinding(Map<String, Schema> allowedSchemas) {
+            this.allowedSchemas = allowedSchemas;
+        }
+
+        private void checkAllowed(Schema schema) {
+            if (!allowedSchemas.containsKey(schema.getFullName())) {
+                throw new SchemaNotAllowedException
+                    ("Schema is not allowed by this binding",
+                     schema.getFullName());
+            }
+        }
+
+        @Override
+        public GenericRecord toObject(Value value) {
+            final Schema schema = getWriterSchema(value);
+            final byte[] bytes = value.getValue();
+            checkAllowed(schema);
+            final int headerLength =
+                PackedInteger.getReadSortedIntLength(bytes, 0);
+            final BinaryDecoder decoder = DecoderFactory.get().binaryDecoder
+                (bytes, headerLength, bytes.length - headerLength, null);
+            try {
+                return new GenericDatumReader<GenericRecord>(schema).
+                    read(null, decoder);
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+
+        @Override
+        public Value toValue(GenericRecord record) {
+            final Schema schema = record.getSchema();
+            checkAllowed(schema);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            writeHeader(out, schema);
+            final BinaryEncoder encoder =
+                EncoderFactory.get().binaryEncoder(out, null);
+            try {
+                new GenericDatumWriter<GenericRecord>(schema).
+                    write(record, encoder);
+                encoder.flush();
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e);
+            }
+            return Value.internalCreateValue(out.toByteArray(),
+                                             Value.Format.AVRO);
+        }
+    }
+}
@@ -0,0 +1,728 @@
+/*-
+ *
+ *  This file is part of Oracle NoSQL Database
+ *  Copyright (C) 2011, 2015 Oracle and/or its affiliates.  All rights reserved.
+ *
+ *  Oracle NoSQL Database is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation, version 3.
+ *
+ *  Oracle NoSQL Database is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public
+ *  License in the LICENSE file along with Oracle NoSQL Database.  If not,
+ *  see <http://www.gnu.org/licenses/>.
+ *
+ *  An active Oracle commercial licensing agreement for this product
+ *  supercedes this license.
+ *
+ *  For more information please contact:
+ *
+ *  Vice President Legal, Development
+ *  Oracle America, Inc.
+ *  5OP-10
+ *  500 Oracle Parkway
+ *  Redwood Shores, CA 94065
+ *
+ *  or
+ *
+ *  berkeleydb-info_us@oracle.com
+ *
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  EOF
+ *
+ */
+
+package bench;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import oracle.kv.Depth;
+import oracle.kv.Direction;
+import oracle.kv.KVStore;
+import oracle.kv.Key;
+import oracle.kv.KeyRange;
+import oracle.kv.KeyValueVersion;
+import oracle.kv.Operation;
+import oracle.kv.OperationExecutionException;
+import oracle.kv.OperationFactory;
+import oracle.kv.OperationResult;
+import oracle.kv.ParallelScanIterator;
+import oracle.kv.ReturnValueVersion;
+import oracle.kv.Value;
+import oracle.kv.ValueVersion;
+import oracle.kv.Version;
+import oracle.kv.avro.AvroCatalog;
+import oracle.kv.stats.DetailedMetrics;
+
+/**
+ * An in-memory stand-in for a KVStore, used by the benchmarks so that they
+ * measure the client side code of the examples rather than the network and
+ * the servers.
+ * <p>
+ * The store is a dynamic proxy implementing the KVStore interface over a
+ * sorted map.  It supports the single record reads and writes, including the
+ * conditional puts and deletes and the return of the previous value and
+ * version, the multi-record reads and deletes within a parent key, the store
+ * iterators and {@link KVStore#execute(List) execute}.  As in a real store,
+ * an execute is atomic, and all of its operations must share a major path.
+ * The remaining methods, such as the LOB and table methods, throw
+ * UnsupportedOperationException.
+ * <p>
+ * Each request to the store can optionally be delayed by a fixed latency, to
+ * approximate a network round trip when measuring code whose performance
+ * depends on the number of requests it makes.
+ */
+public class StubKVStore implements InvocationHandler {
+
+    /* Writes to the same major path are serialized by one of these locks. */
+    private static final int N_LOCKS = 64;
+
+    private final ConcurrentSkipListMap<Key, ValueVersion> records =
+        new ConcurrentSkipListMap<Key, ValueVersion>();
+    private final Object[] locks = new Object[N_LOCKS];
+    private final UUID repGroupUUID = UUID.randomUUID();
+    private final AtomicLong lastVLSN = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AvroCatalog avroCatalog;
+    private final long latencyNanos;
+    private final KVStore store;
+    private final OperationFactory operationFactory;
+
+    /**
+     * Creates a store with no request latency and no AvroCatalog.
+     */
+    public StubKVStore() {
+        this(null, 0);
+    }
+
+    /**
+     * Creates a store.
+     *
+     * @param avroCatalog the catalog returned by getAvroCatalog, or null
+     * @param latencyNanos the time each request is delayed by, or 0
+     */
+    public StubKVStore(AvroCatalog avroCatalog, long latencyNanos) {
+        this.avroCatalog = avroCatalog;
+        this.latencyNanos = latencyNanos;
+        for (int i = 0; i < N_LOCKS; i++) {
+            locks[i] = new Object();
+        }
+        store = (KVStore) Proxy.newProxyInstance
+            (KVStore.class.getClassLoader(), new Class<?>[] { KVStore.class },
+             this);
+        operationFactory = (OperationFactory) Proxy.newProxyInstance
+            (OperationFactory.class.getClassLoader(),
+             new Class<?>[] { OperationFactory.class },
+             new OperationFactoryHandler());
+    }
+
+    /**
+     * Returns the KVStore interface to this store.
+     */
+    public KVStore getStore() {
+        return store;
+    }
+
+    /**
+     * Returns the number of records in the store.
+     */
+    public int size() {
+        return records.size();
+    }
+
+    /**
+     * Returns the number of requests made to the store so far.
+     */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * Removes all records from the store.
+     */
+    public void clear() {
+        records.clear();
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args)
+        throws Throwable {
+
+        final String name = method.getName();
+
+        if (method.getDeclaringClass() == Object.class) {
+            if (name.equals("equals")) {
+                return proxy == args[0];
+            }
+            if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            }
+            return "StubKVStore[" + records.size() + " records]";
+        }
+        if (name.equals("getOperationFactory")) {
+            return operationFactory;
+        }
+        if (name.equals("getAvroCatalog")) {
+            return avroCatalog;
+        }
+        if (name.equals("close") || name.equals("logout")) {
+            return null;
+        }
+
+        requests.incrementAndGet();
+        if (latencyNanos > 0) {
+            LockSupport.parkNanos(latencyNanos);
+        }
+
+        final Class<?>[] types = method.getParameterTypes();
+
+        if (name.equals("get")) {
+            return records.get((Key) args[0]);
+        }
+        if (name.equals("put") && types[0] == Key.class) {
+            return put(Operation.Type.PUT, (Key) args[0], (Value) args[1],
+                       null, getReturnValueVersion(args, 2));
+        }
+        if (name.equals("putIfAbsent")) {
+            return put(Operation.Type.PUT_IF_ABSENT, (Key) args[0],
+                       (Value) args[1], null, getReturnValueVersion(args, 2));
+        }
+        if (name.equals("putIfPresent")) {
+            return put(Operation.Type.PUT_IF_PRESENT, (Key) args[0],
+                       (Value) args[1], null, getReturnValueVersion(args, 2));
+        }
+        if (name.equals("putIfVersion")) {
+            return put(Operation.Type.PUT_IF_VERSION, (Key) args[0],
+                       (Value) args[1], (Version) args[2],
+                       getReturnValueVersion(args, 3));
+        }
+        if (name.equals("delete")) {
+            return delete((Key) args[0], null, getReturnValueVersion(args, 1));
+        }
+        if (name.equals("deleteIfVersion")) {
+            return delete((Key) args[0], (Version) args[1],
+                          getReturnValueVersion(args, 2));
+        }
+        if (name.equals("multiGet")) {
+            final SortedMap<Key, ValueVersion> result =
+                new TreeMap<Key, ValueVersion>();
+            for (KeyValueVersion kvv :
+                 select((Key) args[0], (KeyRange) args[1], (Depth) args[2])) {
+                result.put(kvv.getKey(),
+                           new ValueVersion(kvv.getValue(), kvv.getVersion()));
+            }
+            return result;
+        }
+        if (name.equals("multiGetKeys")) {
+            final SortedSet<Key> result = new TreeSet<Key>();
+            for (KeyValueVersion kvv :
+                 select((Key) args[0], (KeyRange) args[1], (Depth) args[2])) {
+                result.add(kvv.getKey());
+            }
+            return result;
+        }
+        if (name.equals("multiDelete")) {
+            return multiDelete((Key) args[0], (KeyRange) args[1],
+                               (Depth) args[2]);
+        }
+        if (name.equals("multiGetIterator") ||
+            name.equals("multiGetKeysIterator") ||
+            name.equals("storeIterator") ||
+            name.equals("storeKeysIterator")) {
+            return iterator(name.endsWith("KeysIterator"), types, args);
+        }
+        if (name.equals("execute") && types[0] == List.class) {
+            @SuppressWarnings("unchecked")
+            final List<Operation> ops = (List<Operation>) args[0];
+            return execute(ops);
+        }
+
+        throw new UnsupportedOperationException
+            ("StubKVStore does not support " + name);
+    }
+
+    private static ReturnValueVersion getReturnValueVersion(Object[] args,
+                                                            int index) {
+        return (args.length > index) ? (ReturnValueVersion) args[index] : null;
+    }
+
+    private Object lockFor(Key key) {
+        return locks[(key.getMajorPath().hashCode() & 0x7fffffff) % N_LOCKS];
+    }
+
+    private Version nextVersion() {
+        return new Version(repGroupUUID, lastVLSN.incrementAndGet());
+    }
+
+    private Version put(Operation.Type type,
+                        Key key,
+                        Value value,
+                        Version matchVersion,
+                        ReturnValueVersion prevValue) {
+        synchronized (lockFor(key)) {
+            final StubResult result =
+                apply(type, key, value, matchVersion,
+                      (prevValue == null) ?
+                      ReturnValueVersion.Choice.NONE :
+                      prevValue.getReturnChoice(),
+                      null);
+            result.copyPrevious(prevValue);
+            return result.getNewVersion();
+        }
+    }
+
+    private boolean delete(Key key,
+                           Version matchVersion,
+                           ReturnValueVersion prevValue) {
+        synchronized (lockFor(key)) {
+            final StubResult result =
+                apply((matchVersion == null) ?
+                      Operation.Type.DELETE : Operation.Type.DELETE_IF_VERSION,
+                      key, null, matchVersion,
+                      (prevValue == null) ?
+                      ReturnValueVersion.Choice.NONE :
+                      prevValue.getReturnChoice(),
+                      null);
+            result.copyPrevious(prevValue);
+            return result.getSuccess();
+        }
+    }
+
+    /**
+     * Applies a single write, which must be done while holding the lock for
+     * the key.  If undo is non-null, the previous state of the key is added
+     * to it, so that the write can be rolled back.
+     */
+    private StubResult apply(Operation.Type type,
+                             Key key,
+                             Value value,
+                             Version matchVersion,
+                             ReturnValueVersion.Choice choice,
+                             Map<Key, ValueVersion> undo) {
+
+        final ValueVersion current = records.get(key);
+        final boolean success;
+        switch (type) {
+        case PUT:
+        case DELETE:
+            success = (type == Operation.Type.PUT) || (current != null);
+            break;
+        case PUT_IF_ABSENT:
+            success = (current == null);
+            break;
+        case PUT_IF_PRESENT:
+            success = (current != null);
+            break;
+        case PUT_IF_VERSION:
+        case DELETE_IF_VERSION:
+            success = (current != null) &&
+                current.getVersion().equals(matchVersion);
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown type: " + type);
+        }
+
+        Version newVersion = null;
+        if (success) {
+            if (undo != null && !undo.containsKey(key)) {
+                undo.put(key, current);
+            }
+            if (type == Operation.Type.DELETE ||
+                type == Operation.Type.DELETE_IF_VERSION) {
+                records.remove(key);
+            } else {
+                newVersion = nextVersion();
+                records.put(key, new ValueVersion(value, newVersion));
+            }
+        }
+
+        /*
+         * As in a real store, the conditional writes only return the
+         * previous state when they fail.
+         */
+        final boolean returnPrevious = (choice != null) &&
+            (type == Operation.Type.PUT ||
+             type == Operation.Type.PUT_IF_PRESENT ||
+             type == Operation.Type.DELETE ||
+             !success);
+        return new StubResult(success, newVersion,
+                              (returnPrevious && choice.needVersion() &&
+                               current != null) ?
+                              current.getVersion() : null,
+                              (returnPrevious && choice.needValue() &&
+                               current != null) ?
+                              current.getValue() : null);
+    }
+
+    private List<OperationResult> execute(List<Operation> ops)
+        throws OperationExecutionException {
+
+        if (ops.isEmpty()) {
+            throw new IllegalArgumentException("No operations");
+        }
+        final List<String> majorPath = ops.get(0).getKey().getMajorPath();
+        for (Operation op : ops) {
+            if (!majorPath.equals(op.getKey().getMajorPath())) {
+                throw new IllegalArgumentException
+                    ("Operations must share the same major path: " +
+                     op.getKey());
+            }
+        }
+
+        synchronized (lockFor(ops.get(0).getKey())) {
+            final Map<Key, ValueVersion> undo =
+                new HashMap<Key, ValueVersion>();
+            final List<OperationResult> results =
+                new ArrayList<OperationResult>(ops.size());
+            for (int i = 0; i < ops.size(); i++) {
+                final StubOperation op = (StubOperation) ops.get(i);
+                final StubResult result =
+                    apply(op.getType(), op.getKey(), op.value,
+                          op.matchVersion, op.choice, undo);
+                if (!result.getSuccess() && op.getAbortIfUnsuccessful()) {
+                    for (Map.Entry<Key, ValueVersion> entry :
+                         undo.entrySet()) {
+                        if (entry.getValue() == null) {
+                            records.remove(entry.getKey());
+                        } else {
+                            records.put(entry.getKey(), entry.getValue());
+                        }
+                    }
+                    throw new OperationExecutionException(op, i, result);
+                }
+                results.add(result);
+            }
+            return results;
+        }
+    }
+
+    /**
+     * Returns the records matching a parent key, sub range and depth, as
+     * defined by the multiGet and storeIterator methods.
+     */
+    private List<KeyValueVersion> select(Key parentKey,
+                                         KeyRange subRange,
+                                         Depth depth) {
+
+        final List<KeyValueVersion> result = new ArrayList<KeyValueVersion>();
+        final ConcurrentNavigableMap<Key, ValueVersion> candidates =
+            (parentKey == null) ? records : records.tailMap(parentKey);
+        final int parentSize =
+            (parentKey == null) ? 0 : parentKey.getFullPath().size();
+        if (depth == null) {
+            depth = Depth.PARENT_AND_DESCENDANTS;
+        }
+
+        for (Map.Entry<Key, ValueVersion> entry : candidates.entrySet()) {
+            final Key key = entry.getKey();
+
+            /* Descendants of a key immediately follow it in key order. */
+            if (parentKey != null && !parentKey.isPrefix(key)) {
+                break;
+            }
+            final int extra = key.getFullPath().size() - parentSize;
+            if (extra == 0) {
+                if (depth == Depth.CHILDREN_ONLY ||
+                    depth == Depth.DESCENDANTS_ONLY) {
+                    continue;
+                }
+            } else {
+                if (extra > 1 &&
+                    (depth == Depth.CHILDREN_ONLY ||
+                     depth == Depth.PARENT_AND_CHILDREN)) {
+                    continue;
+                }
+                if (subRange != null && !subRange.inRange(parentKey, key)) {
+                    continue;
+                }
+            }
+            result.add(new KeyValueVersion(key, entry.getValue().getValue(),
+                                           entry.getValue().getVersion()));
+        }
+        return result;
+    }
+
+    private int multiDelete(Key parentKey, KeyRange subRange, Depth depth) {
+        synchronized (lockFor(parentKey)) {
+            final List<KeyValueVersion> selected =
+                select(parentKey, subRange, depth);
+            for (KeyValueVersion kvv : selected) {
+                records.remove(kvv.getKey());
+            }
+            return selected.size();
+        }
+    }
+
+    /**
+     * Implements all of the multiGet and store iterator methods, which take
+     * either a Direction or one or more Key iterators as their first
+     * argument, followed by the batch size and then the parent key (for the
+     * Direction variants), the sub range and the depth.
+     */
+    private Object iterator(final boolean keysOnly,
+                            Class<?>[] types,
+                            Object[] args) {
+
+        final List<KeyValueVersion> selected;
+        Direction direction = Direction.UNORDERED;
+        if (types[0] == Direction.class) {
+            direction = (Direction) args[0];
+            selected = (args.length > 2) ?
+                select((Key) args[2], (KeyRange) args[3], (Depth) args[4]) :
+                select(null, null, null);
+        } else {
+            final List<Iterator<?>> parentKeys = new ArrayList<Iterator<?>>();
+            if (types[0] == List.class) {
+                for (Object iter : (List<?>) args[0]) {
+                    parentKeys.add((Iterator<?>) iter);
+                }
+            } else {
+                parentKeys.add((Iterator<?>) args[0]);
+            }
+            selected = new ArrayList<KeyValueVersion>();
+            for (Iterator<?> iter : parentKeys) {
+                while (iter.hasNext()) {
+                    selected.addAll(select((Key) iter.next(),
+                                           (KeyRange) args[2],
+                                           (Depth) args[3]));
+                }
+            }
+        }
+        if (direction == Direction.REVERSE) {
+            Collections.reverse(selected);
+        }
+
+        final Iterator<KeyValueVersion> iter = selected.iterator();
+        final Iterator<Object> result = new Iterator<Object>() {
+            @Override
+            public boolean hasNext() {
+                return iter.hasNext();
+            }
+
+            @Override
+            public Object next() {
+                final KeyValueVersion kvv = iter.next();
+                return keysOnly ? kvv.getKey() : kvv;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+
+        /* The variants taking a StoreIteratorConfig are parallel scans. */
+        if (types[types.length - 1] != oracle.kv.StoreIteratorConfig.class) {
+            return result;
+        }
+        return Proxy.newProxyInstance
+            (ParallelScanIterator.class.getClassLoader(),
+             new Class<?>[] { ParallelScanIterator.class },
+             new InvocationHandler() {
+                 @Override
+                 public Object invoke(Object proxy,
+                                      Method method,
+                                      Object[] iterArgs) {
+                     final String name = method.getName();
+                     if (name.equals("hasNext")) {
+                         return result.hasNext();
+                     }
+                     if (name.equals("next")) {
+                         return result.next();
+                     }
+                     if (name.equals("getShardMetrics") ||
+                         name.equals("getPartitionMetrics")) {
+                         return Collections.<DetailedMetrics>emptyList();
+                     }
+                     if (name.equals("close")) {
+                         return null;
+                     }
+                     if (name.equals("hashCode")) {
+                         return System.identityHashCode(proxy);
+                     }
+                     if (name.equals("equals")) {
+                         return proxy == iterArgs[0];
+                     }
+                     if (name.equals("toString")) {
+                         return "StubParallelScanIterator";
+                     }
+                     throw new UnsupportedOperationException(name);
+                 }
+             });
+    }
+
+    /**
+     * Creates StubOperations, which unlike the Operations of a real store
+     * give execute access to their values and versions.
+     */
+    private static class OperationFactoryHandler implements InvocationHandler {
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            final String name = method.getName();
+            if (method.getDeclaringClass() == Object.class) {
+                if (name.equals("equals")) {
+                    return proxy == args[0];
+                }
+                if (name.equals("hashCode")) {
+                    return System.identityHashCode(proxy);
+                }
+                return "StubOperationFactory";
+            }
+
+            final Key key = (Key) args[0];
+            final Operation.Type type;
+            Value value = null;
+            Version matchVersion = null;
+            int next = 1;
+            if (name.equals("createPut")) {
+                type = Operation.Type.PUT;
+            } else if (name.equals("createPutIfAbsent")) {
+                type = Operation.Type.PUT_IF_ABSENT;
+            } else if (name.equals("createPutIfPresent")) {
+                type = Operation.Type.PUT_IF_PRESENT;
+            } else if (name.equals("createPutIfVersion")) {
+                type = Operation.Type.PUT_IF_VERSION;
+            } else if (name.equals("createDelete")) {
+                type = Operation.Type.DELETE;
+            } else if (name.equals("createDeleteIfVersion")) {
+                type = Operation.Type.DELETE_IF_VERSION;
+            } else {
+                throw new UnsupportedOperationException(name);
+            }
+            if (name.startsWith("createPut")) {
+                value = (Value) args[next++];
+            }
+            if (name.endsWith("IfVersion")) {
+                matchVersion = (Version) args[next++];
+            }
+            ReturnValueVersion.Choice choice = ReturnValueVersion.Choice.NONE;
+            boolean abortIfUnsuccessful = false;
+            if (args.length > next) {
+                choice = (ReturnValueVersion.Choice) args[next];
+                abortIfUnsuccessful = (Boolean) args[next + 1];
+            }
+            return new StubOperation(type, key, value, matchVersion, choice,
+                                     abortIfUnsuccessful);
+        }
+    }
+
+    /**
+     * An Operation created by the stub OperationFactory.
+     */
+    private static class StubOperation implements Operation {
+        private final Operation.Type type;
+        private final Key key;
+        private final Value value;
+        private final Version matchVersion;
+        private final ReturnValueVersion.Choice choice;
+        private final boolean abortIfUnsuccessful;
+
+        StubOperation(Operation.Type type,
+                      Key key,
+                      Value value,
+                      Version matchVersion,
+                      ReturnValueVersion.Choice choice,
+                      boolean abortIfUnsuccessful) {
+            this.type = type;
+            this.key = key;
+            this.value = value;
+            this.matchVersion = matchVersion;
+            this.choice = choice;
+            this.abortIfUnsuccessful = abortIfUnsuccessful;
+        }
+
+        @Override
+        public Key getKey() {
+            return key;
+        }
+
+        @Override
+        public Operation.Type getType() {
+            return type;
+        }
+
+        @Override
+        public boolean getAbortIfUnsuccessful() {
+            return abortIfUnsuccessful;
+        }
+
+        @Override
+        public String toString() {
+            return type + " " + key;
+        }
+    }
+
+    /**
+     * The OperationResult of a write.
+     */
+    private static class StubResult implements OperationResult {
+        private final boolean success;
+        private final Version newVersion;
+        private final Version previousVersion;
+        private final Value previousValue;
+
+        StubResult(boolean success,
+                   Version newVersion,
+                   Version previousVersion,
+                   Value previousValue) {
+            this.success = success;
+            this.newVersion = newVersion;
+            this.previousVersion = previousVersion;
+            this.previousValue = previousValue;
+        }
+
+        @Override
+        public boolean getSuccess() {
+            return success;
+        }
+
+        @Override
+        public Version getNewVersion() {
+            return newVersion;
+        }
+
+        @Override
+        public Version getPreviousVersion() {
+            return previousVersion;
+        }
+
+        @Override
+        public Value getPreviousValue() {
+            return previousValue;
+        }
+
+        void copyPrevious(ReturnValueVersion prevValue) {
+            if (prevValue != null) {
+                prevValue.setValue(previousValue);
+                prevValue.setVersion(previousVersion);
+            }
+        }
+    }
+}
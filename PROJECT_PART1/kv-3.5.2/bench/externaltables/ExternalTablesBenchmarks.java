@@ -0,0 +1,106 @@
+/*-
+ *
+ *  This file is part of Oracle NoSQL Database
+ *  Copyright (C) 2011, 2015 Oracle and/or its affiliates.  All rights reserved.
+ *
+ *  Oracle NoSQL Database is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation, version 3.
+ *
+ *  Oracle NoSQL Database is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public
+ *  License in the LICENSE file along with Oracle NoSQL Database.  If not,
+ *  see <http://www.gnu.org/licenses/>.
+ *
+ *  An active Oracle commercial licensing agreement for this product
+ *  supercedes this license.
+ *
+ *  For more information please contact:
+ *
+ *  Vice President Legal, Development
+ *  Oracle America, Inc.
+ *  5OP-10
+ *  500 Oracle Parkway
+ *  Redwood Shores, CA 94065
+ *
+ *  or
+ *
+ *  berkeleydb-info_us@oracle.com
+ *
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  EOF
+ *
+ */
+
+package externaltables;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import oracle.kv.KeyValueVersion;
+
+import bench.Benchmark;
+
+/**
+ * Benchmarks for the DataOutput serialization of UserInfo and for the
+ * conversion of records to the Oracle loader format done by MyFormatter in
+ * the external tables example, run by {@link bench.BenchmarkRunner}.
+ * MyFormatter is called once for every record read by an external table
+ * query.
+ */
+public class ExternalTablesBenchmarks {
+
+    private static final int N_INPUTS = 1024;
+
+    private static final UserInfo[] userInfos = new UserInfo[N_INPUTS];
+    private static final KeyValueVersion[] records =
+        new KeyValueVersion[N_INPUTS];
+    static {
+        for (int i = 0; i < N_INPUTS; i++) {
+            final UserInfo userInfo =
+                new UserInfo("user" + i + "@example.com");
+            userInfo.setName("User Name " + i);
+            userInfo.setGender((i % 2 == 0) ? "F" : "M");
+            userInfo.setAddress(i + " Example Street, Springfield");
+            userInfo.setPhone("555-" + (1000 + i));
+            userInfos[i] = userInfo;
+            records[i] = new KeyValueVersion(userInfo.getStoreKey(),
+                                             userInfo.getStoreValue(),
+                                             null);
+        }
+    }
+
+    public static List<Benchmark> benchmarks() {
+        final List<Benchmark> list = new ArrayList<Benchmark>();
+
+        list.add(new Benchmark("externaltables.UserInfo.getStoreValue") {
+            @Override
+            public Object run(int threadIndex) {
+                return userInfos[nextInput(threadIndex, N_INPUTS)].
+                    getStoreValue();
+            }
+        });
+
+        list.add(new Benchmark("externaltables.MyFormatter." +
+                               "toOracleLoaderFormat") {
+            private final MyFormatter formatter = new MyFormatter();
+
+            @Override
+            public Object run(int threadIndex) {
+                return formatter.toOracleLoaderFormat
+                    (records[nextInput(threadIndex, N_INPUTS)], null);
+            }
+        });
+
+        return list;
+    }
+}
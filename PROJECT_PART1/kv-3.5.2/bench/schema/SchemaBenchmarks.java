@@ -0,0 +1,724 @@
+/*-
+ *
+ *  This file is part of Oracle NoSQL Database
+ *  Copyright (C) 2011, 2015 Oracle and/or its affiliates.  All rights reserved.
+ *
+ *  Oracle NoSQL Database is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation, version 3.
+ *
+ *  Oracle NoSQL Database is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public
+ *  License in the LICENSE file along with Oracle NoSQL Database.  If not,
+ *  see <http://www.gnu.org/licenses/>.
+ *
+ *  An active Oracle commercial licensing agreement for this product
+ *  supercedes this license.
+ *
+ *  For more information please contact:
+ *
+ *  Vice President Legal, Development
+ *  Oracle America, Inc.
+ *  5OP-10
+ *  500 Oracle Parkway
+ *  Redwood Shores, CA 94065
+ *
+ *  or
+ *
+ *  berkeleydb-info_us@oracle.com
+ *
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  EOF
+ *
+ */
+
+package schema;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+
+import oracle.kv.KVStore;
+import oracle.kv.KVStoreConfig;
+import oracle.kv.Key;
+import oracle.kv.Operation;
+import oracle.kv.OperationFactory;
+import oracle.kv.ReturnValueVersion;
+import oracle.kv.Value;
+import oracle.kv.ValueVersion;
+import oracle.kv.Version;
+
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+
+import bench.Benchmark;
+import bench.StubAvroCatalog;
+import bench.StubKVStore;
+
+/**
+ * Benchmarks for the key construction and parsing and the Avro serialization
+ * done by the schema example, run by {@link bench.BenchmarkRunner}.
+ * <p>
+ * The timestamp round trip benchmarks compare TimestampCodec, used by
+ * KeyDefinition, with the synchronized static SimpleDateFormat it replaced.
+ * Running them with -threads 1,2,4,8 shows how each scales across cores.
+ * <p>
+ * The write benchmarks compare WriteOperations.put with
+ * AsyncWriteOperations.put over a store with a simulated round trip time,
+ * showing the throughput a single writer thread gains by keeping many writes
+ * in flight.  The execute benchmarks submit two-operation groups for a few
+ * users, which AsyncWriteOperations must execute one at a time per user and
+ * WriteBatcher combines into one request per user and time window.
+ * <p>
+ * The ChunkedLOB benchmarks store and read a 1 MB image in 64 KB chunks, one
+ * chunk at a time and with many chunks in flight.
+ * <p>
+ * The read-modify-write benchmarks increment counters held by a few Keys,
+ * either with the get and putIfVersion loop used by SchemaExample, one
+ * update at a time, or by submitting the updates to an UpdateEngine, which
+ * performs updates of different Keys in parallel and coalesces those of the
+ * same Key.
+ */
+public class SchemaBenchmarks {
+
+    private static final int N_INPUTS = 1024;
+
+    /* 2010-01-01 00:00:00 GMT, the start of the generated login times. */
+    private static final long BASE_TIME_MS = 1262304000000L;
+
+    private static final String[] emails = new String[N_INPUTS];
+    private static final long[] loginTimes = new long[N_INPUTS];
+    private static final String[] timestamps = new String[N_INPUTS];
+    private static final Key[] sessionKeys = new Key[N_INPUTS];
+    private static final Value EMPTY_VALUE = Value.createValue(new byte[0]);
+    static {
+        for (int i = 0; i < N_INPUTS; i++) {
+            emails[i] = "user" + i + "@example.com";
+            loginTimes[i] = BASE_TIME_MS + i * 7919L * 1000L + i;
+            timestamps[i] = KeyDefinition.formatTimestamp(loginTimes[i]);
+            sessionKeys[i] =
+                KeyDefinition.makeLoginSessionKey(emails[i], loginTimes[i]);
+        }
+    }
+
+    /* The shared format KeyDefinition used before TimestampCodec. */
+    private static final SimpleDateFormat LEGACY_FORMAT =
+        new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+    static {
+        LEGACY_FORMAT.setTimeZone(TimeZone.getTimeZone("GMT"));
+    }
+
+    /* A simulated round trip to the store. */
+    private static final long LATENCY_NANOS = 100000;
+
+    /* Worker threads and pending writes of the async benchmark. */
+    private static final int ASYNC_THREADS = 64;
+    private static final int ASYNC_MAX_PENDING = 256;
+
+    /* Users written by the execute benchmarks, and the batching window. */
+    private static final int BATCH_USERS = 8;
+    private static final long BATCH_WINDOW_MS = 1;
+    private static final int BATCH_MAX_SIZE = 64;
+
+    /* The LOB stored by the ChunkedLOB benchmarks. */
+    private static final int LOB_SIZE = 1 << 20;
+    private static final int LOB_CHUNK_SIZE = 64 << 10;
+    private static final int LOB_IN_FLIGHT = 16;
+
+    /* The counters updated by the read-modify-write benchmarks. */
+    private static final int RMW_KEYS = 8;
+
+    public static List<Benchmark> benchmarks() {
+        final List<Benchmark> list = new ArrayList<Benchmark>();
+
+        list.add(new Benchmark("schema.KeyDefinition.makeUserInfoKey") {
+            @Override
+            public Object run(int threadIndex) {
+                return KeyDefinition.makeUserInfoKey
+                    (emails[nextInput(threadIndex, N_INPUTS)]);
+            }
+        });
+
+        list.add(new Benchmark("schema.KeyDefinition.makeLoginSessionKey") {
+            @Override
+            public Object run(int threadIndex) {
+                final int i = nextInput(threadIndex, N_INPUTS);
+                return KeyDefinition.makeLoginSessionKey(emails[i],
+                                                         loginTimes[i]);
+            }
+        });
+
+        list.add(new Benchmark("schema.KeyDefinition.getSessionLoginTime") {
+            @Override
+            public Object run(int threadIndex) {
+                return KeyDefinition.getSessionLoginTime
+                    (sessionKeys[nextInput(threadIndex, N_INPUTS)]);
+            }
+        });
+
+        list.add(new Benchmark("schema.KeyCodec.classify") {
+            @Override
+            public Object run(int threadIndex) {
+                return KeyCodec.classify
+                    (sessionKeys[nextInput(threadIndex, N_INPUTS)]);
+            }
+        });
+
+        list.add(new Benchmark("schema.KeyDefinition.formatTimestamp") {
+            @Override
+            public Object run(int threadIndex) {
+                return KeyDefinition.formatTimestamp
+                    (loginTimes[nextInput(threadIndex, N_INPUTS)]);
+            }
+        });
+
+        list.add(new Benchmark("schema.KeyDefinition.parseTimestamp") {
+            @Override
+            public Object run(int threadIndex) {
+                return KeyDefinition.parseTimestamp
+                    (timestamps[nextInput(threadIndex, N_INPUTS)]);
+            }
+        });
+
+        list.add(new Benchmark("schema.timestamp.roundTrip") {
+            @Override
+            public void setUp(int nThreads) {
+                verifyTimestampCodec();
+            }
+
+            @Override
+            public Object run(int threadIndex) {
+                final int i = nextInput(threadIndex, N_INPUTS);
+                return TimestampCodec.parse
+                    (TimestampCodec.format(loginTimes[i]));
+            }
+        });
+
+        list.add(new Benchmark("schema.timestamp.roundTrip.legacy") {
+            @Override
+            public Object run(int threadIndex)
+                throws ParseException {
+
+                final int i = nextInput(threadIndex, N_INPUTS);
+                synchronized (LEGACY_FORMAT) {
+                    final String timestamp =
+                        LEGACY_FORMAT.format(new Date(loginTimes[i]));
+                    return LEGACY_FORMAT.parse(timestamp).getTime();
+                }
+            }
+        });
+
+        list.add(new Benchmark("schema.WriteOperations.put.100us") {
+            private WriteOperations writeOps;
+
+            @Override
+            public void setUp(int nThreads) {
+                writeOps = new WriteOperations
+                    (new StubKVStore(null, LATENCY_NANOS).getStore(),
+                     new KVStoreConfig("kvstore", "localhost:5000"));
+            }
+
+            @Override
+            public Object run(int threadIndex) {
+                final int i = nextInput(threadIndex, N_INPUTS);
+                return writeOps.put(sessionKeys[i], EMPTY_VALUE);
+            }
+        });
+
+        list.add(new Benchmark("schema.AsyncWriteOperations.put.100us") {
+            private AsyncWriteOperations asyncWriteOps;
+
+            @Override
+            public void setUp(int nThreads) {
+                asyncWriteOps = new AsyncWriteOperations
+                    (new StubKVStore(null, LATENCY_NANOS).getStore(),
+                     new KVStoreConfig("kvstore", "localhost:5000"),
+                     ASYNC_THREADS, ASYNC_MAX_PENDING);
+            }
+
+            @Override
+            public Object run(int threadIndex) {
+                final int i = nextInput(threadIndex, N_INPUTS);
+                return asyncWriteOps.put(sessionKeys[i], EMPTY_VALUE);
+            }
+
+            @Override
+            public void tearDown()
+                throws InterruptedException {
+
+                asyncWriteOps.close();
+            }
+        });
+
+        list.add(new Benchmark("schema.AsyncWriteOperations.execute.100us") {
+            private AsyncWriteOperations asyncWriteOps;
+            private OperationFactory factory;
+
+            @Override
+            public void setUp(int nThreads) {
+                final KVStore store =
+                    new StubKVStore(null, LATENCY_NANOS).getStore();
+                factory = store.getOperationFactory();
+                asyncWriteOps = new AsyncWriteOperations
+                    (store, new KVStoreConfig("kvstore", "localhost:5000"),
+                     ASYNC_THREADS, ASYNC_MAX_PENDING);
+            }
+
+            @Override
+            public Object run(int threadIndex) {
+                return asyncWriteOps.execute
+                    (makeGroup(factory, nextInput(threadIndex, N_INPUTS)));
+            }
+
+            @Override
+            public void tearDown()
+                throws InterruptedException {
+
+                asyncWriteOps.close();
+            }
+        });
+
+        list.add(new Benchmark("schema.WriteBatcher.execute.100us") {
+            private WriteBatcher batcher;
+            private OperationFactory factory;
+
+            @Override
+            public void setUp(int nThreads) {
+                final KVStore store =
+                    new StubKVStore(null, LATENCY_NANOS).getStore();
+                factory = store.getOperationFactory();
+                batcher = new WriteBatcher
+                    (new WriteOperations
+                         (store, new KVStoreConfig("kvstore", "localhost:5000")),
+                     null, BATCH_WINDOW_MS, BATCH_MAX_SIZE, ASYNC_THREADS,
+                     ASYNC_MAX_PENDING);
+            }
+
+            @Override
+            public Object run(int threadIndex) {
+                return batcher.execute
+                    (makeGroup(factory, nextInput(threadIndex, N_INPUTS)));
+            }
+
+            @Override
+            public void tearDown()
+                throws InterruptedException {
+
+                batcher.close();
+            }
+        });
+
+        list.add(new LOBBenchmark("schema.ChunkedLOB.put.1MB.100us.serial", 1) {
+            @Override
+            public Object run(int threadIndex)
+                throws IOException {
+
+                return lob.put(lobKeys[threadIndex],
+                               new ByteArrayInputStream(lobData));
+            }
+        });
+
+        list.add(new LOBBenchmark("schema.ChunkedLOB.put.1MB.100us",
+                                  LOB_IN_FLIGHT) {
+            @Override
+            public Object run(int threadIndex)
+                throws IOException {
+
+                return lob.put(lobKeys[threadIndex],
+                               new ByteArrayInputStream(lobData));
+            }
+        });
+
+        list.add(new LOBBenchmark("schema.ChunkedLOB.read.1MB.100us.serial",
+                                  1) {
+            @Override
+            public Object run(int threadIndex)
+                throws IOException {
+
+                return readLOB(threadIndex);
+            }
+        });
+
+        list.add(new LOBBenchmark("schema.ChunkedLOB.read.1MB.100us",
+                                  LOB_IN_FLIGHT) {
+            @Override
+            public Object run(int threadIndex)
+                throws IOException {
+
+                return readLOB(threadIndex);
+            }
+        });
+
+        list.add(new RMWBenchmark("schema.putIfVersion.loop.100us") {
+            @Override
+            public Object run(int threadIndex) {
+                final Key key = rmwKeys[nextInput(threadIndex, RMW_KEYS)];
+                ValueVersion current = store.get(key);
+                while (true) {
+                    final ReturnValueVersion prevValue =
+                        new ReturnValueVersion(ReturnValueVersion.Choice.ALL);
+                    final Version version = writeOps.putIfVersion
+                        (key, increment(current.getValue()),
+                         current.getVersion(), prevValue, null, 0, null);
+                    if (version != null) {
+                        return version;
+                    }
+                    current = new ValueVersion(prevValue.getValue(),
+                                               prevValue.getVersion());
+                }
+            }
+        });
+
+        list.add(new RMWBenchmark("schema.UpdateEngine.100us") {
+            private UpdateEngine engine;
+
+            @Override
+            public void setUp(int nThreads) {
+                super.setUp(nThreads);
+                engine = new UpdateEngine(store, writeOps, RMW_KEYS,
+                                          ASYNC_MAX_PENDING);
+            }
+
+            @Override
+            public Object run(int threadIndex) {
+                final Key key = rmwKeys[nextInput(threadIndex, RMW_KEYS)];
+                return engine.submit(new UpdateEngine.Update("increment", key) {
+                    @Override
+                    Value apply(Value currentValue) {
+                        return increment(currentValue);
+                    }
+                });
+            }
+
+            @Override
+            public void tearDown()
+                throws InterruptedException {
+
+                engine.close();
+            }
+        });
+
+        list.add(new RMWBenchmark("schema.LoginDelta.append.100us") {
+            private final AtomicLong nextLoginTime =
+                new AtomicLong(BASE_TIME_MS);
+
+            @Override
+            public Object run(int threadIndex) {
+                final int user = nextInput(threadIndex, RMW_KEYS);
+                final Key key = KeyDefinition.makeLoginDeltaKey
+                    (emails[user], nextLoginTime.getAndIncrement());
+                return writeOps.put(key, Value.createValue(new byte[8]));
+            }
+        });
+
+        list.add(new BindingsBenchmark("schema.UserInfo.getStoreValue") {
+            @Override
+            public Object run(int threadIndex) {
+                return userInfos[nextInput(threadIndex, N_INPUTS)].
+                    getStoreValue(bindings);
+            }
+        });
+
+        list.add(new BindingsBenchmark("schema.UserInfo.setStoreValue") {
+            @Override
+            public Object run(int threadIndex) {
+                final int i = nextInput(threadIndex, N_INPUTS);
+                final UserInfo userInfo = new UserInfo(emails[i]);
+                userInfo.setStoreValue(bindings, userInfoValues[i]);
+                return userInfo;
+            }
+        });
+
+        /*
+         * The GenericAvroBinding path that UserInfo used before RecordCodec,
+         * for comparison with the two benchmarks above.
+         */
+        list.add(new BindingsBenchmark
+                 ("schema.UserInfo.getStoreValue.generic") {
+            @Override
+            public Object run(int threadIndex) {
+                final UserInfo userInfo =
+                    userInfos[nextInput(threadIndex, N_INPUTS)];
+                final GenericRecord rec =
+                    new GenericData.Record(bindings.getUserInfoSchema());
+                rec.put("name", userInfo.getName());
+                rec.put("gender", new GenericData.EnumSymbol
+                        (bindings.getGenderSchema(),
+                         userInfo.getGender().toString()));
+                rec.put("address", userInfo.getAddress());
+                rec.put("phone", userInfo.getPhone());
+                return bindings.getUserInfoBinding().toValue(rec);
+            }
+        });
+
+        list.add(new BindingsBenchmark
+                 ("schema.UserInfo.setStoreValue.generic") {
+            @Override
+            public Object run(int threadIndex) {
+                final int i = nextInput(threadIndex, N_INPUTS);
+                final UserInfo userInfo = new UserInfo(emails[i]);
+                final GenericRecord rec =
+                    bindings.getUserInfoBinding().toObject(userInfoValues[i]);
+                userInfo.setName(rec.get("name").toString());
+                userInfo.setGender(Enum.valueOf
+                    (Gender.class, rec.get("gender").toString()));
+                userInfo.setAddress(rec.get("address").toString());
+                userInfo.setPhone(rec.get("phone").toString());
+                return userInfo;
+            }
+        });
+
+        list.add(new BindingsBenchmark("schema.KeyDefinition.deserializeAny") {
+            @Override
+            public Object run(int threadIndex) {
+                final int i = nextInput(threadIndex, N_INPUTS);
+                return KeyDefinition.deserializeAny(bindings, anyKeys[i],
+                                                    anyValues[i]);
+            }
+        });
+
+        return list;
+    }
+
+    /**
+     * Checks that TimestampCodec produces the same strings and times as
+     * SimpleDateFormat, over random times from year 1 to 9999 and around
+     * the edges of the range it converts itself, so that a benchmark run
+     * never reports the speed of an incorrect codec.
+     */
+    private static void verifyTimestampCodec() {
+        final Random random = new Random(42);
+        final long minMillis = -62135769600000L; /* 0001-01-01 */
+        final long maxMillis = 253402300799999L; /* 9999-12-31 23:59:59.999 */
+        final long cutover = -12244089600000L;   /* 1582-01-01 */
+        for (int i = 0; i < 200000; i++) {
+            final long millis;
+            switch (i % 4) {
+            case 0:
+                millis = minMillis +
+                    (long) (random.nextDouble() * (maxMillis - minMillis));
+                break;
+            case 1:
+                millis = cutover + (long) (random.nextDouble() * 1e12);
+                break;
+            case 2:
+                millis = maxMillis - (long) (random.nextDouble() * 1e11);
+                break;
+            default:
+                millis = (long) ((random.nextDouble() - 0.5) * 1e13);
+                break;
+            }
+            final String expected;
+            final long expectedMillis;
+            synchronized (LEGACY_FORMAT) {
+                expected = LEGACY_FORMAT.format(new Date(millis));
+                try {
+                    expectedMillis = LEGACY_FORMAT.parse(expected).getTime();
+                } catch (ParseException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            final String actual = TimestampCodec.format(millis);
+            if (!expected.equals(actual) ||
+                TimestampCodec.parse(actual) != expectedMillis) {
+                throw new IllegalStateException
+                    ("TimestampCodec mismatch for " + millis + ": " +
+                     actual + " expected " + expected);
+            }
+        }
+    }
+
+    /**
+     * A benchmark using Bindings over a {@link StubAvroCatalog}, with a set
+     * of UserInfo objects and a mix of serialized user records as inputs.
+     */
+    /**
+     * Returns two LoginSession puts for one of BATCH_USERS users, with
+     * distinct Keys for each input.
+     */
+    private static List<Operation> makeGroup(OperationFactory factory,
+                                             int i) {
+        final String email = emails[i % BATCH_USERS];
+        final List<Operation> group = new ArrayList<Operation>(2);
+        group.add(factory.createPut
+                  (KeyDefinition.makeLoginSessionKey(email, loginTimes[i]),
+                   EMPTY_VALUE));
+        group.add(factory.createPut
+                  (KeyDefinition.makeLoginSessionKey(email, loginTimes[i] + 1),
+                   EMPTY_VALUE));
+        return group;
+    }
+
+    /**
+     * Stores a LOB per thread in a store with a simulated round trip time,
+     * using ChunkedLOB with the given number of chunks in flight.
+     */
+    private static abstract class LOBBenchmark extends Benchmark {
+        private final int inFlight;
+        final byte[] lobData = new byte[LOB_SIZE];
+        /* Shared by all threads, since the bytes read are discarded. */
+        final byte[] readBuffer = new byte[8192];
+        Key[] lobKeys;
+        ChunkedLOB lob;
+
+        LOBBenchmark(String name, int inFlight) {
+            super(name);
+            this.inFlight = inFlight;
+            new Random(42).nextBytes(lobData);
+        }
+
+        @Override
+        public void setUp(int nThreads)
+            throws IOException {
+
+            final KVStore store =
+                new StubKVStore(null, LATENCY_NANOS).getStore();
+            lob = new ChunkedLOB
+                (store,
+                 new WriteOperations
+                     (store, new KVStoreConfig("kvstore", "localhost:5000")),
+                 LOB_CHUNK_SIZE, nThreads * inFlight, inFlight);
+            lobKeys = new Key[nThreads];
+            for (int i = 0; i < nThreads; i++) {
+                lobKeys[i] = Key.createKey
+                    (Arrays.asList("user", emails[i]),
+                     Arrays.asList("image.lob"));
+                lob.put(lobKeys[i], new ByteArrayInputStream(lobData));
+            }
+        }
+
+        long readLOB(int threadIndex)
+            throws IOException {
+
+            final InputStream in = lob.open(lobKeys[threadIndex], 0, LOB_SIZE);
+            long total = 0;
+            try {
+                int n;
+                while ((n = in.read(readBuffer)) >= 0) {
+                    total += n;
+                }
+            } finally {
+                in.close();
+            }
+            return total;
+        }
+
+        @Override
+        public void tearDown()
+            throws InterruptedException {
+
+            lob.close();
+        }
+    }
+
+    /**
+     * Updates RMW_KEYS counters in a store with a simulated round trip time.
+     */
+    private static abstract class RMWBenchmark extends Benchmark {
+        final Key[] rmwKeys = new Key[RMW_KEYS];
+        KVStore store;
+        WriteOperations writeOps;
+
+        RMWBenchmark(String name) {
+            super(name);
+            for (int i = 0; i < RMW_KEYS; i++) {
+                rmwKeys[i] = KeyDefinition.makeLoginSummaryKey(emails[i]);
+            }
+        }
+
+        @Override
+        public void setUp(int nThreads) {
+            store = new StubKVStore(null, LATENCY_NANOS).getStore();
+            writeOps = new WriteOperations
+                (store, new KVStoreConfig("kvstore", "localhost:5000"));
+            for (Key key : rmwKeys) {
+                store.put(key, Value.createValue(new byte[8]));
+            }
+        }
+
+        /**
+         * Returns a Value holding the 8 byte counter of the given Value plus
+         * one.
+         */
+        static Value increment(Value value) {
+            final byte[] bytes = value.getValue().clone();
+            for (int i = bytes.length - 1; i >= 0; i--) {
+                if (++bytes[i] != 0) {
+                    break;
+                }
+            }
+            return Value.createValue(bytes);
+        }
+    }
+
+    private static abstract class BindingsBenchmark extends Benchmark {
+        Bindings bindings;
+        final UserInfo[] userInfos = new UserInfo[N_INPUTS];
+        final Value[] userInfoValues = new Value[N_INPUTS];
+        final Key[] anyKeys = new Key[N_INPUTS];
+        final Value[] anyValues = new Value[N_INPUTS];
+
+        BindingsBenchmark(String name) {
+            super(name);
+        }
+
+        @Override
+        public void setUp(int nThreads) {
+            bindings = new Bindings
+                (new StubAvroCatalog(Bindings.class,
+                                     "user-info.avsc", "user-image.avsc",
+                                     "login-session.avsc",
+                                     "login-summary.avsc"));
+            final Gender[] genders = Gender.values();
+            for (int i = 0; i < N_INPUTS; i++) {
+                final UserInfo userInfo = new UserInfo(emails[i]);
+                userInfo.setName("User Name " + i);
+                userInfo.setGender(genders[i % genders.length]);
+                userInfo.setAddress(i + " Example Street, Springfield");
+                userInfo.setPhone("555-" + (1000 + i));
+                userInfos[i] = userInfo;
+                userInfoValues[i] = userInfo.getStoreValue(bindings);
+
+                /* Alternate between user info, login summary and session. */
+                switch (i % 3) {
+                case 0:
+                    anyKeys[i] = userInfo.getStoreKey();
+                    anyValues[i] = userInfoValues[i];
+                    break;
+                case 1:
+                    final LoginSummary summary = new LoginSummary(emails[i]);
+                    summary.setTotalLoginCount(i);
+                    summary.setTotalLoginDuration(i * 60000L);
+                    anyKeys[i] = summary.getStoreKey();
+                    anyValues[i] = summary.getStoreValue(bindings);
+                    break;
+                default:
+                    final LoginSession session =
+                        new LoginSession(emails[i], loginTimes[i]);
+                    session.setSessionDuration(i * 1000);
+                    anyKeys[i] = session.getStoreKey();
+                    anyValues[i] = session.getStoreValue(bindings);
+                    break;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*-
+ *
+ *  This file is part of Oracle NoSQL Database
+ *  Copyright (C) 2011, 2015 Oracle and/or its affiliates.  All rights reserved.
+ *
+ *  Oracle NoSQL Database is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation, version 3.
+ *
+ *  Oracle NoSQL Database is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public
+ *  License in the LICENSE file along with Oracle NoSQL Database.  If not,
+ *  see <http://www.gnu.org/licenses/>.
+ *
+ *  An active Oracle commercial licensing agreement for this product
+ *  supercedes this license.
+ *
+ *  For more information please contact:
+ *
+ *  Vice President Legal, Development
+ *  Oracle America, Inc.
+ *  5OP-10
+ *  500 Oracle Parkway
+ *  Redwood Shores, CA 94065
+ *
+ *  or
+ *
+ *  berkeleydb-info_us@oracle.com
+ *
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  EOF
+ *
+ */
+
+package secondaryindex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import oracle.kv.Value;
+
+import bench.Benchmark;
+import bench.StubAvroCatalog;
+
+/**
+ * Benchmarks for the Avro conversions done by the Binding class of the
+ * secondary index example, run by {@link bench.BenchmarkRunner}.  Every
+ * index build and index query converts primary record Values with these
+ * methods.
+ */
+public class SecondaryIndexBenchmarks {
+
+    private static final int N_INPUTS = 1024;
+
+    public static List<Benchmark> benchmarks() {
+        final List<Benchmark> list = new ArrayList<Benchmark>();
+
+        list.add(new BindingBenchmark("secondaryindex.BillInfo.getStoreValue") {
+            @Override
+            public Object run(int threadIndex) {
+                return bills[nextInput(threadIndex, N_INPUTS)].
+                    getStoreValue(binding);
+            }
+        });
+
+        list.add(new BindingBenchmark("secondaryindex.Binding.toObject") {
+            @Override
+            public Object run(int threadIndex) {
+                return binding.toObject(values[nextInput(threadIndex,
+                                                         N_INPUTS)]);
+            }
+        });
+
+        list.add(new BindingBenchmark("secondaryindex.Binding.toFields") {
+            private final List<String> fieldNames =
+                Arrays.asList("email", "cost");
+
+            @Override
+            public Object run(int threadIndex) {
+                return binding.toFields
+                    (values[nextInput(threadIndex, N_INPUTS)], fieldNames);
+            }
+        });
+
+        list.add(new BindingBenchmark
+                 ("secondaryindex.Binding.toFields.ofSchema") {
+            private final List<String> fieldNames =
+                Arrays.asList("email", "cost");
+
+            @Override
+            public Object run(int threadIndex) {
+                return binding.toFields
+                    (values[nextInput(threadIndex, N_INPUTS)],
+                     BillInfo.SCHEMA_NAME, fieldNames);
+            }
+        });
+
+        list.add(new BindingBenchmark("secondaryindex.Binding.getSchemaName") {
+            @Override
+            public Object run(int threadIndex) {
+                return binding.getSchemaName
+                    (values[nextInput(threadIndex, N_INPUTS)]);
+            }
+        });
+
+        list.add(new BindingBenchmark
+                 ("secondaryindex.Binding.Dispatcher.getHandler") {
+            private Binding.Dispatcher<String> dispatcher;
+
+            @Override
+            public void setUp(int nThreads) {
+                super.setUp(nThreads);
+                dispatcher = binding.newDispatcher();
+                dispatcher.register(BillInfo.SCHEMA_NAME, "bill");
+            }
+
+            @Override
+            public Object run(int threadIndex) {
+                return dispatcher.getHandler
+                    (values[nextInput(threadIndex, N_INPUTS)]);
+            }
+        });
+
+        return list;
+    }
+
+    /**
+     * A benchmark using a Binding over a {@link StubAvroCatalog}, with a set
+     * of BillInfo records and their serialized Values as inputs.
+     */
+    private static abstract class BindingBenchmark extends Benchmark {
+        Binding binding;
+        final BillInfo[] bills = new BillInfo[N_INPUTS];
+        final Value[] values = new Value[N_INPUTS];
+
+        BindingBenchmark(String name) {
+            super(name);
+        }
+
+        @Override
+        public void setUp(int nThreads) {
+            binding = new Binding
+                (new StubAvroCatalog(Binding.class, "billinfo-schema.avsc"));
+            for (int i = 0; i < N_INPUTS; i++) {
+                bills[i] = new BillInfo("id" + i, "name" + (i % 100),
+                                        "user" + i + "@example.com",
+                                        "555-" + (1000 + i),
+                                        String.format("%02d/%02d/%02d",
+                                                      1 + i % 12,
+                                                      1 + i % 28,
+                                                      i % 100),
+                                        i * 10L);
+                values[i] = bills[i].getStoreValue(binding);
+            }
+        }
+    }
+}
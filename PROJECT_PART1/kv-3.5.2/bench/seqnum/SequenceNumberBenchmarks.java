@@ -0,0 +1,117 @@
+/*-
+ *
+ *  This file is part of Oracle NoSQL Database
+ *  Copyright (C) 2011, 2015 Oracle and/or its affiliates.  All rights reserved.
+ *
+ *  Oracle NoSQL Database is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation, version 3.
+ *
+ *  Oracle NoSQL Database is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public
+ *  License in the LICENSE file along with Oracle NoSQL Database.  If not,
+ *  see <http://www.gnu.org/licenses/>.
+ *
+ *  An active Oracle commercial licensing agreement for this product
+ *  supercedes this license.
+ *
+ *  For more information please contact:
+ *
+ *  Vice President Legal, Development
+ *  Oracle America, Inc.
+ *  5OP-10
+ *  500 Oracle Parkway
+ *  Redwood Shores, CA 94065
+ *
+ *  or
+ *
+ *  berkeleydb-info_us@oracle.com
+ *
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  EOF
+ *
+ */
+
+package seqnum;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import oracle.kv.Key;
+
+import bench.Benchmark;
+import bench.StubKVStore;
+
+/**
+ * Benchmarks for SequenceNumber.incrementAndGet over a {@link StubKVStore},
+ * run by {@link bench.BenchmarkRunner}.
+ * <p>
+ * With a key per thread, each increment is a single putIfVersion.  With a
+ * key shared by all threads, concurrent increments fail their putIfVersion
+ * and retry after reading the current value, so the difference between the
+ * two shows the cost of contention on a sequence.  The latency variants
+ * delay each request to approximate a round trip to a store on a local
+ * network.
+ */
+public class SequenceNumberBenchmarks {
+
+    /* A simulated round trip to the store. */
+    private static final long LATENCY_NANOS = 100000;
+
+    public static List<Benchmark> benchmarks() {
+        final List<Benchmark> list = new ArrayList<Benchmark>();
+        list.add(new SequenceBenchmark("seqnum.incrementAndGet", false, 0));
+        list.add(new SequenceBenchmark("seqnum.incrementAndGet.sharedKey",
+                                       true, 0));
+        list.add(new SequenceBenchmark("seqnum.incrementAndGet.100us",
+                                       false, LATENCY_NANOS));
+        list.add(new SequenceBenchmark
+                 ("seqnum.incrementAndGet.sharedKey.100us",
+                  true, LATENCY_NANOS));
+        return list;
+    }
+
+    /**
+     * Increments a SequenceNumber per thread, over either a key per thread
+     * or a key shared by all threads.
+     */
+    private static class SequenceBenchmark extends Benchmark {
+        private final boolean sharedKey;
+        private final long latencyNanos;
+        private SequenceNumber[] sequences;
+
+        SequenceBenchmark(String name, boolean sharedKey, long latencyNanos) {
+            super(name);
+            this.sharedKey = sharedKey;
+            this.latencyNanos = latencyNanos;
+        }
+
+        @Override
+        public void setUp(int nThreads) {
+            final StubKVStore store = new StubKVStore(null, latencyNanos);
+            sequences = new SequenceNumber[nThreads];
+            for (int i = 0; i < nThreads; i++) {
+                final Key key =
+                    Key.createKey("sequence", sharedKey ? "shared" : ("t" + i));
+
+                /* A SequenceNumber is not thread-safe: one per thread. */
+                sequences[i] = new SequenceNumber(store.getStore(), key,
+                                                  Integer.MAX_VALUE, 0);
+            }
+        }
+
+        @Override
+        public Object run(int threadIndex) {
+            return sequences[threadIndex].incrementAndGet();
+        }
+    }
+}
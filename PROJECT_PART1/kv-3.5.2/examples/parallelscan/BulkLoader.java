@@ -0,0 +1,303 @@
+/*-
+ *
+ *  This file is part of Oracle NoSQL Database
+ *  Copyright (C) 2011, 2015 Oracle and/or its affiliates.  All rights reserved.
+ *
+ *  Oracle NoSQL Database is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation, version 3.
+ *
+ *  Oracle NoSQL Database is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public
+ *  License in the LICENSE file along with Oracle NoSQL Database.  If not,
+ *  see <http://www.gnu.org/licenses/>.
+ *
+ *  An active Oracle commercial licensing agreement for this product
+ *  supercedes this license.
+ *
+ *  For more information please contact:
+ *
+ *  Vice President Legal, Development
+ *  Oracle America, Inc.
+ *  5OP-10
+ *  500 Oracle Parkway
+ *  Redwood Shores, CA 94065
+ *
+ *  or
+ *
+ *  berkeleydb-info_us@oracle.com
+ *
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  EOF
+ *
+ */
+
+package parallelscan;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import oracle.kv.KVStore;
+import oracle.kv.Key;
+import oracle.kv.Operation;
+import oracle.kv.OperationExecutionException;
+import oracle.kv.OperationFactory;
+import oracle.kv.Value;
+
+/**
+ * A multi-threaded bulk loader used by the -load mode of {@link
+ * ParallelScanExample}.
+ * <p>
+ * The records to load are split into fixed size batches that are handed to a
+ * pool of worker threads.  Within a batch, writes that share a Key major path
+ * are grouped into a single {@link KVStore#execute KVStore.execute} call, since
+ * all Key/Value pairs with the same major path are stored in the same
+ * partition and can be written in one round trip.  Writes whose major path is
+ * not shared with any other write in the batch are sent with a simple
+ * {@link KVStore#put KVStore.put}.
+ * <p>
+ * The number of store requests that may be outstanding at any time is capped
+ * by a semaphore.  Since each worker makes one synchronous request at a time,
+ * the cap is at most the number of worker threads, and only throttles the
+ * load when it is smaller.  The queue of pending batches is bounded so that
+ * the producer blocks rather than materializing the whole load in memory.
+ * <p>
+ * Every store request is timed, and at the end of the load the throughput and
+ * the latency percentiles of the individual requests are available from the
+ * returned {@link LoadResult}.  A request that fails with any exception only
+ * fails the records it writes: they are counted in the LoadResult, which also
+ * holds the first failure, and the load goes on.
+ */
+class BulkLoader {
+
+    /**
+     * Creates the Key and Value for the i'th record of a load.
+     */
+    interface RecordGenerator {
+        Key getKey(long recordNumber);
+        Value getValue(long recordNumber);
+    }
+
+    private final KVStore store;
+    private final int nThreads;
+    private final int batchSize;
+    private final Semaphore inFlight;
+
+    /**
+     * Creates a loader.
+     *
+     * @param store the store to load
+     * @param nThreads the number of worker threads
+     * @param maxInFlight the maximum number of concurrent store requests;
+     * larger values are reduced to nThreads
+     * @param batchSize the number of records handed to a worker at a time
+     */
+    BulkLoader(KVStore store, int nThreads, int maxInFlight, int batchSize) {
+        if (nThreads < 1 || maxInFlight < 1 || batchSize < 1) {
+            throw new IllegalArgumentException
+                ("nThreads, maxInFlight and batchSize must be positive");
+        }
+        this.store = store;
+        this.nThreads = nThreads;
+        this.batchSize = batchSize;
+        this.inFlight = new Semaphore(Math.min(maxInFlight, nThreads));
+    }
+
+    /**
+     * Loads nRecords records, numbered from 0 to nRecords - 1, and waits for
+     * the load to complete.
+     */
+    LoadResult load(final long nRecords, final RecordGenerator generator)
+        throws InterruptedException {
+
+        final LoadResult result = new LoadResult();
+
+        /*
+         * A bounded queue with the caller-runs policy provides backpressure:
+         * when all workers are busy and the queue is full, the producing
+         * thread executes the next batch itself.
+         */
+        final ThreadPoolExecutor executor =
+            new ThreadPoolExecutor(nThreads, nThreads,
+                                   0L, TimeUnit.MILLISECONDS,
+                                   new ArrayBlockingQueue<Runnable>
+                                   (nThreads * 2),
+                                   new ThreadPoolExecutor.CallerRunsPolicy());
+
+        final long start = System.nanoTime();
+        try {
+            for (long first = 0; first < nRecords; first += batchSize) {
+                final long batchStart = first;
+                final long batchEnd = Math.min(nRecords, first + batchSize);
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        loadBatch(batchStart, batchEnd, generator, result);
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    private void loadBatch(long batchStart,
+                           long batchEnd,
+                           RecordGenerator generator,
+                           LoadResult result) {
+
+        /* Group the batch by major path, preserving the input order. */
+        final Map<List<String>, List<Key>> groups =
+            new LinkedHashMap<List<String>, List<Key>>();
+        final Map<Key, Value> values = new HashMap<Key, Value>();
+        try {
+            for (long i = batchStart; i < batchEnd; i++) {
+                final Key key = generator.getKey(i);
+                List<Key> keys = groups.get(key.getMajorPath());
+                if (keys == null) {
+                    keys = new ArrayList<Key>();
+                    groups.put(key.getMajorPath(), keys);
+                }
+                keys.add(key);
+                values.put(key, generator.getValue(i));
+            }
+        } catch (RuntimeException e) {
+
+            /*
+             * Nothing in the batch has been written yet, so the whole batch
+             * fails.  Letting the exception escape would lose it in the
+             * executor, or abort the load if the producer ran the batch.
+             */
+            result.failed.addAndGet(batchEnd - batchStart);
+            result.firstFailure.compareAndSet(null, e);
+            return;
+        }
+
+        for (List<Key> keys : groups.values()) {
+            try {
+                inFlight.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                result.failed.addAndGet(keys.size());
+                continue;
+            }
+            final long opStart = System.nanoTime();
+            try {
+                writeGroup(keys, values);
+                result.latency.recordNanos(System.nanoTime() - opStart);
+                result.loaded.addAndGet(keys.size());
+                result.requests.incrementAndGet();
+            } catch (OperationExecutionException e) {
+                result.failed.addAndGet(keys.size());
+                result.firstFailure.compareAndSet(null, e);
+            } catch (RuntimeException e) {
+
+                /*
+                 * A FaultException, or e.g. an IllegalArgumentException for
+                 * a record the store rejects; either way only this group is
+                 * lost and the load goes on.
+                 */
+                result.failed.addAndGet(keys.size());
+                result.firstFailure.compareAndSet(null, e);
+            } finally {
+                inFlight.release();
+            }
+        }
+    }
+
+    /**
+     * Writes a group of Keys sharing a major path in a single request.
+     */
+    private void writeGroup(List<Key> keys, Map<Key, Value> values)
+        throws OperationExecutionException {
+
+        if (keys.size() == 1) {
+            final Key key = keys.get(0);
+            store.put(key, values.get(key));
+            return;
+        }
+
+        final OperationFactory factory = store.getOperationFactory();
+        final List<Operation> ops = new ArrayList<Operation>(keys.size());
+        for (Key key : keys) {
+            ops.add(factory.createPut(key, values.get(key)));
+        }
+        store.execute(ops);
+    }
+
+    /**
+     * The outcome of a load.
+     */
+    static class LoadResult {
+        private final AtomicLong loaded = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicReference<Exception> firstFailure =
+            new AtomicReference<Exception>();
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private long elapsedNanos;
+
+        long getLoaded() {
+            return loaded.get();
+        }
+
+        long getFailed() {
+            return failed.get();
+        }
+
+        long getRequests() {
+            return requests.get();
+        }
+
+        /**
+         * Returns the first exception that caused records to fail, whether
+         * thrown by the store or by the RecordGenerator, or null if no
+         * record failed.
+         */
+        Exception getFirstFailure() {
+            return firstFailure.get();
+        }
+
+        LatencyHistogram getLatency() {
+            return latency;
+        }
+
+        long getElapsedMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+        }
+
+        long getRecordsPerSecond() {
+            return (elapsedNanos == 0) ?
+                0 : (loaded.get() * 1000000000L) / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return loaded.get() + " records loaded (" + failed.get() +
+                " failed) in " + getElapsedMillis() + " milliseconds, " +
+                getRecordsPerSecond() + " records/sec, " + requests.get() +
+                " requests\nrequest latency: " + latency.summary();
+        }
+    }
+}
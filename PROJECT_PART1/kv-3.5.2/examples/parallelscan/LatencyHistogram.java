@@ -0,0 +1,175 @@
+/*-
+ *
+ *  This file is part of Oracle NoSQL Database
+ *  Copyright (C) 2011, 2015 Oracle and/or its affiliates.  All rights reserved.
+ *
+ *  Oracle NoSQL Database is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation, version 3.
+ *
+ *  Oracle NoSQL Database is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public
+ *  License in the LICENSE file along with Oracle NoSQL Database.  If not,
+ *  see <http://www.gnu.org/licenses/>.
+ *
+ *  An active Oracle commercial licensing agreement for this product
+ *  supercedes this license.
+ *
+ *  For more information please contact:
+ *
+ *  Vice President Legal, Development
+ *  Oracle America, Inc.
+ *  5OP-10
+ *  500 Oracle Parkway
+ *  Redwood Shores, CA 94065
+ *
+ *  or
+ *
+ *  berkeleydb-info_us@oracle.com
+ *
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  EOF
+ *
+ */
+
+package parallelscan;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, thread-safe latency histogram used to report throughput and
+ * latency percentiles for the load and scan operations in this example.
+ * <p>
+ * Latencies are recorded in microseconds into log-linear buckets: each power
+ * of two is split into {@link #SUB_BUCKETS} linear sub-buckets, which keeps
+ * the relative error of a reported percentile below 1/SUB_BUCKETS while using
+ * a small, constant amount of memory.  Recording is lock-free so that many
+ * loader or consumer threads can share a single instance.
+ */
+class LatencyHistogram {
+
+    /* Number of linear sub-buckets per power of two. */
+    private static final int SUB_BUCKETS = 16;
+
+    /* Number of powers of two covered; 2^40 us is roughly 12 days. */
+    private static final int MAGNITUDES = 40;
+
+    private final AtomicLongArray counts =
+        new AtomicLongArray(SUB_BUCKETS * MAGNITUDES);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong totalMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    /**
+     * Records a single latency measured in nanoseconds.
+     */
+    void recordNanos(long nanos) {
+        final long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+        counts.incrementAndGet(bucketIndex(micros));
+        totalCount.incrementAndGet();
+        totalMicros.addAndGet(micros);
+
+        long max = maxMicros.get();
+        while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+            max = maxMicros.get();
+        }
+    }
+
+    /**
+     * Adds all values recorded by another histogram to this one.
+     */
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length(); i++) {
+            final long n = other.counts.get(i);
+            if (n != 0) {
+                counts.addAndGet(i, n);
+            }
+        }
+        totalCount.addAndGet(other.totalCount.get());
+        totalMicros.addAndGet(other.totalMicros.get());
+
+        final long otherMax = other.maxMicros.get();
+        long max = maxMicros.get();
+        while (otherMax > max && !maxMicros.compareAndSet(max, otherMax)) {
+            max = maxMicros.get();
+        }
+    }
+
+    long getCount() {
+        return totalCount.get();
+    }
+
+    long getMaxMicros() {
+        return maxMicros.get();
+    }
+
+    long getMeanMicros() {
+        final long n = totalCount.get();
+        return (n == 0) ? 0 : totalMicros.get() / n;
+    }
+
+    /**
+     * Returns the upper bound, in microseconds, of the bucket holding the
+     * given percentile (0 < percentile <= 100).
+     */
+    long getPercentileMicros(double percentile) {
+        final long n = totalCount.get();
+        if (n == 0) {
+            return 0;
+        }
+        final long rank = (long) Math.ceil((percentile / 100.0) * n);
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(i), maxMicros.get());
+            }
+        }
+        return maxMicros.get();
+    }
+
+    /**
+     * Returns a one line summary of the recorded latencies.
+     */
+    String summary() {
+        return "count=" + getCount() +
+               " mean=" + getMeanMicros() + "us" +
+               " p50=" + getPercentileMicros(50) + "us" +
+               " p90=" + getPercentileMicros(90) + "us" +
+               " p99=" + getPercentileMicros(99) + "us" +
+               " p99.9=" + getPercentileMicros(99.9) + "us" +
+               " max=" + getMaxMicros() + "us";
+    }
+
+    private static int bucketIndex(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        final int magnitude = 63 - Long.numberOfLeadingZeros(micros);
+        final int shift = magnitude - 4;   /* log2(SUB_BUCKETS) == 4 */
+        final int sub = (int) ((micros >>> shift) - SUB_BUCKETS);
+        final int index = (magnitude - 3) * SUB_BUCKETS + sub;
+        return Math.min(index, (SUB_BUCKETS * MAGNITUDES) - 1);
+    }
+
+    private static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final int magnitude = (index / SUB_BUCKETS) + 3;
+        final int sub = index % SUB_BUCKETS;
+        final int shift = magnitude - 4;
+        return ((long) (SUB_BUCKETS + sub + 1) << shift) - 1;
+    }
+}
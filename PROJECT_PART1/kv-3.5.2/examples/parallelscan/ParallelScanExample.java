@@ -43,20 +43,21 @@
 
 package parallelscan;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
 
-import oracle.kv.Direction;
 import oracle.kv.KVStore;
 import oracle.kv.KVStoreConfig;
 import oracle.kv.KVStoreFactory;
 import oracle.kv.Key;
 import oracle.kv.KeyRange;
-import oracle.kv.KeyValueVersion;
-import oracle.kv.ParallelScanIterator;
 import oracle.kv.StoreIteratorConfig;
 import oracle.kv.Value;
-import oracle.kv.stats.DetailedMetrics;
 
 /**
  * This is a simple example that demonstrates the Parallel Scan feature of
@@ -76,9 +77,32 @@ import oracle.kv.stats.DetailedMetrics;
  * threads to use. The default value for this option is 1, which indicates
  * non-Parallel Scan.
  * <p>
- * At the end of each retrieval operation, the number of matching records and
+ * Scanning is done by a {@link ScanPipeline}: the records returned by the
+ * Parallel Scan are handed to a pool of consumer threads which apply the
+ * -where filter and count the matching records. Use the -consumerThreads
+ * option to specify the number of consumer threads. The default value for
+ * this option is 1.
+ * <p>
+ * Loading is done by a {@link BulkLoader}. Use the -loadThreads option to
+ * specify the number of loader threads, -maxInFlight to cap the number of
+ * concurrent store requests, and -loadBatchSize to specify the number of
+ * records handed to a loader thread at a time. Each loader thread makes one
+ * synchronous request at a time, so -maxInFlight only has an effect when it
+ * is smaller than -loadThreads; it defaults to the number of loader
+ * threads. At the end of the load, the
+ * throughput and the request latency percentiles are shown.
+ * <p>
+ * At the end of each retrieval operation, the number of matching records,
  * the per-shard DetailedMetrics (number of records and scan time for the
- * shard) are shown.
+ * shard) and the per-consumer thread record counts and timings are shown.
+ * <p>
+ * The -where filter only looks at the key, so by default the scan is done
+ * with KVStore.storeKeysIterator() and the Values are not fetched at all.
+ * Use the -valueEquals option to add a filter on a single byte of the Value;
+ * the filter is evaluated over a projection of the Value, without copying
+ * the Value bytes. Use the -fetchValues option to fetch the Values even when
+ * no Value filter is given, e.g. to compare the cost of the two kinds of
+ * scan.
  * <p>
  * Example invocations:
  * <p>
@@ -90,6 +114,15 @@ import oracle.kv.stats.DetailedMetrics;
  *              -load 50000
  * </code>
  * <p>
+ * To load 10000000 records using 32 loader threads with at most 16 requests
+ * outstanding:
+ *
+ * <code>
+ * java -cp ... parallelscan.ParallelScanExample \
+ *              -store <store> -host <host> -port <port> \
+ *              -load 10000000 -loadThreads 32 -maxInFlight 16
+ * </code>
+ * <p>
  * <code>
  * <p>
  * To specify a key range to scan only those users whose user id starts with
@@ -110,6 +143,28 @@ import oracle.kv.stats.DetailedMetrics;
  *              -where 99
  * </code>
  * <p>
+ * To also require the byte at offset 10 of the Value to be zero:
+ *
+ * <code>
+ * java -cp ... parallelscan.ParallelScanExample \
+ *              -store <store> -host <host> -port <port> \
+ *              -where 99 -valueEquals 10:0
+ * </code>
+ * <p>
+ * To count all users in a resumable scan split into 101 segments:
+ *
+ * <code>
+ * java -cp ... parallelscan.ParallelScanExample \
+ *              -store <store> -host <host> -port <port> \
+ *              -checkpoint /tmp/scan.ckpt -segmentDigits 2
+ * </code>
+ * <p>
+ * If the scan is interrupted, the same command resumes it from the
+ * checkpoint.  The checkpoint records the -where, -valueEquals, -fetchValues
+ * and -segmentDigits options of the scan that wrote it, and a scan with
+ * different options refuses to resume from it; delete the checkpoint file to
+ * start that scan over.
+ * <p>
  * <code>
  */
 public class ParallelScanExample {
@@ -117,10 +172,25 @@ public class ParallelScanExample {
     private final KVStore store;
 
     private int nStoreIteratorThreads = 1;
+    private int nConsumerThreads = 1;
     private String where = null;
+    private int valueOffset = -1;
+    private byte valueByte = 0;
+    private boolean fetchValues = false;
+    private File checkpointFile = null;
+    private int segmentDigits = 1;
+
+    /* The number of times a failed segment of a resumable scan is retried. */
+    private static final int SEGMENT_RETRIES = 3;
+
+    /* How often the progress of a resumable scan is shown. */
+    private static final long PROGRESS_INTERVAL_MS = 10000;
     private int startUser = -1;
     private int endUser = -1;
     private int nToLoad = -1;
+    private int nLoadThreads = 1;
+    private int maxInFlight = -1;
+    private int loadBatchSize = 100;
 
     public static void main(final String args[]) {
         try {
@@ -172,12 +242,43 @@ public class ParallelScanExample {
                 } else {
                     usage("-storeIteratorThreads requires an argument");
                 }
+            } else if (thisArg.equals("-consumerThreads")) {
+                if (argc < nArgs) {
+                    nConsumerThreads = Integer.parseInt(argv[argc++]);
+                } else {
+                    usage("-consumerThreads requires an argument");
+                }
             } else if (thisArg.equals("-where")) {
                 if (argc < nArgs) {
                     where = argv[argc++];
                 } else {
                     usage("-where requires an argument");
                 }
+            } else if (thisArg.equals("-valueEquals")) {
+                if (argc < nArgs) {
+                    final String[] offsetAndByte = argv[argc++].split(":");
+                    if (offsetAndByte.length != 2) {
+                        usage("-valueEquals requires <offset>:<byte>");
+                    }
+                    valueOffset = Integer.parseInt(offsetAndByte[0]);
+                    valueByte = (byte) Integer.parseInt(offsetAndByte[1]);
+                } else {
+                    usage("-valueEquals requires an argument");
+                }
+            } else if (thisArg.equals("-fetchValues")) {
+                fetchValues = true;
+            } else if (thisArg.equals("-checkpoint")) {
+                if (argc < nArgs) {
+                    checkpointFile = new File(argv[argc++]);
+                } else {
+                    usage("-checkpoint requires an argument");
+                }
+            } else if (thisArg.equals("-segmentDigits")) {
+                if (argc < nArgs) {
+                    segmentDigits = Integer.parseInt(argv[argc++]);
+                } else {
+                    usage("-segmentDigits requires an argument");
+                }
             } else if (thisArg.equals("-startUser")) {
                 if (argc < nArgs) {
                     startUser = Integer.parseInt(argv[argc++]);
@@ -196,11 +297,33 @@ public class ParallelScanExample {
                 } else {
                     usage("-load requires an argument");
                 }
+            } else if (thisArg.equals("-loadThreads")) {
+                if (argc < nArgs) {
+                    nLoadThreads = Integer.parseInt(argv[argc++]);
+                } else {
+                    usage("-loadThreads requires an argument");
+                }
+            } else if (thisArg.equals("-maxInFlight")) {
+                if (argc < nArgs) {
+                    maxInFlight = Integer.parseInt(argv[argc++]);
+                } else {
+                    usage("-maxInFlight requires an argument");
+                }
+            } else if (thisArg.equals("-loadBatchSize")) {
+                if (argc < nArgs) {
+                    loadBatchSize = Integer.parseInt(argv[argc++]);
+                } else {
+                    usage("-loadBatchSize requires an argument");
+                }
             } else {
                 usage("Unknown argument: " + thisArg);
             }
         }
 
+        if (checkpointFile != null && (startUser > 0 || endUser > 0)) {
+            usage("-checkpoint can not be used with -startUser or -endUser");
+        }
+
         store = KVStoreFactory.getStore
             (new KVStoreConfig(storeName, hostName + ":" + hostPort));
     }
@@ -216,9 +339,21 @@ public class ParallelScanExample {
              "\t-host <host name>\n" +
              "\t-port <port number>\n" +
 	     "\t[-load <# records to load>]\n" +
+             "\t[-loadThreads <number loader threads> (default: 1)]\n" +
+             "\t[-maxInFlight <max concurrent load requests>\n" +
+             "\t\t(default: number of loader threads)]\n" +
+             "\t[-loadBatchSize <records per loader batch>\n" +
+             "\t\t(default: 100)]\n" +
              "\t[-storeIteratorThreads <number storeIterator threads>\n" +
              "\t\t(default: 1)]\n" +
+             "\t[-consumerThreads <number scan consumer threads>\n" +
+             "\t\t(default: 1)]\n" +
              "\t[-where <string to search for in key>]\n" +
+             "\t[-valueEquals <value byte offset>:<byte value>]\n" +
+             "\t[-fetchValues]\n" +
+             "\t[-checkpoint <checkpoint file for a resumable scan>]\n" +
+             "\t[-segmentDigits <user id digits per scan segment>\n" +
+             "\t\t(default: 1)]\n" +
              "\t[-startUser <startUser#>]\n" +
              "\t[-endUser <endUser#>]\n");
         System.exit(1);
@@ -246,15 +381,40 @@ public class ParallelScanExample {
         }
     }
 
-    private void doLoad() {
+    private void doLoad()
+        throws InterruptedException {
+
         final Value dummyData = Value.createValue(new byte[1024]);
-        for (int i = 0; i < nToLoad; i++) {
-            final String uid = "user" + i;
-            store.put(Key.createKey(Arrays.asList("user", uid)), dummyData);
+        final BulkLoader loader =
+            new BulkLoader(store, nLoadThreads,
+                           (maxInFlight < 0) ? nLoadThreads : maxInFlight,
+                           loadBatchSize);
+
+        /* Key format: "/user/userNNN/-/ */
+        final BulkLoader.LoadResult result =
+            loader.load(nToLoad, new BulkLoader.RecordGenerator() {
+                @Override
+                public Key getKey(long recordNumber) {
+                    final String uid = "user" + recordNumber;
+                    return Key.createKey(Arrays.asList("user", uid));
+                }
+
+                @Override
+                public Value getValue(long recordNumber) {
+                    return dummyData;
+                }
+            });
+
+        System.out.println(result);
+        if (result.getFirstFailure() != null) {
+            System.err.print("first load failure: ");
+            result.getFirstFailure().printStackTrace();
         }
     }
 
-    private void doStoreIteration() {
+    private void doStoreIteration()
+        throws InterruptedException, IOException {
+
         final StoreIteratorConfig storeIteratorConfig =
             new StoreIteratorConfig().
             setMaxConcurrentRequests(nStoreIteratorThreads);
@@ -270,44 +430,136 @@ public class ParallelScanExample {
                              true);
         }
 
-        final long start = System.currentTimeMillis();
-        final ParallelScanIterator<KeyValueVersion> iter =
-            store.storeIterator(Direction.UNORDERED, 0 /* batchSize */,
-                                useParent,
-                                useSubRange,
-                                null, /* depth */
-                                null, /* consistency */
-                                0 /* timeout */,
-                                null,
-                                storeIteratorConfig);
+        final ScanPipeline pipeline =
+            new ScanPipeline(store, nConsumerThreads, nConsumerThreads * 4);
+
+        /*
+         * Only fetch the Values if there is a Value filter, and then only
+         * present the single byte the filter looks at.
+         */
+        final ScanProjection projection;
+        if (valueOffset >= 0) {
+            projection = ScanProjection.slice(valueOffset, 1);
+        } else if (fetchValues) {
+            projection = ScanProjection.FULL_VALUE;
+        } else {
+            projection = ScanProjection.KEY_ONLY;
+        }
 
         /* Key format: "/user/userNNN/-/ */
-        int cnt = 0;
-        try {
-            while (iter.hasNext()) {
-                final KeyValueVersion kvv = iter.next();
-                final List<String> majorKeys = kvv.getKey().getMajorPath();
+        final ScanAggregator<long[]> counter = new ScanAggregator<long[]>() {
+            @Override
+            public ScanProjection getProjection() {
+                return projection;
+            }
+
+            @Override
+            public long[] createPartial() {
+                return new long[1];
+            }
+
+            @Override
+            public void accumulate(long[] partial, Key key, ByteBuffer value) {
+                final List<String> majorKeys = key.getMajorPath();
                 final String userId = majorKeys.get(1);
-                if (where == null) {
-                    cnt++;
-                } else {
-                    if (userId.indexOf(where) > 0) {
-                        cnt++;
-                    }
+                if (where != null && userId.indexOf(where) <= 0) {
+                    return;
                 }
+                if (valueOffset >= 0 &&
+                    (!value.hasRemaining() || value.get(0) != valueByte)) {
+                    return;
+                }
+                partial[0]++;
             }
-        } finally {
-            iter.close();
+
+            @Override
+            public long[] merge(long[] partial1, long[] partial2) {
+                partial1[0] += partial2[0];
+                return partial1;
+            }
+        };
+
+        if (checkpointFile != null) {
+            doResumableStoreIteration(pipeline, storeIteratorConfig, counter);
+            return;
         }
 
+        final ScanPipeline.ScanResult<long[]> result =
+            pipeline.scan(useParent, useSubRange, storeIteratorConfig,
+                          counter);
+
+        System.out.println(result.getAggregate()[0] + " records found in " +
+                           result.getElapsedMillis() + " milliseconds.");
+        System.out.println(result);
+    }
+
+    /**
+     * Scans all users in segments, checkpointing each completed segment to
+     * the -checkpoint file, and prints the scan progress every
+     * PROGRESS_INTERVAL_MS while the scan runs.  An existing checkpoint is
+     * only resumed if it was written by a scan with the same parameters.
+     */
+    private void doResumableStoreIteration
+        (ScanPipeline pipeline,
+         StoreIteratorConfig storeIteratorConfig,
+         ScanAggregator<long[]> counter)
+        throws InterruptedException, IOException {
+
+        final ScanCheckpoint checkpoint =
+            new ScanCheckpoint(checkpointFile, getScanParameters(counter));
+        final ResumableScan scan =
+            new ResumableScan(pipeline, checkpoint, SEGMENT_RETRIES);
+        final List<KeyRange> segments =
+            ResumableScan.splitByPrefix("user", "0123456789", segmentDigits);
+
+        final Timer progressTimer = new Timer(true);
+        progressTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                final ResumableScan.Progress progress = scan.getProgress();
+                if (progress != null) {
+                    System.out.println(progress);
+                }
+            }
+        }, PROGRESS_INTERVAL_MS, PROGRESS_INTERVAL_MS);
+
+        final long start = System.currentTimeMillis();
+        final long[] count;
+        try {
+            count = scan.scan(Key.createKey("user"), segments,
+                              storeIteratorConfig, counter,
+                              new ResumableScan.CheckpointCodec<long[]>() {
+                @Override
+                public String encode(long[] partial) {
+                    return Long.toString(partial[0]);
+                }
+
+                @Override
+                public long[] decode(String encoded) {
+                    return new long[] { Long.parseLong(encoded) };
+                }
+            });
+        } finally {
+            progressTimer.cancel();
+        }
         final long end = System.currentTimeMillis();
 
-        System.out.println(cnt + " records found in " +
+        System.out.println(count[0] + " records found in " +
                            (end - start) + " milliseconds.");
+        System.out.println(scan.getProgress());
+        checkpoint.delete();
+    }
 
-        final List<DetailedMetrics> shardMetrics = iter.getShardMetrics();
-        for (DetailedMetrics dmi : shardMetrics) {
-            System.out.println(dmi);
-        }
+    /**
+     * Returns a description of everything that determines the result of a
+     * segment of a resumable scan: the filters, the projection and the
+     * segment layout.
+     */
+    private String getScanParameters(ScanAggregator<long[]> counter) {
+        return "where=" + where +
+            " valueEquals=" +
+            (valueOffset >= 0 ? (valueOffset + ":" + valueByte) : null) +
+            " projection=" + counter.getProjection() +
+            " segmentDigits=" + segmentDigits;
     }
 }
@@ -0,0 +1,319 @@
+/*-
+ *
+ *  This file is part of Oracle NoSQL Database
+ *  Copyright (C) 2011, 2015 Oracle and/or its affiliates.  All rights reserved.
+ *
+ *  Oracle NoSQL Database is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation, version 3.
+ *
+ *  Oracle NoSQL Database is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public
+ *  License in the LICENSE file along with Oracle NoSQL Database.  If not,
+ *  see <http://www.gnu.org/licenses/>.
+ *
+ *  An active Oracle commercial licensing agreement for this product
+ *  supercedes this license.
+ *
+ *  For more information please contact:
+ *
+ *  Vice President Legal, Development
+ *  Oracle America, Inc.
+ *  5OP-10
+ *  500 Oracle Parkway
+ *  Redwood Shores, CA 94065
+ *
+ *  or
+ *
+ *  berkeleydb-info_us@oracle.com
+ *
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  EOF
+ *
+ */
+
+package parallelscan;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import oracle.kv.FaultException;
+import oracle.kv.Key;
+import oracle.kv.KeyRange;
+import oracle.kv.StoreIteratorConfig;
+import oracle.kv.stats.DetailedMetrics;
+
+/**
+ * Runs a long scan as a sequence of independent segments, checkpointing each
+ * completed segment so that the scan can be resumed after a failure.
+ * <p>
+ * A Parallel Scan cannot be restarted from where it left off: the records
+ * are returned in no particular order and the store API offers no way to
+ * start a scan at a given partition.  Instead, the key space below the
+ * parent Key is split into KeyRanges over the next Key component (see {@link
+ * #splitByPrefix}) and each range is scanned with its own {@link
+ * ScanPipeline#scan}.  A segment that fails with a FaultException is
+ * retried on its own, discarding its partial aggregate, and a segment that
+ * completes is recorded, with its partial aggregate, in a {@link
+ * ScanCheckpoint}.  When the scan is restarted with the same checkpoint,
+ * completed segments are skipped and their recorded aggregates are merged
+ * into the result.
+ * <p>
+ * The progress of the scan, including an estimate of the remaining time and
+ * the records scanned per shard, is available from {@link #getProgress} while
+ * the scan is running.
+ */
+class ResumableScan {
+
+    /**
+     * Converts the partial aggregate of a segment to and from the string form
+     * stored in the checkpoint.
+     */
+    interface CheckpointCodec<A> {
+        String encode(A partial);
+        A decode(String encoded);
+    }
+
+    /* Delay between attempts at a failed segment. */
+    private static final long RETRY_DELAY_MS = 1000;
+
+    private final ScanPipeline pipeline;
+    private final ScanCheckpoint checkpoint;
+    private final int maxRetries;
+    private volatile Progress progress;
+
+    /**
+     * Creates a scan.
+     *
+     * @param pipeline the pipeline used to scan each segment
+     * @param checkpoint the checkpoint recording the completed segments
+     * @param maxRetries the number of times a failed segment is retried
+     * before the scan gives up
+     */
+    ResumableScan(ScanPipeline pipeline,
+                  ScanCheckpoint checkpoint,
+                  int maxRetries) {
+        this.pipeline = pipeline;
+        this.checkpoint = checkpoint;
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * Returns the KeyRanges that split the values of a Key component into
+     * segments.  A boundary is placed at prefix followed by every string of
+     * length depth over alphabet, so that for keys like "userNNN", prefix
+     * "user", alphabet "0123456789" and depth 2 give 101 segments.  The first
+     * segment has no lower bound and the last no upper bound, so together the
+     * segments cover all possible component values.
+     */
+    static List<KeyRange> splitByPrefix(String prefix,
+                                        String alphabet,
+                                        int depth) {
+        final List<String> boundaries = new ArrayList<String>();
+        addBoundaries(prefix, alphabet, depth, boundaries);
+        Collections.sort(boundaries);
+
+        final List<KeyRange> segments =
+            new ArrayList<KeyRange>(boundaries.size() + 1);
+        String start = null;
+        for (String end : boundaries) {
+            segments.add(new KeyRange(start, true, end, false));
+            start = end;
+        }
+        segments.add(new KeyRange(start, true, null, false));
+        return segments;
+    }
+
+    private static void addBoundaries(String prefix,
+                                      String alphabet,
+                                      int depth,
+                                      List<String> boundaries) {
+        if (depth == 0) {
+            boundaries.add(prefix);
+            return;
+        }
+        for (int i = 0; i < alphabet.length(); i++) {
+            addBoundaries(prefix + alphabet.charAt(i), alphabet, depth - 1,
+                          boundaries);
+        }
+    }
+
+    /**
+     * Scans the given segments below parentKey, skipping the segments already
+     * recorded in the checkpoint, and returns the merged aggregate of all
+     * segments.  The checkpoint is left in place; the caller deletes it once
+     * the result has been used.
+     *
+     * @throws FaultException if a segment still fails after maxRetries
+     * retries, in which case the completed segments remain checkpointed and
+     * the scan can be resumed later
+     */
+    <A> A scan(Key parentKey,
+               List<KeyRange> segments,
+               StoreIteratorConfig storeIteratorConfig,
+               ScanAggregator<A> aggregator,
+               CheckpointCodec<A> codec)
+        throws InterruptedException, IOException {
+
+        progress = new Progress(segments.size());
+        A aggregate = null;
+
+        for (KeyRange segment : segments) {
+            final A partial;
+            if (checkpoint.isComplete(segment)) {
+                partial = codec.decode(checkpoint.getState(segment));
+                progress.segmentResumed(checkpoint.getRecordCount(segment));
+            } else {
+                final ScanPipeline.ScanResult<A> result =
+                    scanSegment(parentKey, segment, storeIteratorConfig,
+                                aggregator);
+                partial = result.getAggregate();
+                checkpoint.complete(segment, result.getRecordCount(),
+                                    codec.encode(partial));
+                progress.segmentScanned(result);
+            }
+            aggregate = (aggregate == null) ?
+                partial : aggregator.merge(aggregate, partial);
+        }
+        return aggregate;
+    }
+
+    private <A> ScanPipeline.ScanResult<A>
+        scanSegment(Key parentKey,
+                    KeyRange segment,
+                    StoreIteratorConfig storeIteratorConfig,
+                    ScanAggregator<A> aggregator)
+        throws InterruptedException {
+
+        int attempt = 0;
+        while (true) {
+            try {
+                return pipeline.scan(parentKey, segment, storeIteratorConfig,
+                                     aggregator);
+            } catch (FaultException e) {
+                if (attempt++ >= maxRetries) {
+                    throw e;
+                }
+                progress.segmentRetried();
+                Thread.sleep(RETRY_DELAY_MS);
+            }
+        }
+    }
+
+    /**
+     * Returns the progress of the current scan, or null if no scan has been
+     * started.
+     */
+    Progress getProgress() {
+        return progress;
+    }
+
+    /**
+     * The progress of a resumable scan.
+     */
+    static class Progress {
+        private final int totalSegments;
+        private final long startNanos = System.nanoTime();
+        private final Map<String, Long> shardRecords =
+            new TreeMap<String, Long>();
+        private int resumedSegments;
+        private int scannedSegments;
+        private int retries;
+        private long records;
+        private long scanNanos;
+
+        Progress(int totalSegments) {
+            this.totalSegments = totalSegments;
+        }
+
+        synchronized void segmentResumed(long recordCount) {
+            resumedSegments++;
+            records += recordCount;
+        }
+
+        synchronized void segmentScanned(ScanPipeline.ScanResult<?> result) {
+            scannedSegments++;
+            records += result.getRecordCount();
+            scanNanos += TimeUnit.MILLISECONDS.toNanos
+                (result.getElapsedMillis());
+            for (DetailedMetrics dmi : result.getShardMetrics()) {
+                final Long n = shardRecords.get(dmi.getName());
+                shardRecords.put(dmi.getName(),
+                                 ((n == null) ? 0 : n) +
+                                 dmi.getScanRecordCount());
+            }
+        }
+
+        synchronized void segmentRetried() {
+            retries++;
+        }
+
+        synchronized int getCompletedSegments() {
+            return resumedSegments + scannedSegments;
+        }
+
+        int getTotalSegments() {
+            return totalSegments;
+        }
+
+        synchronized long getRecordCount() {
+            return records;
+        }
+
+        /**
+         * Returns the estimated time to completion, based on the average time
+         * taken by the segments scanned so far, or -1 if no segment has been
+         * scanned yet.
+         */
+        synchronized long getEstimatedRemainingMillis() {
+            if (scannedSegments == 0) {
+                return -1;
+            }
+            final int remaining = totalSegments - getCompletedSegments();
+            return TimeUnit.NANOSECONDS.toMillis
+                ((scanNanos / scannedSegments) * remaining);
+        }
+
+        /**
+         * Returns the number of records scanned per shard in this run, not
+         * including the segments skipped on resume.
+         */
+        synchronized Map<String, Long> getShardRecordCounts() {
+            return new TreeMap<String, Long>(shardRecords);
+        }
+
+        @Override
+        public synchronized String toString() {
+            final long elapsedMs =
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+            final StringBuilder sb = new StringBuilder();
+            sb.append(getCompletedSegments()).append("/").
+                append(totalSegments).append(" segments (").
+                append(resumedSegments).append(" resumed, ").
+                append(retries).append(" retries), ").
+                append(records).append(" records, elapsed ").
+                append(elapsedMs).append("ms, ETA ");
+            final long eta = getEstimatedRemainingMillis();
+            sb.append((eta < 0) ? "unknown" : (eta + "ms"));
+            for (Map.Entry<String, Long> entry : shardRecords.entrySet()) {
+                sb.append("\n").append(entry.getKey()).append(" records=").
+                    append(entry.getValue());
+            }
+            return sb.toString();
+        }
+    }
+}
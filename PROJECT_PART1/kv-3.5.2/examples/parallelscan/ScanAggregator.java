@@ -0,0 +1,94 @@
+/*-
+ *
+ *  This file is part of Oracle NoSQL Database
+ *  Copyright (C) 2011, 2015 Oracle and/or its affiliates.  All rights reserved.
+ *
+ *  Oracle NoSQL Database is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation, version 3.
+ *
+ *  Oracle NoSQL Database is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public
+ *  License in the LICENSE file along with Oracle NoSQL Database.  If not,
+ *  see <http://www.gnu.org/licenses/>.
+ *
+ *  An active Oracle commercial licensing agreement for this product
+ *  supercedes this license.
+ *
+ *  For more information please contact:
+ *
+ *  Vice President Legal, Development
+ *  Oracle America, Inc.
+ *  5OP-10
+ *  500 Oracle Parkway
+ *  Redwood Shores, CA 94065
+ *
+ *  or
+ *
+ *  berkeleydb-info_us@oracle.com
+ *
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  EOF
+ *
+ */
+
+package parallelscan;
+
+import java.nio.ByteBuffer;
+
+import oracle.kv.Key;
+
+/**
+ * A user supplied predicate/aggregator run by the consumer threads of a
+ * {@link ScanPipeline}.
+ * <p>
+ * Each consumer thread obtains its own partial result from {@link
+ * #createPartial} and folds the records it is handed into it with {@link
+ * #accumulate}, so implementations need no synchronization on the partial
+ * result.  When the scan completes, the partial results of all consumer
+ * threads are combined with {@link #merge}.  Filtering is done in
+ * accumulate by simply ignoring records that do not match.
+ * <p>
+ * The {@link ScanProjection} returned by {@link #getProjection} tells the
+ * pipeline which part of the Value the aggregator looks at.  Aggregators
+ * that only look at the Key should return {@link ScanProjection#KEY_ONLY},
+ * which lets the pipeline scan keys without fetching the Values.
+ *
+ * @param <A> the type of the partial and final aggregate
+ */
+interface ScanAggregator<A> {
+
+    /**
+     * Returns the part of the Value needed by {@link #accumulate}.
+     */
+    ScanProjection getProjection();
+
+    /**
+     * Returns a new, empty partial result.  Called once per consumer thread.
+     */
+    A createPartial();
+
+    /**
+     * Folds a single record into a partial result.
+     *
+     * @param partial the partial result of the calling consumer thread
+     * @param key the record's Key
+     * @param value the projected bytes of the record's Value, or null if the
+     * projection is {@link ScanProjection#KEY_ONLY}
+     */
+    void accumulate(A partial, Key key, ByteBuffer value);
+
+    /**
+     * Combines two partial results and returns the combined result.
+     */
+    A merge(A partial1, A partial2);
+}
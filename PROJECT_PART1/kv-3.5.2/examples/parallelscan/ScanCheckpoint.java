@@ -0,0 +1,173 @@
+/*-
+ *
+ *  This file is part of Oracle NoSQL Database
+ *  Copyright (C) 2011, 2015 Oracle and/or its affiliates.  All rights reserved.
+ *
+ *  Oracle NoSQL Database is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation, version 3.
+ *
+ *  Oracle NoSQL Database is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public
+ *  License in the LICENSE file along with Oracle NoSQL Database.  If not,
+ *  see <http://www.gnu.org/licenses/>.
+ *
+ *  An active Oracle commercial licensing agreement for this product
+ *  supercedes this license.
+ *
+ *  For more information please contact:
+ *
+ *  Vice President Legal, Development
+ *  Oracle America, Inc.
+ *  5OP-10
+ *  500 Oracle Parkway
+ *  Redwood Shores, CA 94065
+ *
+ *  or
+ *
+ *  berkeleydb-info_us@oracle.com
+ *
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  EOF
+ *
+ */
+
+package parallelscan;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import oracle.kv.KeyRange;
+
+/**
+ * Records the scan segments completed by a {@link ResumableScan} in a local
+ * file, so that a scan interrupted by a crash can be resumed without
+ * rescanning the completed segments.
+ * <p>
+ * For each completed segment the file holds the number of records scanned
+ * and the encoded partial aggregate of the segment.  Segments are identified
+ * by the string form of their KeyRange.  The file is rewritten as a whole
+ * each time a segment completes: the new contents are written to a temporary
+ * file which then replaces the checkpoint file, so the checkpoint file always
+ * holds a consistent set of segments.
+ * <p>
+ * The file also records a description of the scan parameters, e.g. the
+ * filters and the projection, of the scan that wrote it.  The partial
+ * aggregates of a scan with other parameters can not be combined with these,
+ * so opening the checkpoint for a scan with different parameters fails
+ * rather than silently mixing the results of two different scans.
+ */
+class ScanCheckpoint {
+
+    private static final String RECORDS_PREFIX = "records.";
+    private static final String STATE_PREFIX = "state.";
+    private static final String PARAMETERS = "parameters";
+
+    private final File file;
+    private final Properties completed = new Properties();
+
+    /**
+     * Opens the checkpoint held in file, which is created when the first
+     * segment completes if it does not exist.
+     *
+     * @param parameters describes the parameters of the scan, which must be
+     * the same as those recorded in an existing checkpoint file
+     *
+     * @throws IOException if the file can not be read, or if it was written
+     * by a scan with different parameters
+     */
+    ScanCheckpoint(File file, String parameters)
+        throws IOException {
+
+        this.file = file;
+        if (file.exists()) {
+            final InputStream in = new FileInputStream(file);
+            try {
+                completed.load(in);
+            } finally {
+                in.close();
+            }
+            final String recorded = completed.getProperty(PARAMETERS);
+            if (!parameters.equals(recorded)) {
+                throw new IOException
+                    ("Checkpoint " + file + " was written by a scan with " +
+                     "parameters [" + recorded + "], not [" + parameters +
+                     "]; rerun the scan with the same parameters, or " +
+                     "delete the checkpoint to start over");
+            }
+        }
+        completed.setProperty(PARAMETERS, parameters);
+    }
+
+    synchronized boolean isComplete(KeyRange segment) {
+        return completed.containsKey(RECORDS_PREFIX + segment);
+    }
+
+    synchronized long getRecordCount(KeyRange segment) {
+        final String count = completed.getProperty(RECORDS_PREFIX + segment);
+        return (count == null) ? 0 : Long.parseLong(count);
+    }
+
+    /**
+     * Returns the encoded partial aggregate of a completed segment, or null
+     * if the segment is not complete.
+     */
+    synchronized String getState(KeyRange segment) {
+        return completed.getProperty(STATE_PREFIX + segment);
+    }
+
+    /**
+     * Marks a segment complete and persists the checkpoint.
+     */
+    synchronized void complete(KeyRange segment,
+                               long recordCount,
+                               String state)
+        throws IOException {
+
+        completed.setProperty(RECORDS_PREFIX + segment,
+                              Long.toString(recordCount));
+        completed.setProperty(STATE_PREFIX + segment, state);
+
+        final File tmp = new File(file.getPath() + ".tmp");
+        final OutputStream out = new FileOutputStream(tmp);
+        try {
+            completed.store(out, "ParallelScanExample checkpoint");
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+
+            /* Some platforms do not allow renaming over an existing file. */
+            if (!file.delete() || !tmp.renameTo(file)) {
+                throw new IOException("Unable to replace " + file);
+            }
+        }
+    }
+
+    /**
+     * Deletes the checkpoint file, once the scan it records has completed.
+     */
+    synchronized void delete() {
+        completed.clear();
+        file.delete();
+    }
+
+    @Override
+    public String toString() {
+        return "ScanCheckpoint[" + file + "]";
+    }
+}
@@ -0,0 +1,464 @@
+/*-
+ *
+ *  This file is part of Oracle NoSQL Database
+ *  Copyright (C) 2011, 2015 Oracle and/or its affiliates.  All rights reserved.
+ *
+ *  Oracle NoSQL Database is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation, version 3.
+ *
+ *  Oracle NoSQL Database is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public
+ *  License in the LICENSE file along with Oracle NoSQL Database.  If not,
+ *  see <http://www.gnu.org/licenses/>.
+ *
+ *  An active Oracle commercial licensing agreement for this product
+ *  supercedes this license.
+ *
+ *  For more information please contact:
+ *
+ *  Vice President Legal, Development
+ *  Oracle America, Inc.
+ *  5OP-10
+ *  500 Oracle Parkway
+ *  Redwood Shores, CA 94065
+ *
+ *  or
+ *
+ *  berkeleydb-info_us@oracle.com
+ *
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  EOF
+ *
+ */
+
+package parallelscan;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import oracle.kv.Direction;
+import oracle.kv.KVStore;
+import oracle.kv.Key;
+import oracle.kv.KeyRange;
+import oracle.kv.KeyValueVersion;
+import oracle.kv.ParallelScanIterator;
+import oracle.kv.StoreIteratorConfig;
+import oracle.kv.stats.DetailedMetrics;
+
+/**
+ * A parallel scan engine that decouples fetching records from processing
+ * them.
+ * <p>
+ * {@link KVStore#storeIterator(Direction, int, Key, KeyRange,
+ * oracle.kv.Depth, oracle.kv.Consistency, long, TimeUnit, StoreIteratorConfig)
+ * KVStore.storeIterator} fetches records from the shards in parallel, but
+ * hands them all to the single thread calling next().  When that thread also
+ * filters and aggregates the records, it becomes the bottleneck once there
+ * are enough shards.  Here the calling thread only drains the iterator: it
+ * groups records into small batches and puts them on a bounded queue, from
+ * which a pool of consumer threads takes them and runs a {@link
+ * ScanAggregator}.  The bounded queue applies backpressure to the scan when
+ * the consumers fall behind.
+ * <p>
+ * The {@link ScanResult} returned by a scan holds the merged aggregate, the
+ * per-shard DetailedMetrics reported by the iterator and the consumer side
+ * timings, so that it can be seen whether a scan was bound by the store or
+ * by the consumers.
+ * <p>
+ * When the aggregator's {@link ScanProjection} is {@link
+ * ScanProjection#KEY_ONLY}, the pipeline scans with {@link
+ * KVStore#storeKeysIterator(Direction, int, Key, KeyRange, oracle.kv.Depth,
+ * oracle.kv.Consistency, long, TimeUnit, StoreIteratorConfig)
+ * KVStore.storeKeysIterator} instead, so that no Values are transferred from
+ * the store.
+ */
+class ScanPipeline {
+
+    /* Number of records handed to a consumer at a time. */
+    private static final int HANDOFF_BATCH_SIZE = 64;
+
+    /* Marks the end of the scan for a consumer thread. */
+    private static final List<Object> END_OF_SCAN =
+        Collections.emptyList();
+
+    private final KVStore store;
+    private final int nConsumerThreads;
+    private final int queueCapacity;
+
+    /**
+     * Creates a pipeline.
+     *
+     * @param store the store to scan
+     * @param nConsumerThreads the number of threads running the aggregator
+     * @param queueCapacity the maximum number of record batches waiting for
+     * a consumer thread
+     */
+    ScanPipeline(KVStore store, int nConsumerThreads, int queueCapacity) {
+        if (nConsumerThreads < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException
+                ("nConsumerThreads and queueCapacity must be positive");
+        }
+        this.store = store;
+        this.nConsumerThreads = nConsumerThreads;
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Scans the records below parentKey and within subRange, both of which
+     * may be null, and runs aggregator over each of them.
+     */
+    <A> ScanResult<A> scan(Key parentKey,
+                           KeyRange subRange,
+                           StoreIteratorConfig storeIteratorConfig,
+                           ScanAggregator<A> aggregator)
+        throws InterruptedException {
+
+        final BlockingQueue<List<Object>> queue =
+            new ArrayBlockingQueue<List<Object>>(queueCapacity);
+        final AtomicReference<RuntimeException> failure =
+            new AtomicReference<RuntimeException>();
+        final LatencyHistogram batchLatency = new LatencyHistogram();
+
+        final List<Consumer<A>> consumers =
+            new ArrayList<Consumer<A>>(nConsumerThreads);
+        for (int i = 0; i < nConsumerThreads; i++) {
+            final Consumer<A> consumer =
+                new Consumer<A>(queue, aggregator, failure, batchLatency);
+            consumers.add(consumer);
+            final Thread t = new Thread(consumer, "ScanConsumer-" + i);
+            t.setDaemon(true);
+            consumer.thread = t;
+            t.start();
+        }
+
+        final boolean keyOnly = aggregator.getProjection().isKeyOnly();
+        final long start = System.nanoTime();
+        long producerBlockedNanos = 0;
+        long nRecords = 0;
+        long nValueBytes = 0;
+        final ParallelScanIterator<?> iter;
+        if (keyOnly) {
+            iter = store.storeKeysIterator(Direction.UNORDERED,
+                                           0 /* batchSize */,
+                                           parentKey,
+                                           subRange,
+                                           null, /* depth */
+                                           null, /* consistency */
+                                           0 /* timeout */,
+                                           null,
+                                           storeIteratorConfig);
+        } else {
+            iter = store.storeIterator(Direction.UNORDERED, 0 /* batchSize */,
+                                       parentKey,
+                                       subRange,
+                                       null, /* depth */
+                                       null, /* consistency */
+                                       0 /* timeout */,
+                                       null,
+                                       storeIteratorConfig);
+        }
+        try {
+            List<Object> batch = new ArrayList<Object>(HANDOFF_BATCH_SIZE);
+            while (failure.get() == null && iter.hasNext()) {
+                final Object record = iter.next();
+                if (!keyOnly) {
+                    nValueBytes +=
+                        ((KeyValueVersion) record).getValue().getValue().length;
+                }
+                batch.add(record);
+                nRecords++;
+                if (batch.size() == HANDOFF_BATCH_SIZE) {
+                    producerBlockedNanos += handOff(queue, batch);
+                    batch = new ArrayList<Object>(HANDOFF_BATCH_SIZE);
+                }
+            }
+            if (!batch.isEmpty()) {
+                producerBlockedNanos += handOff(queue, batch);
+            }
+        } finally {
+            iter.close();
+
+            /*
+             * Consumers keep draining the queue after a failure, so the
+             * end-of-scan markers can always be delivered.
+             */
+            for (int i = 0; i < nConsumerThreads; i++) {
+                queue.put(END_OF_SCAN);
+            }
+            for (Consumer<A> consumer : consumers) {
+                consumer.thread.join();
+            }
+        }
+        final long elapsedNanos = System.nanoTime() - start;
+
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+
+        A aggregate = null;
+        final List<ConsumerMetrics> consumerMetrics =
+            new ArrayList<ConsumerMetrics>(nConsumerThreads);
+        for (Consumer<A> consumer : consumers) {
+            aggregate = (aggregate == null) ?
+                consumer.partial :
+                aggregator.merge(aggregate, consumer.partial);
+            consumerMetrics.add(consumer.getMetrics());
+        }
+
+        return new ScanResult<A>(aggregate, aggregator.getProjection(),
+                                 nRecords, nValueBytes, elapsedNanos,
+                                 producerBlockedNanos,
+                                 iter.getShardMetrics(),
+                                 consumerMetrics, batchLatency);
+    }
+
+    /**
+     * Puts a batch on the queue, returning the time spent waiting for space.
+     */
+    private static long handOff(BlockingQueue<List<Object>> queue,
+                                List<Object> batch)
+        throws InterruptedException {
+
+        if (queue.offer(batch)) {
+            return 0;
+        }
+        final long waitStart = System.nanoTime();
+        queue.put(batch);
+        return System.nanoTime() - waitStart;
+    }
+
+    /**
+     * Runs the aggregator over the batches taken from the queue, accumulating
+     * into a partial result owned by this consumer.
+     */
+    private static class Consumer<A> implements Runnable {
+        private final BlockingQueue<List<Object>> queue;
+        private final ScanAggregator<A> aggregator;
+        private final AtomicReference<RuntimeException> failure;
+        private final LatencyHistogram batchLatency;
+        private final A partial;
+        private Thread thread;
+        private long nRecords;
+        private long busyNanos;
+        private long idleNanos;
+
+        Consumer(BlockingQueue<List<Object>> queue,
+                 ScanAggregator<A> aggregator,
+                 AtomicReference<RuntimeException> failure,
+                 LatencyHistogram batchLatency) {
+            this.queue = queue;
+            this.aggregator = aggregator;
+            this.failure = failure;
+            this.batchLatency = batchLatency;
+            this.partial = aggregator.createPartial();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final long waitStart = System.nanoTime();
+                    final List<Object> batch = queue.take();
+                    final long batchStart = System.nanoTime();
+                    idleNanos += batchStart - waitStart;
+                    if (batch == END_OF_SCAN) {
+                        return;
+                    }
+                    if (failure.get() != null) {
+                        /* Drain without processing. */
+                        continue;
+                    }
+                    try {
+                        accumulate(batch);
+                    } catch (RuntimeException e) {
+                        failure.compareAndSet(null, e);
+                    }
+                    final long batchNanos = System.nanoTime() - batchStart;
+                    batchLatency.recordNanos(batchNanos);
+                    busyNanos += batchNanos;
+                    nRecords += batch.size();
+                }
+            } catch (InterruptedException e) {
+                failure.compareAndSet
+                    (null, new IllegalStateException
+                     ("Scan consumer interrupted", e));
+            }
+        }
+
+        private void accumulate(List<Object> batch) {
+            final ScanProjection projection = aggregator.getProjection();
+            for (Object record : batch) {
+                if (record instanceof Key) {
+                    aggregator.accumulate(partial, (Key) record, null);
+                } else {
+                    final KeyValueVersion kvv = (KeyValueVersion) record;
+                    aggregator.accumulate(partial, kvv.getKey(),
+                                          projection.apply(kvv.getValue()));
+                }
+            }
+        }
+
+        ConsumerMetrics getMetrics() {
+            return new ConsumerMetrics(thread.getName(), nRecords,
+                                       busyNanos, idleNanos);
+        }
+    }
+
+    /**
+     * The records processed and time spent by a single consumer thread.
+     */
+    static class ConsumerMetrics {
+        private final String name;
+        private final long recordCount;
+        private final long busyNanos;
+        private final long idleNanos;
+
+        ConsumerMetrics(String name,
+                        long recordCount,
+                        long busyNanos,
+                        long idleNanos) {
+            this.name = name;
+            this.recordCount = recordCount;
+            this.busyNanos = busyNanos;
+            this.idleNanos = idleNanos;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        long getRecordCount() {
+            return recordCount;
+        }
+
+        long getBusyMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(busyNanos);
+        }
+
+        long getIdleMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(idleNanos);
+        }
+
+        @Override
+        public String toString() {
+            return name + " records=" + recordCount + " busyTime=" +
+                getBusyMillis() + "ms idleTime=" + getIdleMillis() + "ms";
+        }
+    }
+
+    /**
+     * The outcome of a scan: the merged aggregate, the store side per-shard
+     * metrics and the consumer side metrics.
+     */
+    static class ScanResult<A> {
+        private final A aggregate;
+        private final ScanProjection projection;
+        private final long recordCount;
+        private final long valueBytes;
+        private final long elapsedNanos;
+        private final long producerBlockedNanos;
+        private final List<DetailedMetrics> shardMetrics;
+        private final List<ConsumerMetrics> consumerMetrics;
+        private final LatencyHistogram batchLatency;
+
+        ScanResult(A aggregate,
+                   ScanProjection projection,
+                   long recordCount,
+                   long valueBytes,
+                   long elapsedNanos,
+                   long producerBlockedNanos,
+                   List<DetailedMetrics> shardMetrics,
+                   List<ConsumerMetrics> consumerMetrics,
+                   LatencyHistogram batchLatency) {
+            this.aggregate = aggregate;
+            this.projection = projection;
+            this.recordCount = recordCount;
+            this.valueBytes = valueBytes;
+            this.elapsedNanos = elapsedNanos;
+            this.producerBlockedNanos = producerBlockedNanos;
+            this.shardMetrics = shardMetrics;
+            this.consumerMetrics = consumerMetrics;
+            this.batchLatency = batchLatency;
+        }
+
+        A getAggregate() {
+            return aggregate;
+        }
+
+        long getRecordCount() {
+            return recordCount;
+        }
+
+        ScanProjection getProjection() {
+            return projection;
+        }
+
+        /**
+         * Returns the total size of the Values returned by the store, which
+         * is zero for a key-only scan.
+         */
+        long getValueBytes() {
+            return valueBytes;
+        }
+
+        long getElapsedMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+        }
+
+        /**
+         * Returns the time the scanning thread spent waiting for the
+         * consumers.  A large value means the scan is consumer bound and
+         * more consumer threads may help.
+         */
+        long getProducerBlockedMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(producerBlockedNanos);
+        }
+
+        List<DetailedMetrics> getShardMetrics() {
+            return shardMetrics;
+        }
+
+        List<ConsumerMetrics> getConsumerMetrics() {
+            return consumerMetrics;
+        }
+
+        LatencyHistogram getBatchLatency() {
+            return batchLatency;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            sb.append(recordCount).append(" records scanned in ").
+                append(getElapsedMillis()).append(" milliseconds, ").
+                append(valueBytes).append(" value bytes fetched (").
+                append(projection).append("), ").
+                append(getProducerBlockedMillis()).
+                append(" milliseconds waiting for consumers\n");
+            for (DetailedMetrics dmi : shardMetrics) {
+                sb.append(dmi).append("\n");
+            }
+            for (ConsumerMetrics cm : consumerMetrics) {
+                sb.append(cm).append("\n");
+            }
+            sb.append("consumer batch latency: ").
+                append(batchLatency.summary());
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*-
+ *
+ *  This file is part of Oracle NoSQL Database
+ *  Copyright (C) 2011, 2015 Oracle and/or its affiliates.  All rights reserved.
+ *
+ *  Oracle NoSQL Database is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation, version 3.
+ *
+ *  Oracle NoSQL Database is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public
+ *  License in the LICENSE file along with Oracle NoSQL Database.  If not,
+ *  see <http://www.gnu.org/licenses/>.
+ *
+ *  An active Oracle commercial licensing agreement for this product
+ *  supercedes this license.
+ *
+ *  For more information please contact:
+ *
+ *  Vice President Legal, Development
+ *  Oracle America, Inc.
+ *  5OP-10
+ *  500 Oracle Parkway
+ *  Redwood Shores, CA 94065
+ *
+ *  or
+ *
+ *  berkeleydb-info_us@oracle.com
+ *
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  EOF
+ *
+ */
+
+package parallelscan;
+
+import java.nio.ByteBuffer;
+
+import oracle.kv.Value;
+
+/**
+ * Describes which part of each record's Value a {@link ScanAggregator} needs.
+ * <p>
+ * An aggregator whose predicate only looks at the Key uses {@link #KEY_ONLY},
+ * in which case {@link ScanPipeline} scans with {@link
+ * oracle.kv.KVStore#storeKeysIterator KVStore.storeKeysIterator} and no
+ * Values are transferred at all.  Otherwise the Value is presented to the
+ * aggregator as a read-only ByteBuffer over the bytes selected by the
+ * projection.  The buffer shares the byte array returned by {@link
+ * Value#getValue}, so no bytes are copied regardless of the Value size.
+ * <p>
+ * Note that a projection only avoids copying and examining the unneeded
+ * bytes on the client; the whole Value is still returned by the store.
+ */
+class ScanProjection {
+
+    /** Only the Key is needed. */
+    static final ScanProjection KEY_ONLY = new ScanProjection(-1, 0);
+
+    /** The whole Value is needed. */
+    static final ScanProjection FULL_VALUE =
+        new ScanProjection(0, Integer.MAX_VALUE);
+
+    private final int offset;
+    private final int length;
+
+    private ScanProjection(int offset, int length) {
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Returns a projection of at most length bytes of the Value, starting at
+     * offset.  Values shorter than offset + length are truncated.
+     */
+    static ScanProjection slice(int offset, int length) {
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException
+                ("offset and length must not be negative");
+        }
+        return new ScanProjection(offset, length);
+    }
+
+    boolean isKeyOnly() {
+        return offset < 0;
+    }
+
+    /**
+     * Returns a read-only view of the projected bytes of the value, or null
+     * for a key-only projection.  Position 0 of the returned buffer is the
+     * first projected byte.
+     */
+    ByteBuffer apply(Value value) {
+        if (isKeyOnly()) {
+            return null;
+        }
+        final byte[] bytes = value.getValue();
+        final int start = Math.min(offset, bytes.length);
+        final int len = (int) Math.min((long) length, bytes.length - start);
+        return ByteBuffer.wrap(bytes, start, len).slice().asReadOnlyBuffer();
+    }
+
+    @Override
+    public String toString() {
+        if (isKeyOnly()) {
+            return "KEY_ONLY";
+        }
+        if (this == FULL_VALUE) {
+            return "FULL_VALUE";
+        }
+        return "SLICE(" + offset + ", " + length + ")";
+    }
+}
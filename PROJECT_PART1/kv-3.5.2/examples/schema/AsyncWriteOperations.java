@@ -0,0 +1,703 @@
+/*-
+ *
+ *  This file is part of Oracle NoSQL Database
+ *  Copyright (C) 2011, 2015 Oracle and/or its affiliates.  All rights reserved.
+ *
+ *  Oracle NoSQL Database is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation, version 3.
+ *
+ *  Oracle NoSQL Database is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public
+ *  License in the LICENSE file along with Oracle NoSQL Database.  If not,
+ *  see <http://www.gnu.org/licenses/>.
+ *
+ *  An active Oracle commercial licensing agreement for this product
+ *  supercedes this license.
+ *
+ *  For more information please contact:
+ *
+ *  Vice President Legal, Development
+ *  Oracle America, Inc.
+ *  5OP-10
+ *  500 Oracle Parkway
+ *  Redwood Shores, CA 94065
+ *
+ *  or
+ *
+ *  berkeleydb-info_us@oracle.com
+ *
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  EOF
+ *
+ */
+
+package schema;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import oracle.kv.Depth;
+import oracle.kv.Durability;
+import oracle.kv.KVStore;
+import oracle.kv.KVStoreConfig;
+import oracle.kv.Key;
+import oracle.kv.KeyRange;
+import oracle.kv.Operation;
+import oracle.kv.OperationResult;
+import oracle.kv.RequestTimeoutException;
+import oracle.kv.ReturnValueVersion;
+import oracle.kv.Value;
+import oracle.kv.Version;
+
+/**
+ * An asynchronous counterpart of {@link WriteOperations}, which lets a single
+ * client thread keep many write operations in flight.
+ * <p>
+ * Each method submits the write to a fixed pool of worker threads and
+ * returns a {@link WriteFuture} for its result.  The write itself is
+ * performed by the corresponding WriteOperations method, so the retry
+ * behavior is the same: failed writes are retried as decided by the
+ * {@link RetryPolicy} of the WriteOperations, by default up to two times
+ * with a delay of 10 milliseconds before each retry.  The
+ * timeout of an asynchronous write is measured from the time it is
+ * submitted, not from the time a worker thread starts it: the time spent
+ * waiting for a worker is deducted from the timeout passed to
+ * WriteOperations, and a write whose timeout expires before it starts fails
+ * with a RequestTimeoutException without being sent to the store.  The
+ * idempotency considerations described in WriteOperations apply unchanged.
+ * <p>
+ * Writes to Keys with the same major path are performed one at a time, in
+ * the order in which they were submitted, so that a later write to a Key
+ * never overtakes an earlier one.  Writes to different major paths are
+ * performed concurrently.  Since all operations passed to execute share a
+ * major path, they are ordered with the single Key writes to that path.
+ * <p>
+ * The number of writes that have been submitted but not yet completed is
+ * bounded.  When the bound is reached, the submitting thread blocks until an
+ * earlier write completes, so that a fast producer cannot queue an unbounded
+ * number of writes.
+ * <p>
+ * {@code CompletableFuture} is not available to these examples, which are
+ * compiled for older Java releases, so a WriteFuture supports completion
+ * listeners instead, allowing a writer to react to each result without
+ * blocking on it.  Listeners run in a thread of their own rather than in the
+ * worker threads, so a listener may submit follow-up writes: while it waits
+ * for the bound on pending writes, the workers go on completing the earlier
+ * writes.
+ */
+class AsyncWriteOperations {
+
+    /**
+     * The WriteOperations used to perform each write.
+     */
+    private final WriteOperations writeOps;
+
+    /**
+     * The default operation timeout in milliseconds.
+     */
+    private final long defaultTimeoutMs;
+
+    /**
+     * Limits the number of submitted but not yet completed writes.
+     */
+    private final int maxPending;
+    private final Semaphore pendingPermits;
+
+    /**
+     * The writes waiting for an earlier write to the same major path, per
+     * major path.  A major path is present while a write to it is running.
+     */
+    private final Map<List<String>, ArrayDeque<WriteFuture<?>>> lanes =
+        new HashMap<List<String>, ArrayDeque<WriteFuture<?>>>();
+
+    private final ThreadPoolExecutor executor;
+    private final ListenerExecutor listenerExecutor =
+        new ListenerExecutor("AsyncWrite-listener");
+    private volatile boolean closed;
+
+    /**
+     * Creates an AsyncWriteOperations wrapper for a given KVStore.
+     *
+     * @param nThreads the number of worker threads, which is the maximum
+     * number of store requests in flight at any time
+     * @param maxPending the maximum number of writes that may be submitted
+     * and not yet completed
+     */
+    AsyncWriteOperations(final KVStore store,
+                         final KVStoreConfig config,
+                         final int nThreads,
+                         final int maxPending) {
+        this(store, config, FixedRetryPolicy.DEFAULT, nThreads, maxPending);
+    }
+
+    /**
+     * Creates an AsyncWriteOperations wrapper for a given KVStore, whose
+     * writes are retried as decided by the given RetryPolicy.
+     */
+    AsyncWriteOperations(final KVStore store,
+                         final KVStoreConfig config,
+                         final RetryPolicy retryPolicy,
+                         final int nThreads,
+                         final int maxPending) {
+        if (nThreads < 1 || maxPending < 1) {
+            throw new IllegalArgumentException
+                ("nThreads and maxPending must be positive");
+        }
+        writeOps = new WriteOperations(store, config, retryPolicy);
+        defaultTimeoutMs = config.getRequestTimeout(TimeUnit.MILLISECONDS);
+        this.maxPending = maxPending;
+        pendingPermits = new Semaphore(maxPending);
+
+        /*
+         * The queue does not need a bound of its own: it never holds more
+         * than maxPending writes.
+         */
+        final AtomicInteger threadNumber = new AtomicInteger();
+        executor = new ThreadPoolExecutor
+            (nThreads, nThreads, 0L, TimeUnit.MILLISECONDS,
+             new LinkedBlockingQueue<Runnable>(),
+             new ThreadFactory() {
+                 @Override
+                 public Thread newThread(Runnable r) {
+                     final Thread t = new Thread
+                         (r, "AsyncWrite-" + threadNumber.incrementAndGet());
+                     t.setDaemon(true);
+                     return t;
+                 }
+             });
+    }
+
+    /**
+     * Submits {@link WriteOperations#put(Key, Value) WriteOperations.put}.
+     */
+    public WriteFuture<Version> put(final Key key, final Value value) {
+        return put(key, value, null, null, 0, null);
+    }
+
+    /**
+     * Submits {@link WriteOperations#put(Key, Value, ReturnValueVersion,
+     * Durability, long, TimeUnit) WriteOperations.put}.  The prevValue, if
+     * any, is filled in when the returned future completes.
+     */
+    public WriteFuture<Version> put(final Key key,
+                                    final Value value,
+                                    final ReturnValueVersion prevValue,
+                                    final Durability durability,
+                                    final long timeout,
+                                    final TimeUnit timeoutUnit) {
+
+        return submit(key, timeout, timeoutUnit, new AsyncWrite<Version>() {
+            @Override
+            Version doWrite(final long timeoutMs) {
+                return writeOps.put(key, value, prevValue, durability,
+                                    timeoutMs, TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    /**
+     * Submits {@link WriteOperations#putIfAbsent(Key, Value)
+     * WriteOperations.putIfAbsent}.
+     */
+    public WriteFuture<Version> putIfAbsent(final Key key,
+                                            final Value value) {
+        return putIfAbsent(key, value, null, null, 0, null);
+    }
+
+    /**
+     * Submits {@link WriteOperations#putIfAbsent(Key, Value,
+     * ReturnValueVersion, Durability, long, TimeUnit)
+     * WriteOperations.putIfAbsent}.
+     */
+    public WriteFuture<Version> putIfAbsent(final Key key,
+                                            final Value value,
+                                            final ReturnValueVersion prevValue,
+                                            final Durability durability,
+                                            final long timeout,
+                                            final TimeUnit timeoutUnit) {
+
+        return submit(key, timeout, timeoutUnit, new AsyncWrite<Version>() {
+            @Override
+            Version doWrite(final long timeoutMs) {
+                return writeOps.putIfAbsent(key, value, prevValue, durability,
+                                            timeoutMs, TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    /**
+     * Submits {@link WriteOperations#putIfPresent(Key, Value)
+     * WriteOperations.putIfPresent}.
+     */
+    public WriteFuture<Version> putIfPresent(final Key key,
+                                             final Value value) {
+        return putIfPresent(key, value, null, null, 0, null);
+    }
+
+    /**
+     * Submits {@link WriteOperations#putIfPresent(Key, Value,
+     * ReturnValueVersion, Durability, long, TimeUnit)
+     * WriteOperations.putIfPresent}.
+     */
+    public WriteFuture<Version>
+        putIfPresent(final Key key,
+                     final Value value,
+                     final ReturnValueVersion prevValue,
+                     final Durability durability,
+                     final long timeout,
+                     final TimeUnit timeoutUnit) {
+
+        return submit(key, timeout, timeoutUnit, new AsyncWrite<Version>() {
+            @Override
+            Version doWrite(final long timeoutMs) {
+                return writeOps.putIfPresent(key, value, prevValue, durability,
+                                             timeoutMs, TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    /**
+     * Submits {@link WriteOperations#putIfVersion(Key, Value, Version)
+     * WriteOperations.putIfVersion}.
+     */
+    public WriteFuture<Version> putIfVersion(final Key key,
+                                             final Value value,
+                                             final Version matchVersion) {
+        return putIfVersion(key, value, matchVersion, null, null, 0, null);
+    }
+
+    /**
+     * Submits {@link WriteOperations#putIfVersion(Key, Value, Version,
+     * ReturnValueVersion, Durability, long, TimeUnit)
+     * WriteOperations.putIfVersion}.
+     */
+    public WriteFuture<Version>
+        putIfVersion(final Key key,
+                     final Value value,
+                     final Version matchVersion,
+                     final ReturnValueVersion prevValue,
+                     final Durability durability,
+                     final long timeout,
+                     final TimeUnit timeoutUnit) {
+
+        return submit(key, timeout, timeoutUnit, new AsyncWrite<Version>() {
+            @Override
+            Version doWrite(final long timeoutMs) {
+                return writeOps.putIfVersion(key, value, matchVersion,
+                                             prevValue, durability, timeoutMs,
+                                             TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    /**
+     * Submits {@link WriteOperations#delete(Key) WriteOperations.delete}.
+     */
+    public WriteFuture<Void> delete(final Key key) {
+        return delete(key, null, null, 0, null);
+    }
+
+    /**
+     * Submits {@link WriteOperations#delete(Key, ReturnValueVersion,
+     * Durability, long, TimeUnit) WriteOperations.delete}.
+     */
+    public WriteFuture<Void> delete(final Key key,
+                                    final ReturnValueVersion prevValue,
+                                    final Durability durability,
+                                    final long timeout,
+                                    final TimeUnit timeoutUnit) {
+
+        return submit(key, timeout, timeoutUnit, new AsyncWrite<Void>() {
+            @Override
+            Void doWrite(final long timeoutMs) {
+                writeOps.delete(key, prevValue, durability, timeoutMs,
+                                TimeUnit.MILLISECONDS);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Submits {@link WriteOperations#deleteIfVersion(Key, Version)
+     * WriteOperations.deleteIfVersion}.
+     */
+    public WriteFuture<Boolean> deleteIfVersion(final Key key,
+                                                final Version matchVersion) {
+        return deleteIfVersion(key, matchVersion, null, null, 0, null);
+    }
+
+    /**
+     * Submits {@link WriteOperations#deleteIfVersion(Key, Version,
+     * ReturnValueVersion, Durability, long, TimeUnit)
+     * WriteOperations.deleteIfVersion}.
+     */
+    public WriteFuture<Boolean>
+        deleteIfVersion(final Key key,
+                        final Version matchVersion,
+                        final ReturnValueVersion prevValue,
+                        final Durability durability,
+                        final long timeout,
+                        final TimeUnit timeoutUnit) {
+
+        return submit(key, timeout, timeoutUnit, new AsyncWrite<Boolean>() {
+            @Override
+            Boolean doWrite(final long timeoutMs) {
+                return writeOps.deleteIfVersion(key, matchVersion, prevValue,
+                                                durability, timeoutMs,
+                                                TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    /**
+     * Submits {@link WriteOperations#multiDelete(Key, KeyRange, Depth)
+     * WriteOperations.multiDelete}.
+     */
+    public WriteFuture<Void> multiDelete(final Key parentKey,
+                                         final KeyRange subRange,
+                                         final Depth depth) {
+        return multiDelete(parentKey, subRange, depth, null, 0, null);
+    }
+
+    /**
+     * Submits {@link WriteOperations#multiDelete(Key, KeyRange, Depth,
+     * Durability, long, TimeUnit) WriteOperations.multiDelete}.
+     */
+    public WriteFuture<Void> multiDelete(final Key parentKey,
+                                         final KeyRange subRange,
+                                         final Depth depth,
+                                         final Durability durability,
+                                         final long timeout,
+                                         final TimeUnit timeoutUnit) {
+
+        return submit(parentKey, timeout, timeoutUnit, new AsyncWrite<Void>() {
+            @Override
+            Void doWrite(final long timeoutMs) {
+                writeOps.multiDelete(parentKey, subRange, depth, durability,
+                                     timeoutMs, TimeUnit.MILLISECONDS);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Submits {@link WriteOperations#execute(List) WriteOperations.execute}.
+     * An OperationExecutionException is reported by the returned future.
+     */
+    public WriteFuture<List<OperationResult>>
+        execute(final List<Operation> operations) {
+        return execute(operations, null, 0, null);
+    }
+
+    /**
+     * Submits {@link WriteOperations#execute(List, Durability, long,
+     * TimeUnit) WriteOperations.execute}.  An OperationExecutionException is
+     * reported by the returned future.
+     */
+    public WriteFuture<List<OperationResult>>
+        execute(final List<Operation> operations,
+                final Durability durability,
+                final long timeout,
+                final TimeUnit timeoutUnit) {
+
+        if (operations.isEmpty()) {
+            throw new IllegalArgumentException("No operations to execute");
+        }
+        return submit(operations.get(0).getKey(), timeout, timeoutUnit,
+                      new AsyncWrite<List<OperationResult>>() {
+            @Override
+            List<OperationResult> doWrite(final long timeoutMs)
+                throws Exception {
+
+                return writeOps.execute(operations, durability, timeoutMs,
+                                        TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    /**
+     * Waits until all writes submitted so far have completed.
+     */
+    public void flush()
+        throws InterruptedException {
+
+        pendingPermits.acquire(maxPending);
+        pendingPermits.release(maxPending);
+    }
+
+    /**
+     * Waits for all submitted writes to complete and stops the worker
+     * threads, and then the listener thread once it has run the listeners of
+     * those writes.  No writes may be submitted after calling this method,
+     * including by listeners.
+     */
+    public void close()
+        throws InterruptedException {
+
+        closed = true;
+        flush();
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        listenerExecutor.close();
+    }
+
+    /**
+     * Sets the handler passed each RuntimeException thrown by a completion
+     * listener, in the listener thread.  By default, the failures are only
+     * counted.
+     */
+    void setListenerExceptionHandler
+        (final Thread.UncaughtExceptionHandler handler) {
+        listenerExecutor.setExceptionHandler(handler);
+    }
+
+    /**
+     * Returns the number of completion listeners that have thrown a
+     * RuntimeException.
+     */
+    long getListenerFailureCount() {
+        return listenerExecutor.getFailureCount();
+    }
+
+    /**
+     * Queues a write behind any pending writes to the same major path, and
+     * hands it to a worker thread if there are none.
+     */
+    private <R> WriteFuture<R> submit(final Key key,
+                                      final long timeout,
+                                      final TimeUnit timeoutUnit,
+                                      final AsyncWrite<R> write) {
+        if (closed) {
+            throw new IllegalStateException("AsyncWriteOperations is closed");
+        }
+
+        /* The deadline is measured from submission. */
+        write.timeoutMs = (timeout > 0) ?
+            timeoutUnit.toMillis(timeout) :
+            defaultTimeoutMs;
+        write.endTime = System.currentTimeMillis() + write.timeoutMs;
+
+        final List<String> majorPath = key.getMajorPath();
+        final WriteFuture<R> future =
+            new WriteFuture<R>(write, listenerExecutor);
+        try {
+            pendingPermits.acquire();
+        } catch (InterruptedException e) {
+            /* Don't swallow the interrupt status. */
+            Thread.currentThread().interrupt();
+            future.setException(e);
+            return future;
+        }
+
+        synchronized (lanes) {
+            final ArrayDeque<WriteFuture<?>> waiting = lanes.get(majorPath);
+            if (waiting != null) {
+                waiting.add(future);
+                return future;
+            }
+            lanes.put(majorPath, new ArrayDeque<WriteFuture<?>>());
+        }
+        executor.execute(new LaneRunner(majorPath, future));
+        return future;
+    }
+
+    /**
+     * Runs a write and then, in the same worker thread, the writes queued
+     * behind it for the same major path, in submission order.
+     */
+    private class LaneRunner implements Runnable {
+        private final List<String> majorPath;
+        private WriteFuture<?> next;
+
+        LaneRunner(final List<String> majorPath, final WriteFuture<?> first) {
+            this.majorPath = majorPath;
+            this.next = first;
+        }
+
+        @Override
+        public void run() {
+            while (next != null) {
+                next.run();
+                pendingPermits.release();
+                synchronized (lanes) {
+                    next = lanes.get(majorPath).poll();
+                    if (next == null) {
+                        lanes.remove(majorPath);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A write performed by a worker thread.
+     */
+    private abstract class AsyncWrite<R> implements Callable<R> {
+        private long timeoutMs;
+        private long endTime;
+
+        /**
+         * Performs the write with the given remaining timeout.
+         */
+        abstract R doWrite(long remainingMs) throws Exception;
+
+        @Override
+        public R call()
+            throws Exception {
+
+            final long remainingMs = endTime - System.currentTimeMillis();
+            if (remainingMs <= 0) {
+                throw new RequestTimeoutException
+                    ((int) Math.min(timeoutMs, Integer.MAX_VALUE),
+                     "Write timed out before it was started", null, false);
+            }
+            return doWrite(remainingMs);
+        }
+    }
+
+    /**
+     * The pending result of an asynchronous write.  The result or exception
+     * of the write is returned by {@link #get}, which throws an
+     * ExecutionException wrapping the exception thrown by the corresponding
+     * WriteOperations method, if any.
+     */
+    static class WriteFuture<R> extends FutureTask<R> {
+        private final ListenerExecutor listenerExecutor;
+        private List<Runnable> listeners = new ArrayList<Runnable>();
+
+        WriteFuture(final Callable<R> write,
+                    final ListenerExecutor listenerExecutor) {
+            super(write);
+            this.listenerExecutor = listenerExecutor;
+        }
+
+        /**
+         * Registers a listener that is called once the write has completed,
+         * either by the listener thread of the ListenerExecutor or, if it
+         * has already completed, by the calling thread.  The listeners of
+         * all writes share the listener thread and are called in the order
+         * in which the writes complete, so they should be short.  A listener
+         * may submit writes, and may block while it waits to submit them,
+         * since the worker threads do not wait for the listeners; it must
+         * not wait for the completion of another write, whose listeners
+         * would then never run.  A RuntimeException thrown by a listener
+         * called by the listener thread is passed to the exception handler
+         * of the ListenerExecutor; one thrown by a listener called by the
+         * calling thread is thrown to the caller.
+         */
+        void addListener(final Runnable listener) {
+            synchronized (this) {
+                if (listeners != null) {
+                    listeners.add(listener);
+                    return;
+                }
+            }
+            listener.run();
+        }
+
+        /* Overridden to make it accessible to AsyncWriteOperations. */
+        @Override
+        protected void setException(final Throwable t) {
+            super.setException(t);
+        }
+
+        @Override
+        protected void done() {
+            final List<Runnable> toRun;
+            synchronized (this) {
+                toRun = listeners;
+                listeners = null;
+            }
+            for (Runnable listener : toRun) {
+                listenerExecutor.execute(listener);
+            }
+        }
+    }
+
+    /**
+     * Runs the completion listeners of WriteFutures in a single thread of
+     * its own, in the order in which they are passed to execute.  A
+     * RuntimeException thrown by a listener is counted and passed to the
+     * exception handler, if one is set, and does not stop the following
+     * listeners.
+     */
+    static class ListenerExecutor implements Executor {
+        private final ExecutorService executor;
+        private final AtomicLong failureCount = new AtomicLong();
+        private volatile Thread.UncaughtExceptionHandler handler;
+
+        ListenerExecutor(final String threadName) {
+            executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread t = new Thread(r, threadName);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+
+        @Override
+        public void execute(final Runnable listener) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        listener.run();
+                    } catch (RuntimeException e) {
+                        failureCount.incrementAndGet();
+                        final Thread.UncaughtExceptionHandler h = handler;
+                        if (h != null) {
+                            h.uncaughtException(Thread.currentThread(), e);
+                        }
+                    }
+                }
+            });
+        }
+
+        void setExceptionHandler
+            (final Thread.UncaughtExceptionHandler exceptionHandler) {
+            handler = exceptionHandler;
+        }
+
+        long getFailureCount() {
+            return failureCount.get();
+        }
+
+        /**
+         * Runs the listeners already passed to execute, and stops the
+         * listener thread.
+         */
+        void close()
+            throws InterruptedException {
+
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+    }
+}
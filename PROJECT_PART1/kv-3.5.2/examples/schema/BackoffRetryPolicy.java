@@ -0,0 +1,256 @@
+/*-
+ *
+ *  This file is part of Oracle NoSQL Database
+ *  Copyright (C) 2011, 2015 Oracle and/or its affiliates.  All rights reserved.
+ *
+ *  Oracle NoSQL Database is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation, version 3.
+ *
+ *  Oracle NoSQL Database is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public
+ *  License in the LICENSE file along with Oracle NoSQL Database.  If not,
+ *  see <http://www.gnu.org/licenses/>.
+ *
+ *  An active Oracle commercial licensing agreement for this product
+ *  supercedes this license.
+ *
+ *  For more information please contact:
+ *
+ *  Vice President Legal, Development
+ *  Oracle America, Inc.
+ *  5OP-10
+ *  500 Oracle Parkway
+ *  Redwood Shores, CA 94065
+ *
+ *  or
+ *
+ *  berkeleydb-info_us@oracle.com
+ *
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  EOF
+ *
+ */
+
+package schema;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import oracle.kv.DurabilityException;
+import oracle.kv.FaultException;
+
+/**
+ * A RetryPolicy that spreads retries out over time and limits their number
+ * when many operations are failing, so that the clients of a store do not
+ * amplify the load on it during a failover.
+ * <p>
+ * The delay before each retry grows exponentially, starting at baseDelayMs
+ * and doubling for each retry up to maxDelayMs.  A random jitter of up to
+ * half the delay is subtracted, so that clients that failed at the same time
+ * do not retry in lockstep.
+ * <p>
+ * Each retry must also take a token from a {@link RetryBudget}, which is
+ * refilled by successful operations.  The token is only taken by {@link
+ * #beginRetry}, once WriteOperations has found there is time left for the
+ * retry.  While operations succeed, retries are
+ * rarely refused; when most operations fail, the budget runs out and the
+ * FaultExceptions are thrown to the application rather than retried.  A
+ * budget can be shared by several policies, for example to limit the retries
+ * of all the WriteOperations objects used by a process.
+ * <p>
+ * Whether a FaultException is retried at all depends on its class, and can
+ * be set with {@link #setRetryable}.  The most specific setting for the
+ * class of the exception or one of its superclasses applies.  By default all
+ * FaultExceptions are retried, except for DurabilityException: it is thrown
+ * when too few replicas are available, which does not change within the few
+ * milliseconds of a retry delay, and retrying only adds load to the master.
+ * <p>
+ * {@link SchemaExample} uses this policy for all its writes when run with
+ * -backoff, and prints the retry counters of its WriteOperations.
+ */
+class BackoffRetryPolicy implements RetryPolicy {
+
+    private final int maxRetries;
+    private final long baseDelayMs;
+    private final long maxDelayMs;
+    private final RetryBudget budget;
+    private final Random random = new Random();
+
+    /* Whether each configured FaultException class is retried. */
+    private final ConcurrentHashMap<Class<?>, Boolean> retryable =
+        new ConcurrentHashMap<Class<?>, Boolean>();
+
+    /**
+     * Creates a policy with its own budget of 100 retry tokens, refilled at
+     * a rate of one token per ten successful operations.
+     */
+    BackoffRetryPolicy(final int maxRetries,
+                       final long baseDelayMs,
+                       final long maxDelayMs) {
+        this(maxRetries, baseDelayMs, maxDelayMs, new RetryBudget(100, 0.1));
+    }
+
+    /**
+     * Creates a policy that performs up to maxRetries retries of each
+     * operation, with delays from baseDelayMs to maxDelayMs, and takes its
+     * retry tokens from the given budget.
+     */
+    BackoffRetryPolicy(final int maxRetries,
+                       final long baseDelayMs,
+                       final long maxDelayMs,
+                       final RetryBudget budget) {
+        if (maxRetries < 0) {
+            throw new IllegalArgumentException
+                ("negative maxRetries [" + maxRetries + "]");
+        }
+        if (baseDelayMs <= 0 || maxDelayMs < baseDelayMs) {
+            throw new IllegalArgumentException
+                ("invalid delays [" + baseDelayMs + ", " + maxDelayMs + "]");
+        }
+        this.maxRetries = maxRetries;
+        this.baseDelayMs = baseDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.budget = budget;
+        setRetryable(DurabilityException.class, false);
+    }
+
+    /**
+     * Sets whether FaultExceptions of the given class and its subclasses are
+     * retried, unless a subclass has a setting of its own.
+     */
+    void setRetryable(final Class<? extends FaultException> faultClass,
+                      final boolean retry) {
+        retryable.put(faultClass, retry);
+    }
+
+    /**
+     * Returns whether a FaultException is retried.
+     */
+    boolean isRetryable(final FaultException fault) {
+        for (Class<?> cls = fault.getClass();
+             FaultException.class.isAssignableFrom(cls);
+             cls = cls.getSuperclass()) {
+            final Boolean retry = retryable.get(cls);
+            if (retry != null) {
+                return retry;
+            }
+        }
+        return true;
+    }
+
+    RetryBudget getBudget() {
+        return budget;
+    }
+
+    @Override
+    public long getRetryDelayMs(final int nRetries,
+                                final FaultException fault) {
+        if (nRetries >= maxRetries || !isRetryable(fault)) {
+            return NO_RETRY;
+        }
+        /* Double the delay for each retry, without overflowing. */
+        final long delayMs =
+            (nRetries < Long.numberOfLeadingZeros(baseDelayMs) - 1) ?
+            Math.min(maxDelayMs, baseDelayMs << nRetries) :
+            maxDelayMs;
+        return delayMs - (long) (random.nextDouble() * (delayMs / 2));
+    }
+
+    /**
+     * Takes a token from the budget: only called once the retry is
+     * otherwise allowed and there is time left for it.
+     */
+    @Override
+    public boolean beginRetry(final int nRetries) {
+        return budget.tryAcquire();
+    }
+
+    @Override
+    public void onSuccess(final int nRetries) {
+        budget.refill();
+    }
+
+    /**
+     * A token bucket that limits the number of retries.  Each retry takes
+     * one token and each successful operation adds a fraction of a token, up
+     * to the capacity of the bucket.  Tokens are counted in thousandths so
+     * that fractional refills can be done with a single AtomicLong.
+     */
+    static class RetryBudget {
+        private static final long SCALE = 1000;
+
+        private final long capacity;
+        private final long refillPerSuccess;
+        private final AtomicLong tokens;
+
+        /**
+         * Creates a full budget of maxTokens retries, which gains
+         * tokensPerSuccess tokens for each successful operation.
+         */
+        RetryBudget(final int maxTokens, final double tokensPerSuccess) {
+            if (maxTokens <= 0) {
+                throw new IllegalArgumentException
+                    ("maxTokens must be positive [" + maxTokens + "]");
+            }
+            if (tokensPerSuccess < 0) {
+                throw new IllegalArgumentException
+                    ("negative tokensPerSuccess [" + tokensPerSuccess + "]");
+            }
+            capacity = maxTokens * SCALE;
+            refillPerSuccess = (long) (tokensPerSuccess * SCALE);
+            tokens = new AtomicLong(capacity);
+        }
+
+        /**
+         * Takes a token for a retry, returning false if none is left.
+         */
+        boolean tryAcquire() {
+            while (true) {
+                final long current = tokens.get();
+                if (current < SCALE) {
+                    return false;
+                }
+                if (tokens.compareAndSet(current, current - SCALE)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Adds the tokens earned by a successful operation.
+         */
+        void refill() {
+            while (true) {
+                final long current = tokens.get();
+
+                /* Avoid a write on the common path, when the bucket is full. */
+                if (current >= capacity) {
+                    return;
+                }
+                final long next = Math.min(capacity,
+                                           current + refillPerSuccess);
+                if (tokens.compareAndSet(current, next)) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Returns the number of whole retry tokens available.
+         */
+        long getAvailableTokens() {
+            return tokens.get() / SCALE;
+        }
+    }
+}
@@ -49,9 +49,12 @@ import java.util.Map;
 
 import oracle.kv.avro.AvroCatalog;
 import oracle.kv.avro.GenericAvroBinding;
+import oracle.kv.avro.RawAvroBinding;
 
 import org.apache.avro.Schema;
 import org.apache.avro.Schema.Parser;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericEnumSymbol;
 
 /**
  * Contains the Avro schemas and bindings used to perform serialization of the
@@ -61,6 +64,11 @@ import org.apache.avro.Schema.Parser;
  * In this example, GenericAvroBinding is used.  Other types of bindings are
  * also available. See the {@link oracle.kv.avro} package and the Oracle NoSQL
  * Database Getting Started Guide for more information.
+ * <p>
+ * The domain classes serialize their Values with the {@link RecordCodec} of
+ * each schema, which reuses its encoders, decoders and records, rather than
+ * calling the bindings directly.  The bindings remain available for code that
+ * needs a new record for every Value.
  */
 class Bindings {
     private static final String GENDER_SCHEMA = "schema.Gender";
@@ -82,6 +90,13 @@ class Bindings {
     private final GenericAvroBinding userImageBinding;
     private final GenericAvroBinding loginSessionBinding;
     private final GenericAvroBinding loginSummaryBinding;
+    private final RecordCodec userInfoCodec;
+    private final RecordCodec userImageCodec;
+    private final RecordCodec loginSessionCodec;
+    private final RecordCodec loginSummaryCodec;
+
+    /* The immutable Gender symbols, indexed by Gender ordinal. */
+    private final GenericEnumSymbol[] genderSymbols;
 
     Bindings(AvroCatalog avroCatalog) {
 
@@ -107,6 +122,24 @@ class Bindings {
             avroCatalog.getGenericBinding(loginSessionSchema);
         loginSummaryBinding =
             avroCatalog.getGenericBinding(loginSummarySchema);
+
+        /* Create codecs, which share a raw binding for writing. */
+        final RawAvroBinding rawBinding = avroCatalog.getRawBinding();
+        userInfoCodec =
+            new RecordCodec(userInfoSchema, userInfoBinding, rawBinding);
+        userImageCodec =
+            new RecordCodec(userImageSchema, userImageBinding, rawBinding);
+        loginSessionCodec = new RecordCodec
+            (loginSessionSchema, loginSessionBinding, rawBinding);
+        loginSummaryCodec = new RecordCodec
+            (loginSummarySchema, loginSummaryBinding, rawBinding);
+
+        final Gender[] genders = Gender.values();
+        genderSymbols = new GenericEnumSymbol[genders.length];
+        for (Gender gender : genders) {
+            genderSymbols[gender.ordinal()] =
+                new GenericData.EnumSymbol(genderSchema, gender.toString());
+        }
     }
 
     private void parseResource(Parser parser, String resourceName) {
@@ -162,4 +195,34 @@ class Bindings {
     GenericAvroBinding getLoginSummaryBinding() {
         return loginSummaryBinding;
     }
+
+    RecordCodec getUserInfoCodec() {
+        return userInfoCodec;
+    }
+
+    RecordCodec getUserImageCodec() {
+        return userImageCodec;
+    }
+
+    RecordCodec getLoginSessionCodec() {
+        return loginSessionCodec;
+    }
+
+    RecordCodec getLoginSummaryCodec() {
+        return loginSummaryCodec;
+    }
+
+    /**
+     * Returns the shared Avro symbol of a Gender.
+     */
+    GenericEnumSymbol getGenderSymbol(Gender gender) {
+        return genderSymbols[gender.ordinal()];
+    }
+
+    /**
+     * Returns the Gender of an Avro symbol.
+     */
+    static Gender getGender(GenericEnumSymbol symbol) {
+        return Enum.valueOf(Gender.class, symbol.toString());
+    }
 }
@@ -0,0 +1,739 @@
+/*-
+ *
+ *  This file is part of Oracle NoSQL Database
+ *  Copyright (C) 2011, 2015 Oracle and/or its affiliates.  All rights reserved.
+ *
+ *  Oracle NoSQL Database is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation, version 3.
+ *
+ *  Oracle NoSQL Database is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public
+ *  License in the LICENSE file along with Oracle NoSQL Database.  If not,
+ *  see <http://www.gnu.org/licenses/>.
+ *
+ *  An active Oracle commercial licensing agreement for this product
+ *  supercedes this license.
+ *
+ *  For more information please contact:
+ *
+ *  Vice President Legal, Development
+ *  Oracle America, Inc.
+ *  5OP-10
+ *  500 Oracle Parkway
+ *  Redwood Shores, CA 94065
+ *
+ *  or
+ *
+ *  berkeleydb-info_us@oracle.com
+ *
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  EOF
+ *
+ */
+
+package schema;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.ConcurrentModificationException;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import oracle.kv.KVStore;
+import oracle.kv.Key;
+import oracle.kv.Value;
+import oracle.kv.ValueVersion;
+import oracle.kv.lob.KVLargeObject;
+import oracle.kv.lob.PartialLOBException;
+
+/**
+ * Stores large objects, such as big UserImage pictures, as a sequence of
+ * fixed size chunks that are written and read concurrently.
+ * <p>
+ * {@link WriteOperations#putLOB WriteOperations.putLOB} passes a single
+ * InputStream to {@link KVLargeObject#putLOB KVLargeObject.putLOB}, which
+ * writes its chunks one at a time, and restarts from the first byte when it
+ * is retried.  This class instead splits the stream into chunks of
+ * chunkSize bytes and keeps up to maxInFlight chunk writes in progress at
+ * once, so that the round trip time of each write is overlapped with the
+ * others.  Each chunk is stored under its own major path, so the chunks of a
+ * LOB are spread over all the shards of the store.
+ * <p>
+ * The Key passed to each method identifies the LOB and holds its
+ * <em>manifest</em>: the chunk size, whether the LOB is complete, and the
+ * number of chunks that are known to have been written.  The Key must not
+ * be used for any other Value, and the chunks are stored under the
+ * {@link #CHUNK_OBJECT_TYPE} object type rather than under the LOB Key, so
+ * they must be deleted with {@link #delete}.
+ * <p>
+ * Chunk writes are performed with WriteOperations, and are therefore retried
+ * as decided by its RetryPolicy.  If a chunk still cannot be written, or the
+ * input stream throws an IOException, the upload waits for the other chunk
+ * writes in progress, records in the manifest the number of leading chunks
+ * that were all written, and throws the exception.  {@link #resume} then
+ * continues the upload from the first chunk that was not acknowledged,
+ * rather than from the start.  The manifest is also updated as the upload
+ * progresses, so an upload interrupted by a crash can be resumed in the same
+ * way.
+ * <p>
+ * {@link #open} returns a stream over any byte range of a complete LOB,
+ * which reads up to maxInFlight chunks ahead of the application.  Each
+ * upload is given a random id, which is stored with every chunk.  A reader
+ * that finds a chunk of a different upload, because the LOB was replaced or
+ * deleted while it was being read, throws a
+ * ConcurrentModificationException.
+ */
+class ChunkedLOB {
+
+    /**
+     * The first component of the major path of all chunk Keys.
+     */
+    static final String CHUNK_OBJECT_TYPE = "lobchunk";
+
+    /* The format version of the manifest. */
+    private static final int MANIFEST_VERSION = 1;
+
+    /* The number of bytes of the upload id at the start of each chunk. */
+    private static final int CHUNK_HEADER_SIZE = 8;
+
+    /*
+     * The number of chunks by which the manifest's chunk limit is raised at
+     * a time.  The limit is an upper bound on the chunks that may have been
+     * written, so that a replaced or deleted LOB leaves no chunks behind.
+     */
+    private static final int CHUNK_LIMIT_STEP = 64;
+
+    private final KVStore store;
+    private final WriteOperations writeOps;
+    private final int chunkSize;
+    private final int maxInFlight;
+    private final ThreadPoolExecutor executor;
+    private final Random random = new Random();
+
+    /**
+     * Creates a ChunkedLOB.
+     *
+     * @param store used to read chunks
+     * @param writeOps used to write and delete chunks and manifests
+     * @param chunkSize the size in bytes of the chunks of new LOBs
+     * @param nThreads the number of threads reading and writing chunks
+     * @param maxInFlight the maximum number of chunks each upload writes
+     * concurrently, and each stream reads ahead
+     */
+    ChunkedLOB(final KVStore store,
+               final WriteOperations writeOps,
+               final int chunkSize,
+               final int nThreads,
+               final int maxInFlight) {
+        if (chunkSize < 1 || nThreads < 1 || maxInFlight < 1) {
+            throw new IllegalArgumentException
+                ("chunkSize, nThreads and maxInFlight must be positive");
+        }
+        this.store = store;
+        this.writeOps = writeOps;
+        this.chunkSize = chunkSize;
+        this.maxInFlight = maxInFlight;
+
+        final AtomicInteger threadNumber = new AtomicInteger();
+        executor = new ThreadPoolExecutor
+            (nThreads, nThreads, 0L, TimeUnit.MILLISECONDS,
+             new LinkedBlockingQueue<Runnable>(),
+             new ThreadFactory() {
+                 @Override
+                 public Thread newThread(Runnable r) {
+                     final Thread t = new Thread
+                         (r, "ChunkedLOB-" + threadNumber.incrementAndGet());
+                     t.setDaemon(true);
+                     return t;
+                 }
+             });
+    }
+
+    /**
+     * Stores the contents of a stream as the LOB identified by lobKey,
+     * replacing any existing LOB.
+     *
+     * @return the length of the LOB in bytes
+     *
+     * @throws FaultException if a chunk cannot be written, or IOException if
+     * the stream cannot be read.  The upload can be continued with {@link
+     * #resume}.
+     */
+    public long put(final Key lobKey, final InputStream in)
+        throws IOException {
+
+        final Manifest old = readManifest(lobKey);
+        final Manifest manifest = new Manifest();
+        manifest.uploadId = random.nextLong();
+        manifest.chunkSize = chunkSize;
+        if (old != null) {
+            manifest.chunkLimit = old.chunkLimit;
+        }
+        return upload(lobKey, in, manifest);
+    }
+
+    /**
+     * Continues an upload to lobKey that failed or was interrupted, reading
+     * from a stream positioned at the first byte of the LOB.  The bytes of
+     * the chunks that were acknowledged are skipped, and the remaining chunks
+     * are written as by {@link #put}.  If there is no LOB, it is stored from
+     * the start, and if the LOB is complete nothing is written.
+     *
+     * @return the length of the LOB in bytes
+     */
+    public long resume(final Key lobKey, final InputStream in)
+        throws IOException {
+
+        final Manifest manifest = readManifest(lobKey);
+        if (manifest == null) {
+            return put(lobKey, in);
+        }
+        if (manifest.complete) {
+            return manifest.length;
+        }
+        skipFully(in, manifest.ackedChunks * (long) manifest.chunkSize);
+        return upload(lobKey, in, manifest);
+    }
+
+    /**
+     * Returns the length of the LOB identified by lobKey, or -1 if there is
+     * no such LOB.
+     *
+     * @throws PartialLOBException if the LOB is not complete
+     */
+    public long getLength(final Key lobKey)
+        throws IOException {
+
+        final Manifest manifest = readManifest(lobKey);
+        if (manifest == null) {
+            return -1;
+        }
+        checkComplete(lobKey, manifest);
+        return manifest.length;
+    }
+
+    /**
+     * Returns a stream over length bytes of a LOB, starting at offset, or
+     * null if there is no such LOB.  Fewer bytes are returned if the LOB ends
+     * before offset + length.  The stream should be closed when it is no
+     * longer needed, to cancel its pending reads.
+     *
+     * @throws PartialLOBException if the LOB is not complete
+     */
+    public InputStream open(final Key lobKey,
+                            final long offset,
+                            final long length)
+        throws IOException {
+
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException
+                ("negative offset or length [" + offset + ", " + length + "]");
+        }
+        final Manifest manifest = readManifest(lobKey);
+        if (manifest == null) {
+            return null;
+        }
+        checkComplete(lobKey, manifest);
+        final long start = Math.min(offset, manifest.length);
+        return new ReadAheadStream
+            (lobKey, manifest, start,
+             Math.min(length, manifest.length - start));
+    }
+
+    /**
+     * Deletes a LOB and all of its chunks, including those left by earlier
+     * uploads that did not complete.
+     *
+     * @return true if the LOB existed
+     */
+    public boolean delete(final Key lobKey)
+        throws IOException {
+
+        final Manifest manifest = readManifest(lobKey);
+        if (manifest == null) {
+            return false;
+        }
+
+        /* Readers must see that the LOB is no longer complete. */
+        if (manifest.complete) {
+            manifest.complete = false;
+            manifest.ackedChunks = 0;
+            writeManifest(lobKey, manifest);
+        }
+        deleteChunks(lobKey, 0,
+                     Math.max(manifest.chunkLimit, manifest.ackedChunks));
+        writeOps.delete(lobKey);
+        return true;
+    }
+
+    /**
+     * Stops the worker threads, after the operations in progress have
+     * completed.
+     */
+    public void close()
+        throws InterruptedException {
+
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes the chunks read from a stream, starting at chunk
+     * manifest.ackedChunks, and then the complete manifest.
+     */
+    private long upload(final Key lobKey,
+                        final InputStream in,
+                        final Manifest manifest)
+        throws IOException {
+
+        final int size = manifest.chunkSize;
+        final int firstChunk = manifest.ackedChunks;
+        final Semaphore permits = new Semaphore(maxInFlight);
+        final AtomicReference<RuntimeException> failure =
+            new AtomicReference<RuntimeException>();
+        final BitSet written = new BitSet();
+        final int[] acked = new int[] { firstChunk };
+
+        manifest.complete = false;
+        manifest.chunkLimit =
+            Math.max(manifest.chunkLimit, firstChunk + CHUNK_LIMIT_STEP);
+        writeManifest(lobKey, manifest);
+
+        int chunk = firstChunk;
+        long length = firstChunk * (long) size;
+        IOException readFailure = null;
+        try {
+            while (failure.get() == null) {
+                final byte[] data;
+                try {
+                    data = readChunk(in, manifest.uploadId, size);
+                } catch (IOException e) {
+                    readFailure = e;
+                    break;
+                }
+                if (data == null) {
+                    break;
+                }
+                length += data.length - CHUNK_HEADER_SIZE;
+
+                /*
+                 * Record progress, and raise the chunk limit, before a chunk
+                 * beyond the limit is written.
+                 */
+                if (chunk >= manifest.chunkLimit) {
+                    synchronized (written) {
+                        manifest.ackedChunks = acked[0];
+                    }
+                    manifest.chunkLimit = chunk + CHUNK_LIMIT_STEP;
+                    writeManifest(lobKey, manifest);
+                }
+
+                permits.acquire();
+                final int index = chunk;
+                try {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                writeOps.put(makeChunkKey(lobKey, index),
+                                             Value.createValue(data));
+                                synchronized (written) {
+                                    written.set(index);
+                                    while (written.get(acked[0])) {
+                                        acked[0] += 1;
+                                    }
+                                }
+                            } catch (RuntimeException e) {
+                                failure.compareAndSet(null, e);
+                            } finally {
+                                permits.release();
+                            }
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    permits.release();
+                    throw e;
+                }
+                chunk += 1;
+                if (data.length < CHUNK_HEADER_SIZE + size) {
+                    break;
+                }
+            }
+
+            /* Wait for the chunk writes in progress. */
+            permits.acquire(maxInFlight);
+            permits.release(maxInFlight);
+        } catch (InterruptedException e) {
+            /* Don't swallow the interrupt status. */
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("LOB upload interrupted");
+        }
+
+        final RuntimeException e = failure.get();
+        if (e != null || readFailure != null) {
+            synchronized (written) {
+                manifest.ackedChunks = acked[0];
+            }
+            try {
+                writeManifest(lobKey, manifest);
+            } catch (RuntimeException manifestFailure) {
+                /* The earlier progress recorded in the manifest stands. */
+            }
+            if (e != null) {
+                throw e;
+            }
+            throw readFailure;
+        }
+
+        /*
+         * Complete the manifest and then delete any chunks of an earlier LOB
+         * beyond the end of this one.
+         */
+        final int staleLimit = manifest.chunkLimit;
+        manifest.complete = true;
+        manifest.ackedChunks = chunk;
+        manifest.chunkLimit = chunk;
+        manifest.length = length;
+        writeManifest(lobKey, manifest);
+        deleteChunks(lobKey, chunk, staleLimit);
+        return length;
+    }
+
+    /**
+     * Deletes chunks [from, to) of a LOB, maxInFlight at a time.
+     */
+    private void deleteChunks(final Key lobKey, final int from, final int to)
+        throws IOException {
+
+        final ArrayDeque<Future<?>> pending = new ArrayDeque<Future<?>>();
+        for (int i = from; i < to; i++) {
+            if (pending.size() >= maxInFlight) {
+                await(pending.poll());
+            }
+            final Key chunkKey = makeChunkKey(lobKey, i);
+            pending.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    writeOps.delete(chunkKey);
+                }
+            }));
+        }
+        while (!pending.isEmpty()) {
+            await(pending.poll());
+        }
+    }
+
+    /**
+     * Reads the next chunk from a stream into an array that starts with the
+     * upload id, returning null at the end of the stream.  The chunk is
+     * shorter than size bytes only if it is the last one.
+     */
+    private static byte[] readChunk(final InputStream in,
+                                    final long uploadId,
+                                    final int size)
+        throws IOException {
+
+        final byte[] buf = new byte[CHUNK_HEADER_SIZE + size];
+        int pos = CHUNK_HEADER_SIZE;
+        while (pos < buf.length) {
+            final int n = in.read(buf, pos, buf.length - pos);
+            if (n < 0) {
+                break;
+            }
+            pos += n;
+        }
+        if (pos == CHUNK_HEADER_SIZE) {
+            return null;
+        }
+        for (int i = 0; i < CHUNK_HEADER_SIZE; i++) {
+            buf[i] = (byte) (uploadId >>> (56 - 8 * i));
+        }
+        return (pos == buf.length) ? buf : Arrays.copyOf(buf, pos);
+    }
+
+    private static void skipFully(final InputStream in, final long n)
+        throws IOException {
+
+        long remaining = n;
+        while (remaining > 0) {
+            final long skipped = in.skip(remaining);
+            if (skipped > 0) {
+                remaining -= skipped;
+            } else if (in.read() >= 0) {
+                remaining -= 1;
+            } else {
+                throw new IOException
+                    ("Stream ended before the acknowledged chunks");
+            }
+        }
+    }
+
+    /**
+     * Returns the Key of a chunk of a LOB:
+     * /lobchunk/LOBKEY/INDEX
+     */
+    static Key makeChunkKey(final Key lobKey, final int index) {
+        return Key.createKey
+            (Arrays.asList(CHUNK_OBJECT_TYPE, lobKey.toString(),
+                           Integer.toString(index)));
+    }
+
+    private static void checkComplete(final Key lobKey,
+                                      final Manifest manifest) {
+        if (!manifest.complete) {
+            throw new PartialLOBException
+                ("Chunked LOB is incomplete: " + lobKey,
+                 KVLargeObject.LOBState.PARTIAL_PUT, false);
+        }
+    }
+
+    /**
+     * Waits for a chunk operation and rethrows its exception, if any.
+     */
+    private static <T> T await(final Future<T> future)
+        throws IOException {
+
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            /* Don't swallow the interrupt status. */
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("LOB operation interrupted");
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private Manifest readManifest(final Key lobKey)
+        throws IOException {
+
+        final ValueVersion vv = store.get(lobKey);
+        if (vv == null) {
+            return null;
+        }
+        final DataInputStream in = new DataInputStream
+            (new ByteArrayInputStream(vv.getValue().getValue()));
+        final int version = in.readInt();
+        if (version != MANIFEST_VERSION) {
+            throw new IOException
+                ("Not a chunked LOB manifest: " + lobKey +
+                 " version: " + version);
+        }
+        final Manifest manifest = new Manifest();
+        manifest.uploadId = in.readLong();
+        manifest.chunkSize = in.readInt();
+        manifest.complete = in.readBoolean();
+        manifest.ackedChunks = in.readInt();
+        manifest.chunkLimit = in.readInt();
+        manifest.length = in.readLong();
+        return manifest;
+    }
+
+    private void writeManifest(final Key lobKey, final Manifest manifest)
+        throws IOException {
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(40);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MANIFEST_VERSION);
+        out.writeLong(manifest.uploadId);
+        out.writeInt(manifest.chunkSize);
+        out.writeBoolean(manifest.complete);
+        out.writeInt(manifest.ackedChunks);
+        out.writeInt(manifest.chunkLimit);
+        out.writeLong(manifest.length);
+        out.flush();
+        writeOps.put(lobKey, Value.createValue(bytes.toByteArray()));
+    }
+
+    /**
+     * The manifest of a LOB.  The length is only set when the LOB is
+     * complete.
+     */
+    private static class Manifest {
+        long uploadId;
+        int chunkSize;
+        boolean complete;
+        int ackedChunks;
+        int chunkLimit;
+        long length;
+    }
+
+    /**
+     * Reads a byte range of a complete LOB, keeping up to maxInFlight chunk
+     * reads in progress ahead of the current chunk.
+     */
+    private class ReadAheadStream extends InputStream {
+        private final Key lobKey;
+        private final Manifest manifest;
+        private final ArrayDeque<Future<byte[]>> ahead =
+            new ArrayDeque<Future<byte[]>>();
+        private final int lastChunk;
+        private int nextChunk;
+        private byte[] current;
+        private int pos;
+        private long remaining;
+
+        ReadAheadStream(final Key lobKey,
+                        final Manifest manifest,
+                        final long offset,
+                        final long length) {
+            this.lobKey = lobKey;
+            this.manifest = manifest;
+            remaining = length;
+            final int size = manifest.chunkSize;
+            nextChunk = (int) (offset / size);
+            lastChunk = (length == 0) ?
+                nextChunk - 1 :
+                (int) ((offset + length - 1) / size);
+
+            /* The first chunk is read from the offset within it. */
+            pos = CHUNK_HEADER_SIZE + (int) (offset % size);
+            fillAhead();
+        }
+
+        private void fillAhead() {
+            while (ahead.size() < maxInFlight && nextChunk <= lastChunk) {
+                final Key chunkKey = makeChunkKey(lobKey, nextChunk);
+                ahead.add(executor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call()
+                        throws IOException {
+
+                        return readChunk(chunkKey);
+                    }
+                }));
+                nextChunk += 1;
+            }
+        }
+
+        private byte[] readChunk(final Key chunkKey)
+            throws IOException {
+
+            final ValueVersion vv = store.get(chunkKey);
+            if (vv == null) {
+                throw new ConcurrentModificationException
+                    ("Chunk deleted while reading LOB: " + chunkKey);
+            }
+            final byte[] data = vv.getValue().getValue();
+            long uploadId = 0;
+            for (int i = 0; i < CHUNK_HEADER_SIZE; i++) {
+                uploadId = (uploadId << 8) | (data[i] & 0xff);
+            }
+            if (uploadId != manifest.uploadId) {
+                throw new ConcurrentModificationException
+                    ("LOB replaced while reading: " + lobKey);
+            }
+            return data;
+        }
+
+        /**
+         * Makes the next chunk current if the current one is used up, and
+         * returns false at the end of the range.
+         */
+        private boolean nextChunkIfNeeded()
+            throws IOException {
+
+            if (remaining <= 0) {
+                return false;
+            }
+            if (current != null && pos < current.length) {
+                return true;
+            }
+            final Future<byte[]> future = ahead.poll();
+            if (future == null) {
+                throw new IOException("LOB ended before its length");
+            }
+            if (current != null) {
+                pos = CHUNK_HEADER_SIZE;
+            }
+            current = await(future);
+            fillAhead();
+            if (pos >= current.length) {
+                throw new IOException("LOB chunk shorter than expected");
+            }
+            return true;
+        }
+
+        @Override
+        public int read()
+            throws IOException {
+
+            if (!nextChunkIfNeeded()) {
+                return -1;
+            }
+            remaining -= 1;
+            return current[pos++] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len)
+            throws IOException {
+
+            if (len == 0) {
+                return 0;
+            }
+            if (!nextChunkIfNeeded()) {
+                return -1;
+            }
+            final int n = (int) Math.min(Math.min(len, current.length - pos),
+                                         remaining);
+            System.arraycopy(current, pos, b, off, n);
+            pos += n;
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return (current == null) ?
+                0 :
+                (int) Math.min(current.length - pos, remaining);
+        }
+
+        @Override
+        public void close() {
+            remaining = 0;
+            for (Future<byte[]> future : ahead) {
+                future.cancel(false);
+            }
+            ahead.clear();
+        }
+    }
+}
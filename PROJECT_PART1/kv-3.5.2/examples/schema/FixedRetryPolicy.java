@@ -0,0 +1,96 @@
+/*-
+ *
+ *  This file is part of Oracle NoSQL Database
+ *  Copyright (C) 2011, 2015 Oracle and/or its affiliates.  All rights reserved.
+ *
+ *  Oracle NoSQL Database is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation, version 3.
+ *
+ *  Oracle NoSQL Database is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public
+ *  License in the LICENSE file along with Oracle NoSQL Database.  If not,
+ *  see <http://www.gnu.org/licenses/>.
+ *
+ *  An active Oracle commercial licensing agreement for this product
+ *  supercedes this license.
+ *
+ *  For more information please contact:
+ *
+ *  Vice President Legal, Development
+ *  Oracle America, Inc.
+ *  5OP-10
+ *  500 Oracle Parkway
+ *  Redwood Shores, CA 94065
+ *
+ *  or
+ *
+ *  berkeleydb-info_us@oracle.com
+ *
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  EOF
+ *
+ */
+
+package schema;
+
+import oracle.kv.FaultException;
+
+/**
+ * A RetryPolicy that retries every FaultException a fixed number of times,
+ * with the same delay before each retry.  This is the policy used by
+ * {@link WriteOperations} when no other policy is specified, and
+ * {@link #DEFAULT} has the retry count and delay it has always used.
+ */
+class FixedRetryPolicy implements RetryPolicy {
+
+    /**
+     * Two retries, ten milliseconds apart.
+     */
+    static final FixedRetryPolicy DEFAULT = new FixedRetryPolicy(2, 10);
+
+    private final int maxRetries;
+    private final long delayMs;
+
+    /**
+     * Creates a policy that performs up to maxRetries retries, sleeping
+     * delayMs milliseconds before each one.
+     */
+    FixedRetryPolicy(final int maxRetries, final long delayMs) {
+        if (maxRetries < 0) {
+            throw new IllegalArgumentException
+                ("negative maxRetries [" + maxRetries + "]");
+        }
+        if (delayMs < 0) {
+            throw new IllegalArgumentException
+                ("negative delayMs [" + delayMs + "]");
+        }
+        this.maxRetries = maxRetries;
+        this.delayMs = delayMs;
+    }
+
+    @Override
+    public long getRetryDelayMs(final int nRetries,
+                                final FaultException fault) {
+        return (nRetries < maxRetries) ? delayMs : NO_RETRY;
+    }
+
+    @Override
+    public boolean beginRetry(final int nRetries) {
+        return true;
+    }
+
+    @Override
+    public void onSuccess(final int nRetries) {
+        /* Nothing to track. */
+    }
+}
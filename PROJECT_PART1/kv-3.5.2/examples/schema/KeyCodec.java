@@ -0,0 +1,319 @@
+/*-
+ *
+ *  This file is part of Oracle NoSQL Database
+ *  Copyright (C) 2011, 2015 Oracle and/or its affiliates.  All rights reserved.
+ *
+ *  Oracle NoSQL Database is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation, version 3.
+ *
+ *  Oracle NoSQL Database is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public
+ *  License in the LICENSE file along with Oracle NoSQL Database.  If not,
+ *  see <http://www.gnu.org/licenses/>.
+ *
+ *  An active Oracle commercial licensing agreement for this product
+ *  supercedes this license.
+ *
+ *  For more information please contact:
+ *
+ *  Vice President Legal, Development
+ *  Oracle America, Inc.
+ *  5OP-10
+ *  500 Oracle Parkway
+ *  Redwood Shores, CA 94065
+ *
+ *  or
+ *
+ *  berkeleydb-info_us@oracle.com
+ *
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  EOF
+ *
+ */
+
+package schema;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ConcurrentHashMap;
+
+import oracle.kv.Key;
+
+/**
+ * Builds and classifies the Keys described in {@link KeyDefinition} while
+ * creating as few objects as possible, for use on the hot paths of scans and
+ * multiGet result processing.
+ * <p>
+ * Keys are immutable, so the Keys that do not depend on a timestamp -- the
+ * user type parent Key and the info, image and login summary Keys of a user
+ * -- are created once per user and cached in a bounded map.  LoginSession
+ * Keys share the cached major path of their user and use a compact two
+ * component minor path in place of Arrays.asList.
+ * <p>
+ * Keys returned by the store are classified with {@link #classify}, which
+ * only reads the major and minor path Lists held by the Key, without copying
+ * them or creating any objects.
+ */
+class KeyCodec {
+
+    /**
+     * The kinds of Key/Value pairs in the store, as identified by their Key.
+     */
+    enum KeyType {
+
+        /** /user/EMAIL/-/info */
+        USER_INFO,
+
+        /** /user/EMAIL/-/image */
+        USER_IMAGE,
+
+        /** /user/EMAIL/-/login */
+        LOGIN_SUMMARY,
+
+        /**
+         * /user/EMAIL/-/login/TIMESTAMP, or /user/EMAIL/-/login/BUCKET/TIMESTAMP
+         * in a bucketed {@link SessionLayout}.
+         */
+        LOGIN_SESSION,
+
+        /** /user/EMAIL/-/login/~delta/TIMESTAMP */
+        LOGIN_DELTA,
+
+        /** A user Key with an unknown minor path. */
+        UNKNOWN_PROPERTY,
+
+        /** A Key that is not a user Key. */
+        UNKNOWN_OBJECT_TYPE
+    }
+
+    /* The maximum number of users whose Keys are cached. */
+    private static final int MAX_CACHED_USERS = 4096;
+
+    private static final Key USER_TYPE_KEY =
+        Key.createKey(KeyDefinition.USER_OBJECT_TYPE);
+    private static final List<String> INFO_MINOR_PATH =
+        Collections.singletonList(KeyDefinition.INFO_PROPERTY_NAME);
+    private static final List<String> IMAGE_MINOR_PATH =
+        Collections.singletonList(KeyDefinition.IMAGE_PROPERTY_NAME);
+    private static final List<String> LOGIN_MINOR_PATH =
+        Collections.singletonList(KeyDefinition.LOGIN_PROPERTY_NAME);
+
+    private static final ConcurrentHashMap<String, UserKeys> userKeys =
+        new ConcurrentHashMap<String, UserKeys>();
+
+    private KeyCodec() {
+    }
+
+    /**
+     * Returns the parent Key of all user Key/Value pairs.
+     */
+    static Key getUserTypeKey() {
+        return USER_TYPE_KEY;
+    }
+
+    /**
+     * Returns the cached Keys of a user, creating them if needed.
+     */
+    static UserKeys forUser(String email) {
+        UserKeys keys = userKeys.get(email);
+        if (keys == null) {
+
+            /*
+             * A scan can visit any number of users, so rather than growing
+             * without bound the cache is simply emptied when it is full.
+             */
+            if (userKeys.size() >= MAX_CACHED_USERS) {
+                userKeys.clear();
+            }
+            keys = new UserKeys(email);
+            final UserKeys existing = userKeys.putIfAbsent(email, keys);
+            if (existing != null) {
+                keys = existing;
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Returns the kind of Key/Value pair identified by a Key.
+     */
+    static KeyType classify(Key key) {
+        final List<String> majorPath = key.getMajorPath();
+        if (majorPath.size() < 2 ||
+            !KeyDefinition.USER_OBJECT_TYPE.equals(majorPath.get(0))) {
+            return KeyType.UNKNOWN_OBJECT_TYPE;
+        }
+
+        final List<String> minorPath = key.getMinorPath();
+        final int minorSize = minorPath.size();
+        if (minorSize == 0) {
+            return KeyType.UNKNOWN_PROPERTY;
+        }
+        final String propertyName = minorPath.get(0);
+        if (minorSize == 1) {
+            if (KeyDefinition.INFO_PROPERTY_NAME.equals(propertyName)) {
+                return KeyType.USER_INFO;
+            }
+            if (KeyDefinition.IMAGE_PROPERTY_NAME.equals(propertyName)) {
+                return KeyType.USER_IMAGE;
+            }
+            if (KeyDefinition.LOGIN_PROPERTY_NAME.equals(propertyName)) {
+                return KeyType.LOGIN_SUMMARY;
+            }
+        } else if (minorSize == 2 &&
+                   KeyDefinition.LOGIN_PROPERTY_NAME.equals(propertyName)) {
+            return KeyType.LOGIN_SESSION;
+        } else if (minorSize == 3 &&
+                   KeyDefinition.LOGIN_PROPERTY_NAME.equals(propertyName)) {
+            final String bucket = minorPath.get(1);
+            if (KeyDefinition.LOGIN_DELTA_COMPONENT.equals(bucket)) {
+                return KeyType.LOGIN_DELTA;
+            }
+            if (minorPath.get(2).startsWith(bucket)) {
+                return KeyType.LOGIN_SESSION;
+            }
+        }
+        return KeyType.UNKNOWN_PROPERTY;
+    }
+
+    /**
+     * Returns the email address of a user Key, which must have been
+     * classified as a user Key.
+     */
+    static String getEmail(Key key) {
+        return key.getMajorPath().get(1);
+    }
+
+    /**
+     * Returns the timestamp of a Key classified as a LOGIN_SESSION, which is
+     * the last minor path component in all layouts.
+     */
+    static String getSessionTimestamp(Key key) {
+        final List<String> minorPath = key.getMinorPath();
+        return minorPath.get(minorPath.size() - 1);
+    }
+
+    /**
+     * Returns the timestamp of a Key classified as a LOGIN_DELTA.
+     */
+    static String getDeltaTimestamp(Key key) {
+        return key.getMinorPath().get(2);
+    }
+
+    /**
+     * The Keys of a single user.
+     */
+    static class UserKeys {
+        private final List<String> majorPath;
+        private final Key infoKey;
+        private final Key imageKey;
+        private final Key loginSummaryKey;
+
+        private UserKeys(String email) {
+            majorPath = new Pair(KeyDefinition.USER_OBJECT_TYPE, email);
+            infoKey = Key.createKey(majorPath, INFO_MINOR_PATH);
+            imageKey = Key.createKey(majorPath, IMAGE_MINOR_PATH);
+            loginSummaryKey = Key.createKey(majorPath, LOGIN_MINOR_PATH);
+        }
+
+        Key getInfoKey() {
+            return infoKey;
+        }
+
+        Key getImageKey() {
+            return imageKey;
+        }
+
+        /**
+         * Returns the login summary Key, which is also the parent Key of the
+         * user's LoginSession Keys.
+         */
+        Key getLoginSummaryKey() {
+            return loginSummaryKey;
+        }
+
+        Key makeLoginSessionKey(String timestamp) {
+            return Key.createKey
+                (majorPath,
+                 new Pair(KeyDefinition.LOGIN_PROPERTY_NAME, timestamp));
+        }
+
+        /**
+         * Returns the Key of a session in a bucketed SessionLayout.
+         */
+        Key makeBucketedSessionKey(String bucket, String timestamp) {
+            return Key.createKey
+                (majorPath,
+                 Arrays.asList(KeyDefinition.LOGIN_PROPERTY_NAME,
+                               bucket, timestamp));
+        }
+
+        /**
+         * Returns the parent Key of the sessions in a bucket, which has no
+         * Value of its own.
+         */
+        Key makeBucketKey(String bucket) {
+            return Key.createKey
+                (majorPath,
+                 new Pair(KeyDefinition.LOGIN_PROPERTY_NAME, bucket));
+        }
+
+        Key makeLoginDeltaKey(String timestamp) {
+            return Key.createKey
+                (majorPath,
+                 Arrays.asList(KeyDefinition.LOGIN_PROPERTY_NAME,
+                               KeyDefinition.LOGIN_DELTA_COMPONENT,
+                               timestamp));
+        }
+    }
+
+    /**
+     * An immutable two component path, which takes a single object where
+     * Arrays.asList takes two.
+     */
+    private static class Pair extends AbstractList<String>
+        implements RandomAccess {
+
+        private final String first;
+        private final String second;
+
+        Pair(String first, String second) {
+            if (first == null || second == null) {
+                throw new IllegalArgumentException
+                    ("Key path component must not be null.");
+            }
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        public String get(int index) {
+            switch (index) {
+            case 0:
+                return first;
+            case 1:
+                return second;
+            default:
+                throw new IndexOutOfBoundsException("Index: " + index);
+            }
+        }
+
+        @Override
+        public int size() {
+            return 2;
+        }
+    }
+}
@@ -43,14 +43,10 @@
 
 package schema;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.Arrays;
-import java.util.Date;
-import java.util.List;
-import java.util.TimeZone;
 
 import oracle.kv.Key;
+import oracle.kv.KeyRange;
 import oracle.kv.Value;
 
 /**
@@ -121,63 +117,105 @@ import oracle.kv.Value;
  *    of the session. The TIMESTAMP orders session information chronologically
  *    and can be used to query session information for a specific date/time
  *    interval.  A LoginSession class instance represents each Key/Value pair.
+ *<p>
+ *<code>
+ *  /user/EMAIL/-/login/BUCKET/TIMESTAMP
+ *</code>
+ *<p>
+ *    The LoginSession Key/Value pairs in the optional DAY and MONTH layouts
+ *    defined by {@link SessionLayout}, where BUCKET is the "yyyy-MM-dd" or
+ *    "yyyy-MM" prefix of the TIMESTAMP.  Grouping the sessions of a user by
+ *    day or month allows {@link SessionHistory} to query and delete them one
+ *    bucket at a time, so that no single operation grows with the length of
+ *    the user's history.
+ *<p>
+ *<code>
+ *  /user/EMAIL/-/login/~delta/TIMESTAMP
+ *</code>
+ *<p>
+ *    Optional Key/Value pairs, each containing the login count and duration
+ *    of a session that has ended but is not yet included in the LoginSummary.
+ *    The TIMESTAMP is the start time of the session, as in the LoginSession
+ *    Key.  The "~delta" component sorts after all timestamps, and because the
+ *    deltas are grandchildren of the LoginSummary Key they are not returned
+ *    or deleted with the LoginSession Key/Value pairs, which are its
+ *    children.  A LoginDelta class instance represents each Key/Value pair;
+ *    see {@link LoginSummaryCompactor}.
+ *<p>
+ * Images too large for a single Value are stored with a {@link ChunkedLOB}
+ * under a second object type:
+ *<p>
+ *<code>
+ *  /largeimage/EMAIL
+ *</code>
+ *<p>
+ *    An optional Key per user holding the manifest of a large image, whose
+ *    chunks are stored under the {@link ChunkedLOB#CHUNK_OBJECT_TYPE} object
+ *    type.  The manifest Key may not hold any other Value, and is kept out of
+ *    the user major path so that iterating over the user Key/Value pairs
+ *    does not return it.
  */
 class KeyDefinition {
     static final String USER_OBJECT_TYPE = "user";
     static final String INFO_PROPERTY_NAME = "info";
     static final String IMAGE_PROPERTY_NAME = "image";
     static final String LOGIN_PROPERTY_NAME = "login";
+    static final String LOGIN_DELTA_COMPONENT = "~delta";
+    static final String LARGE_IMAGE_OBJECT_TYPE = "largeimage";
+
+    private static final KeyRange LOGIN_DELTA_RANGE =
+        new KeyRange(LOGIN_DELTA_COMPONENT /*start*/, true /*startInclusive*/,
+                     LOGIN_DELTA_COMPONENT /*end*/, true /*endInclusive*/);
 
     /*
      * The timestamp for use in the LoginSession key is formatted for proper
      * sorting, with the most significant fields first and fixed size numeric
-     * fields.
+     * fields: "yyyy-MM-dd HH:mm:ss.SSS" in GMT.
      *
      * Separator characters between fields are used for readability in the
      * example.  Removing these separators will reduce the key size, and is
      * recommended for best performance.
+     *
+     * Timestamps are converted by TimestampCodec rather than a shared
+     * SimpleDateFormat, so that threads building and decoding keys do not
+     * contend on a single lock.
      */
-    static final SimpleDateFormat DATE_TIME_FORMAT =
-        new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
-    static {
-        DATE_TIME_FORMAT.setTimeZone(TimeZone.getTimeZone("GMT"));
-    }
-    static final SimpleDateFormat TIME_FORMAT =
-        new SimpleDateFormat("HH:mm:ss.SSS");
-    static {
-        TIME_FORMAT.setTimeZone(TimeZone.getTimeZone("GMT"));
-    }
 
     /**
      * Returns a Key that can be used as a parentKey to select all user
      * Key/Value pairs when using KVStore.storeIterator or storeKeysIterator.
      */
     static Key makeUserTypeKey() {
-        return Key.createKey(USER_OBJECT_TYPE);
+        return KeyCodec.getUserTypeKey();
     }
 
     /**
      * Returns a Key that can be used to access UserInfo Key/Value pairs.
      */
     static Key makeUserInfoKey(String email) {
-        return Key.createKey(Arrays.asList(USER_OBJECT_TYPE, email),
-                             INFO_PROPERTY_NAME);
+        return KeyCodec.forUser(email).getInfoKey();
     }
 
     /**
      * Returns a Key that can be used to access UserImage Key/Value pairs.
      */
     static Key makeUserImageKey(String email) {
-        return Key.createKey(Arrays.asList(USER_OBJECT_TYPE, email),
-                             IMAGE_PROPERTY_NAME);
+        return KeyCodec.forUser(email).getImageKey();
+    }
+
+    /**
+     * Returns the Key that identifies the large image of a user stored with a
+     * ChunkedLOB.
+     */
+    static Key makeLargeImageKey(String email) {
+        return Key.createKey(Arrays.asList(LARGE_IMAGE_OBJECT_TYPE, email));
     }
 
     /**
      * Returns a Key that can be used to access LoginSummary Key/Value pairs.
      */
     static Key makeLoginSummaryKey(String email) {
-        return Key.createKey(Arrays.asList(USER_OBJECT_TYPE, email),
-                             LOGIN_PROPERTY_NAME);
+        return KeyCodec.forUser(email).getLoginSummaryKey();
     }
 
     /**
@@ -185,8 +223,34 @@ class KeyDefinition {
      */
     static Key makeLoginSessionKey(String email, long loginTimeMs) {
         final String timestamp = formatTimestamp(loginTimeMs);
-        return Key.createKey(Arrays.asList(USER_OBJECT_TYPE, email),
-                             Arrays.asList(LOGIN_PROPERTY_NAME, timestamp));
+        return KeyCodec.forUser(email).makeLoginSessionKey(timestamp);
+    }
+
+    /**
+     * Returns a Key that can be used to access LoginSession Key/Value pairs
+     * in the given layout.
+     */
+    static Key makeLoginSessionKey(String email,
+                                   long loginTimeMs,
+                                   SessionLayout layout) {
+        return layout.makeSessionKey(email, formatTimestamp(loginTimeMs));
+    }
+
+    /**
+     * Returns a Key that can be used to access LoginDelta Key/Value pairs.
+     */
+    static Key makeLoginDeltaKey(String email, long loginTimeMs) {
+        final String timestamp = formatTimestamp(loginTimeMs);
+        return KeyCodec.forUser(email).makeLoginDeltaKey(timestamp);
+    }
+
+    /**
+     * Returns a KeyRange that selects the LoginDelta Key/Value pairs of a user
+     * when used with the LoginSummary Key as the parentKey and
+     * Depth.PARENT_AND_DESCENDANTS or DESCENDANTS_ONLY.
+     */
+    static KeyRange makeLoginDeltaRange() {
+        return LOGIN_DELTA_RANGE;
     }
 
     /**
@@ -196,10 +260,7 @@ class KeyDefinition {
      * Key/Value pairs.
      */
     static String formatTimestamp(long millis) {
-        /* Format objects are unsynchronized. */
-        synchronized (DATE_TIME_FORMAT) {
-            return DATE_TIME_FORMAT.format(new Date(millis));
-        }
+        return TimestampCodec.format(millis);
     }
 
     /**
@@ -207,24 +268,14 @@ class KeyDefinition {
      * the timestamp in a LoginSession key to millis.
      */
     static long parseTimestamp(String timestamp) {
-        /* Format objects are unsynchronized. */
-        synchronized (DATE_TIME_FORMAT) {
-            try {
-                return DATE_TIME_FORMAT.parse(timestamp).getTime();
-            } catch (ParseException e) {
-                throw new IllegalArgumentException(timestamp, e);
-            }
-        }
+        return TimestampCodec.parse(timestamp);
     }
 
     /**
      * Formats a time duration for reporting purposes.
      */
     static String formatDuration(long millis) {
-        /* Format objects are unsynchronized. */
-        synchronized (TIME_FORMAT) {
-            return TIME_FORMAT.format(new Date(millis));
-        }
+        return TimestampCodec.formatTimeOfDay(millis);
     }
 
     /**
@@ -233,35 +284,43 @@ class KeyDefinition {
      */
     static String getUserEmail(Key key) {
 
-        final List<String> majorPath = key.getMajorPath();
-
-        if (!USER_OBJECT_TYPE.equals(majorPath.get(0))) {
+        if (KeyCodec.classify(key) == KeyCodec.KeyType.UNKNOWN_OBJECT_TYPE) {
             throw new IllegalArgumentException("Not a user object: " + key);
         }
 
-        return majorPath.get(1);
+        return KeyCodec.getEmail(key);
     }
 
     /**
-     * Returns the login time in millis for a given LoginSession Key.  The 2nd
+     * Returns the login time in millis for a given LoginSession Key.  The last
      * minor path component is the timestamp.
      */
     static long getSessionLoginTime(Key key) {
 
-        final List<String> majorPath = key.getMajorPath();
-        final List<String> minorPath = key.getMinorPath();
+        final KeyCodec.KeyType keyType = KeyCodec.classify(key);
 
-        if (!USER_OBJECT_TYPE.equals(majorPath.get(0))) {
+        if (keyType == KeyCodec.KeyType.UNKNOWN_OBJECT_TYPE) {
             throw new IllegalArgumentException("Not a user object: " + key);
         }
 
-        if (minorPath.size() < 2 ||
-            !LOGIN_PROPERTY_NAME.equals(minorPath.get(0))) {
+        if (keyType != KeyCodec.KeyType.LOGIN_SESSION) {
             throw new IllegalArgumentException("Not a LoginSession: " + key);
         }
 
-        final String timestamp = minorPath.get(1);
-        return parseTimestamp(timestamp);
+        return parseTimestamp(KeyCodec.getSessionTimestamp(key));
+    }
+
+    /**
+     * Returns the login time in millis for a given LoginDelta Key.  The 3rd
+     * minor path component is the timestamp.
+     */
+    static long getDeltaLoginTime(Key key) {
+
+        if (KeyCodec.classify(key) != KeyCodec.KeyType.LOGIN_DELTA) {
+            throw new IllegalArgumentException("Not a LoginDelta: " + key);
+        }
+
+        return parseTimestamp(KeyCodec.getDeltaTimestamp(key));
     }
 
     /**
@@ -269,51 +328,43 @@ class KeyDefinition {
      * is useful when an arbitrary user Key/Value pair is obtained, for example
      * by iterating over all Key/Value pairs in the store or all Key/Value
      * pairs for a particular user.
+     * <p>
+     * The Key is classified by {@link KeyCodec#classify}, which does not copy
+     * its paths, so no objects are created other than the returned one.
      */
     static Object deserializeAny(Bindings bindings, Key key, Value value) {
 
-        final List<String> majorPath = key.getMajorPath();
-        final List<String> minorPath = key.getMinorPath();
-        final String objectType = majorPath.get(0);
-
-        if (!USER_OBJECT_TYPE.equals(objectType)) {
-            throw new IllegalArgumentException("Unknown object type: " + key);
-        }
-
-        final String email = majorPath.get(1);
-        final String propertyName =
-            (minorPath.size() > 0) ? minorPath.get(0) : null;
-
-        if (INFO_PROPERTY_NAME.equals(propertyName) &&
-            minorPath.size() == 1) {
-            final UserInfo userInfo = new UserInfo(email);
+        switch (KeyCodec.classify(key)) {
+        case USER_INFO:
+            final UserInfo userInfo = new UserInfo(KeyCodec.getEmail(key));
             userInfo.setStoreValue(bindings, value);
             return userInfo;
-        }
-
-        if (IMAGE_PROPERTY_NAME.equals(propertyName) &&
-            minorPath.size() == 1) {
-            final UserImage userImage = new UserImage(email);
+        case USER_IMAGE:
+            final UserImage userImage = new UserImage(KeyCodec.getEmail(key));
             userImage.setStoreValue(bindings, value);
             return userImage;
+        case LOGIN_SUMMARY:
+            final LoginSummary loginSummary =
+                new LoginSummary(KeyCodec.getEmail(key));
+            loginSummary.setStoreValue(bindings, value);
+            return loginSummary;
+        case LOGIN_SESSION:
+            final long loginMs =
+                parseTimestamp(KeyCodec.getSessionTimestamp(key));
+            final LoginSession loginSession =
+                new LoginSession(KeyCodec.getEmail(key), loginMs);
+            loginSession.setStoreValue(bindings, value);
+            return loginSession;
+        case LOGIN_DELTA:
+            final LoginDelta loginDelta = new LoginDelta
+                (KeyCodec.getEmail(key),
+                 parseTimestamp(KeyCodec.getDeltaTimestamp(key)));
+            loginDelta.setStoreValue(bindings, value);
+            return loginDelta;
+        case UNKNOWN_OBJECT_TYPE:
+            throw new IllegalArgumentException("Unknown object type: " + key);
+        default:
+            throw new IllegalArgumentException("Unknown key property: " + key);
         }
-
-        if (LOGIN_PROPERTY_NAME.equals(propertyName)) {
-            if (minorPath.size() == 1) {
-                final LoginSummary loginSummary = new LoginSummary(email);
-                loginSummary.setStoreValue(bindings, value);
-                return loginSummary;
-            }
-            if (minorPath.size() == 2) {
-                final String timestamp = minorPath.get(1);
-                final long loginMs = parseTimestamp(timestamp);
-                final LoginSession loginSession =
-                    new LoginSession(email, loginMs);
-                loginSession.setStoreValue(bindings, value);
-                return loginSession;
-            }
-        }
-
-        throw new IllegalArgumentException("Unknown key property: " + key);
     }
 }
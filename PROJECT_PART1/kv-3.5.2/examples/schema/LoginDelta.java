@@ -0,0 +1,187 @@
+/*-
+ *
+ *  This file is part of Oracle NoSQL Database
+ *  Copyright (C) 2011, 2015 Oracle and/or its affiliates.  All rights reserved.
+ *
+ *  Oracle NoSQL Database is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation, version 3.
+ *
+ *  Oracle NoSQL Database is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public
+ *  License in the LICENSE file along with Oracle NoSQL Database.  If not,
+ *  see <http://www.gnu.org/licenses/>.
+ *
+ *  An active Oracle commercial licensing agreement for this product
+ *  supercedes this license.
+ *
+ *  For more information please contact:
+ *
+ *  Vice President Legal, Development
+ *  Oracle America, Inc.
+ *  5OP-10
+ *  500 Oracle Parkway
+ *  Redwood Shores, CA 94065
+ *
+ *  or
+ *
+ *  berkeleydb-info_us@oracle.com
+ *
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  EOF
+ *
+ */
+
+package schema;
+
+import oracle.kv.Key;
+import oracle.kv.Value;
+
+import org.apache.avro.generic.GenericRecord;
+
+/**
+ * Holds the login count and duration of one ended session, which are stored
+ * as the {@code Value} for the "/user/EMAIL/-/login/~delta/TIMESTAMP" {@code
+ * Key} until they are added to the LoginSummary.  The Value uses the
+ * LoginSummary schema, since a delta is simply a summary of fewer sessions.
+ *
+ * <p>Because the login time identifies the session, writing the delta of a
+ * session more than once, for example when an operation is retried, leaves
+ * a single delta in the store.  The Value also holds the time at which it
+ * was serialized for writing, which tells the compactor when the put can no
+ * longer be retried.  See {@link LoginSummaryCompactor}.</p>
+ */
+class LoginDelta {
+
+    /*
+     * The email address is a unique identifier and is used to construct
+     * the Key's major path.
+     */
+    private final String email;
+
+    /*
+     * The login time is a unique identifier for each session and is used to
+     * construct the Key's minor path.
+     */
+    private final long loginTime;
+
+    /* Persistent fields stored in the Value. */
+    private int loginCount = 1;
+    private long loginDuration;
+    private long lastUpdateTime;
+
+    /**
+     * Constructs a delta for a single session with its unique identifiers,
+     * the email address and login time.
+     */
+    LoginDelta(String email, long loginTime) {
+        this.email = email;
+        this.loginTime = loginTime;
+    }
+
+    /**
+     * Returns the email identifier.
+     */
+    String getEmail() {
+        return email;
+    }
+
+    /**
+     * Returns the login time identifier.
+     */
+    long getLoginTime() {
+        return loginTime;
+    }
+
+    /**
+     * Returns the number of logins, which is one unless the delta was written
+     * by another application.
+     */
+    int getLoginCount() {
+        return loginCount;
+    }
+
+    /**
+     * Changes the login duration.
+     */
+    void setLoginDuration(long loginDuration) {
+        this.loginDuration = loginDuration;
+    }
+
+    /**
+     * Returns the login duration.
+     */
+    long getLoginDuration() {
+        return loginDuration;
+    }
+
+    /**
+     * Returns the time at which the delta was serialized for writing, or
+     * zero if it was written by an earlier version of the schema.
+     */
+    long getLastUpdateTime() {
+        return lastUpdateTime;
+    }
+
+    /**
+     * Adds this delta to the totals of a LoginSummary.
+     */
+    void addTo(LoginSummary loginSummary) {
+        loginSummary.setTotalLoginCount
+            (loginSummary.getTotalLoginCount() + loginCount);
+        loginSummary.setTotalLoginDuration
+            (loginSummary.getTotalLoginDuration() + loginDuration);
+    }
+
+    /**
+     * Returns a Key that can be used to write or read the LoginDelta.
+     */
+    Key getStoreKey() {
+        return KeyDefinition.makeLoginDeltaKey(email, loginTime);
+    }
+
+    /**
+     * Serializes the delta attributes into the byte array of a Value, with
+     * the current time as the last update time.
+     */
+    Value getStoreValue(Bindings bindings) {
+        final RecordCodec codec = bindings.getLoginSummaryCodec();
+        final GenericRecord rec = codec.getRecord();
+        lastUpdateTime = System.currentTimeMillis();
+        rec.put("totalLoginCount", loginCount);
+        rec.put("totalLoginDuration", loginDuration);
+        rec.put("lastUpdateTime", lastUpdateTime);
+        return codec.encode(rec);
+    }
+
+    /**
+     * Deserializes the delta attributes from the byte array of a Value.
+     */
+    void setStoreValue(Bindings bindings, Value value) {
+        final GenericRecord rec =
+            bindings.getLoginSummaryCodec().decode(value);
+        loginCount = (Integer) rec.get("totalLoginCount");
+        loginDuration = (Long) rec.get("totalLoginDuration");
+        lastUpdateTime = (Long) rec.get("lastUpdateTime");
+    }
+
+    @Override
+    public String toString() {
+        return "<LoginDelta " + email +
+               "\n    loginTime: " +
+               KeyDefinition.formatTimestamp(loginTime) +
+               ", loginCount: " + loginCount +
+               ", loginDuration: " +
+               KeyDefinition.formatDuration(loginDuration) +
+               ">";
+    }
+}
@@ -46,7 +46,6 @@ package schema;
 import oracle.kv.Key;
 import oracle.kv.Value;
 
-import org.apache.avro.generic.GenericData;
 import org.apache.avro.generic.GenericRecord;
 
 /**
@@ -117,15 +116,23 @@ class LoginSession {
         return KeyDefinition.makeLoginSessionKey(email, loginTime);
     }
 
+    /**
+     * Returns a Key that can be used to write or read the LoginSession in the
+     * given layout.
+     */
+    Key getStoreKey(SessionLayout layout) {
+        return KeyDefinition.makeLoginSessionKey(email, loginTime, layout);
+    }
+
     /**
      * Serializes the only attribute, session duration, into the byte array of
      * a Value.
      */
     Value getStoreValue(Bindings bindings) {
-        final GenericRecord rec =
-            new GenericData.Record(bindings.getLoginSessionSchema());
+        final RecordCodec codec = bindings.getLoginSessionCodec();
+        final GenericRecord rec = codec.getRecord();
         rec.put("sessionDuration", sessionDuration);
-        return bindings.getLoginSessionBinding().toValue(rec);
+        return codec.encode(rec);
     }
 
     /**
@@ -134,7 +141,7 @@ class LoginSession {
      */
     void setStoreValue(Bindings bindings, Value value) {
         final GenericRecord rec =
-            bindings.getLoginSessionBinding().toObject(value);
+            bindings.getLoginSessionCodec().decode(value);
         sessionDuration = (Integer) rec.get("sessionDuration");
     }
 
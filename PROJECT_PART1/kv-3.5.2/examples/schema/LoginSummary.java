@@ -46,7 +46,6 @@ package schema;
 import oracle.kv.Key;
 import oracle.kv.Value;
 
-import org.apache.avro.generic.GenericData;
 import org.apache.avro.generic.GenericRecord;
 
 /**
@@ -77,6 +76,7 @@ class LoginSummary {
     /* Persistent fields stored in the Value. */
     private int totalLoginCount;
     private long totalLoginDuration;
+    private long lastUpdateTime;
 
     /**
      * Constructs a user object with its unique identifier, the email address.
@@ -120,6 +120,14 @@ class LoginSummary {
         return totalLoginDuration;
     }
 
+    /**
+     * Returns the time at which the summary was last serialized for writing,
+     * or zero if it was written by an earlier version of the schema.
+     */
+    long getLastUpdateTime() {
+        return lastUpdateTime;
+    }
+
     /**
      * Returns a Key that can be used to write or read the LoginSummary.
      */
@@ -128,14 +136,17 @@ class LoginSummary {
     }
 
     /**
-     * Serializes the summary attributes into the byte array of a Value.
+     * Serializes the summary attributes into the byte array of a Value,
+     * with the current time as the last update time.
      */
     Value getStoreValue(Bindings bindings) {
-        final GenericRecord rec =
-            new GenericData.Record(bindings.getLoginSummarySchema());
+        final RecordCodec codec = bindings.getLoginSummaryCodec();
+        final GenericRecord rec = codec.getRecord();
+        lastUpdateTime = System.currentTimeMillis();
         rec.put("totalLoginCount", totalLoginCount);
         rec.put("totalLoginDuration", totalLoginDuration);
-        return bindings.getLoginSummaryBinding().toValue(rec);
+        rec.put("lastUpdateTime", lastUpdateTime);
+        return codec.encode(rec);
     }
 
     /**
@@ -143,9 +154,10 @@ class LoginSummary {
      */
     void setStoreValue(Bindings bindings, Value value) {
         final GenericRecord rec =
-            bindings.getLoginSummaryBinding().toObject(value);
+            bindings.getLoginSummaryCodec().decode(value);
         totalLoginCount = (Integer) rec.get("totalLoginCount");
         totalLoginDuration = (Long) rec.get("totalLoginDuration");
+        lastUpdateTime = (Long) rec.get("lastUpdateTime");
     }
 
     @Override
@@ -0,0 +1,436 @@
+/*-
+ *
+ *  This file is part of Oracle NoSQL Database
+ *  Copyright (C) 2011, 2015 Oracle and/or its affiliates.  All rights reserved.
+ *
+ *  Oracle NoSQL Database is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation, version 3.
+ *
+ *  Oracle NoSQL Database is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public
+ *  License in the LICENSE file along with Oracle NoSQL Database.  If not,
+ *  see <http://www.gnu.org/licenses/>.
+ *
+ *  An active Oracle commercial licensing agreement for this product
+ *  supercedes this license.
+ *
+ *  For more information please contact:
+ *
+ *  Vice President Legal, Development
+ *  Oracle America, Inc.
+ *  5OP-10
+ *  500 Oracle Parkway
+ *  Redwood Shores, CA 94065
+ *
+ *  or
+ *
+ *  berkeleydb-info_us@oracle.com
+ *
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  EOF
+ *
+ */
+
+package schema;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import oracle.kv.Depth;
+import oracle.kv.Direction;
+import oracle.kv.KVStore;
+import oracle.kv.Key;
+import oracle.kv.Operation;
+import oracle.kv.OperationExecutionException;
+import oracle.kv.OperationFactory;
+import oracle.kv.ValueVersion;
+
+/**
+ * Maintains LoginSummary totals from the {@link LoginDelta} Key/Value pairs
+ * appended when sessions end, as an alternative to the read-modify-write
+ * update of the LoginSummary done by SchemaExample.endSession.
+ * <p>
+ * Ending a session in this mode is a single execute call that updates the
+ * LoginSession and puts a LoginDelta, without reading the LoginSummary.  The
+ * deltas of a user have distinct Keys, so sessions ending concurrently for
+ * the same user never conflict, and a hot user costs no more to update than
+ * any other.  The price is paid by readers: {@link #readSummary} returns the
+ * stored totals plus the deltas not yet added to them, read together with a
+ * single atomic multiGet.
+ * <p>
+ * The deltas are folded into the LoginSummary by {@link #compact}, which
+ * reads the summary and deltas of a user, and in a single execute call
+ * writes the new totals with putIfVersion and deletes the deltas with
+ * deleteIfVersion.  If the summary or a delta has changed in the meantime
+ * the execution aborts, and the user is read and compacted again.  A
+ * compactor can run in the background with {@link #start}, compacting the
+ * users whose deltas were reported with {@link #addPending}, and all users
+ * with deltas can be compacted with {@link #compactAll}, for example after
+ * a restart.
+ * <p>
+ * WARNING: Like the other non-idempotent operations described in {@link
+ * WriteOperations}, a delta put may be retried after it has been applied.
+ * If the delta had been folded and deleted in between, the retry would add
+ * the session to the totals a second time.  A delta is therefore only
+ * folded once it was written at least compactionDelayMs ago, which must be
+ * longer than the time for which the put may be retried.  The time is that
+ * of the client that serialized the delta, which is stored in its Value,
+ * so the clocks of the clients need only be roughly synchronized.  Deltas
+ * written before the Value held the time are folded at once.
+ */
+class LoginSummaryCompactor {
+
+    /* The maximum number of deltas folded by a single execute call. */
+    private static final int MAX_FOLDED = 256;
+
+    private final KVStore store;
+    private final WriteOperations writeOps;
+    private final OperationFactory factory;
+    private final Bindings bindings;
+    private final long compactionDelayMs;
+
+    /**
+     * The users with deltas to compact, mapped to the latest write time of
+     * their deltas, after which they can be compacted completely.
+     */
+    private final ConcurrentHashMap<String, Long> pendingUsers =
+        new ConcurrentHashMap<String, Long>();
+
+    private ScheduledThreadPoolExecutor executor;
+
+    /* Statistics. */
+    private final AtomicLong foldedCount = new AtomicLong();
+    private final AtomicLong conflictCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+
+    /**
+     * Creates a compactor that folds the deltas written at least
+     * compactionDelayMs ago.
+     */
+    LoginSummaryCompactor(final KVStore store,
+                          final WriteOperations writeOps,
+                          final Bindings bindings,
+                          final long compactionDelayMs) {
+        if (compactionDelayMs < 0) {
+            throw new IllegalArgumentException
+                ("negative compactionDelayMs [" + compactionDelayMs + "]");
+        }
+        this.store = store;
+        this.writeOps = writeOps;
+        this.factory = store.getOperationFactory();
+        this.bindings = bindings;
+        this.compactionDelayMs = compactionDelayMs;
+    }
+
+    /**
+     * Returns the operation that appends a delta, for use in the same
+     * execute call as the LoginSession update.  The operation aborts the
+     * execution if it fails.  The current time is stored in the delta as its
+     * write time, so a new operation should be created to write the delta
+     * again later, rather than reusing this one.
+     */
+    Operation createDeltaOp(final LoginDelta loginDelta) {
+        return factory.createPut
+            (loginDelta.getStoreKey(), loginDelta.getStoreValue(bindings),
+             null /*prevReturn*/, true /*abortIfUnsuccessful*/);
+    }
+
+    /**
+     * Records that a delta has been written, so that its user is compacted
+     * by the background compactor once the delta can be folded.
+     */
+    void addPending(final LoginDelta loginDelta) {
+        final String email = loginDelta.getEmail();
+        final long writeTime = loginDelta.getLastUpdateTime();
+        while (true) {
+            final Long current = pendingUsers.get(email);
+            if (current == null) {
+                if (pendingUsers.putIfAbsent(email, writeTime) == null) {
+                    return;
+                }
+            } else if (current >= writeTime ||
+                       pendingUsers.replace(email, current, writeTime)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the LoginSummary of a user with all of its deltas added, or
+     * null if the user has neither a LoginSummary nor deltas.  The summary
+     * and the deltas are read in a single atomic operation, so the result is
+     * consistent even while the user is being compacted.
+     */
+    LoginSummary readSummary(final String email) {
+        final Key summaryKey = KeyDefinition.makeLoginSummaryKey(email);
+        final Map<Key, ValueVersion> results = readSummaryAndDeltas(email);
+        if (results.isEmpty()) {
+            return null;
+        }
+
+        final LoginSummary loginSummary = new LoginSummary(email);
+        final ValueVersion summaryVersion = results.get(summaryKey);
+        if (summaryVersion != null) {
+            loginSummary.setStoreValue(bindings, summaryVersion.getValue());
+        }
+        for (Map.Entry<Key, ValueVersion> entry : results.entrySet()) {
+            final LoginDelta loginDelta =
+                toDelta(email, entry.getKey(), entry.getValue());
+            if (loginDelta != null) {
+                loginDelta.addTo(loginSummary);
+            }
+        }
+        return loginSummary;
+    }
+
+    /**
+     * Folds the deltas of a user that can be folded into the LoginSummary,
+     * retrying if the user is updated concurrently, and returns the number
+     * of deltas folded.  A LoginSummary is inserted if the user does not
+     * have one.
+     */
+    int compact(final String email) {
+        final Key summaryKey = KeyDefinition.makeLoginSummaryKey(email);
+        int nFolded = 0;
+
+        while (true) {
+            final long foldBefore =
+                System.currentTimeMillis() - compactionDelayMs;
+            final Map<Key, ValueVersion> results = readSummaryAndDeltas(email);
+            final ValueVersion summaryVersion = results.get(summaryKey);
+
+            final LoginSummary loginSummary = new LoginSummary(email);
+            if (summaryVersion != null) {
+                loginSummary.setStoreValue(bindings,
+                                           summaryVersion.getValue());
+            }
+
+            /* Index 0 is reserved for the LoginSummary write. */
+            final List<Operation> ops = new ArrayList<Operation>();
+            ops.add(null);
+            boolean more = false;
+            for (Map.Entry<Key, ValueVersion> entry : results.entrySet()) {
+                final LoginDelta loginDelta =
+                    toDelta(email, entry.getKey(), entry.getValue());
+                if (loginDelta == null ||
+                    loginDelta.getLastUpdateTime() > foldBefore) {
+                    continue;
+                }
+                if (ops.size() > MAX_FOLDED) {
+                    more = true;
+                    break;
+                }
+                loginDelta.addTo(loginSummary);
+                ops.add(factory.createDeleteIfVersion
+                        (entry.getKey(), entry.getValue().getVersion(),
+                         null /*prevReturn*/, true /*abortIfUnsuccessful*/));
+            }
+            if (ops.size() == 1) {
+                return nFolded;
+            }
+
+            if (summaryVersion == null) {
+                ops.set(0, factory.createPutIfAbsent
+                        (summaryKey, loginSummary.getStoreValue(bindings),
+                         null /*prevReturn*/, true /*abortIfUnsuccessful*/));
+            } else {
+                ops.set(0, factory.createPutIfVersion
+                        (summaryKey, loginSummary.getStoreValue(bindings),
+                         summaryVersion.getVersion(),
+                         null /*prevReturn*/, true /*abortIfUnsuccessful*/));
+            }
+
+            try {
+                writeOps.execute(ops);
+            } catch (OperationExecutionException e) {
+
+                /*
+                 * The summary or a delta was changed by another client or
+                 * compactor.  Read the user again and retry.
+                 */
+                conflictCount.incrementAndGet();
+                continue;
+            }
+
+            nFolded += ops.size() - 1;
+            foldedCount.addAndGet(ops.size() - 1);
+            if (!more) {
+                return nFolded;
+            }
+        }
+    }
+
+    /**
+     * Compacts every user in the store that has deltas, and returns the
+     * number of deltas folded.  The users are found by iterating over the
+     * Keys of all user Key/Value pairs.
+     */
+    int compactAll() {
+        final Set<String> emails = new LinkedHashSet<String>();
+        final Iterator<Key> iter = store.storeKeysIterator
+            (Direction.UNORDERED, 0 /*batchSize*/,
+             KeyDefinition.makeUserTypeKey(), null /*subRange*/,
+             null /*depth*/);
+        while (iter.hasNext()) {
+            final Key key = iter.next();
+            if (KeyCodec.classify(key) == KeyCodec.KeyType.LOGIN_DELTA) {
+                emails.add(KeyCodec.getEmail(key));
+            }
+        }
+
+        int nFolded = 0;
+        for (String email : emails) {
+            nFolded += compact(email);
+        }
+        return nFolded;
+    }
+
+    /**
+     * Waits until all the deltas reported with {@link #addPending} were
+     * written at least compactionDelayMs ago, so that they can be folded.
+     */
+    void awaitPending()
+        throws InterruptedException {
+
+        long latest = 0;
+        for (Long writeTime : pendingUsers.values()) {
+            latest = Math.max(latest, writeTime);
+        }
+        final long waitMs =
+            latest + compactionDelayMs - System.currentTimeMillis();
+        if (waitMs > 0) {
+            Thread.sleep(waitMs);
+        }
+    }
+
+    /**
+     * Starts compacting pending users in the background, every intervalMs.
+     * A user is compacted once all of its pending deltas can be folded.  If
+     * compacting a user fails, it is counted in {@link #getFailureCount} and
+     * the user is compacted again in the next interval.
+     */
+    synchronized void start(final long intervalMs) {
+        if (executor != null) {
+            throw new IllegalStateException("Compactor already started");
+        }
+        executor = new ScheduledThreadPoolExecutor
+            (1,
+             new ThreadFactory() {
+                 @Override
+                 public Thread newThread(Runnable r) {
+                     final Thread t = new Thread(r, "LoginSummaryCompactor");
+                     t.setDaemon(true);
+                     return t;
+                 }
+             });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                compactPending();
+            }
+        }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the background compactor, if started, and waits for a
+     * compaction in progress to finish.  Deltas that have not been folded
+     * remain in the store, where they are still included by readSummary.
+     */
+    synchronized void close()
+        throws InterruptedException {
+
+        if (executor != null) {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Compacts the pending users whose deltas can all be folded.  The entry
+     * of a user is only removed if no later delta was added meanwhile.
+     */
+    private void compactPending() {
+        final long foldBefore =
+            System.currentTimeMillis() - compactionDelayMs;
+        for (Map.Entry<String, Long> entry : pendingUsers.entrySet()) {
+            final long writeTime = entry.getValue();
+            if (writeTime > foldBefore) {
+                continue;
+            }
+            final String email = entry.getKey();
+            try {
+                compact(email);
+                pendingUsers.remove(email, writeTime);
+            } catch (RuntimeException e) {
+                failureCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Returns the summary and deltas of a user, in a single atomic
+     * operation.
+     */
+    private Map<Key, ValueVersion> readSummaryAndDeltas(final String email) {
+        return store.multiGet(KeyDefinition.makeLoginSummaryKey(email),
+                              KeyDefinition.makeLoginDeltaRange(),
+                              Depth.PARENT_AND_DESCENDANTS);
+    }
+
+    /**
+     * Returns the LoginDelta for a Key/Value pair returned by
+     * readSummaryAndDeltas, or null if it is not a delta.
+     */
+    private LoginDelta toDelta(final String email,
+                               final Key key,
+                               final ValueVersion valueVersion) {
+        if (KeyCodec.classify(key) != KeyCodec.KeyType.LOGIN_DELTA) {
+            return null;
+        }
+        final LoginDelta loginDelta =
+            new LoginDelta(email, KeyDefinition.getDeltaLoginTime(key));
+        loginDelta.setStoreValue(bindings, valueVersion.getValue());
+        return loginDelta;
+    }
+
+    /**
+     * Returns the number of deltas folded into summaries.
+     */
+    long getFoldedCount() {
+        return foldedCount.get();
+    }
+
+    /**
+     * Returns the number of compactions retried because the user was
+     * changed concurrently.
+     */
+    long getConflictCount() {
+        return conflictCount.get();
+    }
+
+    /**
+     * Returns the number of background compactions that failed.
+     */
+    long getFailureCount() {
+        return failureCount.get();
+    }
+}
@@ -0,0 +1,243 @@
+/*-
+ *
+ *  This file is part of Oracle NoSQL Database
+ *  Copyright (C) 2011, 2015 Oracle and/or its affiliates.  All rights reserved.
+ *
+ *  Oracle NoSQL Database is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation, version 3.
+ *
+ *  Oracle NoSQL Database is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public
+ *  License in the LICENSE file along with Oracle NoSQL Database.  If not,
+ *  see <http://www.gnu.org/licenses/>.
+ *
+ *  An active Oracle commercial licensing agreement for this product
+ *  supercedes this license.
+ *
+ *  For more information please contact:
+ *
+ *  Vice President Legal, Development
+ *  Oracle America, Inc.
+ *  5OP-10
+ *  500 Oracle Parkway
+ *  Redwood Shores, CA 94065
+ *
+ *  or
+ *
+ *  berkeleydb-info_us@oracle.com
+ *
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  EOF
+ *
+ */
+
+package schema;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import oracle.kv.Value;
+import oracle.kv.avro.GenericAvroBinding;
+import oracle.kv.avro.RawAvroBinding;
+import oracle.kv.avro.RawRecord;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+
+/**
+ * Serializes the records of one Avro schema with per-thread reusable
+ * encoders, decoders and records, as a faster alternative to calling the
+ * GenericAvroBinding of the schema directly.
+ * <p>
+ * GenericAvroBinding.toValue and toObject create a new encoder or decoder,
+ * output buffer and record graph on every call.  A RecordCodec keeps these
+ * in a ThreadLocal and reuses them: {@link #getRecord} returns a record that
+ * the caller fills in and passes to {@link #encode}, and {@link #decode}
+ * reads a Value into an existing record, reusing its Utf8 strings and other
+ * nested objects, so that scanning many Values of the same schema allocates
+ * little more than the Java objects the application keeps.
+ * <p>
+ * A Value starts with the id of its writer schema, which is assigned by the
+ * store.  The id is not available from the public API, so the codec learns
+ * the header of its own schema by writing a record with the default field
+ * values through the store's RawAvroBinding.  Values with this header are
+ * decoded directly; Values written with other versions of the schema are
+ * passed to the GenericAvroBinding, which resolves them to this schema.
+ * Values are written through the RawAvroBinding, so the store still assigns
+ * and checks the schema id.
+ * <p>
+ * A RecordCodec is thread-safe, but the records returned by getRecord and
+ * by decode without a reuse argument belong to the calling thread and are
+ * overwritten by its next call.  They must not be kept or shared.
+ */
+class RecordCodec {
+
+    private final Schema schema;
+    private final GenericAvroBinding binding;
+    private final RawAvroBinding rawBinding;
+    private final GenericDatumWriter<GenericRecord> writer;
+    private final GenericDatumReader<GenericRecord> reader;
+
+    /* The header of Values written with the schema, once known. */
+    private volatile byte[] header;
+    private volatile boolean headerUnavailable;
+
+    private final ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>() {
+        @Override
+        protected Buffers initialValue() {
+            return new Buffers();
+        }
+    };
+
+    RecordCodec(Schema schema,
+                GenericAvroBinding binding,
+                RawAvroBinding rawBinding) {
+        this.schema = schema;
+        this.binding = binding;
+        this.rawBinding = rawBinding;
+        writer = new GenericDatumWriter<GenericRecord>(schema);
+        reader = new GenericDatumReader<GenericRecord>(schema);
+    }
+
+    Schema getSchema() {
+        return schema;
+    }
+
+    /**
+     * Returns the calling thread's record for use with encode.  All of its
+     * fields must be set, since it holds the values of the previous call.
+     */
+    GenericRecord getRecord() {
+        return buffers.get().encodeRecord;
+    }
+
+    /**
+     * Serializes a record of the schema into a Value.
+     */
+    Value encode(GenericRecord record) {
+        final Buffers buf = buffers.get();
+        buf.out.reset();
+        buf.encoder = EncoderFactory.get().binaryEncoder(buf.out, buf.encoder);
+        try {
+            writer.write(record, buf.encoder);
+            buf.encoder.flush();
+        } catch (IOException e) {
+            /* Not expected when writing to a byte array. */
+            throw new IllegalArgumentException(e);
+        }
+        final byte[] rawData = buf.out.toByteArray();
+        final Value value = rawBinding.toValue(new RawRecord(rawData, schema));
+        if (header == null) {
+            learnHeader(value, rawData.length);
+        }
+        return value;
+    }
+
+    /**
+     * Deserializes a Value into the calling thread's record for this schema,
+     * and returns it.
+     */
+    GenericRecord decode(Value value) {
+        final Buffers buf = buffers.get();
+        buf.decodeRecord = decode(value, buf.decodeRecord);
+        return buf.decodeRecord;
+    }
+
+    /**
+     * Deserializes a Value into the given record, reusing its nested
+     * objects, and returns it.  If reuse is null, or the Value was written
+     * with another version of the schema, a new record is returned.
+     */
+    GenericRecord decode(Value value, GenericRecord reuse) {
+        final byte[] hdr = getHeader();
+        final byte[] bytes = value.getValue();
+        if (hdr == null ||
+            value.getFormat() != Value.Format.AVRO ||
+            !startsWith(bytes, hdr)) {
+            return binding.toObject(value);
+        }
+
+        final Buffers buf = buffers.get();
+        buf.decoder = DecoderFactory.get().binaryDecoder
+            (bytes, hdr.length, bytes.length - hdr.length, buf.decoder);
+        try {
+            return reader.read(reuse, buf.decoder);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * Returns the header of Values written with the schema, learning it
+     * first if needed, or null if it cannot be learned.
+     */
+    private byte[] getHeader() {
+        final byte[] hdr = header;
+        if (hdr != null || headerUnavailable) {
+            return hdr;
+        }
+        try {
+            final GenericRecord record = new GenericData.Record(schema);
+            for (Schema.Field field : schema.getFields()) {
+                record.put(field.pos(),
+                           GenericData.get().getDefaultValue(field));
+            }
+            encode(record);
+        } catch (RuntimeException e) {
+
+            /*
+             * A field has no default, or the schema is not in the catalog.
+             * Use the binding until a record is encoded.
+             */
+            headerUnavailable = true;
+        }
+        return header;
+    }
+
+    private void learnHeader(Value value, int rawLength) {
+        final byte[] bytes = value.getValue();
+        final byte[] hdr = new byte[bytes.length - rawLength];
+        System.arraycopy(bytes, 0, hdr, 0, hdr.length);
+        header = hdr;
+    }
+
+    private static boolean startsWith(byte[] bytes, byte[] prefix) {
+        if (bytes.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The reusable objects of one thread.
+     */
+    private class Buffers {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        final GenericRecord encodeRecord = new GenericData.Record(schema);
+        GenericRecord decodeRecord;
+        BinaryEncoder encoder;
+        BinaryDecoder decoder;
+    }
+}
@@ -0,0 +1,635 @@
+/*-
+ *
+ *  This file is part of Oracle NoSQL Database
+ *  Copyright (C) 2011, 2015 Oracle and/or its affiliates.  All rights reserved.
+ *
+ *  Oracle NoSQL Database is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation, version 3.
+ *
+ *  Oracle NoSQL Database is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public
+ *  License in the LICENSE file along with Oracle NoSQL Database.  If not,
+ *  see <http://www.gnu.org/licenses/>.
+ *
+ *  An active Oracle commercial licensing agreement for this product
+ *  supercedes this license.
+ *
+ *  For more information please contact:
+ *
+ *  Vice President Legal, Development
+ *  Oracle America, Inc.
+ *  5OP-10
+ *  500 Oracle Parkway
+ *  Redwood Shores, CA 94065
+ *
+ *  or
+ *
+ *  berkeleydb-info_us@oracle.com
+ *
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  EOF
+ *
+ */
+
+package schema;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import oracle.kv.Direction;
+import oracle.kv.KVStore;
+import oracle.kv.Key;
+import oracle.kv.KeyRange;
+import oracle.kv.KeyValueVersion;
+import oracle.kv.Operation;
+import oracle.kv.OperationExecutionException;
+import oracle.kv.OperationFactory;
+import oracle.kv.OperationResult;
+import oracle.kv.Value;
+import oracle.kv.ValueVersion;
+import oracle.kv.Version;
+
+/**
+ * A background service that deletes the LoginSession Key/Value pairs whose
+ * login time is older than a retention period, so that the size of the
+ * store stays bounded without a one-shot cleanup such as SchemaExample's
+ * deleteSessionHistory.
+ * <p>
+ * A sweep deletes the sessions that were older than the retention period
+ * when the sweep started.  The users are split into segments by KeyRanges
+ * over the first character of the email address, the component that
+ * follows "user" in the major path.  The segments are swept in parallel by
+ * a pool of threads, each scanning the Keys of its segment with
+ * storeKeysIterator to find the users, and deleting the expired sessions of
+ * each user, found with {@link SessionHistory#iterator}, in batches of
+ * DELETE_BATCH_SIZE Keys per execute call.  The total rate of deletions is
+ * limited to maxDeletesPerSecond, so that the sweep does not compete with
+ * the application for the capacity of the store.
+ * <p>
+ * The progress of the sweep -- its cutoff time, the segments completed and
+ * the number of users and sessions swept -- is stored in the store under
+ * the {@link #RETENTION_OBJECT_TYPE} object type, and is updated as each
+ * segment completes.  If the sweep is interrupted, or a segment fails, the
+ * next sweep resumes it with the same cutoff, skipping the completed
+ * segments.  Only one sweeper can make progress at a time: the progress is
+ * written with putIfVersion, and a sweeper that finds it changed by another
+ * sweeper abandons its sweep.
+ * <p>
+ * Sweeps can be run directly with {@link #sweep}, as SchemaExample does
+ * with its -retention option, or periodically with {@link #start}.  A
+ * periodic sweep is skipped if the last sweep, possibly performed by another
+ * process, completed less than the interval ago.
+ */
+class RetentionSweeper {
+
+    /**
+     * The first major path component of the progress Key,
+     * /retention/loginSession.
+     */
+    static final String RETENTION_OBJECT_TYPE = "retention";
+
+    /* The number of sessions deleted by a single execute call. */
+    private static final int DELETE_BATCH_SIZE = 100;
+
+    /* The batch size of the Key and session scans. */
+    private static final int SCAN_BATCH_SIZE = 100;
+
+    private static final int PROGRESS_VERSION = 1;
+
+    /*
+     * The boundaries between segments.  Email addresses starting with other
+     * characters fall in the first or last segment.  There must be fewer
+     * than 64, since the completed segments are recorded in a long.
+     */
+    private static final String SEGMENT_BOUNDARIES =
+        "0123456789abcdefghijklmnopqrstuvwxyz";
+
+    private static final Key PROGRESS_KEY = Key.createKey
+        (Arrays.asList(RETENTION_OBJECT_TYPE, "loginSession"));
+
+    private final KVStore store;
+    private final WriteOperations writeOps;
+    private final OperationFactory factory;
+    private final SessionHistory sessionHistory;
+    private final long retentionMs;
+    private final int nThreads;
+    private final RateLimiter rateLimiter;
+    private final List<KeyRange> segments;
+
+    private ScheduledThreadPoolExecutor scheduler;
+
+    /* Statistics. */
+    private final AtomicLong sweepCount = new AtomicLong();
+    private final AtomicLong usersSwept = new AtomicLong();
+    private final AtomicLong sessionsDeleted = new AtomicLong();
+    private final AtomicLong segmentFailures = new AtomicLong();
+
+    /**
+     * Creates a sweeper.
+     *
+     * @param sessionHistory determines the layout of the sessions
+     * @param retentionMs the age of the oldest sessions kept
+     * @param nThreads the number of segments swept in parallel
+     * @param maxDeletesPerSecond the maximum rate of deletions, or zero for
+     * no limit
+     */
+    RetentionSweeper(final KVStore store,
+                     final WriteOperations writeOps,
+                     final SessionHistory sessionHistory,
+                     final long retentionMs,
+                     final int nThreads,
+                     final double maxDeletesPerSecond) {
+        if (retentionMs < 0 || nThreads < 1 || maxDeletesPerSecond < 0) {
+            throw new IllegalArgumentException
+                ("invalid retentionMs, nThreads or maxDeletesPerSecond [" +
+                 retentionMs + ", " + nThreads + ", " +
+                 maxDeletesPerSecond + "]");
+        }
+        this.store = store;
+        this.writeOps = writeOps;
+        this.factory = store.getOperationFactory();
+        this.sessionHistory = sessionHistory;
+        this.retentionMs = retentionMs;
+        this.nThreads = nThreads;
+        this.rateLimiter = (maxDeletesPerSecond > 0) ?
+            new RateLimiter(maxDeletesPerSecond) : null;
+
+        segments = new ArrayList<KeyRange>();
+        String start = null;
+        for (int i = 0; i < SEGMENT_BOUNDARIES.length(); i++) {
+            final String end = SEGMENT_BOUNDARIES.substring(i, i + 1);
+            segments.add(new KeyRange(start, true, end, false));
+            start = end;
+        }
+        segments.add(new KeyRange(start, true, null, false));
+    }
+
+    /**
+     * Performs a sweep, or resumes the sweep that was interrupted, and
+     * returns whether it completed.  It does not complete if a segment
+     * failed, or another sweeper took it over, in which case it is resumed
+     * by the next call.
+     */
+    boolean sweep()
+        throws InterruptedException {
+
+        final Sweep sweep = startSweep();
+        return (sweep != null) && runSweep(sweep);
+    }
+
+    /**
+     * Starts sweeping every intervalMs in the background.  Failures are
+     * counted by {@link #getSegmentFailures} and the sweep is resumed in the
+     * next interval.
+     */
+    synchronized void start(final long intervalMs) {
+        if (scheduler != null) {
+            throw new IllegalStateException("Sweeper already started");
+        }
+        scheduler = new ScheduledThreadPoolExecutor
+            (1, new NamedThreadFactory("RetentionSweeper"));
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final Progress last = readProgress();
+                    if (last != null && last.complete &&
+                        System.currentTimeMillis() - last.completeTime <
+                        intervalMs) {
+                        return;
+                    }
+                    sweep();
+                } catch (InterruptedException e) {
+                    /* Closing. */
+                    Thread.currentThread().interrupt();
+                } catch (RuntimeException e) {
+                    segmentFailures.incrementAndGet();
+                }
+            }
+        }, 0, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the background sweeps, if started, interrupting a sweep in
+     * progress.  The interrupted sweep is resumed by the next sweeper.
+     */
+    synchronized void close()
+        throws InterruptedException {
+
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Returns the progress of the current or last sweep, as stored, or null
+     * if no sweep was started.
+     */
+    Progress readProgress() {
+        final ValueVersion vv = store.get(PROGRESS_KEY);
+        if (vv == null) {
+            return null;
+        }
+        try {
+            return Progress.fromValue(vv.getValue(), vv.getVersion());
+        } catch (IOException e) {
+            throw new IllegalStateException
+                ("Invalid retention progress: " + PROGRESS_KEY, e);
+        }
+    }
+
+    /**
+     * Returns the number of sweeps completed by this sweeper.
+     */
+    long getSweepCount() {
+        return sweepCount.get();
+    }
+
+    /**
+     * Returns the number of users swept by this sweeper.
+     */
+    long getUsersSwept() {
+        return usersSwept.get();
+    }
+
+    /**
+     * Returns the number of sessions deleted by this sweeper.
+     */
+    long getSessionsDeleted() {
+        return sessionsDeleted.get();
+    }
+
+    /**
+     * Returns the number of segments, or background sweeps, that failed.
+     */
+    long getSegmentFailures() {
+        return segmentFailures.get();
+    }
+
+    /**
+     * Returns the sweep to run: the stored sweep if it is incomplete, or a
+     * new sweep.  Returns null if another sweeper changed the progress
+     * first.
+     */
+    private Sweep startSweep() {
+        final Progress last = readProgress();
+        if (last != null && !last.complete &&
+            last.nSegments == segments.size()) {
+            return new Sweep(last);
+        }
+
+        final long now = System.currentTimeMillis();
+        final Progress progress = new Progress();
+        progress.sweepId = now;
+        progress.cutoffTime = now - retentionMs;
+        progress.nSegments = segments.size();
+        final Value value = progress.toValue();
+        progress.version = (last == null) ?
+            writeOps.putIfAbsent(PROGRESS_KEY, value) :
+            writeOps.putIfVersion(PROGRESS_KEY, value, last.version);
+        return (progress.version == null) ? null : new Sweep(progress);
+    }
+
+    /**
+     * Sweeps the incomplete segments of a sweep in parallel.
+     */
+    private boolean runSweep(final Sweep sweep)
+        throws InterruptedException {
+
+        final ExecutorService executor = Executors.newFixedThreadPool
+            (nThreads, new NamedThreadFactory("RetentionSweeper-segment"));
+        try {
+            final List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int i = 0; i < segments.size(); i++) {
+                if (sweep.isSegmentComplete(i)) {
+                    continue;
+                }
+                final int segment = i;
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!sweep.abandoned) {
+                            sweepSegment(sweep, segment);
+                        }
+                    }
+                }));
+            }
+
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    segmentFailures.incrementAndGet();
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (!sweep.complete()) {
+            return false;
+        }
+        sweepCount.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Deletes the expired sessions of the users in a segment, and records
+     * the segment as complete.
+     */
+    private void sweepSegment(final Sweep sweep, final int segment) {
+        final KeyRange cutoffRange = new KeyRange
+            (null /*start*/, false /*startInclusive*/,
+             KeyDefinition.formatTimestamp(sweep.getCutoffTime()) /*end*/,
+             false /*endInclusive*/);
+
+        final Iterator<Key> iter = store.storeKeysIterator
+            (Direction.UNORDERED, SCAN_BATCH_SIZE,
+             KeyDefinition.makeUserTypeKey(), segments.get(segment),
+             null /*depth*/);
+
+        long nUsers = 0;
+        long nDeleted = 0;
+        while (iter.hasNext() && !sweep.abandoned) {
+            final Key key = iter.next();
+
+            /* Each user has a single LoginSummary, the parent of sessions. */
+            if (KeyCodec.classify(key) != KeyCodec.KeyType.LOGIN_SUMMARY) {
+                continue;
+            }
+            nDeleted += sweepUser(KeyCodec.getEmail(key), cutoffRange);
+            nUsers += 1;
+        }
+        sweep.completeSegment(segment, nUsers, nDeleted);
+    }
+
+    /**
+     * Deletes the expired sessions of a user in rate-limited batches, and
+     * returns the number deleted.
+     */
+    private long sweepUser(final String email, final KeyRange cutoffRange) {
+        final Iterator<KeyValueVersion> iter =
+            sessionHistory.iterator(email, cutoffRange, SCAN_BATCH_SIZE);
+        final List<Operation> ops = new ArrayList<Operation>();
+        long nDeleted = 0;
+        while (iter.hasNext()) {
+            ops.add(factory.createDelete(iter.next().getKey()));
+            if (ops.size() == DELETE_BATCH_SIZE) {
+                nDeleted += deleteBatch(ops);
+                ops.clear();
+            }
+        }
+        if (!ops.isEmpty()) {
+            nDeleted += deleteBatch(ops);
+        }
+        usersSwept.incrementAndGet();
+        return nDeleted;
+    }
+
+    /**
+     * Executes a batch of deletions once the rate limit allows, and returns
+     * the number of sessions deleted.
+     */
+    private int deleteBatch(final List<Operation> ops) {
+        if (rateLimiter != null) {
+            rateLimiter.acquire(ops.size());
+        }
+        final List<OperationResult> results;
+        try {
+            results = writeOps.execute(ops);
+        } catch (OperationExecutionException e) {
+            /* Not expected, since the deletions do not abort. */
+            throw new IllegalStateException("Unexpected failure", e);
+        }
+        int nDeleted = 0;
+        for (OperationResult result : results) {
+            if (result.getSuccess()) {
+                nDeleted += 1;
+            }
+        }
+        sessionsDeleted.addAndGet(nDeleted);
+        return nDeleted;
+    }
+
+    /**
+     * The state of a sweep in progress, shared by the segment threads.
+     */
+    private class Sweep {
+        private final Progress progress;
+        volatile boolean abandoned;
+
+        Sweep(final Progress progress) {
+            this.progress = progress;
+        }
+
+        long getCutoffTime() {
+            return progress.cutoffTime;
+        }
+
+        synchronized boolean isSegmentComplete(final int segment) {
+            return (progress.completedSegments & (1L << segment)) != 0;
+        }
+
+        /**
+         * Records a completed segment in the stored progress.  If another
+         * sweeper changed the progress, the sweep is abandoned.
+         */
+        synchronized void completeSegment(final int segment,
+                                          final long nUsers,
+                                          final long nDeleted) {
+            if (abandoned) {
+                return;
+            }
+            progress.completedSegments |= 1L << segment;
+            progress.usersSwept += nUsers;
+            progress.sessionsDeleted += nDeleted;
+            write();
+        }
+
+        /**
+         * Records the sweep as complete if all segments are, and returns
+         * whether it is.
+         */
+        synchronized boolean complete() {
+            if (abandoned ||
+                Long.bitCount(progress.completedSegments) <
+                progress.nSegments) {
+                return false;
+            }
+            progress.complete = true;
+            progress.completeTime = System.currentTimeMillis();
+            write();
+            return !abandoned;
+        }
+
+        private void write() {
+            final Version version = writeOps.putIfVersion
+                (PROGRESS_KEY, progress.toValue(), progress.version);
+            if (version == null) {
+                abandoned = true;
+            } else {
+                progress.version = version;
+            }
+        }
+    }
+
+    /**
+     * The progress of a sweep, as stored under the progress Key.
+     */
+    static class Progress {
+        long sweepId;
+        long cutoffTime;
+        boolean complete;
+        long completeTime;
+        int nSegments;
+
+        /* A bit for each completed segment. */
+        long completedSegments;
+        long usersSwept;
+        long sessionsDeleted;
+
+        /* The Version of the stored progress. */
+        Version version;
+
+        Value toValue() {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            final DataOutputStream out = new DataOutputStream(bytes);
+            try {
+                out.writeInt(PROGRESS_VERSION);
+                out.writeLong(sweepId);
+                out.writeLong(cutoffTime);
+                out.writeBoolean(complete);
+                out.writeLong(completeTime);
+                out.writeInt(nSegments);
+                out.writeLong(completedSegments);
+                out.writeLong(usersSwept);
+                out.writeLong(sessionsDeleted);
+                out.flush();
+            } catch (IOException e) {
+                /* Not expected when writing to a byte array. */
+                throw new IllegalStateException(e);
+            }
+            return Value.createValue(bytes.toByteArray());
+        }
+
+        static Progress fromValue(final Value value, final Version version)
+            throws IOException {
+
+            final DataInputStream in = new DataInputStream
+                (new ByteArrayInputStream(value.getValue()));
+            final int progressVersion = in.readInt();
+            if (progressVersion != PROGRESS_VERSION) {
+                throw new IOException
+                    ("Unknown progress version: " + progressVersion);
+            }
+            final Progress progress = new Progress();
+            progress.sweepId = in.readLong();
+            progress.cutoffTime = in.readLong();
+            progress.complete = in.readBoolean();
+            progress.completeTime = in.readLong();
+            progress.nSegments = in.readInt();
+            progress.completedSegments = in.readLong();
+            progress.usersSwept = in.readLong();
+            progress.sessionsDeleted = in.readLong();
+            progress.version = version;
+            return progress;
+        }
+
+        @Override
+        public String toString() {
+            return "<RetentionProgress sweep: " +
+                KeyDefinition.formatTimestamp(sweepId) +
+                ", cutoff: " + KeyDefinition.formatTimestamp(cutoffTime) +
+                ", segments: " + Long.bitCount(completedSegments) + "/" +
+                nSegments +
+                ", users: " + usersSwept +
+                ", sessions deleted: " + sessionsDeleted +
+                (complete ? ", complete>" : ">");
+        }
+    }
+
+    /**
+     * Limits the rate of deletions across all threads.  Each call reserves
+     * the next free time slot for its permits, and sleeps until the slot
+     * starts.
+     */
+    private static class RateLimiter {
+        private final double nanosPerPermit;
+        private long nextFreeNanos = System.nanoTime();
+
+        RateLimiter(final double permitsPerSecond) {
+            nanosPerPermit = TimeUnit.SECONDS.toNanos(1) / permitsPerSecond;
+        }
+
+        void acquire(final int permits) {
+            final long waitNanos = reserve(permits);
+            if (waitNanos <= 0) {
+                return;
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                /* Don't swallow the interrupt status. */
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted", e);
+            }
+        }
+
+        private synchronized long reserve(final int permits) {
+            final long now = System.nanoTime();
+            if (nextFreeNanos < now) {
+                nextFreeNanos = now;
+            }
+            final long waitNanos = nextFreeNanos - now;
+            nextFreeNanos += (long) (permits * nanosPerPermit);
+            return waitNanos;
+        }
+    }
+
+    /**
+     * Creates daemon threads with numbered names.
+     */
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger threadNumber = new AtomicInteger();
+
+        NamedThreadFactory(final String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread t =
+                new Thread(r, prefix + "-" + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*-
+ *
+ *  This file is part of Oracle NoSQL Database
+ *  Copyright (C) 2011, 2015 Oracle and/or its affiliates.  All rights reserved.
+ *
+ *  Oracle NoSQL Database is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation, version 3.
+ *
+ *  Oracle NoSQL Database is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public
+ *  License in the LICENSE file along with Oracle NoSQL Database.  If not,
+ *  see <http://www.gnu.org/licenses/>.
+ *
+ *  An active Oracle commercial licensing agreement for this product
+ *  supercedes this license.
+ *
+ *  For more information please contact:
+ *
+ *  Vice President Legal, Development
+ *  Oracle America, Inc.
+ *  5OP-10
+ *  500 Oracle Parkway
+ *  Redwood Shores, CA 94065
+ *
+ *  or
+ *
+ *  berkeleydb-info_us@oracle.com
+ *
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  EOF
+ *
+ */
+
+package schema;
+
+import oracle.kv.FaultException;
+
+/**
+ * Decides whether, and after what delay, a write operation performed by
+ * {@link WriteOperations} is retried when it fails with a FaultException.
+ * <p>
+ * A single policy instance is normally shared by all the threads using a
+ * WriteOperations object, so implementations must be thread-safe.  The
+ * policy does not need to consider the operation timeout: WriteOperations
+ * never sleeps past the end of the timeout, and gives up when no time is
+ * left for another attempt.
+ */
+interface RetryPolicy {
+
+    /**
+     * Returned by {@link #getRetryDelayMs} when the operation should not be
+     * retried.
+     */
+    static final long NO_RETRY = -1;
+
+    /**
+     * Called each time an attempt of an operation fails.
+     *
+     * @param nRetries the number of retries already performed for the
+     * operation; zero when the first attempt failed.
+     *
+     * @param fault the exception thrown by the failed attempt.
+     *
+     * @return the delay in milliseconds before the operation is retried, or
+     * {@link #NO_RETRY} if the exception should be thrown to the caller.
+     */
+    long getRetryDelayMs(int nRetries, FaultException fault);
+
+    /**
+     * Called when a retry allowed by {@link #getRetryDelayMs} is about to
+     * be waited for, once WriteOperations has found that there is time left
+     * for it.  A policy that limits the total number of retries takes its
+     * share here, so that a retry which is given up for lack of time costs
+     * nothing.
+     *
+     * @param nRetries the number of retries already performed for the
+     * operation.
+     *
+     * @return whether the retry may be performed; if false, the exception is
+     * thrown to the caller.
+     */
+    boolean beginRetry(int nRetries);
+
+    /**
+     * Called when an attempt of an operation succeeds.
+     *
+     * @param nRetries the number of retries performed for the operation
+     * before it succeeded.
+     */
+    void onSuccess(int nRetries);
+}
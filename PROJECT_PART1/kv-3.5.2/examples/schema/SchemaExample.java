@@ -43,11 +43,16 @@
 
 package schema;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import oracle.kv.Depth;
 import oracle.kv.Direction;
@@ -66,6 +71,8 @@ import oracle.kv.Value;
 import oracle.kv.ValueVersion;
 import oracle.kv.Version;
 
+import schema.AsyncWriteOperations.WriteFuture;
+
 /**
  * A KVStore client application that illustrates basic schema design.  It also
  * shows:
@@ -123,15 +130,59 @@ import oracle.kv.Version;
  *  ddl add-schema -file login-summary.avsc
  * </pre>
  *
+ * <p>If the schemas were added by an earlier version of this example, add
+ * the new version of the LoginSummary schema, which has a lastUpdateTime
+ * field, with {@code ddl add-schema -file login-summary.avsc -evolve}.</p>
+ *
  * <p>After adding the schema, use the KVStore instance name, host and port for
  * running this program, as follows:</p>
  *
  * <pre>
  * java schema.SchemaExample -store &lt;instance name&gt; \
  *                           -host  &lt;host name&gt;     \
- *                           -port  &lt;port number&gt;
+ *                           -port  &lt;port number&gt;   \
+ *                           [-threads &lt;number of threads&gt;] \
+ *                           [-deltas] \
+ *                           [-buckets day|month] \
+ *                           [-retention &lt;ms&gt; \
+ *                            [-retentionRate &lt;deletes per second&gt;]] \
+ *                           [-largeImage &lt;bytes&gt;] \
+ *                           [-backoff]
  * </pre>
  *
+ * <p>With -threads, the read-modify-write updates of user and session data
+ * are performed concurrently by an {@link UpdateEngine} with the given
+ * number of worker threads, and the conflict rate and latency of each type
+ * of update are printed.  By default, users are updated one at a time.</p>
+ *
+ * <p>With -deltas, the end of a session appends a {@link LoginDelta} rather
+ * than updating the LoginSummary, and the deltas are folded into the
+ * LoginSummary by a {@link LoginSummaryCompactor} before the session history
+ * is queried.  With -threads as well, the sessions are ended concurrently by
+ * a {@link WriteBatcher}.</p>
+ *
+ * <p>With -buckets, the LoginSession Key/Value pairs are grouped by day or
+ * month of their login time, as described by {@link SessionLayout}, and are
+ * queried and deleted with a {@link SessionHistory}.</p>
+ *
+ * <p>With -retention, the session history older than the given number of
+ * milliseconds is deleted by a {@link RetentionSweeper}, which resumes an
+ * interrupted sweep and limits its rate of deletions to -retentionRate,
+ * rather than by deleting the history before a fixed date.</p>
+ *
+ * <p>With -largeImage, an image of the given size is stored for the first
+ * user with a {@link ChunkedLOB}, which writes its chunks concurrently.  The
+ * first upload is made to fail half way, and is then continued with
+ * ChunkedLOB.resume from the last chunk acknowledged, before the image is
+ * read back and checked.</p>
+ *
+ * <p>With -backoff, failed writes are retried by a {@link
+ * BackoffRetryPolicy}, with jittered exponential delays and a retry budget,
+ * rather than twice after a fixed delay, and DurabilityExceptions are not
+ * retried.  In both cases the number of retries, of writes given up and the
+ * time spent waiting before retries are printed before the store is
+ * closed.</p>
+ *
  * <p>For all examples the default instance name is kvstore, the
  * default host name is localhost and the default port number is 5000.
  * These defaults match the defaults for the run-kvlite.sh script, so the
@@ -164,9 +215,37 @@ import oracle.kv.Version;
 @SuppressWarnings("javadoc")
 public class SchemaExample {
 
+    /* The maximum number of concurrent updates waiting to complete. */
+    private static final int MAX_PENDING_UPDATES = 1024;
+
+    /* The batching window and size used to end sessions with deltas. */
+    private static final long BATCH_WINDOW_MS = 1;
+    private static final int MAX_BATCH_SIZE = 64;
+
+    /* The number of times a sweep that did not complete is resumed. */
+    private static final int MAX_SWEEP_ATTEMPTS = 3;
+
+    /* The ChunkedLOB chunk size, threads and chunks in flight per upload. */
+    private static final int LOB_CHUNK_SIZE = 64 * 1024;
+    private static final int LOB_THREADS = 4;
+    private static final int LOB_MAX_IN_FLIGHT = 8;
+
+    /* The retries and delays of the -backoff retry policy. */
+    private static final int BACKOFF_MAX_RETRIES = 5;
+    private static final long BACKOFF_BASE_DELAY_MS = 10;
+    private static final long BACKOFF_MAX_DELAY_MS = 1000;
+
     private final KVStore store;
     private final WriteOperations writeOps;
+    private final BackoffRetryPolicy backoffPolicy;
     private final Bindings bindings;
+    private final int nThreads;
+    private final LoginSummaryCompactor summaryCompactor;
+    private final SessionLayout sessionLayout;
+    private final SessionHistory sessionHistory;
+    private final long retentionMs;
+    private final double retentionRate;
+    private final long largeImageSize;
 
     /**
      * Runs the SchemaExample command line program.
@@ -188,6 +267,13 @@ public class SchemaExample {
         String storeName = "kvstore";
         String hostName = "localhost";
         String hostPort = "5000";
+        int threads = 0;
+        boolean deltas = false;
+        SessionLayout layout = SessionLayout.FLAT;
+        long retention = -1;
+        double deleteRate = 0;
+        long largeImage = 0;
+        boolean backoff = false;
 
         final int nArgs = argv.length;
         int argc = 0;
@@ -213,6 +299,56 @@ public class SchemaExample {
                 } else {
                     usage("-port requires an argument");
                 }
+            } else if (thisArg.equals("-threads")) {
+                if (argc < nArgs) {
+                    threads = Integer.parseInt(argv[argc++]);
+                } else {
+                    usage("-threads requires an argument");
+                }
+            } else if (thisArg.equals("-deltas")) {
+                deltas = true;
+            } else if (thisArg.equals("-buckets")) {
+                if (argc < nArgs) {
+                    final String bucket = argv[argc++];
+                    if (bucket.equals("day")) {
+                        layout = SessionLayout.DAY;
+                    } else if (bucket.equals("month")) {
+                        layout = SessionLayout.MONTH;
+                    } else {
+                        usage("-buckets must be day or month");
+                    }
+                } else {
+                    usage("-buckets requires an argument");
+                }
+            } else if (thisArg.equals("-retention")) {
+                if (argc < nArgs) {
+                    retention = Long.parseLong(argv[argc++]);
+                    if (retention < 0) {
+                        usage("-retention must not be negative");
+                    }
+                } else {
+                    usage("-retention requires an argument");
+                }
+            } else if (thisArg.equals("-retentionRate")) {
+                if (argc < nArgs) {
+                    deleteRate = Double.parseDouble(argv[argc++]);
+                    if (deleteRate < 0) {
+                        usage("-retentionRate must not be negative");
+                    }
+                } else {
+                    usage("-retentionRate requires an argument");
+                }
+            } else if (thisArg.equals("-largeImage")) {
+                if (argc < nArgs) {
+                    largeImage = Long.parseLong(argv[argc++]);
+                    if (largeImage < 2) {
+                        usage("-largeImage must be at least 2 bytes");
+                    }
+                } else {
+                    usage("-largeImage requires an argument");
+                }
+            } else if (thisArg.equals("-backoff")) {
+                backoff = true;
             } else {
                 usage("Unknown argument: " + thisArg);
             }
@@ -221,8 +357,31 @@ public class SchemaExample {
         final KVStoreConfig config =
             new KVStoreConfig(storeName, hostName + ":" + hostPort);
         store = KVStoreFactory.getStore(config);
-        writeOps = new WriteOperations(store, config);
+        backoffPolicy = backoff ?
+            new BackoffRetryPolicy(BACKOFF_MAX_RETRIES, BACKOFF_BASE_DELAY_MS,
+                                   BACKOFF_MAX_DELAY_MS) :
+            null;
+        writeOps = backoff ?
+            new WriteOperations(store, config, backoffPolicy) :
+            new WriteOperations(store, config);
         bindings = new Bindings(store.getAvroCatalog());
+        nThreads = threads;
+        sessionLayout = layout;
+        sessionHistory = new SessionHistory(store, writeOps, layout);
+        retentionMs = retention;
+        retentionRate = deleteRate;
+        largeImageSize = largeImage;
+
+        /*
+         * A delta put may be retried until the request timeout has passed,
+         * so deltas are only folded once twice that time has passed since
+         * they were written.
+         */
+        summaryCompactor = deltas ?
+            new LoginSummaryCompactor
+                (store, writeOps, bindings,
+                 2 * config.getRequestTimeout(TimeUnit.MILLISECONDS)) :
+            null;
     }
 
     private void usage(String message) {
@@ -230,7 +389,18 @@ public class SchemaExample {
         System.out.println("usage: " + getClass().getName());
         System.out.println("\t-store <instance name> (default: kvstore) " +
                            "-host <host name> (default: localhost) " +
-                           "-port <port number> (default: 5000)");
+                           "-port <port number> (default: 5000) " +
+                           "-threads <number of threads> " +
+                           "(default: update users one at a time) " +
+                           "-deltas (default: update the LoginSummary " +
+                           "when each session ends) " +
+                           "-buckets <day|month> (default: no buckets) " +
+                           "-retention <ms> (default: delete the history " +
+                           "before a fixed date) " +
+                           "-retentionRate <deletes per second> " +
+                           "(default: no limit) " +
+                           "-largeImage <bytes> (default: no large image) " +
+                           "-backoff (default: retry twice after 10 ms)");
         System.exit(1);
     }
 
@@ -245,17 +415,45 @@ public class SchemaExample {
         printBanner("Add and update user objects, then query all user data");
         deleteExistingData();
         addUsers();
-        updateUserInfo();
-        updateUserImage();
+        if (nThreads > 0) {
+            updateUsersConcurrently();
+        } else {
+            updateUserInfo();
+            updateUserImage();
+        }
         queryAllUsers();
 
+        /*
+         * Store a large image in chunks.
+         */
+        if (largeImageSize > 0) {
+            printBanner("Store a large user image in chunks, resume the " +
+                        "failed upload, then read it");
+            storeLargeImage();
+        }
+
         /*
          * Add initial session history.
          */
         printBanner("Add initial session history, then query all user data");
-        addSessionHistory();
+        if (summaryCompactor != null) {
+            addSessionHistoryWithDeltas();
+        } else if (nThreads > 0) {
+            addSessionHistoryConcurrently();
+        } else {
+            addSessionHistory();
+        }
         queryAllUsers();
 
+        /*
+         * Fold the login deltas into the LoginSummary objects.
+         */
+        if (summaryCompactor != null) {
+            printBanner("Compact login deltas, then query all user data");
+            compactLoginDeltas();
+            queryAllUsers();
+        }
+
         /*
          * Query session history by key range.
          */
@@ -280,18 +478,32 @@ public class SchemaExample {
         querySessionHistory(onCutoffDate);
 
         /*
-         * Delete session history by key range.
+         * Delete session history by key range, or by retention period.
          */
-        printBanner("Delete session history before date/time " +
-                    cutoffDateTime + ", then query all session history");
-
-        final KeyRange beforeCutoffDate = new KeyRange
-            (null /*start*/, false /*startInclusive*/,
-             cutoffDateTime /*end*/, false /*endInclusive*/);
-
-        deleteSessionHistory(beforeCutoffDate);
+        if (retentionMs >= 0) {
+            printBanner("Sweep session history before date/time " +
+                        KeyDefinition.formatTimestamp
+                        (System.currentTimeMillis() - retentionMs) +
+                        ", then query all session history");
+            sweepSessionHistory();
+        } else {
+            printBanner("Delete session history before date/time " +
+                        cutoffDateTime + ", then query all session history");
+
+            final KeyRange beforeCutoffDate = new KeyRange
+                (null /*start*/, false /*startInclusive*/,
+                 cutoffDateTime /*end*/, false /*endInclusive*/);
+
+            deleteSessionHistory(beforeCutoffDate);
+        }
         querySessionHistory(null);
 
+        /*
+         * Show how often writes were retried.
+         */
+        printBanner("Write retries");
+        printRetryStats();
+
         /*
          * Close the store handle and release resources.  After calling close,
          * the application should discard the KVStore instance to allow network
@@ -301,6 +513,21 @@ public class SchemaExample {
         store.close();
     }
 
+    /**
+     * Prints the retry counters of the WriteOperations, and the retry tokens
+     * left with -backoff.
+     */
+    private void printRetryStats() {
+        System.out.println("Retries: " + writeOps.getRetryCount() +
+                           ", writes given up: " + writeOps.getGiveUpCount() +
+                           ", time waiting before retries: " +
+                           writeOps.getBackoffMs() + " ms");
+        if (backoffPolicy != null) {
+            System.out.println("Retry tokens left: " +
+                               backoffPolicy.getBudget().getAvailableTokens());
+        }
+    }
+
     /**
      * Prints a banner.
      */
@@ -590,6 +817,342 @@ public class SchemaExample {
         }
     }
 
+    /**
+     * Stores an image of largeImageSize bytes for the first user with a
+     * ChunkedLOB, which splits it into chunks that are written concurrently.
+     *
+     * The source of the first upload fails half way through, as a network
+     * stream might.  The chunks acknowledged before the failure are recorded
+     * in the LOB's manifest, so ChunkedLOB.resume only writes the remaining
+     * chunks, skipping the bytes of the acknowledged ones in a new stream
+     * over the image.  KVLargeObject.putLOB, used by WriteOperations.putLOB,
+     * would instead write the whole LOB again.
+     *
+     * The image is then read back with ChunkedLOB.open, which reads several
+     * chunks ahead of the application, compared with the original and
+     * deleted along with its chunks.
+     */
+    private void storeLargeImage() {
+
+        final Key key =
+            KeyDefinition.makeLargeImageKey(InputData.USER_EMAIL[0]);
+        final ChunkedLOB lob = new ChunkedLOB
+            (store, writeOps, LOB_CHUNK_SIZE, LOB_THREADS, LOB_MAX_IN_FLIGHT);
+
+        new RunOperation() {
+            @Override
+            void doOperation() {
+                try {
+                    try {
+                        lob.put(key, new ImageStream(largeImageSize,
+                                                     largeImageSize / 2));
+                        throw new IllegalStateException
+                            ("Upload was expected to fail: " + key);
+                    } catch (IOException e) {
+                        System.out.println("Upload of " + key +
+                                           " failed: " + e.getMessage());
+                    }
+
+                    final long length = lob.resume
+                        (key, new ImageStream(largeImageSize, -1));
+                    System.out.println("Resumed upload of " + key +
+                                       ", stored " + length + " bytes");
+
+                    final InputStream in = lob.open(key, 0, length);
+                    final long mismatch;
+                    try {
+                        mismatch = ImageStream.findMismatch(in);
+                    } finally {
+                        in.close();
+                    }
+                    if (mismatch >= 0) {
+                        throw new IllegalStateException
+                            ("Image read from " + key +
+                             " differs at byte " + mismatch);
+                    }
+                    System.out.println("Read " + length + " bytes of " + key +
+                                       " matching the image");
+
+                    lob.delete(key);
+                } catch (IOException e) {
+                    throw new IllegalStateException
+                        ("Unexpected failure storing: " + key, e);
+                }
+            }
+        }.run();
+
+        try {
+            lob.close();
+        } catch (InterruptedException e) {
+            /* Don't swallow the interrupt status. */
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted", e);
+        }
+    }
+
+    /**
+     * A stream over a generated image, which can be made to fail at a given
+     * position to simulate an interrupted upload.
+     */
+    private static class ImageStream extends InputStream {
+        private final long length;
+        private final long failAt;
+        private long position;
+
+        /**
+         * Creates a stream over length bytes that throws an IOException when
+         * the byte at failAt is read, or never if failAt is negative.
+         */
+        ImageStream(final long length, final long failAt) {
+            this.length = length;
+            this.failAt = failAt;
+        }
+
+        /* Returns the image byte at a position. */
+        static int byteAt(final long position) {
+            return (int) (position % 251);
+        }
+
+        /**
+         * Returns the position of the first byte of a stream that differs
+         * from the image, or -1 if there is none.
+         */
+        static long findMismatch(final InputStream in)
+            throws IOException {
+
+            final byte[] buf = new byte[8192];
+            long position = 0;
+            int n;
+            while ((n = in.read(buf, 0, buf.length)) > 0) {
+                for (int i = 0; i < n; i++, position++) {
+                    if ((buf[i] & 0xff) != byteAt(position)) {
+                        return position;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public int read()
+            throws IOException {
+
+            final byte[] b = new byte[1];
+            return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len)
+            throws IOException {
+
+            if (position >= length) {
+                return -1;
+            }
+            if (position == failAt) {
+                throw new IOException("image source failed at byte " +
+                                      failAt);
+            }
+            long end = Math.min(length, position + len);
+            if (failAt > position) {
+                end = Math.min(end, failAt);
+            }
+            final int n = (int) (end - position);
+            for (int i = 0; i < n; i++) {
+                b[off + i] = (byte) byteAt(position++);
+            }
+            return n;
+        }
+    }
+
+    /**
+     * Performs the same updates as updateUserInfo and updateUserImage, for
+     * all users concurrently.
+     *
+     * Each update is an UpdateEngine.Update whose apply method computes the
+     * new Value from the current one, as the body of the retry loop in
+     * updateUserInfo does.  The UpdateEngine performs the get and putIfVersion
+     * calls, and applies the update again if the Version has changed.  Since
+     * the UserImage update is now also conditional on the Version, it can no
+     * longer overwrite a concurrent change that it did not see.
+     */
+    private void updateUsersConcurrently() {
+        final UpdateEngine engine = new UpdateEngine
+            (store, writeOps, nThreads, MAX_PENDING_UPDATES);
+        final List<WriteFuture<Version>> futures =
+            new ArrayList<WriteFuture<Version>>();
+
+        int nextImageSize = 9990;
+
+        for (final String email : InputData.USER_EMAIL) {
+
+            final Key infoKey = KeyDefinition.makeUserInfoKey(email);
+            futures.add(engine.submit(new UpdateEngine.Update
+                ("updateUserInfo", infoKey) {
+                @Override
+                Value apply(final Value currentValue) {
+                    if (currentValue == null) {
+                        throw new IllegalStateException
+                            ("Unexpected failure getting: " + infoKey);
+                    }
+                    final UserInfo userInfo = new UserInfo(email);
+                    userInfo.setStoreValue(bindings, currentValue);
+                    userInfo.setPhone(userInfo.getPhone().replace('.', '-'));
+                    return userInfo.getStoreValue(bindings);
+                }
+            }));
+
+            final Key imageKey = KeyDefinition.makeUserImageKey(email);
+            final int useImageSize = nextImageSize;
+            nextImageSize += 1;
+            futures.add(engine.submit(new UpdateEngine.Update
+                ("updateUserImage", imageKey) {
+                @Override
+                Value apply(final Value currentValue) {
+                    if (currentValue == null) {
+                        throw new IllegalStateException
+                            ("Unexpected failure updating: " + imageKey);
+                    }
+                    final UserImage userImage = new UserImage(email);
+                    userImage.setImage(new byte[useImageSize]);
+                    return userImage.getStoreValue(bindings);
+                }
+            }));
+        }
+
+        awaitUpdates(engine, futures);
+    }
+
+    /**
+     * Performs the same operations as addSessionHistory, for all users and
+     * sessions concurrently.
+     *
+     * All sessions are started first, since the LoginSession update done by
+     * endSession is a self-check that requires the session to exist.  The
+     * sessions are then ended concurrently.  Each end of session is an update
+     * of the user's LoginSummary that also updates the LoginSession, as in
+     * endSession.  The UpdateEngine coalesces the LoginSummary updates of a
+     * user: the sessions of the user that are waiting to be ended are added
+     * to the summary together, and written in a single execute call.
+     */
+    private void addSessionHistoryConcurrently() {
+        final OperationFactory factory = store.getOperationFactory();
+
+        final UpdateEngine engine = new UpdateEngine
+            (store, writeOps, nThreads, MAX_PENDING_UPDATES);
+        final List<WriteFuture<Version>> futures =
+            new ArrayList<WriteFuture<Version>>();
+
+        for (int i = 0; i < InputData.N_USERS; i += 1) {
+            final String email = InputData.USER_EMAIL[i];
+            for (final long loginTime : InputData.LOGIN_TIMES[i]) {
+                final LoginSession loginSession =
+                    new LoginSession(email, loginTime);
+                loginSession.setSessionDuration(0);
+                futures.add(engine.submit(new UpdateEngine.Update
+                    ("startSession",
+                     loginSession.getStoreKey(sessionLayout)) {
+                    @Override
+                    Value apply(final Value currentValue) {
+                        return loginSession.getStoreValue(bindings);
+                    }
+                }));
+            }
+        }
+        awaitFutures(futures);
+        futures.clear();
+
+        for (int i = 0; i < InputData.N_USERS; i += 1) {
+
+            final String email = InputData.USER_EMAIL[i];
+            final long[] loginTimes = InputData.LOGIN_TIMES[i];
+            final Key summaryKey = KeyDefinition.makeLoginSummaryKey(email);
+
+            for (int j = 0; j < loginTimes.length; j += 1) {
+
+                final int sessionDuration = InputData.SESSION_DURATIONS[i][j];
+                final LoginSession loginSession =
+                    new LoginSession(email, loginTimes[j]);
+                loginSession.setSessionDuration(sessionDuration);
+
+                final Operation sessionOp = factory.createPutIfPresent
+                    (loginSession.getStoreKey(sessionLayout),
+                     loginSession.getStoreValue(bindings),
+                     null /*prevReturn*/, true /*abortIfUnsuccessful*/);
+
+                futures.add(engine.submit(new UpdateEngine.Update
+                    ("endSession", summaryKey,
+                     Collections.singletonList(sessionOp)) {
+                    @Override
+                    Value apply(final Value currentValue) {
+                        if (currentValue == null) {
+                            throw new IllegalStateException
+                                ("Unexpected failure getting: " + summaryKey);
+                        }
+                        final LoginSummary loginSummary =
+                            new LoginSummary(email);
+                        loginSummary.setStoreValue(bindings, currentValue);
+                        loginSummary.setTotalLoginCount
+                            (loginSummary.getTotalLoginCount() + 1);
+                        loginSummary.setTotalLoginDuration
+                            (loginSummary.getTotalLoginDuration() +
+                             sessionDuration);
+                        return loginSummary.getStoreValue(bindings);
+                    }
+                }));
+            }
+        }
+
+        awaitUpdates(engine, futures);
+    }
+
+    /**
+     * Waits for the given updates, closes the UpdateEngine and prints its
+     * statistics.
+     */
+    private void awaitUpdates(final UpdateEngine engine,
+                              final List<WriteFuture<Version>> futures) {
+        awaitFutures(futures);
+        try {
+            engine.close();
+        } catch (InterruptedException e) {
+            /* Don't swallow the interrupt status. */
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted", e);
+        }
+        for (Map.Entry<String, UpdateEngine.UpdateStats> entry :
+             engine.getStats().entrySet()) {
+            System.out.println(entry.getKey() + ": " + entry.getValue());
+        }
+    }
+
+    /**
+     * Waits for each update, handling its exception, if any, in the same
+     * way as the single-threaded methods do with RunOperation.
+     */
+    private void awaitFutures(final List<? extends WriteFuture<?>> futures) {
+        for (final WriteFuture<?> future : futures) {
+            new RunOperation() {
+                @Override
+                void doOperation() {
+                    try {
+                        future.get();
+                    } catch (InterruptedException e) {
+                        /* Don't swallow the interrupt status. */
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException("Interrupted", e);
+                    } catch (ExecutionException e) {
+                        final Throwable cause = e.getCause();
+                        if (cause instanceof RuntimeException) {
+                            throw (RuntimeException) cause;
+                        }
+                        throw new IllegalStateException
+                            ("Unexpected failure", cause);
+                    }
+                }
+            }.run();
+        }
+    }
+
     /**
      * Queries and prints all user Key/Value pairs in the store.
      *
@@ -693,7 +1256,7 @@ public class SchemaExample {
             void doOperation() {
 
                 /* Do an unconditional insertion. */
-                final Key key = loginSession.getStoreKey();
+                final Key key = loginSession.getStoreKey(sessionLayout);
                 final Value value = loginSession.getStoreValue(bindings);
                 final Version version = writeOps.put(key, value);
 
@@ -750,8 +1313,8 @@ public class SchemaExample {
 
         final OperationFactory factory = store.getOperationFactory();
         final Key summaryKey = KeyDefinition.makeLoginSummaryKey(email);
-        final Key sessionKey =
-            KeyDefinition.makeLoginSessionKey(email, loginTime);
+        final Key sessionKey = KeyDefinition.makeLoginSessionKey
+            (email, loginTime, sessionLayout);
 
         new RunOperation() {
             @Override
@@ -779,7 +1342,7 @@ public class SchemaExample {
                     loginSession.setSessionDuration(sessionDuration);
 
                     final Operation sessionOp = factory.createPutIfPresent
-                        (loginSession.getStoreKey(),
+                        (loginSession.getStoreKey(sessionLayout),
                          loginSession.getStoreValue(bindings),
                          null /*prevReturn*/, true /*abortIfUnsuccessful*/);
 
@@ -852,6 +1415,161 @@ public class SchemaExample {
         }.run();
     }
 
+    /**
+     * Performs the same operations as addSessionHistory, but ends each session
+     * with endSessionWithDelta, or with the same operations submitted to a
+     * WriteBatcher when -threads is specified.
+     *
+     * Since ending a session does not read the LoginSummary, the sessions
+     * ending for a user do not conflict with each other, and the WriteBatcher
+     * can write the ends of many sessions of the same user in a single
+     * execute call.
+     */
+    private void addSessionHistoryWithDeltas() {
+
+        final WriteBatcher batcher = (nThreads > 0) ?
+            new WriteBatcher(writeOps, null /*durability*/, BATCH_WINDOW_MS,
+                             MAX_BATCH_SIZE, nThreads, MAX_PENDING_UPDATES) :
+            null;
+        final List<WriteFuture<List<OperationResult>>> futures =
+            new ArrayList<WriteFuture<List<OperationResult>>>();
+        final List<LoginDelta> loginDeltas = new ArrayList<LoginDelta>();
+
+        for (int i = 0; i < InputData.N_USERS; i += 1) {
+
+            final String email = InputData.USER_EMAIL[i];
+            final long[] loginTimes = InputData.LOGIN_TIMES[i];
+
+            for (int j = 0; j < loginTimes.length; j += 1) {
+
+                final long loginTime = loginTimes[j];
+                final int sessionDuration = InputData.SESSION_DURATIONS[i][j];
+
+                startSession(email, loginTime);
+                if (batcher == null) {
+                    endSessionWithDelta(email, loginTime, sessionDuration);
+                    continue;
+                }
+                final LoginDelta loginDelta =
+                    new LoginDelta(email, loginTime);
+                loginDelta.setLoginDuration(sessionDuration);
+                futures.add(batcher.execute
+                    (makeEndSessionOps(loginDelta, sessionDuration)));
+                loginDeltas.add(loginDelta);
+            }
+        }
+
+        if (batcher != null) {
+            awaitFutures(futures);
+            try {
+                batcher.close();
+            } catch (InterruptedException e) {
+                /* Don't swallow the interrupt status. */
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted", e);
+            }
+            for (LoginDelta loginDelta : loginDeltas) {
+                summaryCompactor.addPending(loginDelta);
+            }
+            System.out.println("Ended " + futures.size() + " sessions in " +
+                               batcher.getExecuteCount() + " executions");
+        }
+    }
+
+    /**
+     * When a session ends in delta mode we update the LoginSession object to
+     * set the session duration, as endSession does, and we put a LoginDelta
+     * object holding the session duration rather than updating the
+     * LoginSummary.
+     *
+     * Both operations are blind writes, so no read is needed and there is no
+     * version conflict to retry, however many sessions of the user end at
+     * the same time.  They are done in a single atomic operation using
+     * KVStore.execute, so that the LoginSummary and its deltas always
+     * accurately reflect the sum of the LoginSession information.  The
+     * LoginDelta Key is identified by the login time, so if the execute call
+     * is retried after a network failure, the session is still only counted
+     * once.
+     */
+    private void endSessionWithDelta(final String email,
+                                     final long loginTime,
+                                     final int sessionDuration) {
+
+        final LoginDelta loginDelta = new LoginDelta(email, loginTime);
+        loginDelta.setLoginDuration(sessionDuration);
+        final Key sessionKey = KeyDefinition.makeLoginSessionKey
+            (email, loginTime, sessionLayout);
+
+        new RunOperation() {
+            @Override
+            void doOperation() {
+                try {
+                    writeOps.execute
+                        (makeEndSessionOps(loginDelta, sessionDuration));
+                } catch (OperationExecutionException e) {
+
+                    /* Self-check for LoginSession update failed. */
+                    if (e.getFailedOperationIndex() == 0) {
+                        throw new IllegalStateException
+                            ("Unexpected failure updating: " +
+                             sessionKey, e);
+                    }
+                    throw new IllegalStateException("Unexpected failure", e);
+                }
+                summaryCompactor.addPending(loginDelta);
+            }
+        }.run();
+    }
+
+    /**
+     * Returns the operations that end a session in delta mode: the
+     * LoginSession update at index 0 and the LoginDelta put at index 1.
+     */
+    private List<Operation> makeEndSessionOps(final LoginDelta loginDelta,
+                                              final int sessionDuration) {
+
+        final OperationFactory factory = store.getOperationFactory();
+        final LoginSession loginSession =
+            new LoginSession(loginDelta.getEmail(), loginDelta.getLoginTime());
+        loginSession.setSessionDuration(sessionDuration);
+
+        final List<Operation> ops = new ArrayList<Operation>();
+        ops.add(factory.createPutIfPresent
+                (loginSession.getStoreKey(sessionLayout),
+                 loginSession.getStoreValue(bindings),
+                 null /*prevReturn*/, true /*abortIfUnsuccessful*/));
+        ops.add(summaryCompactor.createDeltaOp(loginDelta));
+        return ops;
+    }
+
+    /**
+     * Prints the LoginSummary of each user with its deltas added, as read by
+     * LoginSummaryCompactor.readSummary, then waits until the deltas can no
+     * longer be retried and folds the deltas of all users into their
+     * LoginSummary objects.  The printed totals are the same as those of the
+     * LoginSummary objects after compaction.
+     */
+    private void compactLoginDeltas() {
+
+        new RunOperation() {
+            @Override
+            void doOperation() {
+                for (final String email : InputData.USER_EMAIL) {
+                    System.out.println(summaryCompactor.readSummary(email));
+                }
+                try {
+                    summaryCompactor.awaitPending();
+                } catch (InterruptedException e) {
+                    /* Don't swallow the interrupt status. */
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted", e);
+                }
+                final int nFolded = summaryCompactor.compactAll();
+                System.out.println("Folded " + nFolded + " login deltas");
+            }
+        }.run();
+    }
+
     /**
      * Queries and prints the LoginSummary and LoginSession objects for each
      * user in the store.  The LoginSession objects are restricted to the given
@@ -870,6 +1588,10 @@ public class SchemaExample {
      * larger than desired for a single operation round trip.  With
      * multiGetIterator, the data is returned in smaller blocks to avoid
      * monopolizing the available bandwidth.
+     *
+     * With -buckets, the sessions are not children of the LoginSummary, and
+     * SessionHistory.query translates the KeyRange to the range of buckets it
+     * overlaps, returning the same objects from a single atomic multiGet.
      */
     private void querySessionHistory(final KeyRange keyRange) {
 
@@ -883,8 +1605,11 @@ public class SchemaExample {
                 @Override
                 void doOperation() {
 
-                    final Map<Key, ValueVersion> results = store.multiGet
-                        (parentKey, keyRange, Depth.PARENT_AND_CHILDREN);
+                    final Map<Key, ValueVersion> results =
+                        sessionLayout.isBucketed() ?
+                        sessionHistory.query(email, keyRange) :
+                        store.multiGet(parentKey, keyRange,
+                                       Depth.PARENT_AND_CHILDREN);
 
                     for (Map.Entry<Key, ValueVersion> entry :
                          results.entrySet()) {
@@ -903,7 +1628,12 @@ public class SchemaExample {
      * the store.  Depth.CHILDREN_ONLY is used with the KVStore.multiDelete so
      * that the the LoginSummary object is not deleted.  This approach could be
      * used to remove LoginSession details prior to a given date/time, when not
-     * all session history needs to be retained forever.
+     * all session history needs to be retained forever.  To keep the
+     * history bounded without such one-shot deletions, see RetentionSweeper.
+     *
+     * With -buckets, SessionHistory.delete performs one multiDelete for each
+     * bucket that the KeyRange overlaps, so that the size of each operation
+     * is bounded by the sessions of a day or month.
      */
     private void deleteSessionHistory(final KeyRange keyRange) {
 
@@ -915,11 +1645,54 @@ public class SchemaExample {
             new RunOperation() {
                 @Override
                 void doOperation() {
-                    writeOps.multiDelete(parentKey, keyRange,
-                                         Depth.CHILDREN_ONLY);
+                    if (sessionLayout.isBucketed()) {
+                        sessionHistory.delete(email, keyRange);
+                    } else {
+                        writeOps.multiDelete(parentKey, keyRange,
+                                             Depth.CHILDREN_ONLY);
+                    }
                     System.out.println
                         ("Deleted all LoginSession objects for " + email); }
             }.run();
         }
     }
+
+    /**
+     * Deletes the session history of all users that is older than the
+     * retention period with a RetentionSweeper.  Unlike
+     * deleteSessionHistory, the sweep finds the users by scanning the store,
+     * deletes the sessions in batches at a limited rate, and records its
+     * progress in the store, so a sweep that fails part way is resumed
+     * rather than started again.  An application would normally run the
+     * sweeper periodically with RetentionSweeper.start.
+     */
+    private void sweepSessionHistory() {
+
+        final RetentionSweeper sweeper = new RetentionSweeper
+            (store, writeOps, sessionHistory, retentionMs,
+             Math.max(1, nThreads), retentionRate);
+
+        new RunOperation() {
+            @Override
+            void doOperation() {
+                int attempts = 0;
+                boolean complete = false;
+                try {
+                    while (!complete && attempts < MAX_SWEEP_ATTEMPTS) {
+                        complete = sweeper.sweep();
+                        attempts += 1;
+                    }
+                } catch (InterruptedException e) {
+                    /* Don't swallow the interrupt status. */
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted", e);
+                }
+                System.out.println
+                    ((complete ? "Completed" : "Did not complete") +
+                     " the sweep in " + attempts + " attempt(s), with " +
+                     sweeper.getSegmentFailures() + " segment failures: " +
+                     sweeper.readProgress());
+            }
+        }.run();
+    }
 }
@@ -0,0 +1,422 @@
+/*-
+ *
+ *  This file is part of Oracle NoSQL Database
+ *  Copyright (C) 2011, 2015 Oracle and/or its affiliates.  All rights reserved.
+ *
+ *  Oracle NoSQL Database is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation, version 3.
+ *
+ *  Oracle NoSQL Database is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public
+ *  License in the LICENSE file along with Oracle NoSQL Database.  If not,
+ *  see <http://www.gnu.org/licenses/>.
+ *
+ *  An active Oracle commercial licensing agreement for this product
+ *  supercedes this license.
+ *
+ *  For more information please contact:
+ *
+ *  Vice President Legal, Development
+ *  Oracle America, Inc.
+ *  5OP-10
+ *  500 Oracle Parkway
+ *  Redwood Shores, CA 94065
+ *
+ *  or
+ *
+ *  berkeleydb-info_us@oracle.com
+ *
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  EOF
+ *
+ */
+
+package schema;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+
+import oracle.kv.Depth;
+import oracle.kv.Direction;
+import oracle.kv.KVStore;
+import oracle.kv.Key;
+import oracle.kv.KeyRange;
+import oracle.kv.KeyValueVersion;
+import oracle.kv.Operation;
+import oracle.kv.OperationExecutionException;
+import oracle.kv.OperationFactory;
+import oracle.kv.Value;
+import oracle.kv.ValueVersion;
+import oracle.kv.Version;
+
+/**
+ * Queries, deletes and migrates the LoginSession history of users stored in
+ * a given {@link SessionLayout}.
+ * <p>
+ * The methods take a KeyRange of timestamps, as SchemaExample's
+ * querySessionHistory and deleteSessionHistory do, and translate it to the
+ * range of buckets it overlaps, so that only those buckets are read.  In a
+ * bucketed layout:
+ * <ul>
+ * <li>{@link #query} reads the LoginSummary and the sessions in the range in
+ * a single atomic multiGet, like the FLAT layout does.</li>
+ * <li>{@link #iterator} returns the sessions in chronological order, fetched
+ * in batches with multiGetIterator, for histories too large to read at
+ * once.</li>
+ * <li>{@link #delete} deletes the sessions in the range with one multiDelete
+ * per bucket, so that each write operation is bounded by the number of
+ * sessions in a day or month rather than by the length of the history.</li>
+ * </ul>
+ * <p>
+ * Existing history is moved to the layout of a SessionHistory with {@link
+ * #migrate} or {@link #migrateAll}.  Each session is moved by an execute call
+ * that puts it at its new Key and deletes it from the old Key if its Version
+ * has not changed, so that a concurrent update of a session is never lost:
+ * the move is simply retried.  Queries only see the sessions in their own
+ * layout, so the history of a user should be migrated before the
+ * application switches to the new layout for that user.
+ */
+class SessionHistory {
+
+    /* The number of sessions moved by a single execute call. */
+    private static final int MIGRATION_BATCH_SIZE = 100;
+
+    private final KVStore store;
+    private final WriteOperations writeOps;
+    private final OperationFactory factory;
+    private final SessionLayout layout;
+
+    /**
+     * Creates a SessionHistory for the sessions stored in the given layout.
+     */
+    SessionHistory(final KVStore store,
+                   final WriteOperations writeOps,
+                   final SessionLayout layout) {
+        this.store = store;
+        this.writeOps = writeOps;
+        this.factory = store.getOperationFactory();
+        this.layout = layout;
+    }
+
+    /**
+     * Returns the layout of the sessions.
+     */
+    SessionLayout getLayout() {
+        return layout;
+    }
+
+    /**
+     * Returns the LoginSummary of a user, if any, and the LoginSessions whose
+     * timestamps are in the given range, or all of them if it is null, read
+     * in a single atomic operation.
+     */
+    SortedMap<Key, ValueVersion> query(final String email,
+                                       final KeyRange timestampRange) {
+        final Key summaryKey = KeyDefinition.makeLoginSummaryKey(email);
+        if (!layout.isBucketed()) {
+            return store.multiGet(summaryKey, timestampRange,
+                                  Depth.PARENT_AND_CHILDREN);
+        }
+
+        final SortedMap<Key, ValueVersion> results = store.multiGet
+            (summaryKey, layout.getSummaryChildRange(timestampRange),
+             Depth.PARENT_AND_DESCENDANTS);
+
+        /* Drop the sessions outside the range in the first and last bucket. */
+        final Iterator<Key> iter = results.keySet().iterator();
+        while (iter.hasNext()) {
+            final Key key = iter.next();
+            if (!key.equals(summaryKey) && !isSession(key, timestampRange)) {
+                iter.remove();
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Returns an iterator over the LoginSessions of a user whose timestamps
+     * are in the given range, or all of them if it is null, in chronological
+     * order.  The sessions are fetched in batches of batchSize, or a default
+     * size if it is zero, and are not read in a single atomic operation.
+     */
+    Iterator<KeyValueVersion> iterator(final String email,
+                                       final KeyRange timestampRange,
+                                       final int batchSize) {
+        return iterator(layout, email, timestampRange, batchSize);
+    }
+
+    /**
+     * Deletes the LoginSessions of a user whose timestamps are in the given
+     * range, or all of them if it is null.  In a bucketed layout, the
+     * sessions are deleted one bucket at a time, and the buckets without
+     * sessions in the range are not visited.
+     */
+    void delete(final String email, final KeyRange timestampRange) {
+        final Key summaryKey = KeyDefinition.makeLoginSummaryKey(email);
+        if (!layout.isBucketed()) {
+            writeOps.multiDelete(summaryKey, timestampRange,
+                                 Depth.CHILDREN_ONLY);
+            return;
+        }
+
+        final KeyCodec.UserKeys keys = KeyCodec.forUser(email);
+        final KeyRange bucketRange =
+            layout.getSummaryChildRange(timestampRange);
+        String lastBucket = null;
+
+        while (true) {
+            final String bucket =
+                findNextBucket(summaryKey, bucketRange, lastBucket);
+            if (bucket == null) {
+                return;
+            }
+
+            /* The timestamp range applies to the children of the bucket. */
+            writeOps.multiDelete(keys.makeBucketKey(bucket), timestampRange,
+                                 Depth.CHILDREN_ONLY);
+            lastBucket = bucket;
+        }
+    }
+
+    /**
+     * Moves the LoginSessions of a user from the given layout to the layout
+     * of this SessionHistory, and returns the number of sessions moved.
+     */
+    int migrate(final String email, final SessionLayout fromLayout) {
+        if (fromLayout == layout) {
+            return 0;
+        }
+
+        final Iterator<KeyValueVersion> iter = iterator
+            (fromLayout, email, null /*timestampRange*/,
+             MIGRATION_BATCH_SIZE);
+        final List<KeyValueVersion> batch = new ArrayList<KeyValueVersion>();
+        int nMoved = 0;
+        while (iter.hasNext()) {
+            batch.add(iter.next());
+            if (batch.size() == MIGRATION_BATCH_SIZE) {
+                nMoved += moveSessions(email, batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            nMoved += moveSessions(email, batch);
+        }
+        return nMoved;
+    }
+
+    /**
+     * Moves the LoginSessions of all users in the store from the given
+     * layout to the layout of this SessionHistory, and returns the number
+     * of sessions moved.  The users are found by iterating over the Keys of
+     * all user Key/Value pairs.
+     */
+    int migrateAll(final SessionLayout fromLayout) {
+        final Set<String> emails = new LinkedHashSet<String>();
+        final Iterator<Key> iter = store.storeKeysIterator
+            (Direction.UNORDERED, 0 /*batchSize*/,
+             KeyDefinition.makeUserTypeKey(), null /*subRange*/,
+             null /*depth*/);
+        while (iter.hasNext()) {
+            final Key key = iter.next();
+            if (KeyCodec.classify(key) == KeyCodec.KeyType.LOGIN_SESSION &&
+                fromLayout.contains(key)) {
+                emails.add(KeyCodec.getEmail(key));
+            }
+        }
+
+        int nMoved = 0;
+        for (String email : emails) {
+            nMoved += migrate(email, fromLayout);
+        }
+        return nMoved;
+    }
+
+    /**
+     * Returns the first bucket after lastBucket, or the first bucket if it is
+     * null, that contains a session in the given range of buckets, or null if
+     * there is none.  Only the Key of the first session is fetched.
+     */
+    private String findNextBucket(final Key summaryKey,
+                                  final KeyRange bucketRange,
+                                  final String lastBucket) {
+        KeyRange searchRange = bucketRange;
+        if (lastBucket != null) {
+            final String end = bucketRange.getEnd();
+            if (bucketRange.isPrefix()) {
+
+                /*
+                 * A prefix as long as a bucket selects that bucket alone.  A
+                 * shorter prefix selects whole buckets, which are empty once
+                 * visited, so the range can be searched again.
+                 */
+                if (lastBucket.equals(end)) {
+                    return null;
+                }
+            } else if (end != null && lastBucket.compareTo(end) >= 0) {
+                return null;
+            } else {
+                searchRange = new KeyRange
+                    (lastBucket, false /*startInclusive*/,
+                     end, bucketRange.getEndInclusive());
+            }
+        }
+
+        final Iterator<Key> iter = store.multiGetKeysIterator
+            (Direction.FORWARD, 1 /*batchSize*/, summaryKey, searchRange,
+             Depth.DESCENDANTS_ONLY);
+        while (iter.hasNext()) {
+            final Key key = iter.next();
+            if (KeyCodec.classify(key) == KeyCodec.KeyType.LOGIN_SESSION &&
+                layout.contains(key)) {
+                final String bucket = key.getMinorPath().get(1);
+                if (lastBucket == null || bucket.compareTo(lastBucket) > 0) {
+                    return bucket;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Moves a batch of sessions in a single execute call.  If a session was
+     * changed or deleted since it was read, the sessions are moved one at a
+     * time instead, using their current Values.
+     */
+    private int moveSessions(final String email,
+                             final List<KeyValueVersion> batch) {
+        final List<Operation> ops = new ArrayList<Operation>();
+        for (KeyValueVersion kvv : batch) {
+            addMoveOps(email, kvv.getKey(), kvv.getValue(), kvv.getVersion(),
+                       ops);
+        }
+        try {
+            writeOps.execute(ops);
+            return batch.size();
+        } catch (OperationExecutionException e) {
+            int nMoved = 0;
+            for (KeyValueVersion kvv : batch) {
+                nMoved += moveSession(email, kvv.getKey());
+            }
+            return nMoved;
+        }
+    }
+
+    /**
+     * Moves a single session, retrying if it is changed concurrently, and
+     * returns 1, or 0 if it no longer exists.
+     */
+    private int moveSession(final String email, final Key oldKey) {
+        while (true) {
+            final ValueVersion current = store.get(oldKey);
+            if (current == null) {
+                return 0;
+            }
+            final List<Operation> ops = new ArrayList<Operation>();
+            addMoveOps(email, oldKey, current.getValue(), current.getVersion(),
+                       ops);
+            try {
+                writeOps.execute(ops);
+                return 1;
+            } catch (OperationExecutionException e) {
+                /* The session changed again.  Read it and retry. */
+                continue;
+            }
+        }
+    }
+
+    /**
+     * Adds the operations that move a session to the layout of this
+     * SessionHistory.  The put is unconditional, so that a retried move
+     * succeeds, and the delete aborts the execution if the session changed.
+     */
+    private void addMoveOps(final String email,
+                            final Key oldKey,
+                            final Value value,
+                            final Version version,
+                            final List<Operation> ops) {
+        final Key newKey = layout.makeSessionKey
+            (email, KeyCodec.getSessionTimestamp(oldKey));
+        ops.add(factory.createPut(newKey, value));
+        ops.add(factory.createDeleteIfVersion
+                (oldKey, version, null /*prevReturn*/,
+                 true /*abortIfUnsuccessful*/));
+    }
+
+    /**
+     * Returns whether a Key is a session in this layout whose timestamp is in
+     * the given range.
+     */
+    private boolean isSession(final Key key, final KeyRange timestampRange) {
+        return KeyCodec.classify(key) == KeyCodec.KeyType.LOGIN_SESSION &&
+            layout.contains(key) &&
+            SessionLayout.inRange(timestampRange,
+                                  KeyCodec.getSessionTimestamp(key));
+    }
+
+    /**
+     * Returns an iterator over the sessions of a user in the given layout
+     * whose timestamps are in the given range.
+     */
+    private Iterator<KeyValueVersion> iterator(final SessionLayout inLayout,
+                                               final String email,
+                                               final KeyRange timestampRange,
+                                               final int batchSize) {
+        final Iterator<KeyValueVersion> iter = store.multiGetIterator
+            (Direction.FORWARD, batchSize,
+             KeyDefinition.makeLoginSummaryKey(email),
+             inLayout.getSummaryChildRange(timestampRange),
+             inLayout.getSessionDepth());
+
+        return new Iterator<KeyValueVersion>() {
+            private KeyValueVersion next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && iter.hasNext()) {
+                    final KeyValueVersion kvv = iter.next();
+                    final Key key = kvv.getKey();
+                    if (KeyCodec.classify(key) ==
+                        KeyCodec.KeyType.LOGIN_SESSION &&
+                        inLayout.contains(key) &&
+                        SessionLayout.inRange
+                            (timestampRange,
+                             KeyCodec.getSessionTimestamp(key))) {
+                        next = kvv;
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public KeyValueVersion next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final KeyValueVersion result = next;
+                next = null;
+                return result;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
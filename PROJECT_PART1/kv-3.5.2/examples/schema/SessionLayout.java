@@ -0,0 +1,200 @@
+/*-
+ *
+ *  This file is part of Oracle NoSQL Database
+ *  Copyright (C) 2011, 2015 Oracle and/or its affiliates.  All rights reserved.
+ *
+ *  Oracle NoSQL Database is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation, version 3.
+ *
+ *  Oracle NoSQL Database is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public
+ *  License in the LICENSE file along with Oracle NoSQL Database.  If not,
+ *  see <http://www.gnu.org/licenses/>.
+ *
+ *  An active Oracle commercial licensing agreement for this product
+ *  supercedes this license.
+ *
+ *  For more information please contact:
+ *
+ *  Vice President Legal, Development
+ *  Oracle America, Inc.
+ *  5OP-10
+ *  500 Oracle Parkway
+ *  Redwood Shores, CA 94065
+ *
+ *  or
+ *
+ *  berkeleydb-info_us@oracle.com
+ *
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  EOF
+ *
+ */
+
+package schema;
+
+import java.util.List;
+
+import oracle.kv.Depth;
+import oracle.kv.Key;
+import oracle.kv.KeyRange;
+
+/**
+ * The Key layouts of LoginSession Key/Value pairs.
+ * <p>
+ * In the FLAT layout, every session of a user is a child of the LoginSummary
+ * Key, so a query or delete of a range of sessions is a single operation
+ * whose size grows with the number of sessions in the range.  The DAY and
+ * MONTH layouts add a bucket component, the day or month of the login time,
+ * between the LoginSummary Key and the timestamp.  Since the bucket is a
+ * prefix of the timestamp, sessions still sort chronologically, and a range
+ * of timestamps maps to a range of buckets.  {@link SessionHistory} uses this
+ * to visit only the buckets that a KeyRange overlaps, and to delete history
+ * one bucket at a time.
+ * <p>
+ * The "~delta" component of the LoginDelta Keys sorts after all timestamps
+ * and buckets, and is excluded from the ranges returned here.
+ */
+enum SessionLayout {
+
+    /** /user/EMAIL/-/login/TIMESTAMP */
+    FLAT(0),
+
+    /** /user/EMAIL/-/login/yyyy-MM-dd/TIMESTAMP */
+    DAY(10),
+
+    /** /user/EMAIL/-/login/yyyy-MM/TIMESTAMP */
+    MONTH(7);
+
+    /* All the children of the LoginSummary Key other than "~delta". */
+    private static final KeyRange ALL_SESSIONS =
+        new KeyRange(null /*start*/, false /*startInclusive*/,
+                     KeyDefinition.LOGIN_DELTA_COMPONENT /*end*/,
+                     false /*endInclusive*/);
+
+    /* The length of the timestamp prefix used as bucket, or 0. */
+    private final int bucketLength;
+
+    private SessionLayout(int bucketLength) {
+        this.bucketLength = bucketLength;
+    }
+
+    /**
+     * Returns whether sessions are grouped in buckets.
+     */
+    boolean isBucketed() {
+        return bucketLength > 0;
+    }
+
+    /**
+     * Returns the bucket of a timestamp in a bucketed layout.
+     */
+    String getBucket(String timestamp) {
+        return timestamp.substring(0, bucketLength);
+    }
+
+    /**
+     * Returns the Key of a session in this layout.
+     */
+    Key makeSessionKey(String email, String timestamp) {
+        final KeyCodec.UserKeys keys = KeyCodec.forUser(email);
+        return isBucketed() ?
+            keys.makeBucketedSessionKey(getBucket(timestamp), timestamp) :
+            keys.makeLoginSessionKey(timestamp);
+    }
+
+    /**
+     * Returns whether a Key classified as a LOGIN_SESSION is in this layout.
+     */
+    boolean contains(Key sessionKey) {
+        final List<String> minorPath = sessionKey.getMinorPath();
+        if (!isBucketed()) {
+            return minorPath.size() == 2;
+        }
+        return minorPath.size() == 3 &&
+            minorPath.get(1).length() == bucketLength;
+    }
+
+    /**
+     * Returns the Depth, relative to the LoginSummary Key, of the sessions.
+     */
+    Depth getSessionDepth() {
+        return isBucketed() ? Depth.DESCENDANTS_ONLY : Depth.CHILDREN_ONLY;
+    }
+
+    /**
+     * Returns the range of LoginSummary children that contains the sessions
+     * whose timestamps are in the given range, or all sessions if it is null.
+     * In the FLAT layout this is the given range itself.  In a bucketed
+     * layout it is the range of buckets containing those timestamps, whose
+     * sessions must still be checked with {@link #inRange}.
+     */
+    KeyRange getSummaryChildRange(KeyRange timestampRange) {
+        if (!isBucketed()) {
+            return timestampRange;
+        }
+        if (timestampRange == null) {
+            return ALL_SESSIONS;
+        }
+        if (timestampRange.isPrefix()) {
+            return new KeyRange(truncate(timestampRange.getStart()));
+        }
+        final String start = timestampRange.getStart();
+        final String end = timestampRange.getEnd();
+        if (end == null) {
+            return new KeyRange((start == null) ? null : truncate(start),
+                                true /*startInclusive*/,
+                                KeyDefinition.LOGIN_DELTA_COMPONENT,
+                                false /*endInclusive*/);
+        }
+        return new KeyRange((start == null) ? null : truncate(start),
+                            true /*startInclusive*/,
+                            truncate(end), true /*endInclusive*/);
+    }
+
+    /**
+     * Returns whether a timestamp is in the given range, or the range is
+     * null.
+     */
+    static boolean inRange(KeyRange timestampRange, String timestamp) {
+        if (timestampRange == null) {
+            return true;
+        }
+        if (timestampRange.isPrefix()) {
+            return timestamp.startsWith(timestampRange.getStart());
+        }
+        final String start = timestampRange.getStart();
+        if (start != null) {
+            final int cmp = timestamp.compareTo(start);
+            if (cmp < 0 || (cmp == 0 && !timestampRange.getStartInclusive())) {
+                return false;
+            }
+        }
+        final String end = timestampRange.getEnd();
+        if (end != null) {
+            final int cmp = timestamp.compareTo(end);
+            if (cmp > 0 || (cmp == 0 && !timestampRange.getEndInclusive())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the bucket of a range bound, or the bound itself if it is
+     * shorter than a bucket.
+     */
+    private String truncate(String bound) {
+        return (bound.length() > bucketLength) ? getBucket(bound) : bound;
+    }
+}
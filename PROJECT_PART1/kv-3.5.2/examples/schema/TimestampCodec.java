@@ -0,0 +1,268 @@
+/*-
+ *
+ *  This file is part of Oracle NoSQL Database
+ *  Copyright (C) 2011, 2015 Oracle and/or its affiliates.  All rights reserved.
+ *
+ *  Oracle NoSQL Database is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation, version 3.
+ *
+ *  Oracle NoSQL Database is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public
+ *  License in the LICENSE file along with Oracle NoSQL Database.  If not,
+ *  see <http://www.gnu.org/licenses/>.
+ *
+ *  An active Oracle commercial licensing agreement for this product
+ *  supercedes this license.
+ *
+ *  For more information please contact:
+ *
+ *  Vice President Legal, Development
+ *  Oracle America, Inc.
+ *  5OP-10
+ *  500 Oracle Parkway
+ *  Redwood Shores, CA 94065
+ *
+ *  or
+ *
+ *  berkeleydb-info_us@oracle.com
+ *
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  EOF
+ *
+ */
+
+package schema;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Formats and parses the "yyyy-MM-dd HH:mm:ss.SSS" GMT timestamps used in
+ * LoginSession keys, without locking and without the Date and Calendar
+ * objects allocated by SimpleDateFormat.
+ * <p>
+ * Timestamps are converted with integer arithmetic on the proleptic
+ * Gregorian calendar, which produces exactly the same strings as
+ * SimpleDateFormat for all years from 1583 (the first full year after the
+ * Gregorian calendar was introduced) to 9999.  Keys written with the old
+ * SimpleDateFormat based code therefore still sort and parse in the same
+ * way.  Times outside that range, and strings that are not in the canonical
+ * format, are handed to a per-thread SimpleDateFormat, so that its lenient
+ * parsing and its Julian calendar dates are preserved as well.
+ * <p>
+ * All methods are static and thread-safe.
+ */
+class TimestampCodec {
+
+    private static final String PATTERN = "yyyy-MM-dd HH:mm:ss.SSS";
+    private static final int LENGTH = PATTERN.length();
+
+    private static final long MILLIS_PER_SECOND = 1000;
+    private static final long MILLIS_PER_MINUTE = 60 * MILLIS_PER_SECOND;
+    private static final long MILLIS_PER_HOUR = 60 * MILLIS_PER_MINUTE;
+    private static final long MILLIS_PER_DAY = 24 * MILLIS_PER_HOUR;
+
+    /* The range of times handled without SimpleDateFormat. */
+    private static final long MIN_FAST_MILLIS =
+        daysFromCivil(1583, 1, 1) * MILLIS_PER_DAY;
+    private static final long MAX_FAST_MILLIS =
+        daysFromCivil(10000, 1, 1) * MILLIS_PER_DAY;
+
+    /* Format objects are unsynchronized, so each thread has its own. */
+    private static final ThreadLocal<SimpleDateFormat> fallbackFormat =
+        new ThreadLocal<SimpleDateFormat>() {
+            @Override
+            protected SimpleDateFormat initialValue() {
+                final SimpleDateFormat format = new SimpleDateFormat(PATTERN);
+                format.setTimeZone(TimeZone.getTimeZone("GMT"));
+                return format;
+            }
+        };
+
+    private TimestampCodec() {
+    }
+
+    /**
+     * Returns the timestamp String for the given time in millis.
+     */
+    static String format(long millis) {
+        if (millis < MIN_FAST_MILLIS || millis >= MAX_FAST_MILLIS) {
+            return fallbackFormat.get().format(new Date(millis));
+        }
+
+        final long days = floorDiv(millis, MILLIS_PER_DAY);
+        final int millisOfDay = (int) (millis - days * MILLIS_PER_DAY);
+
+        /*
+         * Converts days since 1970-01-01 to a year, month and day, counting
+         * years from March so that the leap day is the last day of the year.
+         * See Howard Hinnant, "chrono-Compatible Low-Level Date Algorithms".
+         */
+        final long z = days + 719468;
+        final long era = floorDiv(z, 146097);
+        final int dayOfEra = (int) (z - era * 146097);
+        final int yearOfEra = (dayOfEra - dayOfEra / 1460 +
+                               dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        final int dayOfYear =
+            dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        final int monthFromMarch = (5 * dayOfYear + 2) / 153;
+        final int day = dayOfYear - (153 * monthFromMarch + 2) / 5 + 1;
+        final int month =
+            (monthFromMarch < 10) ? monthFromMarch + 3 : monthFromMarch - 9;
+        final int year =
+            (int) (yearOfEra + era * 400) + ((month <= 2) ? 1 : 0);
+
+        final char[] buf = new char[LENGTH];
+        put4(buf, 0, year);
+        buf[4] = '-';
+        put2(buf, 5, month);
+        buf[7] = '-';
+        put2(buf, 8, day);
+        buf[10] = ' ';
+        put2(buf, 11, millisOfDay / (int) MILLIS_PER_HOUR);
+        buf[13] = ':';
+        put2(buf, 14, (millisOfDay / (int) MILLIS_PER_MINUTE) % 60);
+        buf[16] = ':';
+        put2(buf, 17, (millisOfDay / (int) MILLIS_PER_SECOND) % 60);
+        buf[19] = '.';
+        put3(buf, 20, millisOfDay % (int) MILLIS_PER_SECOND);
+        return new String(buf);
+    }
+
+    /**
+     * Parses a timestamp String and returns the time in millis.
+     *
+     * @throws IllegalArgumentException if the timestamp cannot be parsed
+     */
+    static long parse(String timestamp) {
+        if (timestamp.length() == LENGTH &&
+            timestamp.charAt(4) == '-' &&
+            timestamp.charAt(7) == '-' &&
+            timestamp.charAt(10) == ' ' &&
+            timestamp.charAt(13) == ':' &&
+            timestamp.charAt(16) == ':' &&
+            timestamp.charAt(19) == '.') {
+
+            final int year = digits(timestamp, 0, 4);
+            final int month = digits(timestamp, 5, 2);
+            final int day = digits(timestamp, 8, 2);
+            final int hour = digits(timestamp, 11, 2);
+            final int minute = digits(timestamp, 14, 2);
+            final int second = digits(timestamp, 17, 2);
+            final int millis = digits(timestamp, 20, 3);
+
+            if (year >= 1583 &&
+                month >= 1 && month <= 12 &&
+                day >= 1 && day <= daysInMonth(year, month) &&
+                hour >= 0 && hour <= 23 &&
+                minute >= 0 && minute <= 59 &&
+                second >= 0 && second <= 59 &&
+                millis >= 0) {
+
+                return daysFromCivil(year, month, day) * MILLIS_PER_DAY +
+                    hour * MILLIS_PER_HOUR +
+                    minute * MILLIS_PER_MINUTE +
+                    second * MILLIS_PER_SECOND +
+                    millis;
+            }
+        }
+
+        /* Not canonical: let SimpleDateFormat decide, as it did before. */
+        try {
+            return fallbackFormat.get().parse(timestamp).getTime();
+        } catch (ParseException e) {
+            throw new IllegalArgumentException(timestamp, e);
+        }
+    }
+
+    /**
+     * Returns the "HH:mm:ss.SSS" time of day, in GMT, of the given time in
+     * millis.  Used to format durations for reporting purposes.
+     */
+    static String formatTimeOfDay(long millis) {
+        final int millisOfDay = (int)
+            (millis - floorDiv(millis, MILLIS_PER_DAY) * MILLIS_PER_DAY);
+        final char[] buf = new char[12];
+        put2(buf, 0, millisOfDay / (int) MILLIS_PER_HOUR);
+        buf[2] = ':';
+        put2(buf, 3, (millisOfDay / (int) MILLIS_PER_MINUTE) % 60);
+        buf[5] = ':';
+        put2(buf, 6, (millisOfDay / (int) MILLIS_PER_SECOND) % 60);
+        buf[8] = '.';
+        put3(buf, 9, millisOfDay % (int) MILLIS_PER_SECOND);
+        return new String(buf);
+    }
+
+    /**
+     * Returns the number of days from 1970-01-01 to the given date of the
+     * proleptic Gregorian calendar.
+     */
+    private static long daysFromCivil(int year, int month, int day) {
+        final int y = (month <= 2) ? year - 1 : year;
+        final int era = ((y >= 0) ? y : y - 399) / 400;
+        final int yearOfEra = y - era * 400;
+        final int dayOfYear =
+            (153 * ((month > 2) ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        final int dayOfEra =
+            yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        if (month == 2) {
+            final boolean leap =
+                (year % 4 == 0) && (year % 100 != 0 || year % 400 == 0);
+            return leap ? 29 : 28;
+        }
+        return (month == 4 || month == 6 || month == 9 || month == 11) ?
+            30 : 31;
+    }
+
+    private static long floorDiv(long x, long y) {
+        final long q = x / y;
+        return (x % y != 0 && ((x < 0) != (y < 0))) ? q - 1 : q;
+    }
+
+    /**
+     * Returns the value of n decimal digits starting at index, or -1 if any
+     * of them is not an ASCII digit.
+     */
+    private static int digits(String s, int index, int n) {
+        int value = 0;
+        for (int i = index; i < index + n; i++) {
+            final int digit = s.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static void put2(char[] buf, int index, int value) {
+        buf[index] = (char) ('0' + value / 10);
+        buf[index + 1] = (char) ('0' + value % 10);
+    }
+
+    private static void put3(char[] buf, int index, int value) {
+        buf[index] = (char) ('0' + value / 100);
+        put2(buf, index + 1, value % 100);
+    }
+
+    private static void put4(char[] buf, int index, int value) {
+        put2(buf, index, value / 100);
+        put2(buf, index + 2, value % 100);
+    }
+}
@@ -0,0 +1,657 @@
+/*-
+ *
+ *  This file is part of Oracle NoSQL Database
+ *  Copyright (C) 2011, 2015 Oracle and/or its affiliates.  All rights reserved.
+ *
+ *  Oracle NoSQL Database is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation, version 3.
+ *
+ *  Oracle NoSQL Database is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public
+ *  License in the LICENSE file along with Oracle NoSQL Database.  If not,
+ *  see <http://www.gnu.org/licenses/>.
+ *
+ *  An active Oracle commercial licensing agreement for this product
+ *  supercedes this license.
+ *
+ *  For more information please contact:
+ *
+ *  Vice President Legal, Development
+ *  Oracle America, Inc.
+ *  5OP-10
+ *  500 Oracle Parkway
+ *  Redwood Shores, CA 94065
+ *
+ *  or
+ *
+ *  berkeleydb-info_us@oracle.com
+ *
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  EOF
+ *
+ */
+
+package schema;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import oracle.kv.KVStore;
+import oracle.kv.Key;
+import oracle.kv.Operation;
+import oracle.kv.OperationExecutionException;
+import oracle.kv.OperationFactory;
+import oracle.kv.OperationResult;
+import oracle.kv.ReturnValueVersion;
+import oracle.kv.Value;
+import oracle.kv.ValueVersion;
+import oracle.kv.Version;
+
+import schema.AsyncWriteOperations.ListenerExecutor;
+import schema.AsyncWriteOperations.WriteFuture;
+
+/**
+ * Performs the read-modify-write updates of {@link SchemaExample}, such as
+ * those of updateUserInfo and endSession, for many users concurrently.
+ * <p>
+ * Each {@link Update} reads the Value of a Key, computes a new Value from it,
+ * and writes the new Value only if the Key's Version has not changed, as the
+ * single-threaded methods of SchemaExample do.  An Update may also carry
+ * other operations on the same major path, such as the LoginSession update
+ * of endSession, which are executed atomically with the conditional write.
+ * <p>
+ * Updates are performed by a pool of worker threads.  Updates of different
+ * Keys proceed in parallel, while the updates of a single Key are
+ * <em>coalesced</em>: the worker for a Key takes all the updates that are
+ * waiting for it, applies them one after the other to the Value it read, and
+ * writes the result with a single putIfVersion.  Many sessions ending for
+ * the same user therefore cause one LoginSummary write, rather than as many
+ * writes that conflict with each other and are retried in turn.  When the
+ * write does conflict with another client, the current Value returned by
+ * the failed putIfVersion is used to apply the updates again, without
+ * another read.
+ * <p>
+ * If an Update throws an exception, or one of its other operations aborts
+ * the execution, only that Update fails; the others are applied again
+ * without it.  The number of updates, failures and version conflicts, and
+ * the latency from submission to completion, are recorded for each type of
+ * Update and are returned by {@link #getStats}.
+ */
+class UpdateEngine {
+
+    /* The maximum number of updates of a Key written together. */
+    private static final int MAX_COALESCED = 64;
+
+    private final KVStore store;
+    private final WriteOperations writeOps;
+    private final OperationFactory factory;
+
+    /**
+     * Limits the number of submitted but not yet completed updates.
+     */
+    private final int maxPending;
+    private final Semaphore pendingPermits;
+
+    /**
+     * The updates waiting for each Key.  A Key is present while a worker is
+     * updating it.
+     */
+    private final Map<Key, ArrayDeque<UpdateTask>> lanes =
+        new HashMap<Key, ArrayDeque<UpdateTask>>();
+
+    private final ConcurrentHashMap<String, UpdateStats> stats =
+        new ConcurrentHashMap<String, UpdateStats>();
+
+    private final ThreadPoolExecutor executor;
+    private final ListenerExecutor listenerExecutor =
+        new ListenerExecutor("UpdateEngine-listener");
+
+    /**
+     * Creates an UpdateEngine.
+     *
+     * @param nThreads the number of worker threads, which is the maximum
+     * number of Keys updated concurrently
+     * @param maxPending the maximum number of updates that may be submitted
+     * and not yet completed
+     */
+    UpdateEngine(final KVStore store,
+                 final WriteOperations writeOps,
+                 final int nThreads,
+                 final int maxPending) {
+        if (nThreads < 1 || maxPending < 1) {
+            throw new IllegalArgumentException
+                ("nThreads and maxPending must be positive");
+        }
+        this.store = store;
+        this.writeOps = writeOps;
+        factory = store.getOperationFactory();
+        this.maxPending = maxPending;
+        pendingPermits = new Semaphore(maxPending);
+
+        final AtomicInteger threadNumber = new AtomicInteger();
+        executor = new ThreadPoolExecutor
+            (nThreads, nThreads, 0L, TimeUnit.MILLISECONDS,
+             new LinkedBlockingQueue<Runnable>(),
+             new ThreadFactory() {
+                 @Override
+                 public Thread newThread(Runnable r) {
+                     final Thread t = new Thread
+                         (r, "UpdateEngine-" + threadNumber.incrementAndGet());
+                     t.setDaemon(true);
+                     return t;
+                 }
+             });
+    }
+
+    /**
+     * Submits an update.  The returned future returns the new Version of the
+     * updated Key, or throws an ExecutionException wrapping the exception
+     * thrown by {@link Update#apply}, the OperationExecutionException of one
+     * of the Update's other operations, or the FaultException that prevented
+     * the update.
+     */
+    public WriteFuture<Version> submit(final Update update) {
+        final UpdateTask task = new UpdateTask(update);
+        final WriteFuture<Version> future =
+            new WriteFuture<Version>(task, listenerExecutor);
+        task.future = future;
+        try {
+            pendingPermits.acquire();
+        } catch (InterruptedException e) {
+            /* Don't swallow the interrupt status. */
+            Thread.currentThread().interrupt();
+            future.setException(e);
+            return future;
+        }
+
+        synchronized (lanes) {
+            final ArrayDeque<UpdateTask> waiting = lanes.get(update.key);
+            if (waiting != null) {
+                waiting.add(task);
+                return future;
+            }
+            final ArrayDeque<UpdateTask> lane = new ArrayDeque<UpdateTask>();
+            lane.add(task);
+            lanes.put(update.key, lane);
+        }
+        executor.execute(new KeyRunner(update.key));
+        return future;
+    }
+
+    /**
+     * Waits until all updates submitted so far have completed.
+     */
+    public void flush()
+        throws InterruptedException {
+
+        pendingPermits.acquire(maxPending);
+        pendingPermits.release(maxPending);
+    }
+
+    /**
+     * Waits for all submitted updates to complete and stops the worker
+     * threads, and then the listener thread once it has run the listeners of
+     * their futures.
+     */
+    public void close()
+        throws InterruptedException {
+
+        flush();
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        listenerExecutor.close();
+    }
+
+    /**
+     * Sets the handler passed each RuntimeException thrown by a completion
+     * listener of a future returned by submit.
+     */
+    void setListenerExceptionHandler
+        (final Thread.UncaughtExceptionHandler handler) {
+        listenerExecutor.setExceptionHandler(handler);
+    }
+
+    /**
+     * Returns the number of completion listeners that have thrown a
+     * RuntimeException.
+     */
+    long getListenerFailureCount() {
+        return listenerExecutor.getFailureCount();
+    }
+
+    /**
+     * Returns the statistics of each type of Update, by type.
+     */
+    Map<String, UpdateStats> getStats() {
+        return new TreeMap<String, UpdateStats>(stats);
+    }
+
+    private UpdateStats getStats(final String type) {
+        UpdateStats typeStats = stats.get(type);
+        if (typeStats == null) {
+            typeStats = new UpdateStats();
+            final UpdateStats existing = stats.putIfAbsent(type, typeStats);
+            if (existing != null) {
+                typeStats = existing;
+            }
+        }
+        return typeStats;
+    }
+
+    /**
+     * Reads a Key once and applies a set of its updates, writing them
+     * together, until all of them have succeeded or failed.
+     */
+    private void update(final Key key, final List<UpdateTask> tasks) {
+        ValueVersion current;
+        try {
+            current = store.get(key);
+        } catch (RuntimeException e) {
+            for (UpdateTask task : tasks) {
+                task.complete(null, e);
+            }
+            return;
+        }
+
+        List<UpdateTask> pending = tasks;
+        while (true) {
+
+            /* Apply the updates in submission order. */
+            Value value = (current == null) ? null : current.getValue();
+            final List<UpdateTask> applied =
+                new ArrayList<UpdateTask>(pending.size());
+            for (UpdateTask task : pending) {
+                try {
+                    final Value newValue = task.update.apply(value);
+                    if (newValue == null) {
+                        throw new IllegalStateException
+                            ("Update returned no Value for: " + key);
+                    }
+                    value = newValue;
+                    applied.add(task);
+                } catch (RuntimeException e) {
+                    task.complete(null, e);
+                }
+            }
+            pending = applied;
+            if (pending.isEmpty()) {
+                return;
+            }
+
+            /*
+             * Write the new Value only if the Key is unchanged, together with
+             * the other operations of each update.
+             */
+            final List<Operation> ops = new ArrayList<Operation>();
+            ops.add((current == null) ?
+                    factory.createPutIfAbsent
+                        (key, value, ReturnValueVersion.Choice.ALL, true) :
+                    factory.createPutIfVersion
+                        (key, value, current.getVersion(),
+                         ReturnValueVersion.Choice.ALL, true));
+            for (UpdateTask task : pending) {
+                ops.addAll(task.update.operations);
+            }
+
+            final List<OperationResult> results;
+            try {
+                results = writeOps.execute(ops);
+            } catch (OperationExecutionException e) {
+                final int failedIndex = e.getFailedOperationIndex();
+                if (failedIndex == 0) {
+
+                    /*
+                     * The Key was changed by another client.  Apply the
+                     * updates again to the Value it has now.
+                     */
+                    for (UpdateTask task : pending) {
+                        getStats(task.update.type).conflicts.incrementAndGet();
+                    }
+                    final OperationResult failed =
+                        e.getFailedOperationResult();
+                    current = (failed.getPreviousValue() == null) ?
+                        null :
+                        new ValueVersion(failed.getPreviousValue(),
+                                         failed.getPreviousVersion());
+                    continue;
+                }
+
+                /*
+                 * Fail the update whose own operation aborted the execution,
+                 * and apply the others again.
+                 */
+                final List<UpdateTask> remaining =
+                    new ArrayList<UpdateTask>(pending.size());
+                int offset = 1;
+                for (UpdateTask task : pending) {
+                    final int size = task.update.operations.size();
+                    if (failedIndex >= offset && failedIndex < offset + size) {
+                        task.complete
+                            (null,
+                             new OperationExecutionException
+                                 (e.getFailedOperation(), failedIndex - offset,
+                                  e.getFailedOperationResult()));
+                    } else {
+                        remaining.add(task);
+                    }
+                    offset += size;
+                }
+                if (remaining.size() == pending.size()) {
+
+                    /* Not expected: the index is outside the operations. */
+                    for (UpdateTask task : pending) {
+                        task.complete(null, e);
+                    }
+                    return;
+                }
+                pending = remaining;
+                continue;
+            } catch (RuntimeException e) {
+                for (UpdateTask task : pending) {
+                    task.complete(null, e);
+                }
+                return;
+            }
+
+            final Version newVersion = results.get(0).getNewVersion();
+            for (UpdateTask task : pending) {
+                task.complete(newVersion, null);
+            }
+            return;
+        }
+    }
+
+    /**
+     * A read-modify-write update of a single Key.
+     */
+    abstract static class Update {
+        private final String type;
+        private final Key key;
+        private final List<Operation> operations;
+
+        /**
+         * Creates an update of a Key.  The type names the kind of update in
+         * the statistics.
+         */
+        Update(final String type, final Key key) {
+            this(type, key, Collections.<Operation>emptyList());
+        }
+
+        /**
+         * Creates an update of a Key which also performs the given
+         * operations, atomically with the write of the Key.
+         *
+         * @throws IllegalArgumentException if an operation does not have the
+         * major path of the Key, or is an operation on the Key itself, or
+         * more than one operation has the same Key
+         */
+        Update(final String type,
+               final Key key,
+               final List<Operation> operations) {
+            final Set<Key> keys = new HashSet<Key>();
+            for (Operation op : operations) {
+                if (!key.getMajorPath().equals(op.getKey().getMajorPath())) {
+                    throw new IllegalArgumentException
+                        ("Operation has a different major path: " +
+                         op.getKey());
+                }
+                if (key.equals(op.getKey())) {
+                    throw new IllegalArgumentException
+                        ("Operation on the updated Key: " + key);
+                }
+                if (!keys.add(op.getKey())) {
+                    throw new IllegalArgumentException
+                        ("More than one operation has the same Key: " +
+                         op.getKey());
+                }
+            }
+            this.type = type;
+            this.key = key;
+            this.operations = new ArrayList<Operation>(operations);
+        }
+
+        /**
+         * Returns the new Value of the Key, given its current Value, or null
+         * if it does not exist.  This method may be called more than once,
+         * when the update is retried, and should have no side effects.  An
+         * exception thrown by this method fails the update.
+         */
+        abstract Value apply(Value currentValue);
+    }
+
+    /**
+     * Counts the updates of one type and records their latency in
+     * microseconds, in log-linear buckets: each power of two is split into
+     * SUB_BUCKETS linear buckets.
+     */
+    static class UpdateStats {
+        private static final int SUB_BUCKETS = 8;
+        private static final int N_BUCKETS = 40 * SUB_BUCKETS;
+
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong conflicts = new AtomicLong();
+        private final AtomicLong totalMicros = new AtomicLong();
+        private final AtomicLong maxMicros = new AtomicLong();
+        private final AtomicLongArray buckets = new AtomicLongArray(N_BUCKETS);
+
+        private void record(final long nanos, final boolean failed) {
+            final long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+            count.incrementAndGet();
+            if (failed) {
+                failures.incrementAndGet();
+            }
+            totalMicros.addAndGet(micros);
+            buckets.incrementAndGet(bucketIndex(micros));
+            long max = maxMicros.get();
+            while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+                max = maxMicros.get();
+            }
+        }
+
+        /**
+         * Returns the number of updates completed, including failed ones.
+         */
+        long getCount() {
+            return count.get();
+        }
+
+        long getFailureCount() {
+            return failures.get();
+        }
+
+        /**
+         * Returns the number of times an update had to be applied again
+         * because the Key was changed by another client.
+         */
+        long getConflictCount() {
+            return conflicts.get();
+        }
+
+        /**
+         * Returns the number of conflicts per completed update.
+         */
+        double getConflictRate() {
+            final long n = count.get();
+            return (n == 0) ? 0 : (double) conflicts.get() / n;
+        }
+
+        long getMeanMicros() {
+            final long n = count.get();
+            return (n == 0) ? 0 : totalMicros.get() / n;
+        }
+
+        long getMaxMicros() {
+            return maxMicros.get();
+        }
+
+        /**
+         * Returns an upper bound of the given percentile of the latency.
+         */
+        long getPercentileMicros(final double percentile) {
+            final long n = count.get();
+            final long rank = (long) Math.ceil(n * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < N_BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank && seen > 0) {
+                    return Math.min(bucketUpperBound(i), maxMicros.get());
+                }
+            }
+            return maxMicros.get();
+        }
+
+        private static int bucketIndex(final long micros) {
+            if (micros < SUB_BUCKETS) {
+                return (int) Math.max(0, micros);
+            }
+            final int magnitude = 63 - Long.numberOfLeadingZeros(micros);
+            final int shift = magnitude - 3;
+            final int sub = (int) (micros >>> shift) - SUB_BUCKETS;
+            return Math.min(N_BUCKETS - 1,
+                            SUB_BUCKETS * (shift + 1) + sub);
+        }
+
+        private static long bucketUpperBound(final int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            final int shift = index / SUB_BUCKETS - 1;
+            final int sub = index % SUB_BUCKETS;
+            return ((long) (SUB_BUCKETS + sub + 1) << shift) - 1;
+        }
+
+        @Override
+        public String toString() {
+            return String.format
+                ("%d updates, %d failed, %.1f%% conflicts, " +
+                 "latency us: mean %d p50 %d p99 %d max %d",
+                 getCount(), getFailureCount(), getConflictRate() * 100,
+                 getMeanMicros(), getPercentileMicros(50),
+                 getPercentileMicros(99), getMaxMicros());
+        }
+    }
+
+    /**
+     * Takes the updates waiting for a Key, in submission order, and
+     * performs them until none is left.
+     */
+    private class KeyRunner implements Runnable {
+        private final Key key;
+
+        KeyRunner(final Key key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                final List<UpdateTask> tasks = new ArrayList<UpdateTask>();
+                synchronized (lanes) {
+                    final ArrayDeque<UpdateTask> waiting = lanes.get(key);
+                    takeCoalescable(waiting, tasks);
+                    if (tasks.isEmpty()) {
+                        lanes.remove(key);
+                        return;
+                    }
+                }
+                update(key, tasks);
+            }
+        }
+
+        /**
+         * Moves waiting updates to tasks, stopping before one whose other
+         * operations would repeat a Key already taken, since a single
+         * execute may not have two operations on the same Key.
+         */
+        private void takeCoalescable(final ArrayDeque<UpdateTask> waiting,
+                                     final List<UpdateTask> tasks) {
+            final Set<Key> keys = new HashSet<Key>();
+            while (tasks.size() < MAX_COALESCED) {
+                final UpdateTask next = waiting.peek();
+                if (next == null) {
+                    return;
+                }
+                for (Operation op : next.update.operations) {
+                    if (keys.contains(op.getKey())) {
+                        return;
+                    }
+                }
+                for (Operation op : next.update.operations) {
+                    keys.add(op.getKey());
+                }
+                tasks.add(waiting.poll());
+            }
+        }
+    }
+
+    /**
+     * A submitted update.  Its future is run by the worker once the outcome
+     * is known, and returns the new Version or throws the exception set
+     * here.
+     */
+    private class UpdateTask implements Callable<Version> {
+        private final Update update;
+        private final long startNanos = System.nanoTime();
+        private WriteFuture<Version> future;
+        private Version version;
+        private Exception exception;
+
+        UpdateTask(final Update update) {
+            this.update = update;
+        }
+
+        void complete(final Version newVersion,
+                      final Exception updateException) {
+            version = newVersion;
+            exception = updateException;
+            getStats(update.type).record(System.nanoTime() - startNanos,
+                                         updateException != null);
+
+            /*
+             * Release the permit before completing the future, so that a
+             * caller woken by the completion can submit its next update
+             * without waiting on a permit this thread still holds.
+             */
+            pendingPermits.release();
+            future.run();
+        }
+
+        @Override
+        public Version call()
+            throws Exception {
+
+            if (exception != null) {
+                throw exception;
+            }
+            return version;
+        }
+    }
+}
@@ -48,7 +48,6 @@ import java.nio.ByteBuffer;
 import oracle.kv.Key;
 import oracle.kv.Value;
 
-import org.apache.avro.generic.GenericData;
 import org.apache.avro.generic.GenericRecord;
 
 /**
@@ -114,10 +113,15 @@ class UserImage {
      * the possibility of adding additional fields in the future.
      */
     Value getStoreValue(Bindings bindings) {
-        final GenericRecord rec =
-            new GenericData.Record(bindings.getUserImageSchema());
+        final RecordCodec codec = bindings.getUserImageCodec();
+        final GenericRecord rec = codec.getRecord();
         rec.put("image", ByteBuffer.wrap(image));
-        return bindings.getUserImageBinding().toValue(rec);
+        try {
+            return codec.encode(rec);
+        } finally {
+            /* Do not keep a large image reachable from the thread. */
+            rec.put("image", null);
+        }
     }
 
     /**
@@ -128,8 +132,13 @@ class UserImage {
      * the possibility of adding additional fields in the future.
      */
     void setStoreValue(Bindings bindings, Value value) {
+
+        /*
+         * The image array is kept, so it is decoded into a new record rather
+         * than into a reused ByteBuffer, which may be larger than the image.
+         */
         final GenericRecord rec =
-            bindings.getUserImageBinding().toObject(value);
+            bindings.getUserImageCodec().decode(value, null);
         final ByteBuffer buf = (ByteBuffer) rec.get("image");
         image = buf.array();
         assert buf.position() == 0;
@@ -46,7 +46,6 @@ package schema;
 import oracle.kv.Key;
 import oracle.kv.Value;
 
-import org.apache.avro.generic.GenericData;
 import org.apache.avro.generic.GenericEnumSymbol;
 import org.apache.avro.generic.GenericRecord;
 
@@ -186,28 +185,22 @@ class UserInfo {
      * Serializes user info attributes into the byte array of a Value.
      */
     Value getStoreValue(Bindings bindings) {
-        final GenericRecord rec =
-            new GenericData.Record(bindings.getUserInfoSchema());
+        final RecordCodec codec = bindings.getUserInfoCodec();
+        final GenericRecord rec = codec.getRecord();
         rec.put("name", name);
-        final GenericEnumSymbol genderSymbol =
-            new GenericData.EnumSymbol(bindings.getGenderSchema(),
-                                       gender.toString());
-        rec.put("gender", genderSymbol);
+        rec.put("gender", bindings.getGenderSymbol(gender));
         rec.put("address", address);
         rec.put("phone", phone);
-        return bindings.getUserInfoBinding().toValue(rec);
+        return codec.encode(rec);
     }
 
     /**
      * Deserializes user info attributes from the byte array of a Value.
      */
     void setStoreValue(Bindings bindings, Value value) {
-        final GenericRecord rec =
-            bindings.getUserInfoBinding().toObject(value);
+        final GenericRecord rec = bindings.getUserInfoCodec().decode(value);
         name = rec.get("name").toString();
-        final GenericEnumSymbol genderSymbol =
-            (GenericEnumSymbol) rec.get("gender");
-        gender = Enum.valueOf(Gender.class, genderSymbol.toString());
+        gender = Bindings.getGender((GenericEnumSymbol) rec.get("gender"));
         address = rec.get("address").toString();
         phone = rec.get("phone").toString();
     }
@@ -0,0 +1,557 @@
+/*-
+ *
+ *  This file is part of Oracle NoSQL Database
+ *  Copyright (C) 2011, 2015 Oracle and/or its affiliates.  All rights reserved.
+ *
+ *  Oracle NoSQL Database is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation, version 3.
+ *
+ *  Oracle NoSQL Database is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public
+ *  License in the LICENSE file along with Oracle NoSQL Database.  If not,
+ *  see <http://www.gnu.org/licenses/>.
+ *
+ *  An active Oracle commercial licensing agreement for this product
+ *  supercedes this license.
+ *
+ *  For more information please contact:
+ *
+ *  Vice President Legal, Development
+ *  Oracle America, Inc.
+ *  5OP-10
+ *  500 Oracle Parkway
+ *  Redwood Shores, CA 94065
+ *
+ *  or
+ *
+ *  berkeleydb-info_us@oracle.com
+ *
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  EOF
+ *
+ */
+
+package schema;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import oracle.kv.Durability;
+import oracle.kv.Key;
+import oracle.kv.Operation;
+import oracle.kv.OperationExecutionException;
+import oracle.kv.OperationResult;
+
+import schema.AsyncWriteOperations.ListenerExecutor;
+import schema.AsyncWriteOperations.WriteFuture;
+
+/**
+ * Combines the operation lists submitted by many threads into fewer calls to
+ * {@link WriteOperations#execute WriteOperations.execute}, one per major path
+ * and time window, in the manner of a group commit.
+ * <p>
+ * Writes to the same user are often made within a few milliseconds of each
+ * other, for example a LoginSession and the updated LoginSummary.  Each list
+ * passed to {@link #execute execute} is a <em>group</em> of operations that
+ * must be applied atomically.  Groups for the same major path that arrive
+ * within windowMs of each other are collected into a <em>batch</em> and sent
+ * to the store in a single execute request, and while a batch is in flight
+ * the next one for the same major path keeps collecting groups.  This saves
+ * a round trip per group at the cost of up to windowMs of added latency.
+ * <p>
+ * The results of a batch are split up again and each group's future returns
+ * the OperationResults of its own operations, in the order in which it
+ * listed them.  Since a batch is executed atomically, an operation that
+ * aborts the execution also prevents the other groups in the batch from
+ * being applied.  The batcher therefore fails only the group that contains
+ * the failed operation, with an OperationExecutionException whose index is
+ * relative to that group, and executes the batch again without it.  Other
+ * exceptions, such as a FaultException after the WriteOperations retries
+ * have been exhausted, are reported to every group in the batch, since none
+ * of them can be known to have been applied.
+ * <p>
+ * The KVStore does not allow two operations on the same Key in one execute
+ * request, so a group that writes a Key already written by the collecting
+ * batch starts a new batch.  Batches for a major path are executed one at a
+ * time, in the order in which they were started, so that groups are applied
+ * in submission order.  The same idempotency considerations as for
+ * WriteOperations.execute apply when a batch is retried after a
+ * FaultException.
+ */
+class WriteBatcher {
+
+    /**
+     * Used to execute the batches.
+     */
+    private final WriteOperations writeOps;
+
+    /**
+     * The durability of all batches, or null to use the store default.
+     */
+    private final Durability durability;
+
+    /**
+     * The time in milliseconds during which groups are collected into a
+     * batch, and the number of operations after which a batch is executed
+     * without waiting for the end of its window.
+     */
+    private final long windowMs;
+    private final int maxBatchSize;
+
+    /**
+     * Limits the number of submitted but not yet completed groups.
+     */
+    private final int maxPending;
+    private final Semaphore pendingPermits;
+
+    /**
+     * The batches of each major path.  A major path is present while it has
+     * a collecting, waiting or executing batch.
+     */
+    private final Map<List<String>, Lane> lanes =
+        new HashMap<List<String>, Lane>();
+
+    private final ScheduledThreadPoolExecutor executor;
+    private final ListenerExecutor listenerExecutor =
+        new ListenerExecutor("WriteBatcher-listener");
+    private volatile boolean closed;
+
+    /* Statistics. */
+    private final AtomicLong executeCount = new AtomicLong();
+    private final AtomicLong groupCount = new AtomicLong();
+
+    /**
+     * Creates a WriteBatcher.
+     *
+     * @param writeOps used to execute the batches
+     * @param durability the durability of all batches, or null to use the
+     * store default
+     * @param windowMs the time during which groups are collected into a
+     * batch, measured from the arrival of its first group
+     * @param maxBatchSize the number of operations after which a batch is
+     * executed without waiting for the end of its window
+     * @param nThreads the number of threads executing batches, which is the
+     * maximum number of major paths with a batch in flight at any time
+     * @param maxPending the maximum number of groups that may be submitted
+     * and not yet completed
+     */
+    WriteBatcher(final WriteOperations writeOps,
+                 final Durability durability,
+                 final long windowMs,
+                 final int maxBatchSize,
+                 final int nThreads,
+                 final int maxPending) {
+        if (windowMs < 0) {
+            throw new IllegalArgumentException
+                ("negative windowMs [" + windowMs + "]");
+        }
+        if (maxBatchSize < 1 || nThreads < 1 || maxPending < 1) {
+            throw new IllegalArgumentException
+                ("maxBatchSize, nThreads and maxPending must be positive");
+        }
+        this.writeOps = writeOps;
+        this.durability = durability;
+        this.windowMs = windowMs;
+        this.maxBatchSize = maxBatchSize;
+        this.maxPending = maxPending;
+        pendingPermits = new Semaphore(maxPending);
+
+        final AtomicInteger threadNumber = new AtomicInteger();
+        executor = new ScheduledThreadPoolExecutor
+            (nThreads,
+             new ThreadFactory() {
+                 @Override
+                 public Thread newThread(Runnable r) {
+                     final Thread t = new Thread
+                         (r, "WriteBatcher-" + threadNumber.incrementAndGet());
+                     t.setDaemon(true);
+                     return t;
+                 }
+             });
+    }
+
+    /**
+     * Submits a group of operations, which are executed atomically, possibly
+     * in the same execute request as the groups submitted by other threads.
+     * The returned future returns the OperationResults of the operations or
+     * throws an ExecutionException wrapping the exception that prevented
+     * them from being applied.
+     *
+     * @throws IllegalArgumentException if operations is empty, or its
+     * operations do not all have the same major path, or more than one
+     * operation has the same Key
+     */
+    public WriteFuture<List<OperationResult>>
+        execute(final List<Operation> operations) {
+
+        if (closed) {
+            throw new IllegalStateException("WriteBatcher is closed");
+        }
+        final Group group = new Group(operations);
+        final WriteFuture<List<OperationResult>> future =
+            new WriteFuture<List<OperationResult>>(group, listenerExecutor);
+        group.future = future;
+        try {
+            pendingPermits.acquire();
+        } catch (InterruptedException e) {
+            /* Don't swallow the interrupt status. */
+            Thread.currentThread().interrupt();
+            future.setException(e);
+            return future;
+        }
+        groupCount.incrementAndGet();
+
+        final Lane lane;
+        Batch newBatch = null;
+        boolean start;
+        synchronized (lanes) {
+            Lane existing = lanes.get(group.majorPath);
+            if (existing == null) {
+                existing = new Lane(group.majorPath);
+                lanes.put(group.majorPath, existing);
+            }
+            lane = existing;
+            if (lane.collecting != null && !lane.collecting.canAdd(group)) {
+                lane.seal();
+            }
+            if (lane.collecting == null) {
+                lane.collecting = new Batch();
+                newBatch = lane.collecting;
+            }
+            lane.collecting.add(group);
+            if (lane.collecting.size >= maxBatchSize) {
+                lane.seal();
+                newBatch = null;
+            }
+            start = lane.startIfIdle();
+        }
+
+        if (newBatch != null) {
+            final Batch batch = newBatch;
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    final boolean startLane;
+                    synchronized (lanes) {
+                        if (lane.collecting != batch) {
+                            return;
+                        }
+                        lane.seal();
+                        startLane = lane.startIfIdle();
+                    }
+                    if (startLane) {
+                        executor.execute(lane);
+                    }
+                }
+            }, windowMs, TimeUnit.MILLISECONDS);
+        }
+        if (start) {
+            executor.execute(lane);
+        }
+        return future;
+    }
+
+    /**
+     * Executes the batches that are still collecting groups and waits until
+     * all groups submitted so far have completed.
+     */
+    public void flush()
+        throws InterruptedException {
+
+        final List<Lane> toStart = new ArrayList<Lane>();
+        synchronized (lanes) {
+            for (Lane lane : lanes.values()) {
+                if (lane.collecting != null) {
+                    lane.seal();
+                }
+                if (lane.startIfIdle()) {
+                    toStart.add(lane);
+                }
+            }
+        }
+        for (Lane lane : toStart) {
+            executor.execute(lane);
+        }
+        pendingPermits.acquire(maxPending);
+        pendingPermits.release(maxPending);
+    }
+
+    /**
+     * Flushes all submitted groups and stops the worker threads, and then
+     * the listener thread once it has run the listeners of their futures.
+     * No groups may be submitted after calling this method.
+     */
+    public void close()
+        throws InterruptedException {
+
+        closed = true;
+        flush();
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        listenerExecutor.close();
+    }
+
+    /**
+     * Sets the handler passed each RuntimeException thrown by a completion
+     * listener of a future returned by execute.
+     */
+    void setListenerExceptionHandler
+        (final Thread.UncaughtExceptionHandler handler) {
+        listenerExecutor.setExceptionHandler(handler);
+    }
+
+    /**
+     * Returns the number of completion listeners that have thrown a
+     * RuntimeException.
+     */
+    long getListenerFailureCount() {
+        return listenerExecutor.getFailureCount();
+    }
+
+    /**
+     * Returns the number of execute requests made to the store.
+     */
+    long getExecuteCount() {
+        return executeCount.get();
+    }
+
+    /**
+     * Returns the number of groups submitted.  Divided by the number of
+     * execute requests, this is the average number of groups per batch.
+     */
+    long getGroupCount() {
+        return groupCount.get();
+    }
+
+    /**
+     * Executes a batch, and again without each group containing an operation
+     * that aborts it, and completes the future of every group.
+     */
+    private void executeBatch(final Batch batch) {
+        List<Group> groups = batch.groups;
+        while (!groups.isEmpty()) {
+            final List<Operation> operations =
+                new ArrayList<Operation>(batch.size);
+            for (Group group : groups) {
+                operations.addAll(group.operations);
+            }
+
+            final List<OperationResult> results;
+            try {
+                executeCount.incrementAndGet();
+                results = writeOps.execute(operations, durability, 0, null);
+            } catch (OperationExecutionException e) {
+
+                /*
+                 * Nothing in the batch was applied.  Fail the group that
+                 * caused the abort, and retry the others.
+                 */
+                final int failedIndex = e.getFailedOperationIndex();
+                final List<Group> remaining =
+                    new ArrayList<Group>(groups.size() - 1);
+                int offset = 0;
+                for (Group group : groups) {
+                    final int size = group.operations.size();
+                    if (failedIndex >= offset && failedIndex < offset + size) {
+                        group.complete
+                            (null,
+                             new OperationExecutionException
+                                 (e.getFailedOperation(), failedIndex - offset,
+                                  e.getFailedOperationResult()));
+                    } else {
+                        remaining.add(group);
+                    }
+                    offset += size;
+                }
+                if (remaining.size() == groups.size()) {
+
+                    /* Not expected: the index is outside the batch. */
+                    for (Group group : groups) {
+                        group.complete(null, e);
+                    }
+                    return;
+                }
+                groups = remaining;
+                continue;
+            } catch (RuntimeException e) {
+                for (Group group : groups) {
+                    group.complete(null, e);
+                }
+                return;
+            }
+
+            int offset = 0;
+            for (Group group : groups) {
+                final int size = group.operations.size();
+                group.complete(new ArrayList<OperationResult>
+                               (results.subList(offset, offset + size)),
+                               null);
+                offset += size;
+            }
+            return;
+        }
+    }
+
+    /**
+     * The batches of a single major path: the one collecting groups, and
+     * those waiting to be executed, in order.  At most one thread executes
+     * the batches of a lane at any time.
+     */
+    private class Lane implements Runnable {
+        private final List<String> majorPath;
+        private final ArrayDeque<Batch> waiting = new ArrayDeque<Batch>();
+        private Batch collecting;
+        private boolean running;
+
+        Lane(final List<String> majorPath) {
+            this.majorPath = majorPath;
+        }
+
+        /**
+         * Moves the collecting batch to the waiting queue.  Called with the
+         * lanes lock held.
+         */
+        void seal() {
+            waiting.add(collecting);
+            collecting = null;
+        }
+
+        /**
+         * Returns true if the caller must start executing this lane's waiting
+         * batches.  Called with the lanes lock held.
+         */
+        boolean startIfIdle() {
+            if (running || waiting.isEmpty()) {
+                return false;
+            }
+            running = true;
+            return true;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                final Batch batch;
+                synchronized (lanes) {
+                    batch = waiting.poll();
+                    if (batch == null) {
+                        running = false;
+                        if (collecting == null) {
+                            lanes.remove(majorPath);
+                        }
+                        return;
+                    }
+                }
+                executeBatch(batch);
+            }
+        }
+    }
+
+    /**
+     * The groups that are executed in one request.
+     */
+    private static class Batch {
+        private final List<Group> groups = new ArrayList<Group>();
+        private final Set<Key> keys = new HashSet<Key>();
+        private int size;
+
+        /**
+         * Returns whether a group may be added without repeating a Key.
+         */
+        boolean canAdd(final Group group) {
+            for (Operation op : group.operations) {
+                if (keys.contains(op.getKey())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void add(final Group group) {
+            groups.add(group);
+            for (Operation op : group.operations) {
+                keys.add(op.getKey());
+            }
+            size += group.operations.size();
+        }
+    }
+
+    /**
+     * The operations submitted by one call to execute.  Its future is run by
+     * the batch thread once the outcome is known, and returns the results or
+     * throws the exception set here.
+     */
+    private class Group implements Callable<List<OperationResult>> {
+        private final List<Operation> operations;
+        private final List<String> majorPath;
+        private WriteFuture<List<OperationResult>> future;
+        private List<OperationResult> results;
+        private Exception exception;
+
+        Group(final List<Operation> operations) {
+            if (operations.isEmpty()) {
+                throw new IllegalArgumentException
+                    ("No operations to execute");
+            }
+            majorPath = operations.get(0).getKey().getMajorPath();
+            final Set<Key> keys = new HashSet<Key>();
+            for (Operation op : operations) {
+                final Key key = op.getKey();
+                if (!majorPath.equals(key.getMajorPath())) {
+                    throw new IllegalArgumentException
+                        ("Operations have different major paths: " + key);
+                }
+                if (!keys.add(key)) {
+                    throw new IllegalArgumentException
+                        ("More than one operation has the same Key: " + key);
+                }
+            }
+            this.operations = new ArrayList<Operation>(operations);
+        }
+
+        void complete(final List<OperationResult> groupResults,
+                      final Exception groupException) {
+            results = groupResults;
+            exception = groupException;
+
+            /*
+             * The permit goes back first: a caller blocked in get() may
+             * add its next batch as soon as the future completes.
+             */
+            pendingPermits.release();
+            future.run();
+        }
+
+        @Override
+        public List<OperationResult> call()
+            throws Exception {
+
+            if (exception != null) {
+                throw exception;
+            }
+            return results;
+        }
+    }
+}
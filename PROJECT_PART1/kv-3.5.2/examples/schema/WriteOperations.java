@@ -48,6 +48,7 @@ import java.io.InputStream;
 import java.util.ConcurrentModificationException;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import oracle.kv.Depth;
 import oracle.kv.Durability;
@@ -171,35 +172,31 @@ import oracle.kv.lob.KVLargeObject;
  * methods in this class.
  * <p>
  * Note that this class does not do any exception handling, other than to retry
- * the operation after any kind of FaultException is thrown.  Up to {@link
- * #N_RETRIES} (currently two) retries are performed, and a FaultException that
- * occurs in the last attempt is propagated to the caller.  The caller should
- * handle the exception as described in the {@link RunOperation} class in this
+ * the operation after a FaultException is thrown.  Which FaultExceptions are
+ * retried, how many times and after what delay is decided by a {@link
+ * RetryPolicy}.  By default, {@link FixedRetryPolicy#DEFAULT} performs up to
+ * two retries of any kind of FaultException, and a FaultException that occurs
+ * in the last attempt is propagated to the caller.  The caller should handle
+ * the exception as described in the {@link RunOperation} class in this
  * example.  In this example, calls to methods in this class are always made
  * within the context of a RunOperation execution, and exceptions are handled
  * by RunOperation in all cases.
  * <p>
- * A known deficiency of this class is that a network failure is not
- * distinguished from other types of FaultExceptions that might occur; a retry
- * is performed when any type of FaultException is thrown.  This is not
- * considered a major problem for two reasons: a) other types of failures are
- * likely to be persistent and will quickly occur again when retrying, and b)
- * optimizing performance when handling FaultExceptions is not normally a
- * concern.
+ * A deficiency of the default policy is that a network failure is not
+ * distinguished from other types of FaultExceptions that might occur, and
+ * that all clients retry after the same fixed delay.  This is not a major
+ * problem when failures are rare, but during a failover every client retries
+ * in lockstep, adding load to the shard when it can least afford it.  A
+ * {@link BackoffRetryPolicy} avoids this with jittered exponential delays and
+ * a retry budget shared by the threads using it, and does not retry a
+ * DurabilityException.  The number of retries performed, the number of
+ * operations that were given up and the time spent waiting before retries are
+ * available from {@link #getRetryCount}, {@link #getGiveUpCount} and {@link
+ * #getBackoffMs}.
  */
 @SuppressWarnings("javadoc")
 class WriteOperations {
 
-    /**
-     * Maximum number of retries to perform.
-     */
-    private static final int N_RETRIES = 2;
-
-    /**
-     * The delay prior to each retry in milliseconds.
-     */
-    private static final int DELAY_MS = 10;
-
     /**
      * The underlying KVStore used to perform operations.
      */
@@ -216,14 +213,62 @@ class WriteOperations {
     private final long defaultLOBTimeoutMs;
 
     /**
-     * Creates a WriteOperations wrapper for a given KVStore.
+     * Decides which failed operations are retried, and when.
+     */
+    private final RetryPolicy retryPolicy;
+
+    /**
+     * The number of retries performed, of operations that failed without
+     * being retried further, and the time spent waiting before retries.
+     */
+    private final AtomicLong retryCount = new AtomicLong();
+    private final AtomicLong giveUpCount = new AtomicLong();
+    private final AtomicLong backoffNanos = new AtomicLong();
+
+    /**
+     * Creates a WriteOperations wrapper for a given KVStore, which retries
+     * failed operations twice, with a delay of 10 milliseconds.
      */
     WriteOperations(final KVStore store, final KVStoreConfig config) {
+        this(store, config, FixedRetryPolicy.DEFAULT);
+    }
+
+    /**
+     * Creates a WriteOperations wrapper for a given KVStore, which retries
+     * failed operations as decided by the given RetryPolicy.
+     */
+    WriteOperations(final KVStore store,
+                    final KVStoreConfig config,
+                    final RetryPolicy retryPolicy) {
         this.store = store;
+        this.retryPolicy = retryPolicy;
         defaultTimeoutMs = config.getRequestTimeout(TimeUnit.MILLISECONDS);
         defaultLOBTimeoutMs = config.getLOBTimeout(TimeUnit.MILLISECONDS);
     }
 
+    /**
+     * Returns the number of retries performed since this object was created.
+     */
+    long getRetryCount() {
+        return retryCount.get();
+    }
+
+    /**
+     * Returns the number of operations that failed with a FaultException
+     * which was thrown to the caller, because the RetryPolicy refused another
+     * retry or because the operation timed out.
+     */
+    long getGiveUpCount() {
+        return giveUpCount.get();
+    }
+
+    /**
+     * Returns the total time, in milliseconds, spent waiting before retries.
+     */
+    long getBackoffMs() {
+        return TimeUnit.NANOSECONDS.toMillis(backoffNanos.get());
+    }
+
     /**
      * Calls {@link KVStore#put(Key, Value) KVStore.put} and performs retries
      * if a FaultException is thrown.
@@ -652,37 +697,85 @@ class WriteOperations {
          */
         R run() throws FaultException, E {
             for (int i = 0; true; i += 1) {
+                final R result;
                 try {
-                    return doWrite(timeoutMs);
+                    result = doWrite(timeoutMs);
                 } catch (final FaultException fe) {
-                    /* Throw the fault exception if max retries is exceeded. */
-                    if (i >= N_RETRIES) {
-                        throw fe;
-                    }
-                    /* Delay before the retry, if there is enough time left. */
-                    long now = System.currentTimeMillis();
-                    final long delayMs =
-                        Math.min(DELAY_MS, (endTime - now) - 1);
-                    if (delayMs > 0) {
-                        try {
-                            Thread.sleep(delayMs);
-                        } catch (final InterruptedException ie) {
-                            /* Don't swallow the interrupt status. */
-                            Thread.currentThread().interrupt();
-                            throw fe;
-                        }
-                        now = System.currentTimeMillis();
-                    }
-                    /* Adjust the timeout before retrying. */
-                    timeoutMs = endTime - now;
+                    /* Delay before the retry and adjust the timeout. */
+                    timeoutMs = backOff(i, fe, endTime);
                     /* Throw the fault exception if the timeout is exceeded. */
                     if (timeoutMs <= 0) {
                         throw fe;
                     }
                     /* Retry with the adjusted timeout. */
+                    continue;
                 }
+                retryPolicy.onSuccess(i);
+                return result;
+            }
+        }
+    }
+
+    /**
+     * Consults the RetryPolicy after an attempt of an operation has failed
+     * and waits for the delay it returns, if there is enough time left.
+     *
+     * @return the time left until endTime, in milliseconds, which is zero or
+     * less if there is no time left to retry the operation.
+     *
+     * @throws FaultException the fault that caused the attempt to fail, if
+     * the RetryPolicy refuses the retry or the thread is interrupted.
+     */
+    private long backOff(final int nRetries,
+                         final FaultException fe,
+                         final long endTime)
+        throws FaultException {
+
+        final long retryDelayMs = retryPolicy.getRetryDelayMs(nRetries, fe);
+        if (retryDelayMs < 0) {
+            giveUpCount.incrementAndGet();
+            throw fe;
+        }
+
+        /*
+         * Give up without consulting the policy again if there is no time
+         * left, so that a retry budget is only charged for retries that are
+         * performed.
+         */
+        long now = System.currentTimeMillis();
+        if (endTime - now <= 0) {
+            giveUpCount.incrementAndGet();
+            return endTime - now;
+        }
+        if (!retryPolicy.beginRetry(nRetries)) {
+            giveUpCount.incrementAndGet();
+            throw fe;
+        }
+
+        /* Delay before the retry, if there is enough time left. */
+        final long delayMs = Math.min(retryDelayMs, (endTime - now) - 1);
+        if (delayMs > 0) {
+            final long startNanos = System.nanoTime();
+            try {
+                Thread.sleep(delayMs);
+            } catch (final InterruptedException ie) {
+                /* Don't swallow the interrupt status. */
+                Thread.currentThread().interrupt();
+                giveUpCount.incrementAndGet();
+                throw fe;
+            } finally {
+                backoffNanos.addAndGet(System.nanoTime() - startNanos);
             }
+            now = System.currentTimeMillis();
         }
+
+        final long remainingMs = endTime - now;
+        if (remainingMs > 0) {
+            retryCount.incrementAndGet();
+        } else {
+            giveUpCount.incrementAndGet();
+        }
+        return remainingMs;
     }
 
     /**
@@ -691,6 +784,11 @@ class WriteOperations {
      * a <code>FaultException</code> is encountered. Note that if a
      * <em>partial</em> LOB is encountered by this method, the operation will
      * overwrite that value.
+     * <p>
+     * The LOB is written one chunk at a time, and a retry starts again from
+     * the first byte of the stream.  For very large objects, {@link
+     * ChunkedLOB} writes chunks concurrently and resumes a failed upload
+     * from the last acknowledged chunk.
      *
      * @param lobKey the key associated with the LOB to insert or update.
      *
@@ -1086,11 +1184,15 @@ class WriteOperations {
             InputStream inputStream = (inStreamCallback == null ? null :
                                        inStreamCallback.getInputStream());
             for (int i = 0; true; i += 1) {
+                final R result;
                 try {
-                    return doLobOp(inputStream, chunkTimeoutMs);
+                    result = doLobOp(inputStream, chunkTimeoutMs);
                 } catch (final FaultException e) {
                     inputStream = prepareForRetry(i, e);
+                    continue;
                 }
+                retryPolicy.onSuccess(i);
+                return result;
             }
         }
 
@@ -1115,32 +1217,12 @@ class WriteOperations {
             throws FaultException, ConcurrentModificationException,
                    IOException {
 
-            /* If max retries is exceeded, throw the exception that caused
-             * a retry to be considered.
-             */
-            if (iTry >= N_RETRIES) {
-                throw fe;
-            }
-
-            /* Delay before the retry, if there is enough time left;
-             * otherwise, throw the exception that caused a retry to be
-             * considered.
+            /* Delay before the retry, if the RetryPolicy allows it and there
+             * is enough time left; otherwise, throw the exception that caused
+             * a retry to be considered.  Then adjust the timeout before
+             * retrying.
              */
-            long now = System.currentTimeMillis();
-            final long delayMs = Math.min(DELAY_MS, (opEndTime - now) - 1);
-            if (delayMs > 0) {
-                try {
-                    Thread.sleep(delayMs);
-                } catch (final InterruptedException ie) {
-                    /* Don't swallow the interrupt status. */
-                    Thread.currentThread().interrupt();
-                    throw fe;
-                }
-                now = System.currentTimeMillis();
-            }
-
-            /* Adjust the timeout before retrying. */
-            opTimeoutMs = opEndTime - now;
+            opTimeoutMs = backOff(iTry, fe, opEndTime);
 
             /* Throw a timeout exception if the requested operation timeout
              * has been exceeded before a retry can be initiated.
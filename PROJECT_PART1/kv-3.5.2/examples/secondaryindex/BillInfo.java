@@ -88,6 +88,11 @@ public class BillInfo {
     public static final String DATE = "date";
     public static final String COST = "cost";
 
+    /**
+     * The SimpleDateFormat pattern of the date field, e.g. 04/21/13.
+     */
+    public static final String DATE_FORMAT = "MM/dd/yy";
+
     /**
      * An identifier used as the first String component of the Key's major path.
      */
@@ -43,18 +43,28 @@
 
 package secondaryindex;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import oracle.kv.Value;
 import oracle.kv.Value.Format;
 import oracle.kv.avro.AvroCatalog;
 import oracle.kv.avro.GenericAvroBinding;
+import oracle.kv.avro.RawAvroBinding;
 
 import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
 import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DecoderFactory;
+
+import com.sleepycat.util.PackedInteger;
 
 /**
  * Implements a generic conversion between Value and Avro schema instances.
@@ -64,12 +74,44 @@ import org.apache.avro.generic.GenericRecord;
  * with different schemas. The example defines a BillInfo as its primary DB
  * record schema which is defined in the resource file
  * "billinfo-schema.avsc".
+ * <p>
+ * {@link #getSchemaName} and {@link #toFields} do not deserialize the whole
+ * record.  An Avro Value starts with the id of its writer schema, written as
+ * a sorted packed integer, and the writer schema of each id is cached in a
+ * table indexed by id.  The first Value with an unknown id is passed to the
+ * raw binding, which reads the schema from the store if needed; if the
+ * schema is not the current version of its name known to the binding, for
+ * example a new schema or a new version of a known one, the schemas are
+ * refreshed from the catalog.  The requested fields are read with a {@link
+ * ProjectionPlan} computed once for each writer schema and list of field
+ * names: the fields before the last requested field are skipped without
+ * creating objects, and the fields after it are not read at all.
+ * <p>
+ * Applications that store records of several schemas can route Values to
+ * their own handlers with a {@link Dispatcher}, which maps schema ids to
+ * handlers directly.
  */
 public class Binding {
 
-    private final GenericAvroBinding binding;
+    /* Ids above this are not cached in the table, which is not sparse. */
+    private static final int MAX_CACHED_ID = 1 << 16;
+
+    /* Marks a schema id for which a Dispatcher has no handler. */
+    private static final Object NO_HANDLER = new Object();
 
-    private Map<String, Schema> schemaMap = new HashMap<String, Schema>();
+    private final AvroCatalog avroCatalog;
+    private final RawAvroBinding rawBinding;
+
+    /* Replaced together when new schemas are found in the catalog. */
+    private volatile GenericAvroBinding binding;
+    private volatile Map<String, Schema> schemaMap;
+
+    /* Writer schemas by schema id; replaced when an id is added. */
+    private volatile SchemaEntry[] entries = new SchemaEntry[0];
+
+    /* Decoders are reused by each thread. */
+    private final ThreadLocal<BinaryDecoder> decoders =
+        new ThreadLocal<BinaryDecoder>();
 
     public Binding(AvroCatalog avroCatalog) {
         if (avroCatalog == null) {
@@ -78,8 +120,10 @@ public class Binding {
         }
 
         /* Creates binding from schemas in the Oracle NoSQL Database. */
+        this.avroCatalog = avroCatalog;
         schemaMap = avroCatalog.getCurrentSchemas();
         binding = avroCatalog.getGenericMultiBinding(schemaMap);
+        rawBinding = avroCatalog.getRawBinding();
     }
 
     /**
@@ -124,22 +168,39 @@ public class Binding {
      * name list. null is return if the given Value is not valid Avro data.
      */
     public List<Object> toFields(Value value, List<String> fieldNames) {
-        List<Object> result = null;
-        if (Format.AVRO.equals(value.getFormat())) {
-            result = new ArrayList<Object>();
-            GenericRecord rec = binding.toObject(value);
-            for (String fieldName : fieldNames) {
-                Object fieldValue = rec.get(fieldName);
-                if (fieldValue == null) {
-                    throw new RuntimeException
-                        ("Field does not exist in the schema. fieldName = " +
-                         fieldName);
-                }
-                result.add(fieldValue);
-            }
+        if (!Format.AVRO.equals(value.getFormat())) {
+            return null;
         }
+        return project(getEntry(value), value, fieldNames);
+    }
 
-        return result;
+    /**
+     * Like {@link #toFields(Value, List)}, but returns null if the value
+     * does not conform to the given schema, so that callers which filter
+     * records by schema read the header of the Value only once.
+     *
+     * @param value
+     *
+     * @param schemaName the full name of the schema of the records whose
+     * fields are extracted.
+     *
+     * @param fieldNames the Avro field names to extract from value.
+     *
+     * @return a list holding field values in the same order as the input field
+     * name list, or null if the given Value is not valid Avro data of the
+     * given schema.
+     */
+    public List<Object> toFields(Value value,
+                                 String schemaName,
+                                 List<String> fieldNames) {
+        if (!Format.AVRO.equals(value.getFormat())) {
+            return null;
+        }
+        final SchemaEntry entry = getEntry(value);
+        if (!entry.name.equals(schemaName)) {
+            return null;
+        }
+        return project(entry, value, fieldNames);
     }
 
     /**
@@ -152,12 +213,115 @@ public class Binding {
      */
     public String getSchemaName(Value value) {
         if (Format.AVRO.equals(value.getFormat())) {
-            GenericRecord rec = binding.toObject(value);
-            return rec.getSchema().getFullName();
+            return getEntry(value).name;
         }
         return null;
     }
 
+    /**
+     * Returns a new, empty dispatch table for routing Values to handlers by
+     * their schema.
+     *
+     * @return Dispatcher
+     */
+    public <T> Dispatcher<T> newDispatcher() {
+        return new Dispatcher<T>();
+    }
+
+    /**
+     * Returns the writer schema of an Avro Value, from the id table if the id
+     * has been seen before.
+     */
+    private SchemaEntry getEntry(Value value) {
+        final int id = PackedInteger.readSortedInt(value.getValue(), 0);
+        final SchemaEntry[] table = entries;
+        if (id >= 0 && id < table.length && table[id] != null) {
+            return table[id];
+        }
+        return addEntry(id, value);
+    }
+
+    private synchronized SchemaEntry addEntry(int id, Value value) {
+        SchemaEntry[] table = entries;
+        if (id >= 0 && id < table.length && table[id] != null) {
+            return table[id];
+        }
+
+        /*
+         * The raw binding reads the schema of an unknown id from the store.
+         * A new id may be a new version of a known schema, so the schemas
+         * are refreshed unless the writer schema is the current one.
+         */
+        final Schema writerSchema = rawBinding.toObject(value).getSchema();
+        if (!writerSchema.equals(schemaMap.get(writerSchema.getFullName()))) {
+            refreshSchemas();
+        }
+        final SchemaEntry entry = new SchemaEntry
+            (PackedInteger.getReadSortedIntLength(value.getValue(), 0),
+             writerSchema);
+        if (id >= 0 && id < MAX_CACHED_ID) {
+            table = Arrays.copyOf
+                (table, Math.max(table.length, Math.max(id + 1, 16)));
+            table[id] = entry;
+            entries = table;
+        }
+        return entry;
+    }
+
+    /**
+     * Replaces the binding with one for the current schemas of the catalog,
+     * after a Value was written with a schema, or a version of a schema,
+     * that was added since the binding was created. The projection plans are
+     * discarded, since they were computed for the previous reader schemas.
+     */
+    private void refreshSchemas() {
+        avroCatalog.refreshSchemaCache(null);
+        final Map<String, Schema> schemas = avroCatalog.getCurrentSchemas();
+        binding = avroCatalog.getGenericMultiBinding(schemas);
+        schemaMap = schemas;
+        for (SchemaEntry entry : entries) {
+            if (entry != null) {
+                entry.plans.clear();
+            }
+        }
+    }
+
+    /**
+     * Extracts fields from a Value using the projection plan of its writer
+     * schema.
+     */
+    private List<Object> project(SchemaEntry entry,
+                                 Value value,
+                                 List<String> fieldNames) {
+        final ProjectionPlan plan = getPlan(entry, fieldNames);
+        if (plan.isFullDecode()) {
+            return plan.extract(binding.toObject(value));
+        }
+        final byte[] bytes = value.getValue();
+        final BinaryDecoder decoder = DecoderFactory.get().binaryDecoder
+            (bytes, entry.headerLength, bytes.length - entry.headerLength,
+             decoders.get());
+        decoders.set(decoder);
+        try {
+            return plan.read(decoder);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    private ProjectionPlan getPlan(SchemaEntry entry,
+                                   List<String> fieldNames) {
+        ProjectionPlan plan = entry.plans.get(fieldNames);
+        if (plan == null) {
+            plan = new ProjectionPlan
+                (entry.schema, schemaMap.get(entry.name), fieldNames);
+
+            /* Copy the names, in case the caller changes its List. */
+            entry.plans.putIfAbsent(new ArrayList<String>(fieldNames), plan);
+        }
+        return plan;
+    }
+
     /**
      * Returns the Schema object for the given schema name.
      *
@@ -168,4 +332,239 @@ public class Binding {
     public Schema getSchema(String schemaName) {
         return schemaMap.get(schemaName);
     }
+
+    /**
+     * A writer schema and the projection plans for its records.
+     */
+    private static class SchemaEntry {
+        final int headerLength;
+        final Schema schema;
+        final String name;
+
+        /* Projection plans by list of field names. */
+        final ConcurrentHashMap<List<String>, ProjectionPlan> plans =
+            new ConcurrentHashMap<List<String>, ProjectionPlan>();
+
+        SchemaEntry(int headerLength, Schema schema) {
+            this.headerLength = headerLength;
+            this.schema = schema;
+            this.name = schema.getFullName();
+        }
+    }
+
+    /**
+     * Maps the schemas of Values to application handlers, for example the
+     * index maintenance code for each type of record in a store holding
+     * several schemas.  Handlers are registered by schema name and are
+     * looked up by the schema id in the header of a Value, so routing a
+     * Value costs an array access once its id has been seen.
+     * <p>
+     * A Dispatcher is thread-safe.
+     *
+     * @param <T> the type of the handlers
+     */
+    public class Dispatcher<T> {
+        private final Map<String, T> handlersByName = new HashMap<String, T>();
+
+        /* Handlers or NO_HANDLER by schema id; cleared by register. */
+        private volatile Object[] handlersById = new Object[0];
+
+        private Dispatcher() {
+        }
+
+        /**
+         * Sets the handler for Values written with any version of the given
+         * schema.
+         *
+         * @param schemaName the full name of the schema.
+         *
+         * @param handler
+         */
+        public synchronized void register(String schemaName, T handler) {
+            handlersByName.put(schemaName, handler);
+            handlersById = new Object[0];
+        }
+
+        /**
+         * Returns the handler for the schema of value.
+         *
+         * @param value
+         *
+         * @return the handler, or null if value is not Avro data or no
+         * handler is registered for its schema.
+         */
+        @SuppressWarnings("unchecked")
+        public T getHandler(Value value) {
+            if (!Format.AVRO.equals(value.getFormat())) {
+                return null;
+            }
+            final int id = PackedInteger.readSortedInt(value.getValue(), 0);
+            final Object[] table = handlersById;
+            Object handler = (id >= 0 && id < table.length) ? table[id] : null;
+            if (handler == null) {
+                handler = addHandler(id, getEntry(value));
+            }
+            return (handler == NO_HANDLER) ? null : (T) handler;
+        }
+
+        private synchronized Object addHandler(int id, SchemaEntry entry) {
+            Object handler = handlersByName.get(entry.name);
+            if (handler == null) {
+                handler = NO_HANDLER;
+            }
+            if (id >= 0 && id < MAX_CACHED_ID) {
+                final Object[] table = Arrays.copyOf
+                    (handlersById,
+                     Math.max(handlersById.length, Math.max(id + 1, 16)));
+                table[id] = handler;
+                handlersById = table;
+            }
+            return handler;
+        }
+    }
+
+    /**
+     * Reads a list of fields from the Avro binary encoding of records of one
+     * writer schema.
+     * <p>
+     * The plan has one step for each field of the writer schema up to the
+     * last requested field: the step either skips the field or reads it into
+     * its position in the result.  Requested fields that only exist in the
+     * current (reader) schema get their default value, as they do when the
+     * record is resolved by the generic binding.  If a requested field has a
+     * different type in the writer and reader schemas, the plan resolves the
+     * whole record with the generic binding instead.
+     */
+    private static class ProjectionPlan {
+
+        private final List<String> fieldNames;
+
+        /* The result position of each writer field, or -1 to skip it. */
+        private final int[] positions;
+
+        /* For a field requested more than once, its first position. */
+        private final int[] firstPositions;
+        private final Schema[] writerFieldSchemas;
+        private final GenericDatumReader<?>[] readers;
+
+        /* The default value of each requested field missing in the writer. */
+        private final Object[] defaults;
+        private final Schema[] defaultSchemas;
+
+        private final boolean fullDecode;
+
+        ProjectionPlan(Schema writerSchema,
+                       Schema readerSchema,
+                       List<String> fieldNames) {
+            this.fieldNames = new ArrayList<String>(fieldNames);
+            final int nFields = fieldNames.size();
+            defaults = new Object[nFields];
+            defaultSchemas = new Schema[nFields];
+            firstPositions = new int[nFields];
+
+            final List<Schema.Field> writerFields = writerSchema.getFields();
+            final int[] allPositions = new int[writerFields.size()];
+            for (int i = 0; i < allPositions.length; i++) {
+                allPositions[i] = -1;
+            }
+
+            boolean typeChanged = false;
+            int nSteps = 0;
+            for (int i = 0; i < nFields; i++) {
+                final String fieldName = fieldNames.get(i);
+                firstPositions[i] = fieldNames.indexOf(fieldName);
+                if (firstPositions[i] != i) {
+                    continue;
+                }
+                final Schema.Field writerField =
+                    writerSchema.getField(fieldName);
+                final Schema.Field readerField = (readerSchema == null) ?
+                    writerField : readerSchema.getField(fieldName);
+                if (readerField == null) {
+                    throw new RuntimeException
+                        ("Field does not exist in the schema. fieldName = " +
+                         fieldName);
+                }
+                if (writerField == null) {
+                    defaults[i] = GenericData.get().getDefaultValue
+                        (readerField);
+                    defaultSchemas[i] = readerField.schema();
+                    continue;
+                }
+                if (!writerField.schema().equals(readerField.schema())) {
+                    typeChanged = true;
+                }
+                allPositions[writerField.pos()] = i;
+                nSteps = Math.max(nSteps, writerField.pos() + 1);
+            }
+
+            fullDecode = typeChanged;
+            positions = new int[nSteps];
+            System.arraycopy(allPositions, 0, positions, 0, nSteps);
+            writerFieldSchemas = new Schema[nSteps];
+            readers = new GenericDatumReader<?>[nSteps];
+            for (int pos = 0; pos < nSteps; pos++) {
+                final Schema fieldSchema = writerFields.get(pos).schema();
+                writerFieldSchemas[pos] = fieldSchema;
+                if (positions[pos] >= 0) {
+                    readers[pos] = new GenericDatumReader<Object>(fieldSchema);
+                }
+            }
+        }
+
+        /**
+         * Returns whether records must be resolved by the generic binding.
+         */
+        boolean isFullDecode() {
+            return fullDecode;
+        }
+
+        /**
+         * Reads the fields from a decoder positioned at the start of a
+         * record.
+         */
+        List<Object> read(BinaryDecoder decoder) throws IOException {
+            final Object[] values = new Object[defaults.length];
+            for (int pos = 0; pos < positions.length; pos++) {
+                final int i = positions[pos];
+                if (i < 0) {
+                    GenericDatumReader.skip(writerFieldSchemas[pos], decoder);
+                } else {
+                    values[i] = readers[pos].read(null, decoder);
+                }
+            }
+            final List<Object> result = new ArrayList<Object>(values.length);
+            for (int i = 0; i < values.length; i++) {
+                final int first = firstPositions[i];
+                Object value = values[first];
+                if (defaultSchemas[first] != null) {
+                    value = GenericData.get().deepCopy
+                        (defaultSchemas[first], defaults[first]);
+                }
+                result.add(checkNotNull(value, i));
+            }
+            return result;
+        }
+
+        /**
+         * Extracts the fields from a fully deserialized record.
+         */
+        List<Object> extract(GenericRecord record) {
+            final List<Object> result =
+                new ArrayList<Object>(fieldNames.size());
+            for (int i = 0; i < fieldNames.size(); i++) {
+                result.add(checkNotNull(record.get(fieldNames.get(i)), i));
+            }
+            return result;
+        }
+
+        private Object checkNotNull(Object value, int i) {
+            if (value == null) {
+                throw new RuntimeException
+                    ("Field does not exist in the schema. fieldName = " +
+                     fieldNames.get(i));
+            }
+            return value;
+        }
+    }
 }
@@ -0,0 +1,234 @@
+/*-
+ *
+ *  This file is part of Oracle NoSQL Database
+ *  Copyright (C) 2011, 2015 Oracle and/or its affiliates.  All rights reserved.
+ *
+ *  Oracle NoSQL Database is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation, version 3.
+ *
+ *  Oracle NoSQL Database is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public
+ *  License in the LICENSE file along with Oracle NoSQL Database.  If not,
+ *  see <http://www.gnu.org/licenses/>.
+ *
+ *  An active Oracle commercial licensing agreement for this product
+ *  supercedes this license.
+ *
+ *  For more information please contact:
+ *
+ *  Vice President Legal, Development
+ *  Oracle America, Inc.
+ *  5OP-10
+ *  500 Oracle Parkway
+ *  Redwood Shores, CA 94065
+ *
+ *  or
+ *
+ *  berkeleydb-info_us@oracle.com
+ *
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  EOF
+ *
+ */
+
+package secondaryindex;
+
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import org.apache.avro.Schema;
+
+/**
+ * Encodes the field values of an Index View as Key components that sort in
+ * the same order as the values, so that a range of values can be read with a
+ * KeyRange over the Index View.
+ * <p>
+ * The encoding of each field depends on its type in the Avro schema of the
+ * primary DB records:
+ * <ul>
+ * <li>int and long values are written as 16 hex digits of the value with its
+ * sign bit flipped, so that negative values sort before positive ones.
+ * <li>float and double values are written as 16 hex digits of their IEEE 754
+ * bits, with all bits flipped for negative values and only the sign bit
+ * flipped for positive values.
+ * <li>string values for which a date format has been given are parsed with
+ * the format, in GMT, and written like a long holding the time in millis.
+ * Strings that cannot be parsed are written as "~" followed by the string,
+ * so they sort after all dates and can still be looked up.
+ * <li>Other values, including other strings, are written with toString.
+ * </ul>
+ * Values used to query an Index View are encoded in the same way, and may be
+ * given either as objects of the field's type or as Strings, as read from a
+ * command line.
+ * <p>
+ * An IndexKeyEncoder is immutable and thread-safe.
+ */
+class IndexKeyEncoder {
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /* The prefix of a date field value that cannot be parsed. */
+    private static final String UNPARSED_DATE_PREFIX = "~";
+
+    private final String indexName;
+    private final List<FieldEncoder> fieldEncoders;
+
+    /**
+     * Creates an encoder for the fields of an index.
+     *
+     * @param schema the schema of the primary DB records, or null if it is
+     * unknown, in which case all values are written with toString.
+     *
+     * @param dateFormats the SimpleDateFormat pattern of each string field
+     * that holds a date, by field name.
+     */
+    IndexKeyEncoder(String indexName,
+                    Schema schema,
+                    List<String> indexFieldNames,
+                    Map<String, String> dateFormats) {
+        this.indexName = indexName;
+        fieldEncoders = new ArrayList<FieldEncoder>(indexFieldNames.size());
+        for (String fieldName : indexFieldNames) {
+            Schema.Field field =
+                (schema == null) ? null : schema.getField(fieldName);
+            Schema.Type type =
+                (field == null) ? Schema.Type.STRING : field.schema().getType();
+            fieldEncoders.add(new FieldEncoder
+                              (fieldName, type, dateFormats.get(fieldName)));
+        }
+    }
+
+    String getIndexName() {
+        return indexName;
+    }
+
+    /**
+     * Returns the Key components of the values of the first fields of the
+     * index.
+     */
+    List<String> encode(List<Object> indexFieldValues) {
+        if (indexFieldValues.size() > fieldEncoders.size()) {
+            throw new IllegalArgumentException
+                ("Too many values for index fields: " + indexFieldValues);
+        }
+        List<String> result = new ArrayList<String>(indexFieldValues.size());
+        for (int i = 0; i < indexFieldValues.size(); i++) {
+            result.add(encode(i, indexFieldValues.get(i)));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the Key component of the value of the index field at the given
+     * position.
+     */
+    String encode(int position, Object value) {
+        return fieldEncoders.get(position).encode(value);
+    }
+
+    /**
+     * Returns 16 hex digits that sort as the given long does when it is
+     * treated as unsigned.
+     */
+    private static String toHex(long bits) {
+        char[] buf = new char[16];
+        for (int i = 15; i >= 0; i--) {
+            buf[i] = HEX_DIGITS[(int) (bits & 0xf)];
+            bits >>>= 4;
+        }
+        return new String(buf);
+    }
+
+    static String encodeLong(long value) {
+        return toHex(value ^ Long.MIN_VALUE);
+    }
+
+    static String encodeDouble(double value) {
+        long bits = Double.doubleToLongBits(value);
+        return toHex((bits < 0) ? ~bits : bits ^ Long.MIN_VALUE);
+    }
+
+    /**
+     * Encodes the values of one index field.
+     */
+    private static class FieldEncoder {
+        private final String fieldName;
+        private final Schema.Type type;
+        private final ThreadLocal<SimpleDateFormat> dateFormat;
+
+        FieldEncoder(String fieldName,
+                     Schema.Type type,
+                     final String datePattern) {
+            this.fieldName = fieldName;
+            this.type = type;
+            if (datePattern == null || type != Schema.Type.STRING) {
+                dateFormat = null;
+                return;
+            }
+
+            /* Check the pattern now, rather than on first use. */
+            new SimpleDateFormat(datePattern);
+            dateFormat = new ThreadLocal<SimpleDateFormat>() {
+                @Override
+                protected SimpleDateFormat initialValue() {
+                    SimpleDateFormat format =
+                        new SimpleDateFormat(datePattern);
+                    format.setTimeZone(TimeZone.getTimeZone("GMT"));
+                    format.setLenient(false);
+                    return format;
+                }
+            };
+        }
+
+        String encode(Object value) {
+            try {
+                switch (type) {
+                case INT:
+                case LONG:
+                    return encodeLong((value instanceof Number) ?
+                                      ((Number) value).longValue() :
+                                      Long.parseLong(value.toString().trim()));
+                case FLOAT:
+                case DOUBLE:
+                    return encodeDouble
+                        ((value instanceof Number) ?
+                         ((Number) value).doubleValue() :
+                         Double.parseDouble(value.toString().trim()));
+                default:
+                    if (dateFormat != null) {
+                        return encodeDate(value.toString());
+                    }
+                    return value.toString();
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException
+                    ("Invalid " + type + " value for index field " +
+                     fieldName + ": " + value, e);
+            }
+        }
+
+        private String encodeDate(String value) {
+            ParsePosition pos = new ParsePosition(0);
+            Date date = dateFormat.get().parse(value, pos);
+            if (date == null || pos.getIndex() != value.length()) {
+                return UNPARSED_DATE_PREFIX + value;
+            }
+            return encodeLong(date.getTime());
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*-
+ *
+ *  This file is part of Oracle NoSQL Database
+ *  Copyright (C) 2011, 2015 Oracle and/or its affiliates.  All rights reserved.
+ *
+ *  Oracle NoSQL Database is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation, version 3.
+ *
+ *  Oracle NoSQL Database is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public
+ *  License in the LICENSE file along with Oracle NoSQL Database.  If not,
+ *  see <http://www.gnu.org/licenses/>.
+ *
+ *  An active Oracle commercial licensing agreement for this product
+ *  supercedes this license.
+ *
+ *  For more information please contact:
+ *
+ *  Vice President Legal, Development
+ *  Oracle America, Inc.
+ *  5OP-10
+ *  500 Oracle Parkway
+ *  Redwood Shores, CA 94065
+ *
+ *  or
+ *
+ *  berkeleydb-info_us@oracle.com
+ *
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  EOF
+ *
+ */
+
+package secondaryindex;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import oracle.kv.Value;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+
+/**
+ * Serializes the projected fields stored in the Value of the records of a
+ * covering Index View.
+ * <p>
+ * The projected fields are written as an Avro record whose fields are copies
+ * of the projected fields of the primary DB schema, in the order of the
+ * projection. The record is written without a schema id, since its schema
+ * is not registered with the store: it is derived again from the current
+ * primary DB schema when the Index View is read. A covering Index View must
+ * therefore be dropped and built again if the type of a projected field is
+ * changed.
+ * <p>
+ * An IndexProjection is thread-safe. Each thread reuses its own encoder and
+ * output buffer.
+ */
+class IndexProjection {
+
+    private final List<String> fieldNames;
+    private final Schema schema;
+    private final GenericDatumWriter<GenericRecord> writer;
+    private final GenericDatumReader<GenericRecord> reader;
+
+    private final ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>() {
+        @Override
+        protected Buffers initialValue() {
+            return new Buffers();
+        }
+    };
+
+    /**
+     * Creates the projection of the given fields of a primary DB schema.
+     */
+    IndexProjection(Schema primarySchema, List<String> fieldNames) {
+        this.fieldNames =
+            Collections.unmodifiableList(new ArrayList<String>(fieldNames));
+        List<Schema.Field> fields =
+            new ArrayList<Schema.Field>(fieldNames.size());
+        for (String fieldName : fieldNames) {
+            Schema.Field field = primarySchema.getField(fieldName);
+            if (field == null) {
+                throw new IllegalArgumentException
+                    ("Projected field does not exist in schema " +
+                     primarySchema.getFullName() + ": " + fieldName);
+            }
+            fields.add(new Schema.Field(field.name(), field.schema(),
+                                        field.doc(), field.defaultValue()));
+        }
+        schema = Schema.createRecord(primarySchema.getName() + "Projection",
+                                     null, primarySchema.getNamespace(),
+                                     false);
+        schema.setFields(fields);
+        writer = new GenericDatumWriter<GenericRecord>(schema);
+        reader = new GenericDatumReader<GenericRecord>(schema);
+    }
+
+    List<String> getFieldNames() {
+        return fieldNames;
+    }
+
+    /**
+     * Returns the Value of an Index View record holding the values of the
+     * projected fields, in the order of the projection.
+     */
+    Value toValue(List<Object> values) {
+        Buffers buf = buffers.get();
+        for (int i = 0; i < values.size(); i++) {
+            buf.record.put(i, values.get(i));
+        }
+        buf.out.reset();
+        buf.encoder = EncoderFactory.get().binaryEncoder(buf.out, buf.encoder);
+        try {
+            writer.write(buf.record, buf.encoder);
+            buf.encoder.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return Value.createValue(buf.out.toByteArray());
+    }
+
+    /**
+     * Returns the values of the projected fields stored in the Value of an
+     * Index View record, or null if the record has no projected fields.
+     */
+    List<Object> toFields(Value value) {
+        byte[] bytes = value.getValue();
+        if (bytes.length == 0) {
+            return null;
+        }
+        BinaryDecoder decoder =
+            DecoderFactory.get().binaryDecoder(bytes, null);
+        GenericRecord record;
+        try {
+            record = reader.read(null, decoder);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        List<Object> result = new ArrayList<Object>(fieldNames.size());
+        for (int i = 0; i < fieldNames.size(); i++) {
+            result.add(record.get(i));
+        }
+        return result;
+    }
+
+    /* The per-thread state of toValue. */
+    private class Buffers {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final GenericRecord record = new GenericData.Record(schema);
+        BinaryEncoder encoder;
+    }
+}
@@ -0,0 +1,483 @@
+/*-
+ *
+ *  This file is part of Oracle NoSQL Database
+ *  Copyright (C) 2011, 2015 Oracle and/or its affiliates.  All rights reserved.
+ *
+ *  Oracle NoSQL Database is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation, version 3.
+ *
+ *  Oracle NoSQL Database is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public
+ *  License in the LICENSE file along with Oracle NoSQL Database.  If not,
+ *  see <http://www.gnu.org/licenses/>.
+ *
+ *  An active Oracle commercial licensing agreement for this product
+ *  supercedes this license.
+ *
+ *  For more information please contact:
+ *
+ *  Vice President Legal, Development
+ *  Oracle America, Inc.
+ *  5OP-10
+ *  500 Oracle Parkway
+ *  Redwood Shores, CA 94065
+ *
+ *  or
+ *
+ *  berkeleydb-info_us@oracle.com
+ *
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  [This line intentionally left blank.]
+ *  EOF
+ *
+ */
+
+package secondaryindex;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeSet;
+
+import oracle.kv.Key;
+import oracle.kv.Value;
+
+/**
+ * Cardinality statistics of an Index View, used by the query planner of
+ * {@link IndexViewService} to estimate the number of Index View records that
+ * a query reads. They are computed by a {@link Collector} from the encoded
+ * values held by the Keys of the Index View records, and hold:
+ * <ul>
+ * <li>the number of records.
+ * <li>the number of distinct values of the first index field, of the first
+ * two fields, and so on. Up to SKETCH_SIZE values are counted exactly, and
+ * larger counts are estimated from the smallest hashes of the values.
+ * <li>the most frequent values of the first field and their counts, found
+ * with the Space-Saving algorithm, so that a query on a heavy hitter is not
+ * estimated from the average.
+ * <li>the smallest and largest values of the first field.
+ * </ul>
+ * Values that are not heavy hitters are assumed to be equally frequent, and
+ * the values of a range of numbers or dates are assumed to be uniformly
+ * spread between the smallest and largest values. The range of other values
+ * is assumed to hold {@link #DEFAULT_RANGE_SELECTIVITY} of the records.
+ * <p>
+ * An IndexStatistics is immutable.
+ */
+class IndexStatistics {
+
+    /* Number of smallest hashes kept to estimate a distinct count. */
+    private static final int SKETCH_SIZE = 1024;
+
+    /* Number of first field values counted by the Space-Saving algorithm. */
+    private static final int TRACKED_VALUES = 128;
+
+    /* Number of most frequent values kept. */
+    private static final int HEAVY_HITTERS = 32;
+
+    /* The fraction of the records assumed to be in a range of values. */
+    static final double DEFAULT_RANGE_SELECTIVITY = 1.0 / 3;
+
+    /* The length of the encoding of a number or a date. */
+    private static final int ENCODED_NUMBER_LENGTH = 16;
+
+    private final long recordCount;
+
+    /* The number of distinct values of each prefix of the index fields. */
+    private final long[] distinctCounts;
+
+    /* The most frequent values of the first field and their counts. */
+    private final Map<String, Long> heavyHitters;
+    private final long heavyHitterCount;
+
+    /* The smallest and largest values of the first field, or null. */
+    private final String minValue;
+    private final String maxValue;
+
+    private IndexStatistics(long recordCount,
+                            long[] distinctCounts,
+                            Map<String, Long> heavyHitters,
+                            String minValue,
+                            String maxValue) {
+        this.recordCount = recordCount;
+        this.distinctCounts = distinctCounts;
+        this.heavyHitters = heavyHitters;
+        this.minValue = minValue;
+        this.maxValue = maxValue;
+        long count = 0;
+        for (long c : heavyHitters.values()) {
+            count += c;
+        }
+        heavyHitterCount = count;
+    }
+
+    long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Returns the estimated number of records whose leading fields have the
+     * given encoded values.
+     */
+    double estimateEquals(List<String> prefix) {
+        if (recordCount == 0 || prefix.isEmpty()) {
+            return recordCount;
+        }
+        String first = prefix.get(0);
+        double result;
+        Long count = heavyHitters.get(first);
+        if (count != null) {
+            result = count;
+        } else if (first.compareTo(minValue) < 0 ||
+                   first.compareTo(maxValue) > 0) {
+            return 0;
+        } else {
+            long others = distinctCounts[0] - heavyHitters.size();
+            if (others <= 0) {
+                return 0;
+            }
+            result = (double) (recordCount - heavyHitterCount) / others;
+        }
+
+        /* The other fields divide the records of the first value evenly. */
+        int n = Math.min(prefix.size(), distinctCounts.length);
+        if (n > 1) {
+            result = result * distinctCounts[0] / distinctCounts[n - 1];
+        }
+        return result;
+    }
+
+    /**
+     * Returns the estimated number of records whose leading fields have the
+     * given encoded values and whose next field is between low and high,
+     * either of which may be null to leave that end of the range open.
+     */
+    double estimateRange(List<String> prefix, String low, String high) {
+        if (!prefix.isEmpty()) {
+            double result = estimateEquals(prefix);
+            if (low == null && high == null) {
+                return result;
+            }
+            return result * DEFAULT_RANGE_SELECTIVITY;
+        }
+        if (recordCount == 0) {
+            return 0;
+        }
+
+        /* Heavy hitters are counted, and the other values interpolated. */
+        double result = 0;
+        for (Entry<String, Long> entry : heavyHitters.entrySet()) {
+            if (inRange(entry.getKey(), low, high)) {
+                result += entry.getValue();
+            }
+        }
+        return result +
+            (recordCount - heavyHitterCount) * rangeFraction(low, high);
+    }
+
+    private static boolean inRange(String value, String low, String high) {
+        return (low == null || value.compareTo(low) >= 0) &&
+            (high == null || value.compareTo(high) <= 0);
+    }
+
+    /**
+     * Returns the fraction of the values of the first field between low and
+     * high.
+     */
+    private double rangeFraction(String low, String high) {
+        if (low == null && high == null) {
+            return 1;
+        }
+        if ((low != null && low.compareTo(maxValue) > 0) ||
+            (high != null && high.compareTo(minValue) < 0)) {
+            return 0;
+        }
+        if (!isNumber(minValue) || !isNumber(maxValue) ||
+            (low != null && !isNumber(low)) ||
+            (high != null && !isNumber(high))) {
+            return DEFAULT_RANGE_SELECTIVITY;
+        }
+        String start = (low == null || low.compareTo(minValue) < 0) ?
+            minValue : low;
+        String end = (high == null || high.compareTo(maxValue) > 0) ?
+            maxValue : high;
+        if (end.compareTo(start) < 0) {
+            return 0;
+        }
+        if (maxValue.equals(minValue)) {
+            return 1;
+        }
+
+        /*
+         * The differences are taken before converting to double, which could
+         * not tell apart encoded numbers close to 2^63.
+         */
+        return toUnsignedDouble(toBits(end) - toBits(start)) /
+            toUnsignedDouble(toBits(maxValue) - toBits(minValue));
+    }
+
+    /* Returns whether a value has the encoding of a number or a date. */
+    private static boolean isNumber(String value) {
+        if (value.length() != ENCODED_NUMBER_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (Character.digit(value.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* Returns the bits written as the hex digits of an encoded number. */
+    private static long toBits(String value) {
+        return (Long.parseLong(value.substring(0, 8), 16) << 32) |
+            Long.parseLong(value.substring(8), 16);
+    }
+
+    private static double toUnsignedDouble(long bits) {
+        return (bits >= 0) ? bits : bits + 18446744073709551616.0;
+    }
+
+    /**
+     * Returns the statistics as a Value. The numbers and values are stored
+     * as the components of a Key string, which escapes them.
+     */
+    Value toValue() {
+        List<String> components = new ArrayList<String>();
+        components.add(Long.toString(recordCount));
+        components.add(Integer.toString(distinctCounts.length));
+        for (long count : distinctCounts) {
+            components.add(Long.toString(count));
+        }
+        components.add((minValue == null) ? "" : minValue);
+        components.add((maxValue == null) ? "" : maxValue);
+        for (Entry<String, Long> entry : heavyHitters.entrySet()) {
+            components.add(entry.getKey());
+            components.add(entry.getValue().toString());
+        }
+        try {
+            return Value.createValue
+                (Key.createKey(components).toString().getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the statistics stored in a Value by {@link #toValue}, or null
+     * if the Value cannot be read.
+     */
+    static IndexStatistics fromValue(Value value) {
+        try {
+            List<String> components = Key.fromString
+                (new String(value.getValue(), "UTF-8")).getMajorPath();
+            int i = 0;
+            long recordCount = Long.parseLong(components.get(i++));
+            long[] distinctCounts =
+                new long[Integer.parseInt(components.get(i++))];
+            for (int j = 0; j < distinctCounts.length; j++) {
+                distinctCounts[j] = Long.parseLong(components.get(i++));
+            }
+            String minValue = components.get(i++);
+            String maxValue = components.get(i++);
+            Map<String, Long> heavyHitters = new HashMap<String, Long>();
+            while (i + 1 < components.size()) {
+                heavyHitters.put(components.get(i),
+                                 Long.valueOf(components.get(i + 1)));
+                i += 2;
+            }
+            if (recordCount == 0) {
+                minValue = null;
+                maxValue = null;
+            }
+            return new IndexStatistics(recordCount, distinctCounts,
+                                       heavyHitters, minValue, maxValue);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("IndexStatistics [records=").append(recordCount);
+        sb.append(", distinct=[");
+        for (int i = 0; i < distinctCounts.length; i++) {
+            sb.append((i == 0) ? "" : ", ").append(distinctCounts[i]);
+        }
+        sb.append("], heavyHitters=").append(heavyHitters.size());
+        sb.append("]");
+        return sb.toString();
+    }
+
+    /**
+     * Computes the statistics of an Index View from the encoded values of
+     * each of its records. A Collector is not thread-safe.
+     */
+    static final class Collector {
+
+        private final int nFields;
+        private long recordCount;
+
+        /* The smallest hashes of the values of each prefix. */
+        private final List<TreeSet<Long>> sketches;
+
+        /* The Space-Saving counters: a count and its maximum error. */
+        private final Map<String, long[]> counters =
+            new HashMap<String, long[]>();
+
+        private String minValue;
+        private String maxValue;
+
+        Collector(int nFields) {
+            this.nFields = nFields;
+            sketches = new ArrayList<TreeSet<Long>>(nFields);
+            for (int i = 0; i < nFields; i++) {
+                sketches.add(new TreeSet<Long>());
+            }
+        }
+
+        /**
+         * Adds the encoded values of the index fields of a record.
+         */
+        void add(List<String> values) {
+            recordCount++;
+            long hash = 0xcbf29ce484222325L;
+            for (int i = 0; i < nFields && i < values.size(); i++) {
+                hash = hash(hash, values.get(i));
+                addHash(sketches.get(i), mix(hash) >>> 1);
+            }
+            String first = values.get(0);
+            if (minValue == null || first.compareTo(minValue) < 0) {
+                minValue = first;
+            }
+            if (maxValue == null || first.compareTo(maxValue) > 0) {
+                maxValue = first;
+            }
+            count(first);
+        }
+
+        /* Keeps the SKETCH_SIZE smallest distinct hashes. */
+        private static void addHash(TreeSet<Long> sketch, long hash) {
+            if (sketch.size() < SKETCH_SIZE) {
+                sketch.add(hash);
+            } else if (hash < sketch.last() && sketch.add(hash)) {
+                sketch.pollLast();
+            }
+        }
+
+        /*
+         * Counts a value, replacing the least frequent value if all the
+         * counters are in use. The count of the replaced value is an upper
+         * bound of the earlier occurrences of the new one.
+         */
+        private void count(String value) {
+            long[] counter = counters.get(value);
+            if (counter != null) {
+                counter[0]++;
+                return;
+            }
+            if (counters.size() < TRACKED_VALUES) {
+                counters.put(value, new long[] { 1, 0 });
+                return;
+            }
+            String minKey = null;
+            long min = Long.MAX_VALUE;
+            for (Entry<String, long[]> entry : counters.entrySet()) {
+                if (entry.getValue()[0] < min) {
+                    min = entry.getValue()[0];
+                    minKey = entry.getKey();
+                }
+            }
+            counters.remove(minKey);
+            counters.put(value, new long[] { min + 1, min });
+        }
+
+        /* FNV-1a over the characters of a value and a separator. */
+        private static long hash(long hash, String value) {
+            for (int i = 0; i < value.length(); i++) {
+                hash ^= value.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+            hash ^= 0xffff;
+            return hash * 0x100000001b3L;
+        }
+
+        /* The 64-bit finalizer of MurmurHash3, which spreads the bits. */
+        private static long mix(long hash) {
+            hash ^= hash >>> 33;
+            hash *= 0xff51afd7ed558ccdL;
+            hash ^= hash >>> 33;
+            hash *= 0xc4ceb9fe1a85ec53L;
+            hash ^= hash >>> 33;
+            return hash;
+        }
+
+        /**
+         * Returns the statistics of the records added.
+         */
+        IndexStatistics finish() {
+            long[] distinctCounts = new long[nFields];
+            for (int i = 0; i < nFields; i++) {
+                TreeSet<Long> sketch = sketches.get(i);
+                if (sketch.size() < SKETCH_SIZE) {
+                    distinctCounts[i] = sketch.size();
+                } else {
+
+                    /*
+                     * The k-th smallest of n random hashes in [0, 2^63) is
+                     * about k * 2^63 / n.
+                     */
+                    distinctCounts[i] = Math.min
+                        (recordCount,
+                         (long) ((SKETCH_SIZE - 1) *
+                                 (9223372036854775808.0 / sketch.last())));
+                }
+                if (i > 0) {
+                    distinctCounts[i] =
+                        Math.max(distinctCounts[i], distinctCounts[i - 1]);
+                }
+            }
+
+            /* Keeps the values with the largest guaranteed counts. */
+            List<Entry<String, long[]>> entries =
+                new ArrayList<Entry<String, long[]>>(counters.entrySet());
+            Collections.sort(entries, new Comparator<Entry<String, long[]>>() {
+                @Override
+                public int compare(Entry<String, long[]> e1,
+                                   Entry<String, long[]> e2) {
+                    long c1 = e1.getValue()[0] - e1.getValue()[1];
+                    long c2 = e2.getValue()[0] - e2.getValue()[1];
+                    return (c1 > c2) ? -1 : ((c1 < c2) ? 1 : 0);
+                }
+            });
+            Map<String, Long> heavyHitters = new HashMap<String, Long>();
+            for (Entry<String, long[]> entry : entries) {
+                long count = entry.getValue()[0] - entry.getValue()[1];
+                if (heavyHitters.size() >= HEAVY_HITTERS || count <= 0) {
+                    break;
+                }
+                heavyHitters.put(entry.getKey(), count);
+            }
+            return new IndexStatistics(recordCount, distinctCounts,
+                                       heavyHitters, minValue, maxValue);
+        }
+    }
+}
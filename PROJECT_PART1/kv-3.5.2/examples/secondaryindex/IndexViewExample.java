@@ -47,6 +47,8 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -57,6 +59,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.SortedMap;
+import java.util.TimeZone;
 
 import oracle.kv.Direction;
 import oracle.kv.KVStore;
@@ -70,12 +73,13 @@ import oracle.kv.Value;
 import oracle.kv.ValueVersion;
 import oracle.kv.Version;
 import secondaryindex.IndexViewService.IndexMetadata;
+import secondaryindex.IndexViewService.QueryPlan;
 
 /**
  * This is the "main" class for the IndexView example and implements all of the
  * command line argument parsing and dispatch.
  * <p>
- * IndexViewExample has 8 major commands:
+ * IndexViewExample has 9 major commands:
  * <ol>
  * <li>-loaddata Loads all records from a data file, parses them into KV
  * Pairs using an avro-binding and stores the results into the "primary DB". For
@@ -98,6 +102,28 @@ import secondaryindex.IndexViewService.IndexMetadata;
  * <pre>
  * IndexViewExample -buildindex -name &LT;field_name1>,&LT;field_name2>,...
  * </pre>
+ * Adding the -resumable flag builds the index in checkpointed segments. If
+ * the build fails, the index is left in the BUILDING state and running the
+ * same command again resumes the build from the last checkpoint. For example,
+ * <p>
+ * <pre>
+ * IndexViewExample -buildindex -name &LT;field_name> -resumable
+ * </pre>
+ * Adding the -online flag builds the index while other clients insert,
+ * update and delete records with this example. Their index changes are
+ * logged during the build and applied before the index becomes READY. For
+ * example,
+ * <p>
+ * <pre>
+ * IndexViewExample -buildindex -name &LT;field_name> -online
+ * </pre>
+ * Adding -project builds a covering index, which stores the given fields in
+ * its Index View records so that queries for them do not read the primary
+ * DB. It can be combined with -resumable or -online. For example,
+ * <p>
+ * <pre>
+ * IndexViewExample -buildindex -name email -project name,cost
+ * </pre>
  * <li> -dropindex drops secondary indexes on the specified fields in the Index
  * View. For example,
  * <p>
@@ -109,6 +135,14 @@ import secondaryindex.IndexViewService.IndexMetadata;
  * <pre>
  * IndexViewExample -dropindex -name &LT;field_name1>,&LT;field_name2>,...
  * </pre>
+ * <li> -analyzeindex computes the statistics of the Index View on the
+ * specified fields again, after the primary DB records have changed. They
+ * are first computed when the Index View is built, and are used by the query
+ * planner to choose between the Index View and a parallel scan. For example,
+ * <p>
+ * <pre>
+ * IndexViewExample -analyzeindex -name &LT;field_name>
+ * </pre>
  * <li> -insert inserts a record into the primary DB with corresponding
  * record(s) into the Index View. For example,
  * <p>
@@ -157,8 +191,35 @@ import secondaryindex.IndexViewService.IndexMetadata;
  * IndexViewExample -query -seckey &LT;field_name1>=&LT;field_value1>,
  * &LT;field_name2>=&LT;field_value2>,...
  * </pre>
- * This command performs the query using both the Index View and a scan of
- * all primary DB records. The wall clock to perform both operations is output.
+ * This command performs the query using the Index View, or using a parallel
+ * scan of the primary DB records if the statistics of the Index View show
+ * that the query matches too many records for the Index View to be faster.
+ * The query plan and the wall clock to perform the query are output. Adding
+ * -explain outputs the plan and its estimated costs without performing the
+ * query, and adding -compare also performs the query using a scan of all
+ * primary DB records and outputs the wall clock of both operations.
+ * <p>
+ * Adding -range queries the records whose value of a field is between the
+ * values given with -from and -to, inclusive. Either of them may be omitted
+ * to leave that end of the range open. The Index View used must start with
+ * the -seckey fields, if any, in any order, followed by the -range field.
+ * For example, to find the bills of a range of dates with an Index View on
+ * the date field,
+ * <p>
+ * <pre>
+ * IndexViewExample -query -range date -from 01/01/13 -to 03/31/13
+ * </pre>
+ * Adding -project to a -query without -range returns only the given fields
+ * of the records, and outputs how many primary DB reads were avoided by
+ * reading the fields from a covering index. For example,
+ * <p>
+ * <pre>
+ * IndexViewExample -query -seckey email=&LT;email> -project name,cost
+ * </pre>
+ * Numeric fields are compared as numbers and the date field as a date in
+ * the format of {@link BillInfo#DATE_FORMAT}. Index Views that were built
+ * before range queries were supported have no format version, are not used
+ * by queries or updates, and must be dropped and built again.
  * <p>
  * <li>-showindex outputs the field names, schema name and current status of all
  * Index Views in the store.
@@ -226,6 +287,11 @@ public class IndexViewExample {
          */
         DROP_INDEX,
 
+        /**
+         * Compute the statistics of an Index View.
+         */
+        ANALYZE_INDEX,
+
         /**
          * Insert a record into the primary DB and create an Index View record.
          */
@@ -267,6 +333,10 @@ public class IndexViewExample {
         }
         binding = new Binding(kvstore.getAvroCatalog());
         indexViewService = new IndexViewService(kvstore, binding);
+        indexViewService.setDateFormat(BillInfo.SCHEMA_NAME, BillInfo.DATE,
+                                       BillInfo.DATE_FORMAT);
+        indexViewService.setPrimaryParentKey(BillInfo.SCHEMA_NAME,
+                                             BillInfo.getBillInfoPrefixKey());
     }
 
     void handle(Operation operation) {
@@ -280,6 +350,8 @@ public class IndexViewExample {
             buildIndexes();
         } else if (operation == Operation.DROP_INDEX) {
             dropIndexes();
+        } else if (operation == Operation.ANALYZE_INDEX) {
+            analyzeIndexes();
         } else if (operation == Operation.INSERT_RECORD) {
             insertRecord();
         } else if (operation == Operation.UPDATE_RECORD) {
@@ -354,7 +426,29 @@ public class IndexViewExample {
      * Builds Index View(s) for the fields supplied on the command line.
      */
     void buildIndexes() {
+        if (parser.resumableBuild) {
+            boolean built = indexViewService.buildIndexesResumable
+                (parser.indexFieldNames, parser.projectFieldNames,
+                 BillInfo.SCHEMA_NAME, BillInfo.getBillInfoPrefixKey());
+            System.out.println(indexViewService.getBuildProgress());
+            if (!built) {
+                System.out.println("Failed to build indexes. Run the " +
+                                   "command again to resume the build.");
+            }
+            return;
+        }
+        if (parser.onlineBuild) {
+            boolean built = indexViewService.buildIndexesOnline
+                (parser.indexFieldNames, parser.projectFieldNames,
+                 BillInfo.SCHEMA_NAME);
+            System.out.println(indexViewService.getBuildProgress());
+            if (!built) {
+                System.out.println("Failed to build indexes.");
+            }
+            return;
+        }
         if (!indexViewService.buildIndexes(parser.indexFieldNames,
+                                           parser.projectFieldNames,
                                            BillInfo.SCHEMA_NAME)) {
             System.out.println("Failed to build indexes.");
         }
@@ -370,6 +464,17 @@ public class IndexViewExample {
         }
     }
 
+    /**
+     * Computes the statistics of the Index View on the fields supplied on the
+     * command line.
+     */
+    void analyzeIndexes() {
+        if (!indexViewService.analyzeIndexes(parser.indexFieldNames,
+                                             BillInfo.SCHEMA_NAME)) {
+            System.out.println("Failed to analyze indexes.");
+        }
+    }
+
     /**
      * Inserts a record into primary DB and creates Index View record(s).
      */
@@ -531,10 +636,25 @@ public class IndexViewExample {
 
     /**
      * Retrieves the primary DB record(s) associated with the Index View key
-     * argument(s). In order to compare the query performance with and without
-     * Index Views, this function outputs the elapsed time for both cases.
+     * argument(s). The query is answered by the Index View or by a parallel
+     * scan, as chosen by the query planner, and the plan and elapsed time
+     * are output. With -explain, only the plan is output. With -compare, the
+     * query is also performed by a scan over the primary DB records, and
+     * both elapsed times are output.
      */
     void queryRecord() {
+        if (parser.explain) {
+            QueryPlan plan = getQueryPlan();
+            if (plan == null) {
+                throw new RuntimeException("No index can be used to query");
+            }
+            System.out.println(plan.explain());
+            return;
+        }
+        if (!parser.projectFieldNames.isEmpty()) {
+            queryProjected();
+            return;
+        }
         long msWithIndex = 0;
         long msWithoutIndex = 0;
 
@@ -543,6 +663,19 @@ public class IndexViewExample {
         Set<BillInfo> resultWithIndex = queryWithIndex();
         msWithIndex = System.currentTimeMillis() - start;
 
+        /* Prints stats */
+        System.out.println("Query result: ");
+        for (BillInfo mb : resultWithIndex) {
+            System.out.println(mb);
+        }
+
+        if (!parser.compare) {
+            System.out.println("Query stats: " + "\n" +
+                               "queryPlan = " + getQueryPlan() + "\n" +
+                               "duration(ms) = " + msWithIndex);
+            return;
+        }
+
         /* Queries primary DB records without using Index Views. */
         start = System.currentTimeMillis();
         Set<BillInfo> resultWithoutIndex = queryWithoutIndex();
@@ -555,28 +688,115 @@ public class IndexViewExample {
                  "non-Index View retrievals.");
         }
 
-        /* Prints stats */
-        System.out.println("Query result: ");
-        for (BillInfo mb : resultWithIndex) {
-            System.out.println(mb);
-        }
-
         if (!resultWithIndex.isEmpty()) {
             System.out.println("Query stats: " + "\n" +
+                               "queryPlan = " + getQueryPlan() + "\n" +
                                "durationUsingIndex(ms) = " + msWithIndex +
                                "\n" + "durationNotUsingIndex(ms) = " +
                                msWithoutIndex);
         }
     }
 
+    /* Returns the plan of the query given by the command line. */
+    private QueryPlan getQueryPlan() {
+        if (!parser.projectFieldNames.isEmpty()) {
+            return indexViewService.getProjectedQueryPlan
+                (parser.indexFieldNames, parser.indexFieldValues,
+                 parser.projectFieldNames, BillInfo.SCHEMA_NAME);
+        }
+        if (parser.rangeFieldName == null) {
+            return indexViewService.getQueryPlan(parser.indexFieldNames,
+                                                 parser.indexFieldValues,
+                                                 BillInfo.SCHEMA_NAME);
+        }
+        List<String> fieldNames =
+            new ArrayList<String>(parser.indexFieldNames);
+        fieldNames.add(parser.rangeFieldName);
+        return indexViewService.getRangeQueryPlan(fieldNames,
+                                                  parser.indexFieldValues,
+                                                  parser.rangeFrom,
+                                                  parser.rangeTo,
+                                                  BillInfo.SCHEMA_NAME);
+    }
+
+    /**
+     * Retrieves the -project fields of the primary DB record(s) associated
+     * with the Index View key argument(s), and outputs the number of primary
+     * DB reads made and avoided by using a covering index.
+     */
+    private void queryProjected() {
+        long start = System.currentTimeMillis();
+        long lookups = indexViewService.getPrimaryLookupCount();
+        long avoided = indexViewService.getAvoidedLookupCount();
+        SortedMap<Key, List<Object>> resultMap =
+            indexViewService.getProjectedKV(parser.indexFieldNames,
+                                            parser.indexFieldValues,
+                                            parser.projectFieldNames,
+                                            BillInfo.SCHEMA_NAME);
+        long msWithIndex = System.currentTimeMillis() - start;
+
+        if (resultMap == null) {
+            throw new RuntimeException("Failed to query using indexes");
+        }
+
+        /* Checks the number of records against a scan. */
+        if (parser.compare &&
+            resultMap.size() != queryWithoutIndex().size()) {
+            throw new RuntimeException
+                ("Inconsistency detected between Index View and " +
+                 "non-Index View retrievals.");
+        }
+
+        System.out.println("Query result: " + parser.projectFieldNames);
+        for (Entry<Key, List<Object>> entry : resultMap.entrySet()) {
+            System.out.println(entry.getKey() + " " + entry.getValue());
+        }
+        System.out.println("Query stats: " + "\n" +
+                           "queryPlan = " + getQueryPlan() + "\n" +
+                           "durationUsingIndex(ms) = " + msWithIndex + "\n" +
+                           "primaryLookups = " +
+                           (indexViewService.getPrimaryLookupCount() -
+                            lookups) + "\n" +
+                           "avoidedPrimaryLookups = " +
+                           (indexViewService.getAvoidedLookupCount() -
+                            avoided));
+    }
+
     /* Queries primary DB records using Index Views. */
     private Set<BillInfo> queryWithIndex() {
         Set<BillInfo> resultWithIndex = new HashSet<BillInfo>();
         System.out.println(parser.indexFieldValues);
+        if (parser.rangeFieldName == null) {
+
+            /* Streams the records as they are read from the shards. */
+            ParallelScanIterator<KeyValueVersion> psIt =
+                indexViewService.getPrimaryKVIterator(parser.indexFieldNames,
+                                                      parser.indexFieldValues,
+                                                      BillInfo.SCHEMA_NAME);
+            if (psIt == null) {
+                throw new RuntimeException("Failed to query using indexes");
+            }
+            try {
+                while (psIt.hasNext()) {
+                    KeyValueVersion kvv = psIt.next();
+                    resultWithIndex.add(new BillInfo
+                        (binding, kvv.getKey(), kvv.getValue()));
+                }
+            } finally {
+                psIt.close();
+            }
+            return resultWithIndex;
+        }
+
+        List<String> fieldNames =
+            new ArrayList<String>(parser.indexFieldNames);
+        fieldNames.add(parser.rangeFieldName);
         SortedMap<Key, ValueVersion> resultMap =
-            indexViewService.getPrimaryKV(parser.indexFieldNames,
-                                          parser.indexFieldValues,
-                                          BillInfo.SCHEMA_NAME);
+            indexViewService.getPrimaryKVRange(fieldNames,
+                                               parser.indexFieldValues,
+                                               parser.rangeFrom, true,
+                                               parser.rangeTo, true,
+                                               BillInfo.SCHEMA_NAME);
 
         if (resultMap == null) {
             throw new RuntimeException("Failed to query using indexes");
@@ -597,6 +817,11 @@ public class IndexViewExample {
      */
     private Set<BillInfo> queryWithoutIndex() {
         Set<BillInfo> resultWithoutIndex = new HashSet<BillInfo>();
+        List<String> fieldNames =
+            new ArrayList<String>(parser.indexFieldNames);
+        if (parser.rangeFieldName != null) {
+            fieldNames.add(parser.rangeFieldName);
+        }
         Key parentKey = BillInfo.getBillInfoPrefixKey();
         final ParallelScanIterator<KeyValueVersion> psIt =
             kvstore.storeIterator(Direction.UNORDERED,
@@ -618,7 +843,7 @@ public class IndexViewExample {
             }
 
             List<Object> list =
-                binding.toFields(kvv.getValue(), parser.indexFieldNames);
+                binding.toFields(kvv.getValue(), fieldNames);
 
             if (list == null) {
                 continue;
@@ -629,7 +854,10 @@ public class IndexViewExample {
                 strList.add(o.toString());
             }
 
-            if (parser.indexFieldValues.equals(strList)) {
+            int nPrefix = parser.indexFieldNames.size();
+            if (parser.indexFieldValues.equals(strList.subList(0, nPrefix)) &&
+                (parser.rangeFieldName == null ||
+                 inRange(list.get(nPrefix)))) {
                 BillInfo mobileBill =
                     new BillInfo(binding, kvv.getKey(), kvv.getValue());
                 resultWithoutIndex.add(mobileBill);
@@ -638,6 +866,46 @@ public class IndexViewExample {
         return resultWithoutIndex;
     }
 
+    /**
+     * Returns whether a value of the -range field is between the -from and
+     * -to arguments.
+     */
+    private boolean inRange(Object value) {
+        if (parser.rangeFrom != null &&
+            compareRangeValues(value, parser.rangeFrom) < 0) {
+            return false;
+        }
+        if (parser.rangeTo != null &&
+            compareRangeValues(value, parser.rangeTo) > 0) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Compares a field value with a command line argument in the order used
+     * by the Index View.
+     */
+    private int compareRangeValues(Object value, String arg) {
+        if (value instanceof Number) {
+            return Double.compare(((Number) value).doubleValue(),
+                                  Double.parseDouble(arg));
+        }
+        if (BillInfo.DATE.equals(parser.rangeFieldName)) {
+            SimpleDateFormat format =
+                new SimpleDateFormat(BillInfo.DATE_FORMAT);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            format.setLenient(false);
+            try {
+                return format.parse(value.toString()).compareTo
+                    (format.parse(arg));
+            } catch (ParseException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return value.toString().compareTo(arg);
+    }
+
 
     /**
      * Outputs field names, schema name and current status of all Index Views
@@ -685,6 +953,7 @@ public class IndexViewExample {
         private static final String LOAD_DATA_FLAG = "-loaddata";
         private static final String BUILD_INDEX_FLAG = "-buildindex";
         private static final String DROP_INDEX_FLAG = "-dropindex";
+        private static final String ANALYZE_INDEX_FLAG = "-analyzeindex";
         private static final String INSERT_RECORD_FLAG = "-insert";
         private static final String DELETE_RECORD_FLAG = "-delete";
         private static final String UPDATE_RECORD_FLAG = "-update";
@@ -696,6 +965,19 @@ public class IndexViewExample {
         private static final String PRIMARY_KEY_FLAG = "-key";
         private static final String SECONDARY_KEY_FLAG = "-seckey";
         private static final String VALUE_FLAG = "-value";
+        private static final String RESUMABLE_FLAG = "-resumable";
+        private static final String ONLINE_FLAG = "-online";
+        private static final String PROJECT_FLAG = "-project";
+        private static final String PROJECT_USAGE =
+            PROJECT_FLAG + " <field_name1>[,field_name2]*";
+        private static final String RANGE_FLAG = "-range";
+        private static final String FROM_FLAG = "-from";
+        private static final String TO_FLAG = "-to";
+        private static final String RANGE_USAGE =
+            RANGE_FLAG + " <field_name> [" + FROM_FLAG + " <field_value>] [" +
+            TO_FLAG + " <field_value>]";
+        private static final String EXPLAIN_FLAG = "-explain";
+        private static final String COMPARE_FLAG = "-compare";
 
         /* Data file directory */
         String dataFileDir = "example_data.csv";
@@ -706,6 +988,12 @@ public class IndexViewExample {
         /* Index View field values. */
         List<Object> indexFieldValues = new ArrayList<Object>();
 
+        /**
+         * The fields stored by a covering index that is built, or returned
+         * by a query.
+         */
+        List<String> projectFieldNames = new ArrayList<String>();
+
         /* Primary key for inserting, updating or deleting primary DB record. */
         String primaryKey = null;
 
@@ -726,6 +1014,33 @@ public class IndexViewExample {
          */
         Boolean secIndexUsed;
 
+        /**
+         * If true, Index Views are built in checkpointed segments so that a
+         * failed build can be resumed.
+         */
+        boolean resumableBuild = false;
+
+        /**
+         * If true, Index Views are built while the primary DB records are
+         * being updated.
+         */
+        boolean onlineBuild = false;
+
+        /**
+         * The field queried by a range, which follows the -seckey fields in
+         * the Index View, and the bounds of the range. A null bound leaves
+         * that end of the range open.
+         */
+        String rangeFieldName = null;
+        String rangeFrom = null;
+        String rangeTo = null;
+
+        /* If true, the plan of a query is output and it is not performed. */
+        boolean explain = false;
+
+        /* If true, a query is also performed by a scan, for comparison. */
+        boolean compare = false;
+
         ExecutorParser(String[] args) {
             if (args == null) {
                 throw new IllegalArgumentException();
@@ -752,6 +1067,10 @@ public class IndexViewExample {
                 op = Operation.DROP_INDEX;
                 return true;
             }
+            if (arg.equals(ANALYZE_INDEX_FLAG)) {
+                op = Operation.ANALYZE_INDEX;
+                return true;
+            }
             if (arg.equals(INSERT_RECORD_FLAG)) {
                 op = Operation.INSERT_RECORD;
                 return true;
@@ -803,6 +1122,40 @@ public class IndexViewExample {
                 }
                 return true;
             }
+            if (arg.equals(RESUMABLE_FLAG)) {
+                resumableBuild = true;
+                return true;
+            }
+            if (arg.equals(ONLINE_FLAG)) {
+                onlineBuild = true;
+                return true;
+            }
+            if (arg.equals(PROJECT_FLAG)) {
+                String nameString = nextArg(arg);
+                projectFieldNames.addAll
+                    (Arrays.asList(nameString.split(",")));
+                return true;
+            }
+            if (arg.equals(RANGE_FLAG)) {
+                rangeFieldName = nextArg(arg);
+                return true;
+            }
+            if (arg.equals(FROM_FLAG)) {
+                rangeFrom = nextArg(arg);
+                return true;
+            }
+            if (arg.equals(TO_FLAG)) {
+                rangeTo = nextArg(arg);
+                return true;
+            }
+            if (arg.equals(EXPLAIN_FLAG)) {
+                explain = true;
+                return true;
+            }
+            if (arg.equals(COMPARE_FLAG)) {
+                compare = true;
+                return true;
+            }
             if (arg.equals(HOST_FLAG)) {
                 hostname = nextArg(arg);
                 return true;
@@ -867,16 +1220,18 @@ public class IndexViewExample {
             if (op == Operation.LOAD_DATA) {
 
             } else if (op == Operation.BUILD_INDEX ||
-                       op == Operation.DROP_INDEX) {
+                       op == Operation.DROP_INDEX ||
+                       op == Operation.ANALYZE_INDEX) {
 
                 /**
-                 * For Index View build and drop operations, index field names
-                 * are required.
+                 * For Index View build, drop and analyze operations, index
+                 * field names are required.
                  */
                 if (indexFieldNames.size() == 0) {
                     missingArg(NAME_FLAG);
                 }
                 check(indexFieldNames);
+                check(projectFieldNames);
             } else if (op == Operation.INSERT_RECORD) {
 
                 /**
@@ -917,12 +1272,23 @@ public class IndexViewExample {
                 }
 
                 /**
-                 * For a query operation, Index View key arguments are required.
+                 * For a query operation, Index View key arguments are required
+                 * unless a range is queried, which needs at least one bound.
                  */
-                if (indexFieldNames.size() == 0) {
+                if (rangeFieldName != null) {
+                    if (rangeFrom == null && rangeTo == null) {
+                        missingArg(FROM_FLAG + " or " + TO_FLAG);
+                    }
+                    if (!projectFieldNames.isEmpty()) {
+                        usage(PROJECT_FLAG + " is not supported with " +
+                              RANGE_FLAG);
+                    }
+                    check(Arrays.asList(rangeFieldName));
+                } else if (indexFieldNames.size() == 0) {
                     missingArg(SECONDARY_KEY_FLAG);
                 }
                 check(indexFieldNames);
+                check(projectFieldNames);
             } else if (op == Operation.SHOW_INDEX) {
                 // Nothing to check.
             } else {
@@ -950,8 +1316,13 @@ public class IndexViewExample {
             System.err.println("Usage:" + "\n\t" + "[" + LOAD_DATA_FLAG + " " +
                                optional(DATA_FILE_USAGE) + "]" + "\n\t" + "[" +
                                BUILD_INDEX_FLAG + " " + FIELD_NAME_USAGE +
+                               " " + optional(PROJECT_USAGE) +
+                               " " + optional(RESUMABLE_FLAG + " | " +
+                                             ONLINE_FLAG) +
                                "]" + "\n\t" + "[" + DROP_INDEX_FLAG + " " +
                                FIELD_NAME_USAGE + "]" + "\n\t" + "[" +
+                               ANALYZE_INDEX_FLAG + " " + FIELD_NAME_USAGE +
+                               "]" + "\n\t" + "[" +
                                INSERT_RECORD_FLAG + " " + PRIMARY_KV_USAGE +
                                "]" + "\n\t" + "[" + UPDATE_RECORD_FLAG + " " +
                                "[" + PRIMARY_KEY_USAGE + " " + "| " +
@@ -961,7 +1332,12 @@ public class IndexViewExample {
                                PRIMARY_KEY_USAGE + " " + "|" + "\n\t" +
                                "          " + SECONDARY_KEY_USAGE + "]" + "]" +
                                "\n\t" + "[" + QUERY_RECORD_FALG + " " +
-                               SECONDARY_KEY_USAGE + "]" + "\n\t" + "[" +
+                               "[" + SECONDARY_KEY_USAGE + "]" + "\n\t" +
+                               "        " + optional(RANGE_USAGE) + " " +
+                               optional(PROJECT_USAGE) + "\n\t" +
+                               "        " + optional(EXPLAIN_FLAG + " | " +
+                                                     COMPARE_FLAG) + "]" +
+                               "\n\t" + "[" +
                                SHOW_INDEX_FLAG + "]" + "\n\t" +
                                optional(getHostUsage()) + " " +
                                optional(getPortUsage()) + " " +
@@ -43,26 +43,50 @@
 
 package secondaryindex;
 
+import java.io.UnsupportedEncodingException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Random;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.SortedSet;
 import java.util.TreeMap;
-
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import oracle.kv.Depth;
 import oracle.kv.Direction;
 import oracle.kv.FaultException;
 import oracle.kv.KVStore;
 import oracle.kv.Key;
+import oracle.kv.KeyRange;
 import oracle.kv.KeyValueVersion;
+import oracle.kv.Operation;
+import oracle.kv.OperationExecutionException;
+import oracle.kv.OperationFactory;
 import oracle.kv.ParallelScanIterator;
 import oracle.kv.StoreIteratorConfig;
 import oracle.kv.Value;
 import oracle.kv.ValueVersion;
+import oracle.kv.stats.DetailedMetrics;
+
+import org.apache.avro.Schema;
 
 /**
  * This class implements the methods for creating, updating and deleting Index
@@ -71,7 +95,14 @@ import oracle.kv.ValueVersion;
  * Index Views are a kind of custom secondary index implemented using the
  * KVStore APIs and are a mappings between the secondary keys and the primary
  * key. The Index View records are stored in the NoSQL Database as key-only
- * records where the Value part of the record is Value.EMPTY_VALUE.
+ * records where the Value part of the record is Value.EMPTY_VALUE, except for
+ * covering Index Views.
+ * <p>
+ * A covering Index View is built with a projection: a list of fields of the
+ * primary DB records whose values are stored in the Value of each Index View
+ * record by an {@link IndexProjection}. A query that only needs those fields
+ * is answered from the Index View by {@link #getProjectedKV}, without reading
+ * the primary DB records.
  * <p>
  * It is important to keep minimize key sizes in order to reduce memory
  * usage by NoSQL Database. Therefore, when designing applications that
@@ -83,7 +114,7 @@ import oracle.kv.ValueVersion;
  * <p>
  * The Key of each pair follows the following schema:
  * <p>
- * /INDEX_KEY_PREFIX/INDEX_NAME/FIELD_VALUE1/FIELD_VALUE2/.../-/PRIMARY_KEY/
+ * /INDEX_KEY_PREFIX/INDEX_NAME/FIELD_VALUE1/-/FIELD_VALUE2/.../PRIMARY_KEY/
  * <p>
  *
  * INDEX_KEY_PREFIX is a prefix used to distinguish Index View data from
@@ -98,7 +129,25 @@ import oracle.kv.ValueVersion;
  * FIELD_VALUEs is a list holding values of index fields related to INDEX_NAME.
  * The values are stored in multiple components and its order depends on the
  * sequence of indexFieldNames list specified when the user calls
- * {@link #buildIndexes(List, String)}.
+ * {@link #buildIndexes(List, String)}. Each value is encoded by an {@link
+ * IndexKeyEncoder} so that the components sort in the order of the values:
+ * numeric fields are stored as fixed length hex strings and string fields
+ * for which a date format has been set with {@link #setDateFormat} are
+ * stored as times, which allows {@link #getPrimaryKVRange} to read a range
+ * of values with a single KeyRange. Other strings are stored unchanged.
+ * Index Views built before this encoding was introduced stored all values
+ * with toString; they have no format version in their metadata, and are
+ * neither queried nor updated until they are dropped and built again.
+ * <p>
+ *
+ * Only the first value is part of the major path, so all the records with
+ * the same value of the first field are in the same partition, and a query
+ * on the leading fields of a multi-column Index View reads them with a
+ * single multiGetKeys on a minor path prefix; see {@link QueryPlan}. Multi-
+ * column Index Views built before this layout was introduced stored all
+ * values in the major path. Like those built before the encoding above,
+ * they are detected by their missing format version, and must be dropped
+ * and built again.
  * <p>
  *
  * Index View metadata info is also stored in the NoSQL Database. Each metadata
@@ -126,9 +175,50 @@ import oracle.kv.ValueVersion;
  * order is specified while calling {@link #buildIndexes(List, String)}.
  * <p>
  *
+ * The Value of the metadata KV pair holds the format version of the Index
+ * View records, followed by a semicolon and the names of the projected fields
+ * of a covering Index View, separated by commas. The format version is
+ * {@link #INDEX_FORMAT_VERSION} when the Index View is built, and is 0 for
+ * the metadata of Index Views built before it was stored, whose Value holds
+ * only the projected field names. Queries do not use, and {@link
+ * #putIndexKV} and {@link #deleteIndexKV} refuse to update, an Index View
+ * with an older format version; it can only be dropped, and built again.
+ * <p>
+ *
  * INDEX_STATE is a flag denoting if the current index is available for the
- * index operations. It includes three types: "BUILDING", "DELETING" and
- * "READY". The index can be used only when its status is "READY".
+ * index operations. It includes five types: "BUILDING", "BUILDING_ONLINE",
+ * "DRAINING", "DELETING" and "READY". The index can be used only when its
+ * status is "READY".
+ * <p>
+ *
+ * While an Index View is built by {@link #buildIndexesResumable}, a
+ * checkpoint is stored for each completed build segment. The checkpoints are
+ * deleted when the build completes. Their Keys follow this schema:
+ * <p>
+ *
+ * /INDEX_BUILD_KEY_PREFIX/INDEX_NAME/-/SEGMENT_KEY_RANGE
+ * <p>
+ *
+ * While an Index View is built by {@link #buildIndexesOnline}, its state is
+ * "BUILDING_ONLINE" and the Keys of the Index View records that {@link
+ * #putIndexKV} and {@link #deleteIndexKV} would put or delete are appended
+ * to a side log instead. When the build scan is done the state becomes
+ * "DRAINING", in which the changes are applied, but the index is not yet
+ * queried, until the log has been replayed. The Value of a log record holds
+ * the Index View Key, and its Key follows this schema, where SEQUENCE is
+ * unique to the IndexViewService instance that made the change:
+ * <p>
+ *
+ * /INDEX_LOG_KEY_PREFIX/INDEX_NAME/-/SEQUENCE
+ * <p>
+ *
+ * The statistics of an Index View, used by the query planner, are computed
+ * when it is built and by {@link #analyzeIndexes}. The Value of their KV
+ * pair is written by {@link IndexStatistics}, and its Key follows this
+ * schema:
+ * <p>
+ *
+ * /INDEX_STATISTICS_KEY_PREFIX/INDEX_NAME
  * <p>
  *
  * Inconsistencies between user records and Index View data if multiple JVM
@@ -158,7 +248,17 @@ import oracle.kv.ValueVersion;
  * {@link #buildIndexes(List, String)}: Builds Index Views on the input fields
  * for primary DB records associated in the given schema. Since this method
  * iterates over primary DB records, it may take an arbitrarily long time to
- * complete.
+ * complete. The records are read with a parallel store iteration, and are
+ * decoded and indexed by a pool of build threads, see {@link
+ * #setBuildThreads}.
+ * <p>
+ *
+ * {@link #buildIndexesResumable(List, String, Key)}: Builds Index Views in
+ * checkpointed segments, so that a failed build can be resumed.
+ * <p>
+ *
+ * {@link #buildIndexesOnline(List, String)}: Builds Index Views while the
+ * primary DB records are being updated, without a write freeze.
  * <p>
  *
  * {@link #dropIndexes(List, String)}: Drops one or more Index Views specified
@@ -181,6 +281,26 @@ import oracle.kv.ValueVersion;
  *
  * {@link #getPrimaryKV(List, List, String)}: Gets primary DB KV pairs
  * associated with an Index View.
+ * <p>
+ *
+ * {@link #getPrimaryKVIterator}: Streams the primary DB KV pairs associated
+ * with an Index View, reading them concurrently from all shards.
+ * <p>
+ *
+ * {@link #getPrimaryKVRange}: Gets primary DB KV pairs whose index field
+ * value is in a range.
+ * <p>
+ *
+ * {@link #getProjectedKV}: Gets fields of the primary DB records associated
+ * with an Index View, from a covering Index View when possible. The number
+ * of primary DB reads avoided in this way is returned by {@link
+ * #getAvoidedLookupCount}.
+ * <p>
+ *
+ * {@link #getQueryPlan}: Explains how a query is performed: the Index View
+ * it reads, and whether the statistics of the Index View show that a
+ * parallel scan of the primary DB records is cheaper; see {@link
+ * QueryPlan}.
  */
 public class IndexViewService {
 
@@ -192,6 +312,102 @@ public class IndexViewService {
     /* Majorpath prefix of Index View metadata KV pairs. */
     private static final String INDEX_METADATA_KEY_PREFIX = "META";
 
+    /* Majorpath prefix of Index View build checkpoint KV pairs. */
+    private static final String INDEX_BUILD_KEY_PREFIX = "IDXBUILD";
+
+    /* Majorpath prefix of the side log of an online Index View build. */
+    private static final String INDEX_LOG_KEY_PREFIX = "IDXLOG";
+
+    /* Majorpath prefix of Index View statistics KV pairs. */
+    private static final String INDEX_STATISTICS_KEY_PREFIX = "IDXSTAT";
+
+    /* Separates the projected field names in the metadata Value. */
+    private static final String PROJECTION_SEPARATOR = ",";
+
+    /* Separates the format version from the projected field names. */
+    private static final String FORMAT_VERSION_SEPARATOR = ";";
+
+    /**
+     * The format version of the Index View records: the encoding of the
+     * field values in the Key, the split of the Key between the major and
+     * minor paths, and the Value holding the projected fields. It must be
+     * incremented whenever any of them changes, so that Index Views built
+     * in an older format are detected rather than misread.
+     */
+    static final int INDEX_FORMAT_VERSION = 1;
+
+    /* Number of side log records read and deleted at a time. */
+    private static final int LOG_REPLAY_BATCH_SIZE = 100;
+
+    /* The default grace period of an online build, the request timeout. */
+    private static final long DEFAULT_LOG_GRACE_PERIOD_MS = 5000;
+
+    /**
+     * The characters at which the primary keys are split into segments by
+     * {@link #buildIndexesResumable}. A segment boundary is placed at each
+     * character, applied to the first Key component below the parent Key.
+     */
+    private static final String BUILD_SEGMENT_BOUNDARIES =
+        "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+
+    /* Number of times a failed build segment is retried. */
+    private static final int BUILD_SEGMENT_RETRIES = 3;
+
+    /* Delay between attempts at a failed build segment. */
+    private static final long BUILD_SEGMENT_RETRY_DELAY_MS = 1000;
+
+    /*
+     * The costs used by the query planner, relative to the cost of reading
+     * a record with a parallel scan of the primary DB: reading the key of an
+     * Index View record, and reading a primary DB record by its key.
+     */
+    private static final double INDEX_RECORD_COST = 0.5;
+    private static final double PRIMARY_FETCH_COST = 3;
+
+    /* Number of records handed to a build thread at a time. */
+    private static final int BUILD_BATCH_SIZE = 256;
+
+    /* Number of batches queued for each build thread. */
+    private static final int BUILD_QUEUED_BATCHES_PER_THREAD = 2;
+
+    /* The progress of the current or last build. */
+    private volatile BuildProgress buildProgress;
+
+    /* Index Key encoders by index name. */
+    private final ConcurrentHashMap<String, IndexKeyEncoder> keyEncoders =
+        new ConcurrentHashMap<String, IndexKeyEncoder>();
+
+    /* Projections of covering Index Views by index name. */
+    private final ConcurrentHashMap<String, IndexProjection> projections =
+        new ConcurrentHashMap<String, IndexProjection>();
+
+    /* The iterator configuration of the primary DB reads of queries. */
+    private volatile StoreIteratorConfig fetchIteratorConfig =
+        new StoreIteratorConfig();
+
+    /* Primary DB reads made and avoided by queries. */
+    private final AtomicLong primaryLookups = new AtomicLong();
+    private final AtomicLong avoidedLookups = new AtomicLong();
+
+    /* The parent keys of the primary DB records by schema name. */
+    private final ConcurrentHashMap<String, Key> primaryParentKeys =
+        new ConcurrentHashMap<String, Key>();
+
+    /* Date format patterns by schema name and field name. */
+    private final ConcurrentHashMap<String, Map<String, String>> dateFormats =
+        new ConcurrentHashMap<String, Map<String, String>>();
+
+    /* Orders the side log records written by this instance. */
+    private final int logInstanceId = new Random().nextInt();
+    private final AtomicInteger logSequence = new AtomicInteger();
+
+    /* The time a caller may take to write a record after logging it. */
+    private volatile long logGracePeriodMs = DEFAULT_LOG_GRACE_PERIOD_MS;
+
+    /* Number of threads that decode and index records during a build. */
+    private volatile int buildThreads =
+        Math.max(2, Runtime.getRuntime().availableProcessors());
+
     private final MessageDigest digest;
 
     /**
@@ -220,6 +436,67 @@ public class IndexViewService {
         }
     }
 
+    /**
+     * Sets the grace period of {@link #buildIndexesOnline}: the time a
+     * caller of {@link #putIndexKV} or {@link #deleteIndexKV} is expected to
+     * take, at most, to write the primary DB record after the change has
+     * been logged. The replay of the side log waits for it before it
+     * reconciles the logged Keys with the primary DB records. The default is
+     * 5 seconds, the default request timeout of the store.
+     */
+    public void setLogGracePeriod(long timeout, TimeUnit unit) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException
+                ("The grace period must not be negative: " + timeout);
+        }
+        logGracePeriodMs = unit.toMillis(timeout);
+    }
+
+    /**
+     * Sets the number of threads that decode primary DB records and write
+     * Index View records during a build. The default is the number of
+     * available processors, and at least two.
+     */
+    public void setBuildThreads(int nThreads) {
+        if (nThreads <= 0) {
+            throw new IllegalArgumentException
+                ("The number of build threads must be positive: " + nThreads);
+        }
+        buildThreads = nThreads;
+    }
+
+    /**
+     * Declares that a string field of a schema holds dates in the given
+     * SimpleDateFormat pattern, so that Index Views on the field sort by
+     * date and can be queried by date range. It must be called before the
+     * Index Views on the field are built or used, by every instance of this
+     * class.
+     */
+    public void setDateFormat(String schemaName,
+                              String fieldName,
+                              String pattern) {
+        Map<String, String> formats = new HashMap<String, String>();
+        Map<String, String> current = dateFormats.get(schemaName);
+        if (current != null) {
+            formats.putAll(current);
+        }
+        formats.put(fieldName, pattern);
+        dateFormats.put(schemaName, formats);
+        keyEncoders.clear();
+    }
+
+    /**
+     * Sets the parent key of the primary DB records of a schema: all the
+     * records of the schema must have keys at or below it. It allows the
+     * query planner to answer a query that would read many Index View
+     * records with a parallel scan of the primary DB records below the
+     * parent key instead; see {@link QueryPlan}. It must be called before
+     * queries are made, by every instance of this class.
+     */
+    public void setPrimaryParentKey(String schemaName, Key parentKey) {
+        primaryParentKeys.put(schemaName, parentKey);
+    }
+
     /**
      * Checks whether the given Key is an index or metadata key.
      */
@@ -228,7 +505,10 @@ public class IndexViewService {
         if (key != null) {
             String prefix = key.getMajorPath().get(0);
             if (INDEX_KEY_PREFIX.equals(prefix) ||
-                INDEX_METADATA_KEY_PREFIX.equals(prefix)) {
+                INDEX_METADATA_KEY_PREFIX.equals(prefix) ||
+                INDEX_BUILD_KEY_PREFIX.equals(prefix) ||
+                INDEX_LOG_KEY_PREFIX.equals(prefix) ||
+                INDEX_STATISTICS_KEY_PREFIX.equals(prefix)) {
                 result = true;
             }
         }
@@ -241,89 +521,319 @@ public class IndexViewService {
      * Returns an empty map if there are no records found in the
      * database. Returns null if there are no proper indexes that can be used
      * to query or the index state is not READY.
+     * <p>
+     * The primary DB records are read by {@link #getPrimaryKVIterator}. Use
+     * it directly to process a large result without holding it in memory.
      */
     public SortedMap<Key, ValueVersion>
         getPrimaryKV(List<String> indexFieldNames,
                      List<Object> indexFieldValues,
                      String schemaName) {
 
-        boolean useCompleteIndex = true;
+        ParallelScanIterator<KeyValueVersion> psIt =
+            getPrimaryKVIterator(indexFieldNames, indexFieldValues,
+                                 schemaName);
+        if (psIt == null) {
+            return null;
+        }
+        return toSortedMap(psIt);
+    }
 
-        SortedMap<Key, ValueVersion> resultMap =
-            new TreeMap<Key, ValueVersion>();
+    /**
+     * Returns an iterator over the primary DB KV pairs associated with an
+     * Index View, in no particular order. Returns null if there are no
+     * proper indexes that can be used to query or the index state is not
+     * READY. The iterator must be closed when it is no longer needed.
+     * <p>
+     * The Index View is chosen as described in {@link #getQueryPlan}: the
+     * Index View on indexFieldNames, or else a multi-column Index View whose
+     * leading fields are among them, of which only the records with the
+     * given values of those fields are read. If the statistics of the Index
+     * View show that a parallel scan of the primary DB records is cheaper,
+     * the records are read by a scan instead.
+     * <p>
+     * The Index View records are read in batches, and the primary keys they
+     * refer to are passed on as they are read to a store iterator over a
+     * set of parent keys. It groups the keys by shard and reads the records
+     * of the shards concurrently, with the number of requests in flight
+     * limited by {@link #setPrimaryFetchConcurrency}, and returns each record
+     * as soon as it has been read. Neither the Index View keys nor the
+     * results are held in memory, except for a bounded number of batches.
+     */
+    public ParallelScanIterator<KeyValueVersion>
+        getPrimaryKVIterator(List<String> indexFieldNames,
+                             List<Object> indexFieldValues,
+                             String schemaName) {
+
+        QueryPlan plan =
+            getQueryPlan(indexFieldNames, indexFieldValues, schemaName);
+        if (plan == null) {
+            return null;
+        }
+        return getPrimaryKVIterator(plan, indexFieldValues);
+    }
 
-        /* Checks which type of Index View can be used for the query. */
-        String indexName = getIndexName(schemaName, indexFieldNames);
-        IndexState state = getIndexState(indexName);
+    /* Runs an equality query plan. */
+    private ParallelScanIterator<KeyValueVersion>
+        getPrimaryKVIterator(QueryPlan plan, List<Object> indexFieldValues) {
 
-        if (state == null) {
+        if (plan.getAccessMethod() == AccessMethod.PARALLEL_SCAN) {
+            return scanPrimaryKV(plan, indexFieldValues,
+                                 null, false, null, false);
+        }
+        return fetchPrimaryKV(scanIndexKeys(plan, indexFieldValues, null),
+                              getResidualFilter(plan, indexFieldValues));
+    }
 
-            /**
-             * If there is no Index View built using indexFieldNames, try to
-             * find an existing multi-column index which can be used to filter
-             * primary DB records on the input indexFieldNames.
-             */
-            indexName = getAvailableIndexName(schemaName, indexFieldNames);
-            if ("".equals(indexName)) {
-                return null;
+    /**
+     * Sets the maximum number of concurrent requests made to read the primary
+     * DB records of a query. The default, 0, lets the store choose it from
+     * the number of shards and available processors.
+     */
+    public void setPrimaryFetchConcurrency(int maxConcurrentRequests) {
+        if (maxConcurrentRequests < 0) {
+            throw new IllegalArgumentException
+                ("Negative number of concurrent requests: " +
+                 maxConcurrentRequests);
+        }
+        StoreIteratorConfig config = new StoreIteratorConfig();
+        config.setMaxConcurrentRequests(maxConcurrentRequests);
+        fetchIteratorConfig = config;
+    }
+
+    /**
+     * Returns an iterator over the primary DB records referred to by the
+     * given Index View keys and accepted by the filter, if not null. The
+     * Index View scan is closed with the returned iterator.
+     */
+    private ParallelScanIterator<KeyValueVersion>
+        fetchPrimaryKV(Iterator<Key> indexKeys, RecordFilter filter) {
+
+        PrimaryFetch fetch = new PrimaryFetch(indexKeys, filter);
+        try {
+            fetch.open();
+        } catch (RuntimeException e) {
+            fetch.close();
+            throw e;
+        }
+        return fetch;
+    }
+
+    /* Reads and closes an iterator of primary DB records into a Map. */
+    private static SortedMap<Key, ValueVersion>
+        toSortedMap(ParallelScanIterator<KeyValueVersion> psIt) {
+
+        SortedMap<Key, ValueVersion> resultMap =
+            new TreeMap<Key, ValueVersion>();
+        try {
+            while (psIt.hasNext()) {
+                KeyValueVersion kvv = psIt.next();
+                resultMap.put(kvv.getKey(),
+                              new ValueVersion(kvv.getValue(),
+                                               kvv.getVersion()));
             }
-            state = getIndexState(indexName);
-            useCompleteIndex = false;
+        } finally {
+            psIt.close();
         }
+        return resultMap;
+    }
 
-        /**
-         * The operation can be performed only when the index state is READY
-         * and the index metadata conforms to schema name of the user
-         * record.
-         */
-        if (!IndexState.READY.equals(state)) {
+    /**
+     * Returns a Map mapping primary DB KV keys to their related values, for
+     * the records whose last field in indexFieldNames has a value between
+     * start and end, and whose other fields in indexFieldNames are equal to
+     * prefixValues. For example, with indexFieldNames [cost] and no
+     * prefixValues it finds the records whose cost is in a range, and with
+     * [userID, date] and prefixValues [ID] it finds the records of one user
+     * in a range of dates. Values are compared as described in {@link
+     * IndexKeyEncoder}.
+     * <p>
+     * A null start or end leaves that end of the range open. Returns an
+     * empty map if there are no records found in the database. Returns null
+     * if there is no READY Index View on indexFieldNames, or on a list of
+     * fields that begins with the prefix fields, in any order, followed by
+     * the last field; see {@link #getRangeQueryPlan}.
+     */
+    public SortedMap<Key, ValueVersion>
+        getPrimaryKVRange(List<String> indexFieldNames,
+                          List<Object> prefixValues,
+                          Object start,
+                          boolean startInclusive,
+                          Object end,
+                          boolean endInclusive,
+                          String schemaName) {
+
+        if (prefixValues.size() != indexFieldNames.size() - 1) {
+            throw new IllegalArgumentException
+                ("Expected " + (indexFieldNames.size() - 1) +
+                 " prefix values for index fields " + indexFieldNames +
+                 ": " + prefixValues);
+        }
+
+        /* Both complete and longer Index Views can be read with a range. */
+        QueryPlan plan = getRangeQueryPlan(indexFieldNames, prefixValues,
+                                           start, end, schemaName);
+        if (plan == null) {
             return null;
         }
+        if (plan.getAccessMethod() == AccessMethod.PARALLEL_SCAN) {
+            return toSortedMap(scanPrimaryKV(plan, prefixValues,
+                                             start, startInclusive,
+                                             end, endInclusive));
+        }
 
-        /* Query using the Index View. */
-        Key parentKey = getIndexViewKey(indexName, indexFieldValues, null);
+        /*
+         * The range applies to the Key component that follows the prefix
+         * values, which holds the encoded value of the last field.
+         */
+        IndexKeyEncoder encoder = getKeyEncoder(plan.getIndex());
+        int position = prefixValues.size();
+        KeyRange subRange = null;
+        if (start != null || end != null) {
+            subRange = new KeyRange
+                ((start == null) ? null : encoder.encode(position, start),
+                 startInclusive,
+                 (end == null) ? null : encoder.encode(position, end),
+                 endInclusive);
+        }
 
-        if (useCompleteIndex) {
-            Set<Key> keySet = kvstore.multiGetKeys(parentKey, null, null);
-            for (Key key : keySet) {
+        return toSortedMap(fetchPrimaryKV
+                           (scanIndexKeys(plan, prefixValues, subRange),
+                            null));
+    }
 
-                /* Get the primary key referred to by the Index View. */
-                Key primaryKey = Key.fromString(key.getMinorPath().get(0));
+    /**
+     * Returns a Map mapping the primary DB keys of the records associated
+     * with an Index View, like {@link #getPrimaryKV}, to the values of their
+     * fieldNames fields. If the Index View used is a covering Index View whose
+     * projected fields include all of fieldNames, the values are read from
+     * the Index View records and the primary DB records are not read, which
+     * is counted by {@link #getAvoidedLookupCount}. Otherwise the primary DB
+     * records are read as by {@link #getPrimaryKVIterator}.
+     * <p>
+     * Returns an empty map if there are no records found in the
+     * database. Returns null if there are no proper indexes that can be used
+     * to query or the index state is not READY.
+     */
+    public SortedMap<Key, List<Object>>
+        getProjectedKV(List<String> indexFieldNames,
+                       List<Object> indexFieldValues,
+                       List<String> fieldNames,
+                       String schemaName) {
+
+        QueryPlan plan = getProjectedQueryPlan(indexFieldNames,
+                                               indexFieldValues,
+                                               fieldNames, schemaName);
+        if (plan == null) {
+            return null;
+        }
+        IndexMetadata metadata = plan.getIndex();
+
+        /*
+         * The positions of fieldNames among the projected fields. Queries on
+         * fields that are not in the Index View read the primary DB records
+         * to check them, and so do those answered by a parallel scan.
+         */
+        List<String> projected = metadata.getProjectedFieldNames();
+        IndexProjection projection = null;
+        int[] positions = new int[fieldNames.size()];
+        if (isCovering(plan, fieldNames) &&
+            plan.getAccessMethod() != AccessMethod.PARALLEL_SCAN) {
+            projection = getProjection(metadata);
+            for (int i = 0; i < positions.length; i++) {
+                positions[i] = projected.indexOf(fieldNames.get(i));
+            }
+        }
 
-                /* Queries primary DB records. */
-                ValueVersion vv = kvstore.get(primaryKey);
-                if (vv != null) {
-                    resultMap.put(primaryKey, vv);
+        SortedMap<Key, List<Object>> resultMap =
+            new TreeMap<Key, List<Object>>();
+
+        /* Reads the fields from the primary DB records. */
+        if (projection == null) {
+            ParallelScanIterator<KeyValueVersion> fetch =
+                getPrimaryKVIterator(plan, indexFieldValues);
+            try {
+                while (fetch.hasNext()) {
+                    KeyValueVersion kvv = fetch.next();
+                    List<Object> result = binding.toFields
+                        (kvv.getValue(), schemaName, fieldNames);
+                    if (result != null) {
+                        resultMap.put(kvv.getKey(), result);
+                    }
                 }
+            } finally {
+                fetch.close();
             }
-        } else {
-            final ParallelScanIterator<Key> psIt =
-                kvstore.storeKeysIterator(Direction.UNORDERED,
-                                          0, /* batchSize */
-                                          parentKey,
-                                          null /* subRange */,
-                                          null, /* depth */
-                                          null, /* consistency */
-                                          0, /* timeout */
-                                          null,
-                                          storeIteratorConfig);
-            while (psIt.hasNext()) {
-                final Key itKey = psIt.next();
+            return resultMap;
+        }
+
+        /* Index View records without projected fields, read afterwards. */
+        List<Key> uncovered = new ArrayList<Key>();
+        Iterator<KeyValueVersion> it = scanIndex(plan, indexFieldValues);
+        try {
+            while (it.hasNext()) {
+                final KeyValueVersion kvv = it.next();
 
                 /* Get the primary key referred to by the Index View. */
-                Key primaryKey = Key.fromString(itKey.getMinorPath().get(0));
+                Key primaryKey = getPrimaryKey(kvv.getKey());
 
-                /* Finds the primary DB record. */
-                ValueVersion vv = kvstore.get(primaryKey);
-                if (vv != null) {
-                    resultMap.put(primaryKey, vv);
+                List<Object> values = projection.toFields(kvv.getValue());
+                if (values == null) {
+                    uncovered.add(kvv.getKey());
+                    continue;
+                }
+                List<Object> result = new ArrayList<Object>(positions.length);
+                for (int position : positions) {
+                    result.add(values.get(position));
                 }
+                resultMap.put(primaryKey, result);
+                avoidedLookups.incrementAndGet();
             }
+        } finally {
+            closeScan(it);
         }
 
+        /*
+         * Reads the fields from the primary DB records of the Index View
+         * records that have no projected fields, e.g. records written before
+         * the fields were projected, with a parallel fetch.
+         */
+        if (uncovered.isEmpty()) {
+            return resultMap;
+        }
+        ParallelScanIterator<KeyValueVersion> fetch =
+            fetchPrimaryKV(uncovered.iterator(), null);
+        try {
+            while (fetch.hasNext()) {
+                KeyValueVersion kvv = fetch.next();
+                List<Object> result = binding.toFields
+                    (kvv.getValue(), schemaName, fieldNames);
+                if (result != null) {
+                    resultMap.put(kvv.getKey(), result);
+                }
+            }
+        } finally {
+            fetch.close();
+        }
         return resultMap;
     }
 
+    /**
+     * Returns the number of primary DB records read by the queries of this
+     * instance.
+     */
+    public long getPrimaryLookupCount() {
+        return primaryLookups.get();
+    }
+
+    /**
+     * Returns the number of primary DB reads avoided by the queries of this
+     * instance, by reading projected fields from covering Index Views.
+     */
+    public long getAvoidedLookupCount() {
+        return avoidedLookups.get();
+    }
+
     /**
      * Builds an Index View(s) for primary DB records associated with the given
      * schema. If all indexes have been built successfully, returns true sets
@@ -333,7 +843,20 @@ public class IndexViewService {
      * KVStore to delete the metadata and related indexes that have been
      * created.
      */
+    public boolean buildIndexes(List<String> indexFieldNames,
+                                String schemaName) {
+        return buildIndexes(indexFieldNames, Collections.<String>emptyList(),
+                            schemaName);
+    }
+
+    /**
+     * Builds a covering Index View like {@link #buildIndexes(List, String)},
+     * which stores the values of the projectedFieldNames fields of each
+     * primary DB record in its Index View record, so that {@link
+     * #getProjectedKV} can return them without reading the primary DB.
+     */
     public synchronized boolean buildIndexes(List<String> indexFieldNames,
+                                             List<String> projectedFieldNames,
                                              String schemaName) {
 
         /**
@@ -343,26 +866,22 @@ public class IndexViewService {
          * present false will be returned.
          */
         String indexName = getIndexName(schemaName, indexFieldNames);
-        if (createIndexMetadata(indexName, schemaName, indexFieldNames)) {
+        if (createIndexMetadata(indexName, schemaName, indexFieldNames,
+                                projectedFieldNames)) {
 
             /**
              * Iterates on all records in the KVStore and builds indexes for
              * records that conform to the given schema.
              */
+            BuildProgress progress = new BuildProgress(1);
+            buildProgress = progress;
             try {
-                final ParallelScanIterator<Key> psIt =
-                    kvstore.storeKeysIterator(Direction.UNORDERED,
-                                              0, /* batchSize */
-                                              null, /* parentKey */
-                                              null /* subRange */,
-                                              null, /* depth */
-                                              null, /* consistency */
-                                              0, /* timeout */
-                                              null,
-                                              storeIteratorConfig);
-                buildIndexesInternal(psIt, indexName, indexFieldNames,
-                                     schemaName);
+                buildIndexesFromScan(indexName, indexFieldNames,
+                                     projectedFieldNames, schemaName,
+                                     progress);
+                progress.segmentDone(false);
                 setIndexState(indexName, IndexState.READY);
+                updateStatistics(indexName, indexFieldNames.size());
                 return true;
             } catch (FaultException e) {
 
@@ -378,98 +897,536 @@ public class IndexViewService {
         return false;
     }
 
-    private void buildIndexesInternal(Iterator<Key> iterator,
-                                      String indexName,
-                                      List<String> indexFieldNames,
+    /**
+     * Builds Index View(s) like {@link #buildIndexes(List, String)}, while
+     * the primary DB may be updated concurrently. Returns true if all indexes
+     * have been built and the index state has been set to READY. Returns
+     * false if the indexes to be built already exist in the database or a
+     * FaultException occurs, in which case the metadata, the indexes and the
+     * side log that have been created are deleted.
+     * <p>
+     * The index state is BUILDING_ONLINE during the build scan. Rather than
+     * refusing to update the index, {@link #putIndexKV} and {@link
+     * #deleteIndexKV} append the Keys of the Index View records they would
+     * put and delete to a side log. A change made while the scan is running
+     * may or may not be seen by the scan, so once the scan is done the index
+     * is set to DRAINING, in which putIndexKV and deleteIndexKV update it
+     * directly, and the log is replayed until it is empty before the index
+     * is set to READY.
+     * <p>
+     * The log is not replayed in the order of its records, which is only
+     * the order of the changes of each IndexViewService instance: the clocks
+     * of different clients may disagree. Instead, since an Index View Key
+     * ends with the primary key, each logged Key is reconciled with the
+     * current primary DB record: the Index View record of the current Value
+     * is put, and the logged Key is deleted if it is not that record. So
+     * that the callers which logged a change have written the primary DB
+     * record by then, the replay waits for {@link #setLogGracePeriod the
+     * grace period} after setting DRAINING, and again after reading a batch
+     * of log records before reconciling them. Callers that read the
+     * BUILDING_ONLINE state just before it changed may log after the last
+     * replay, so the log is replayed once more after setting READY.
+     * <p>
+     * As for the other operations of this class, the state checks are not
+     * atomic, and a few windows remain. A change is lost if its caller read
+     * the metadata before the index was created and wrote the primary DB
+     * record after the scan read it, if its caller takes longer than the
+     * grace period between logging it and writing the primary DB record, or
+     * if its log record is written after the replay that follows READY. And
+     * a record that is reconciled while another caller is between its own
+     * putIndexKV and primary DB write for the same Key may be indexed with
+     * the Value that caller is replacing.
+     */
+    public boolean buildIndexesOnline(List<String> indexFieldNames,
                                       String schemaName) {
+        return buildIndexesOnline(indexFieldNames,
+                                  Collections.<String>emptyList(),
+                                  schemaName);
+    }
 
-        Key indexKeyPrefix = Key.createKey(INDEX_KEY_PREFIX);
-        Key indexTypeKeyPrefix = Key.createKey(INDEX_METADATA_KEY_PREFIX);
+    /**
+     * Builds a covering Index View online, like {@link
+     * #buildIndexesOnline(List, String)}, with the projection described in
+     * {@link #buildIndexes(List, List, String)}.
+     */
+    public synchronized boolean
+        buildIndexesOnline(List<String> indexFieldNames,
+                           List<String> projectedFieldNames,
+                           String schemaName) {
 
-        /**
-         * Iterates over the primary DB and adds Index View records for every
-         * primary DB KV pair.
-         */
-        while (iterator.hasNext()) {
-            Key itKey = iterator.next();
-
-            /* Checks if the current key belongs to primary DB. */
-            if (!indexKeyPrefix.isPrefix(itKey) &&
-                !indexTypeKeyPrefix.isPrefix(itKey)) {
-                Value value = kvstore.get(itKey).getValue();
-
-                /* Checks if the Value conforms to the given schema name. */
-                String itSchemaName = binding.getSchemaName(value);
-                if (itSchemaName == null || // null if not an Avro data.
-                    !itSchemaName.equals(schemaName)) {
-                    continue;
-                }
+        String indexName = getIndexName(schemaName, indexFieldNames);
+        if (!createIndexMetadata(indexName, schemaName, indexFieldNames,
+                                 projectedFieldNames,
+                                 IndexState.BUILDING_ONLINE)) {
+            return false;
+        }
 
-                /* Gets the value list of given index fields. */
-                List<Object> indexFieldValues =
-                    binding.toFields(value, indexFieldNames);
+        BuildProgress progress = new BuildProgress(1);
+        buildProgress = progress;
+        try {
+            buildIndexesFromScan(indexName, indexFieldNames,
+                                 projectedFieldNames, schemaName, progress);
+            setIndexState(indexName, IndexState.DRAINING);
+            Thread.sleep(logGracePeriodMs);
+            replayIndexLog(indexName);
+            setIndexState(indexName, IndexState.READY);
+            replayIndexLog(indexName);
+            progress.segmentDone(false);
+            updateStatistics(indexName, indexFieldNames.size());
+            return true;
+        } catch (FaultException e) {
 
-                /* Generates the Key of the Index View KV pair. */
-                Key secondaryKey = getIndexViewKey
-                    (indexName, indexFieldValues, itKey.toString());
+            /* Deletes the metadata, indexes and side log. */
+            unwindIndexViewBuild(indexName);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            unwindIndexViewBuild(indexName);
+        }
+        return false;
+    }
 
-                /* Creates a key-only record for the Index View. */
-                kvstore.putIfAbsent(secondaryKey, Value.EMPTY_VALUE);
-            }
+    /**
+     * Indexes all primary DB records of the given schema with a parallel
+     * store iteration.
+     */
+    private long buildIndexesFromScan(String indexName,
+                                      List<String> indexFieldNames,
+                                      List<String> projectedFieldNames,
+                                      String schemaName,
+                                      BuildProgress progress) {
+        final ParallelScanIterator<KeyValueVersion> psIt =
+            kvstore.storeIterator(Direction.UNORDERED,
+                                  0, /* batchSize */
+                                  null, /* parentKey */
+                                  null /* subRange */,
+                                  null, /* depth */
+                                  null, /* consistency */
+                                  0, /* timeout */
+                                  null,
+                                  storeIteratorConfig);
+        try {
+            return buildIndexesInternal(psIt, indexName, indexFieldNames,
+                                        projectedFieldNames, schemaName,
+                                        progress);
+        } finally {
+            psIt.close();
         }
     }
 
     /**
-     * Perform compensating operations. Delete the metadata
-     * and indexes that have been created to avoid inconsistency between user
-     * records and indexes when a FaultException occurs in the process of
-     * building indexes.
+     * Appends the Key of an Index View record that is changed to the side
+     * log of an index that is being built online, and returns the Key of the
+     * log record.
      */
-    private void unwindIndexViewBuild(String indexName) {
+    private Key logIndexChange(String indexName, Key secondaryKey) {
+        String sequence = String.format("%016x%08x%08x",
+                                        System.currentTimeMillis(),
+                                        logInstanceId,
+                                        logSequence.incrementAndGet());
+        Key logKey = getIndexLogKey(indexName, sequence);
+        kvstore.put(logKey,
+                    Value.createValue(toUTF8(secondaryKey.toString())));
+        return logKey;
+    }
 
-        deleteIndexMetadata(indexName);
+    /**
+     * Reconciles the Index View records whose Keys are in the side log of an
+     * index with the current primary DB records, and deletes the log
+     * records, a batch at a time, until the log is empty. Each batch is
+     * reconciled after the grace period. Returns the number of log records
+     * processed.
+     */
+    private long replayIndexLog(String indexName)
+        throws InterruptedException {
+
+        IndexMetadata metadata = getIndexMetadata(indexName);
+        IndexKeyEncoder encoder = getKeyEncoder(metadata);
+        Key parentKey = getIndexLogKey(indexName, null);
+        OperationFactory factory = kvstore.getOperationFactory();
+        long total = 0;
+        while (true) {
+            Map<Key, Key> batch = new HashMap<Key, Key>();
+            Iterator<KeyValueVersion> it =
+                kvstore.multiGetIterator(Direction.FORWARD,
+                                         LOG_REPLAY_BATCH_SIZE,
+                                         parentKey, null, null);
+            while (it.hasNext() && batch.size() < LOG_REPLAY_BATCH_SIZE) {
+                KeyValueVersion kvv = it.next();
+                batch.put(kvv.getKey(), Key.fromString
+                          (fromUTF8(kvv.getValue().getValue())));
+            }
+            if (batch.isEmpty()) {
+                return total;
+            }
+            Thread.sleep(logGracePeriodMs);
 
-        /**
-         * Iterates over the KVStore to delete related indexes that have been
-         * created.
-         */
-        Key parentKey = getIndexViewKey(indexName, null, null);
-        final ParallelScanIterator<Key> psIt =
-            kvstore.storeKeysIterator(Direction.UNORDERED,
-                                      0, /* batchSize */
-                                      parentKey,
-                                      null /* subRange */,
-                                      null, /* depth */
-                                      null, /* consistency */
-                                      0, /* timeout */
-                                      null,
-                                      storeIteratorConfig);
-        while (psIt.hasNext()) {
-            final Key itKey = psIt.next();
-            kvstore.delete(itKey);
+            /* A Key logged more than once is reconciled once. */
+            List<Operation> deletes = new ArrayList<Operation>();
+            for (Key secondaryKey : new HashSet<Key>(batch.values())) {
+                reconcileIndexViewRecord(metadata, encoder, secondaryKey);
+            }
+            for (Key logKey : batch.keySet()) {
+                deletes.add(factory.createDelete(logKey));
+            }
+            executeLogDeletes(deletes);
+            total += batch.size();
         }
     }
 
     /**
-     * Drops Index Views on the given fields. Returns true if all indexes and
-     * metadata are successfully deleted. Returns false if the status of
-     * indexes to be dropped is not READY or a FaultException occurs in the
-     * process of dropping indexes. If a failure occurs during this operation
-     * this method does nothing else to unwind and the user should call {@link
-     * #buildIndexes(List, String)} to rebuild the Index Views that have been
-     * deleted to keep the consistency between user records and indexes.
-     *
-     * @param indexFieldNames
-     * @param schemaName
-     * @return boolean
+     * Puts the Index View record of the current primary DB record that an
+     * Index View Key refers to, if it exists, and deletes the given Key if
+     * it is not the Key of that record.
      */
-    public synchronized boolean dropIndexes(List<String> indexFieldNames,
-                                            String schemaName) {
-
-        String indexName = getIndexName(schemaName, indexFieldNames);
-
-        if (!IndexState.READY.equals(getIndexState(indexName))) {
-            return false;
+    private void reconcileIndexViewRecord(IndexMetadata metadata,
+                                          IndexKeyEncoder encoder,
+                                          Key secondaryKey) {
+        List<String> minorPath = secondaryKey.getMinorPath();
+        String primaryKey = minorPath.get(minorPath.size() - 1);
+        ValueVersion vv = kvstore.get(Key.fromString(primaryKey));
+        Key currentKey = null;
+        if (vv != null &&
+            metadata.getSchemaName().equals
+            (binding.getSchemaName(vv.getValue()))) {
+            currentKey = getIndexViewKey
+                (encoder,
+                 binding.toFields(vv.getValue(),
+                                  metadata.getIndexFieldNames()),
+                 primaryKey);
+            putIndexViewRecord(currentKey,
+                               getIndexViewValue(metadata, vv.getValue()));
+        }
+        if (!secondaryKey.equals(currentKey)) {
+            kvstore.delete(secondaryKey);
+        }
+    }
+
+    /* Deletes replayed log records, which share a major path. */
+    private void executeLogDeletes(List<Operation> deletes) {
+        try {
+            kvstore.execute(deletes);
+        } catch (OperationExecutionException e) {
+            /* Not expected: no operation aborts the sequence. */
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Generates the Key of a side log record, or of the parent of the side
+     * log of an index if sequence is null.
+     */
+    private Key getIndexLogKey(String indexName, String sequence) {
+        List<String> majorPath = new ArrayList<String>();
+        majorPath.add(INDEX_LOG_KEY_PREFIX);
+        majorPath.add(indexName);
+        if (sequence == null) {
+            return Key.createKey(majorPath);
+        }
+        return Key.createKey(majorPath, sequence);
+    }
+
+    private static byte[] toUTF8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String fromUTF8(byte[] bytes) {
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Adds Index View records for the primary DB records returned by the
+     * iterator and returns the number of records indexed.
+     * <p>
+     * The records are handed to the build threads in batches. When all
+     * threads are busy and their queue is full, the calling thread indexes
+     * the next batch itself, which keeps the iteration from running ahead of
+     * the writes. If a build thread fails, the iteration stops and the
+     * exception is rethrown by this method.
+     */
+    private long buildIndexesInternal(Iterator<KeyValueVersion> iterator,
+                                      String indexName,
+                                      List<String> indexFieldNames,
+                                      List<String> projectedFieldNames,
+                                      String schemaName,
+                                      BuildProgress progress) {
+
+        IndexBuild build = new IndexBuild(indexName, indexFieldNames,
+                                          projectedFieldNames, schemaName,
+                                          progress);
+        boolean scanned = false;
+        try {
+            List<KeyValueVersion> batch =
+                new ArrayList<KeyValueVersion>(BUILD_BATCH_SIZE);
+
+            /**
+             * Iterates over the primary DB and adds Index View records for
+             * every primary DB KV pair.
+             */
+            while (iterator.hasNext() && !build.isFailed()) {
+                KeyValueVersion kvv = iterator.next();
+
+                /* Checks if the current key belongs to primary DB. */
+                if (isIndexOrMetadata(kvv.getKey())) {
+                    continue;
+                }
+                batch.add(kvv);
+                if (batch.size() == BUILD_BATCH_SIZE) {
+                    build.submit(batch);
+                    batch = new ArrayList<KeyValueVersion>(BUILD_BATCH_SIZE);
+                }
+            }
+            if (!batch.isEmpty()) {
+                build.submit(batch);
+            }
+            scanned = true;
+        } finally {
+            if (!scanned) {
+                build.abort();
+            }
+        }
+        return build.finish();
+    }
+
+    /**
+     * Builds Index View(s) like {@link #buildIndexes(List, String)}, but in
+     * a way that survives failures. Returns true if all indexes have been
+     * built and the index state has been set to READY. Returns false if the
+     * index already exists and is not being built, or if the build fails, in
+     * which case the index is left in the BUILDING state and the build can be
+     * resumed by calling this method again.
+     * <p>
+     * The primary DB records below primaryParentKey, or all records if it is
+     * null, are split into segments by the first character of the next Key
+     * component, and each segment is indexed with its own store iteration.
+     * When a segment completes, a checkpoint record is stored under
+     * /INDEX_BUILD_KEY_PREFIX/INDEX_NAME. A segment that fails with a
+     * FaultException is retried on its own, and a resumed build skips the
+     * segments that have a checkpoint record. Since Index View records are
+     * created with putIfAbsent, indexing a segment again after a failure is
+     * harmless. The checkpoint records are deleted once the index is READY.
+     * <p>
+     * The progress of the build is available from {@link #getBuildProgress}
+     * while the build is running.
+     */
+    public boolean buildIndexesResumable(List<String> indexFieldNames,
+                                         String schemaName,
+                                         Key primaryParentKey) {
+        return buildIndexesResumable(indexFieldNames,
+                                     Collections.<String>emptyList(),
+                                     schemaName, primaryParentKey);
+    }
+
+    /**
+     * Builds a covering Index View in resumable segments, like {@link
+     * #buildIndexesResumable(List, String, Key)}, with the projection
+     * described in {@link #buildIndexes(List, List, String)}. A build can
+     * only be resumed with the projection it was started with, and in the
+     * same {@link #INDEX_FORMAT_VERSION}.
+     */
+    public synchronized boolean buildIndexesResumable
+        (List<String> indexFieldNames,
+         List<String> projectedFieldNames,
+         String schemaName,
+         Key primaryParentKey) {
+
+        String indexName = getIndexName(schemaName, indexFieldNames);
+        IndexMetadata metadata = getIndexMetadata(indexName);
+        if (metadata == null) {
+            if (!createIndexMetadata(indexName, schemaName,
+                                     indexFieldNames, projectedFieldNames)) {
+                return false;
+            }
+        } else if (!IndexState.BUILDING.equals(metadata.getIndexState()) ||
+                   !metadata.isCurrentFormat() ||
+                   !projectedFieldNames.equals
+                   (metadata.getProjectedFieldNames())) {
+            return false;
+        }
+
+        List<KeyRange> segments = getBuildSegments();
+        Set<String> completed = getBuildCheckpoints(indexName);
+        BuildProgress progress = new BuildProgress(segments.size());
+        buildProgress = progress;
+
+        for (KeyRange segment : segments) {
+            if (completed.contains(segment.toString())) {
+                progress.segmentDone(true);
+                continue;
+            }
+
+            int attempt = 0;
+            while (true) {
+                try {
+                    final ParallelScanIterator<KeyValueVersion> psIt =
+                        kvstore.storeIterator(Direction.UNORDERED,
+                                              0, /* batchSize */
+                                              primaryParentKey,
+                                              segment,
+                                              null, /* depth */
+                                              null, /* consistency */
+                                              0, /* timeout */
+                                              null,
+                                              storeIteratorConfig);
+                    long count;
+                    try {
+                        count = buildIndexesInternal(psIt, indexName,
+                                                     indexFieldNames,
+                                                     projectedFieldNames,
+                                                     schemaName, progress);
+                    } finally {
+                        psIt.close();
+                    }
+                    kvstore.put(getBuildCheckpointKey(indexName, segment),
+                                Value.createValue
+                                (toUTF8(Long.toString(count))));
+                    progress.segmentDone(false);
+                    break;
+                } catch (FaultException e) {
+                    if (attempt++ >= BUILD_SEGMENT_RETRIES) {
+
+                        /*
+                         * Leave the index BUILDING, with the checkpoints of
+                         * the completed segments, so the build can resume.
+                         */
+                        return false;
+                    }
+                    try {
+                        Thread.sleep(BUILD_SEGMENT_RETRY_DELAY_MS);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+            }
+        }
+
+        setIndexState(indexName, IndexState.READY);
+        deleteBuildCheckpoints(indexName);
+        updateStatistics(indexName, indexFieldNames.size());
+        return true;
+    }
+
+    /**
+     * Returns the progress of the current or last build, or null if no build
+     * has been started by this instance.
+     */
+    public BuildProgress getBuildProgress() {
+        return buildProgress;
+    }
+
+    /**
+     * Returns the KeyRanges that split the primary keys into build segments.
+     */
+    private static List<KeyRange> getBuildSegments() {
+        List<KeyRange> segments = new ArrayList<KeyRange>();
+        String start = null;
+        for (int i = 0; i < BUILD_SEGMENT_BOUNDARIES.length(); i++) {
+            String end = BUILD_SEGMENT_BOUNDARIES.substring(i, i + 1);
+            segments.add(new KeyRange(start, true, end, false));
+            start = end;
+        }
+        segments.add(new KeyRange(start, true, null, false));
+        return segments;
+    }
+
+    /**
+     * Returns the string form of the segments that have been checkpointed by
+     * a resumable build of the given index.
+     */
+    private Set<String> getBuildCheckpoints(String indexName) {
+        Set<String> result = new HashSet<String>();
+        Set<Key> set = kvstore.multiGetKeys
+            (getBuildCheckpointKey(indexName, null), null, null);
+        for (Key key : set) {
+            result.add(key.getMinorPath().get(0));
+        }
+        return result;
+    }
+
+    /**
+     * Deletes the checkpoints of a resumable build.
+     */
+    private void deleteBuildCheckpoints(String indexName) {
+        kvstore.multiDelete(getBuildCheckpointKey(indexName, null),
+                            null, null);
+    }
+
+    /**
+     * Generates the Key of a build checkpoint, or of the parent of all
+     * checkpoints of an index if segment is null.
+     */
+    private Key getBuildCheckpointKey(String indexName, KeyRange segment) {
+        List<String> majorPath = new ArrayList<String>();
+        majorPath.add(INDEX_BUILD_KEY_PREFIX);
+        majorPath.add(indexName);
+        if (segment == null) {
+            return Key.createKey(majorPath);
+        }
+        return Key.createKey(majorPath, segment.toString());
+    }
+
+    /**
+     * Perform compensating operations. Delete the metadata
+     * and indexes that have been created to avoid inconsistency between user
+     * records and indexes when a FaultException occurs in the process of
+     * building indexes.
+     */
+    private void unwindIndexViewBuild(String indexName) {
+
+        deleteIndexMetadata(indexName);
+        deleteBuildCheckpoints(indexName);
+        kvstore.multiDelete(getIndexLogKey(indexName, null), null, null);
+        kvstore.delete(getIndexStatisticsKey(indexName));
+
+        /**
+         * Iterates over the KVStore to delete related indexes that have been
+         * created.
+         */
+        Key parentKey = getIndexViewParentKey(indexName);
+        final ParallelScanIterator<Key> psIt =
+            kvstore.storeKeysIterator(Direction.UNORDERED,
+                                      0, /* batchSize */
+                                      parentKey,
+                                      null /* subRange */,
+                                      null, /* depth */
+                                      null, /* consistency */
+                                      0, /* timeout */
+                                      null,
+                                      storeIteratorConfig);
+        while (psIt.hasNext()) {
+            final Key itKey = psIt.next();
+            kvstore.delete(itKey);
+        }
+    }
+
+    /**
+     * Drops Index Views on the given fields. Returns true if all indexes and
+     * metadata are successfully deleted. Returns false if the status of
+     * indexes to be dropped is not READY or a FaultException occurs in the
+     * process of dropping indexes. If a failure occurs during this operation
+     * this method does nothing else to unwind and the user should call {@link
+     * #buildIndexes(List, String)} to rebuild the Index Views that have been
+     * deleted to keep the consistency between user records and indexes.
+     *
+     * @param indexFieldNames
+     * @param schemaName
+     * @return boolean
+     */
+    public synchronized boolean dropIndexes(List<String> indexFieldNames,
+                                            String schemaName) {
+
+        String indexName = getIndexName(schemaName, indexFieldNames);
+
+        if (!IndexState.READY.equals(getIndexState(indexName))) {
+            return false;
         }
 
         setIndexState(indexName, IndexState.DELETING);
@@ -495,6 +1452,8 @@ public class IndexViewService {
                 final KeyValueVersion kvv = psIt.next();
                 kvstore.delete(kvv.getKey());
             }
+            kvstore.delete(getIndexStatisticsKey(indexName));
+            kvstore.multiDelete(getIndexLogKey(indexName, null), null, null);
             deleteIndexMetadata(indexName);
             return true;
         } catch (FaultException e) {
@@ -509,6 +1468,81 @@ public class IndexViewService {
         return false;
     }
 
+    /**
+     * Computes the statistics of the Index View on the given fields, which
+     * are used by the query planner to estimate the cost of queries; see
+     * {@link QueryPlan}. The statistics are computed when an Index View is
+     * built, and are not updated by later changes to the primary DB, so this
+     * method should be called again after the records have changed
+     * significantly. It reads the keys of all the records of the Index View.
+     * Returns false if the index state is not READY, the Index View is in
+     * an older format, whose Keys cannot be split into field values, or a
+     * FaultException occurs, in which case the earlier statistics, if any,
+     * are kept.
+     */
+    public boolean analyzeIndexes(List<String> indexFieldNames,
+                                  String schemaName) {
+        String indexName = getIndexName(schemaName, indexFieldNames);
+        IndexMetadata metadata = getIndexMetadata(indexName);
+        if (metadata == null || !isQueryable(metadata)) {
+            return false;
+        }
+        return updateStatistics(indexName, indexFieldNames.size());
+    }
+
+    /**
+     * Computes and stores the statistics of an index. Returns false if a
+     * FaultException occurs, in which case the index can still be queried,
+     * but the planner cannot estimate the cost of the queries.
+     */
+    private boolean updateStatistics(String indexName, int nIndexFields) {
+        IndexStatistics.Collector collector =
+            new IndexStatistics.Collector(nIndexFields);
+        try {
+            final ParallelScanIterator<Key> psIt =
+                kvstore.storeKeysIterator(Direction.UNORDERED,
+                                          0, /* batchSize */
+                                          getIndexViewParentKey(indexName),
+                                          null /* subRange */,
+                                          null, /* depth */
+                                          null, /* consistency */
+                                          0, /* timeout */
+                                          null,
+                                          storeIteratorConfig);
+            try {
+                while (psIt.hasNext()) {
+                    collector.add(getIndexFieldComponents(psIt.next()));
+                }
+            } finally {
+                psIt.close();
+            }
+            kvstore.put(getIndexStatisticsKey(indexName),
+                        collector.finish().toValue());
+            return true;
+        } catch (FaultException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the statistics of an index, or null if they have not been
+     * computed.
+     */
+    private IndexStatistics getIndexStatistics(String indexName) {
+        ValueVersion vv = kvstore.get(getIndexStatisticsKey(indexName));
+        if (vv == null) {
+            return null;
+        }
+        return IndexStatistics.fromValue(vv.getValue());
+    }
+
+    private static Key getIndexStatisticsKey(String indexName) {
+        List<String> majorPath = new ArrayList<String>();
+        majorPath.add(INDEX_STATISTICS_KEY_PREFIX);
+        majorPath.add(indexName);
+        return Key.createKey(majorPath);
+    }
+
     /**
      * Creates Index View records for a newly inserted user record.  This
      * function is called when a new record is inserted into the primary
@@ -546,10 +1580,11 @@ public class IndexViewService {
         for (IndexMetadata metadata : set) {
 
             /**
-             * The operation can only be performed if the index state is READY
-             * and index metadata conforms to schema name of the record.
+             * The operation can only be performed if the index state is
+             * READY, BUILDING_ONLINE or DRAINING and index metadata conforms
+             * to schema name of the record.
              */
-            if (!metadata.getIndexState().equals(IndexState.READY)) {
+            if (!isUpdatable(metadata)) {
 
                 /* Undo */
                 for (Key key : createdKeyCache) {
@@ -566,12 +1601,20 @@ public class IndexViewService {
 
                 /* Generates the Key of secondary index KV pair. */
                 Key secondaryKey =
-                    getIndexViewKey(metadata.getIndexName(),
+                    getIndexViewKey(getKeyEncoder(metadata),
                                     indexFieldValues,
                                     primaryKey.toString());
+                Value indexValue = getIndexViewValue(metadata, vv.getValue());
+
+                /* Logs the change if the index is being built online. */
+                if (isBuildingOnline(metadata)) {
+                    createdKeyCache.add(logIndexChange
+                        (metadata.getIndexName(), secondaryKey));
+                    continue;
+                }
 
-                /* Creates a key-only Index View. */
-                kvstore.putIfAbsent(secondaryKey, Value.EMPTY_VALUE);
+                /* Creates the Index View record. */
+                putIndexViewRecord(secondaryKey, indexValue);
 
                 /* Caches the KV pair in case an unwind is necessary. */
                 createdKeyCache.add(secondaryKey);
@@ -599,7 +1642,7 @@ public class IndexViewService {
          * in case they are needed for unwinding after a failure.
          */
         Set<Key> createdKeyCache = new HashSet<Key>();
-        Set<Key> deletedKeyCache = new HashSet<Key>();
+        Map<Key, Value> deletedKeyCache = new HashMap<Key, Value>();
 
         ValueVersion oldVv = kvstore.get(primaryKey);
 
@@ -630,17 +1673,17 @@ public class IndexViewService {
 
             /**
              * The operation can be performed only when the index state is
-             * READY and index metadata conforms to schema name of the user
-             * record.
+             * READY, BUILDING_ONLINE or DRAINING and index metadata conforms
+             * to schema name of the user record.
              */
-            if (!metadata.getIndexState().equals(IndexState.READY)) {
+            if (!isUpdatable(metadata)) {
 
                 /* Undo */
                 for (Key key : createdKeyCache) {
                     kvstore.delete(key);
                 }
-                for (Key key : deletedKeyCache) {
-                    kvstore.put(key, Value.EMPTY_VALUE);
+                for (Entry<Key, Value> entry : deletedKeyCache.entrySet()) {
+                    kvstore.put(entry.getKey(), entry.getValue());
                 }
                 return false;
             }
@@ -651,24 +1694,46 @@ public class IndexViewService {
                     (oldValue, metadata.getIndexFieldNames());
                 List<Object> newFieldValues = binding.toFields
                     (newValue, metadata.getIndexFieldNames());
+                Value oldIndexValue = getIndexViewValue(metadata, oldValue);
+                Value newIndexValue = getIndexViewValue(metadata, newValue);
 
-                /* Checks if the index needs to be updated. */
-                if (oldFieldValues.equals(newFieldValues)) {
+                /*
+                 * Checks if the index needs to be updated: the record of a
+                 * covering index is also rewritten when a projected field
+                 * changes.
+                 */
+                boolean sameKey = oldFieldValues.equals(newFieldValues);
+                if (sameKey && oldIndexValue.equals(newIndexValue)) {
                     continue;
                 }
 
-                /* Deletes old index. */
-                Key oldKey = getIndexViewKey(metadata.getIndexName(),
+                IndexKeyEncoder encoder = getKeyEncoder(metadata);
+                Key oldKey = getIndexViewKey(encoder,
                                              oldFieldValues,
                                              primaryKey.toString());
-                kvstore.delete(oldKey);
-                deletedKeyCache.add(oldKey);
-
-                /* Creates new index. */
                 Key newKey = getIndexViewKey
-                    (metadata.getIndexName(), newFieldValues,
+                    (encoder, newFieldValues,
                      primaryKey.toString());
-                kvstore.putIfAbsent(newKey, Value.EMPTY_VALUE);
+
+                /* Logs the changes if the index is being built online. */
+                if (isBuildingOnline(metadata)) {
+                    if (!sameKey) {
+                        createdKeyCache.add(logIndexChange
+                            (metadata.getIndexName(), oldKey));
+                    }
+                    createdKeyCache.add(logIndexChange
+                        (metadata.getIndexName(), newKey));
+                    continue;
+                }
+
+                /* Deletes old index. */
+                if (!sameKey) {
+                    kvstore.delete(oldKey);
+                }
+                deletedKeyCache.put(oldKey, oldIndexValue);
+
+                /* Creates new index. */
+                putIndexViewRecord(newKey, newIndexValue);
                 createdKeyCache.add(newKey);
             }
         }
@@ -688,10 +1753,12 @@ public class IndexViewService {
     public boolean deleteIndexKV(Key primaryKey) {
 
         /**
-         * Stores the index key of KV pairs that have been deleted in case they
-         * are needed for unwinding after a failure.
+         * Stores the index key of KV pairs that have been deleted, and the
+         * side log records that have been created, in case they are needed
+         * for unwinding after a failure.
          */
-        Set<Key> deletedKeyCache = new HashSet<Key>();
+        Map<Key, Value> deletedKeyCache = new HashMap<Key, Value>();
+        Set<Key> createdKeyCache = new HashSet<Key>();
 
         ValueVersion vv = kvstore.get(primaryKey);
 
@@ -713,14 +1780,17 @@ public class IndexViewService {
 
             /**
              * The operation can be performed only when the index state is
-             * READY and index metadata matches the schema name of the user
-             * record.
+             * READY, BUILDING_ONLINE or DRAINING and index metadata matches
+             * the schema name of the user record.
              */
-            if (!metadata.getIndexState().equals(IndexState.READY)) {
+            if (!isUpdatable(metadata)) {
 
                 /* Undo */
-                for (Key key : deletedKeyCache) {
-                    kvstore.put(key, Value.EMPTY_VALUE);
+                for (Key key : createdKeyCache) {
+                    kvstore.delete(key);
+                }
+                for (Entry<Key, Value> entry : deletedKeyCache.entrySet()) {
+                    kvstore.put(entry.getKey(), entry.getValue());
                 }
 
                 return false;
@@ -734,20 +1804,52 @@ public class IndexViewService {
 
                 /* Generates the Key of Index View KV pair. */
                 Key secondaryKey = getIndexViewKey
-                    (metadata.getIndexName(), indexFieldValues,
+                    (getKeyEncoder(metadata), indexFieldValues,
                      primaryKey.toString());
 
+                /* Logs the change if the index is being built online. */
+                if (isBuildingOnline(metadata)) {
+                    createdKeyCache.add(logIndexChange
+                        (metadata.getIndexName(), secondaryKey));
+                    continue;
+                }
+
                 /* Deletes the Index View. */
                 kvstore.delete(secondaryKey);
 
                 /* Caches the KV pair for undoing operations. */
-                deletedKeyCache.add(secondaryKey);
+                deletedKeyCache.put(secondaryKey,
+                                    getIndexViewValue(metadata,
+                                                      vv.getValue()));
             }
         }
 
         return true;
     }
 
+    /**
+     * Returns whether putIndexKV and deleteIndexKV may update an index: it
+     * is in the current format, and is READY, or is being built online, in
+     * which case its changes are logged or, once DRAINING, applied.
+     */
+    private static boolean isUpdatable(IndexMetadata metadata) {
+        IndexState state = metadata.getIndexState();
+        return metadata.isCurrentFormat() &&
+            (IndexState.READY.equals(state) ||
+             IndexState.DRAINING.equals(state) ||
+             isBuildingOnline(metadata));
+    }
+
+    /* Returns whether queries may read an index. */
+    private static boolean isQueryable(IndexMetadata metadata) {
+        return metadata.isCurrentFormat() &&
+            IndexState.READY.equals(metadata.getIndexState());
+    }
+
+    private static boolean isBuildingOnline(IndexMetadata metadata) {
+        return IndexState.BUILDING_ONLINE.equals(metadata.getIndexState());
+    }
+
     /**
      * Returns all Index View metadata.
      */
@@ -755,45 +1857,80 @@ public class IndexViewService {
 
         Set<IndexMetadata> result = new HashSet<IndexMetadata>();
         Key parentKey = Key.createKey(INDEX_METADATA_KEY_PREFIX);
-        final ParallelScanIterator<Key> psIt =
-            kvstore.storeKeysIterator(Direction.UNORDERED,
-                                      0, /* batchSize */
-                                      parentKey,
-                                      null /* subRange */,
-                                      null, /* depth */
-                                      null, /* consistency */
-                                      0, /* timeout */
-                                      null,
-                                      storeIteratorConfig);
+        final ParallelScanIterator<KeyValueVersion> psIt =
+            kvstore.storeIterator(Direction.UNORDERED,
+                                  0, /* batchSize */
+                                  parentKey,
+                                  null /* subRange */,
+                                  null, /* depth */
+                                  null, /* consistency */
+                                  0, /* timeout */
+                                  null,
+                                  storeIteratorConfig);
         while (psIt.hasNext()) {
-            final Key key = psIt.next();
-            List<String> majorPath = key.getMajorPath();
-            List<String> minorPath = key.getMinorPath();
-            String indexName = majorPath.get(1);
-            String schemaName = minorPath.get(0);
-            List<String> indexFieldNames =
-                minorPath.subList(1, minorPath.size() - 1);
-            IndexState state =
-                IndexState.valueOf(minorPath.get(minorPath.size() - 1));
-            result.add(new IndexMetadata(indexName, schemaName,
-                                         indexFieldNames, state));
+            final KeyValueVersion kvv = psIt.next();
+            result.add(toIndexMetadata(kvv.getKey(), kvv.getValue()));
         }
 
         return result;
     }
 
+    /**
+     * Returns the metadata of an index, or null if it does not exist. Unlike
+     * {@link #getIndexMetadatas}, only reads a single partition.
+     */
+    private IndexMetadata getIndexMetadata(String indexName) {
+        Key parentKey = getIndexMetadataKey(indexName, null, null, null);
+        SortedMap<Key, ValueVersion> map =
+            kvstore.multiGet(parentKey, null, null);
+        if (map.isEmpty()) {
+            return null;
+        }
+        Key metadataKey = map.firstKey();
+        return toIndexMetadata(metadataKey, map.get(metadataKey).getValue());
+    }
+
+    /* Reads the metadata of an index from its KV pair. */
+    private IndexMetadata toIndexMetadata(Key key, Value value) {
+        List<String> majorPath = key.getMajorPath();
+        List<String> minorPath = key.getMinorPath();
+        String indexName = majorPath.get(1);
+        String schemaName = minorPath.get(0);
+        List<String> indexFieldNames =
+            minorPath.subList(1, minorPath.size() - 1);
+        IndexState state =
+            IndexState.valueOf(minorPath.get(minorPath.size() - 1));
+        return new IndexMetadata(indexName, schemaName, indexFieldNames,
+                                 toProjectedFieldNames(value), state,
+                                 toFormatVersion(value));
+    }
+
     /**
      * Creates the Index View metadata. Sets the state to BUILDING. Returns
      * false if the index metadata already exists in the database.
      */
     private boolean createIndexMetadata(String indexName,
                                         String schemaName,
-                                        List<String> indexFieldNames) {
+                                        List<String> indexFieldNames,
+                                        List<String> projectedFieldNames) {
+        return createIndexMetadata(indexName, schemaName, indexFieldNames,
+                                   projectedFieldNames, IndexState.BUILDING);
+    }
+
+    /**
+     * Creates the Index View metadata with the given state. Returns false if
+     * the index metadata already exists in the database.
+     */
+    private boolean createIndexMetadata(String indexName,
+                                        String schemaName,
+                                        List<String> indexFieldNames,
+                                        List<String> projectedFieldNames,
+                                        IndexState state) {
         boolean result = false;
 
         /* Creates the index metadata key. */
         Key key = getIndexMetadataKey(indexName, schemaName, indexFieldNames,
-                                      IndexState.BUILDING);
+                                      state);
 
         /* Checks if the metadata exists. */
         Set<Key> set = kvstore.multiGetKeys
@@ -803,7 +1940,8 @@ public class IndexViewService {
             /**
              * Creates index metadata KV in the KVStore.
              */
-            if (kvstore.putIfAbsent(key, Value.EMPTY_VALUE) != null) {
+            if (kvstore.putIfAbsent
+                (key, toMetadataValue(projectedFieldNames)) != null) {
                 result = true;
             }
         }
@@ -811,18 +1949,61 @@ public class IndexViewService {
     }
 
     /**
-     * Deletes Index View metadata.
+     * Returns the metadata Value holding the current format version and the
+     * projected field names.
      */
-    private void deleteIndexMetadata(String indexName) {
-        List<String> majorPath = new ArrayList<String>();
-        majorPath.add(INDEX_METADATA_KEY_PREFIX);
-        majorPath.add(indexName);
-        Key key = Key.createKey(majorPath);
-        kvstore.multiDelete(key, null, null);
+    private static Value toMetadataValue(List<String> projectedFieldNames) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(INDEX_FORMAT_VERSION).append(FORMAT_VERSION_SEPARATOR);
+        for (int i = 0; i < projectedFieldNames.size(); i++) {
+            if (i > 0) {
+                sb.append(PROJECTION_SEPARATOR);
+            }
+            sb.append(projectedFieldNames.get(i));
+        }
+        return Value.createValue(toUTF8(sb.toString()));
+    }
+
+    /* Returns the projected field names held by a metadata Value. */
+    private static List<String> toProjectedFieldNames(Value value) {
+        String s = fromUTF8(value.getValue());
+        s = s.substring(s.indexOf(FORMAT_VERSION_SEPARATOR) + 1);
+        if (s.length() == 0) {
+            return Collections.emptyList();
+        }
+        return Arrays.asList(s.split(PROJECTION_SEPARATOR));
     }
 
     /**
-     * Generates a Key for Index View metadata.
+     * Returns the format version held by a metadata Value, or 0 if it was
+     * stored before the format version was.
+     */
+    private static int toFormatVersion(Value value) {
+        String s = fromUTF8(value.getValue());
+        int end = s.indexOf(FORMAT_VERSION_SEPARATOR);
+        if (end < 0) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(s.substring(0, end));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Deletes Index View metadata.
+     */
+    private void deleteIndexMetadata(String indexName) {
+        List<String> majorPath = new ArrayList<String>();
+        majorPath.add(INDEX_METADATA_KEY_PREFIX);
+        majorPath.add(indexName);
+        Key key = Key.createKey(majorPath);
+        kvstore.multiDelete(key, null, null);
+    }
+
+    /**
+     * Generates a Key for Index View metadata.
      */
     private Key getIndexMetadataKey(String indexName,
                                     String schemaName,
@@ -869,16 +2050,23 @@ public class IndexViewService {
         /* Creates index metadata key. */
         Key parentKey = getIndexMetadataKey(indexName, null, null, null);
 
-        SortedSet<Key> set = kvstore.multiGetKeys(parentKey, null, null);
-        Key metadataKey = set.first();
+        SortedMap<Key, ValueVersion> map =
+            kvstore.multiGet(parentKey, null, null);
+        Key metadataKey = map.firstKey();
         List<String> oldMinorPath = metadataKey.getMinorPath();
         List<String> minorPath = new ArrayList<String>
             (oldMinorPath.subList(0, oldMinorPath.size() - 1));
         minorPath.add(state.toString());
-        kvstore.delete(metadataKey);
+
+        /*
+         * Adds the new state before deleting the old one, so that concurrent
+         * updates never find the index missing, which would make them skip
+         * it. The Value holding the projection is kept.
+         */
         kvstore.putIfAbsent(Key.createKey
                             (metadataKey.getMajorPath(), minorPath),
-                            Value.EMPTY_VALUE);
+                            map.get(metadataKey).getValue());
+        kvstore.delete(metadataKey);
     }
 
     /**
@@ -897,55 +2085,862 @@ public class IndexViewService {
     }
 
     /**
-     * Returns an existing multi-column Index View name which can be used to
-     * filter primary DB records using indexFieldNames. If there are multiple
-     * proper indexes only one will be returned.
+     * Chooses the Index View used by a query on the given fields of the
+     * records of a schema, or returns null if no READY Index View in the
+     * current format can be used. If range is true, the query reads a range
+     * of values of the last field and the other fields are equal to given
+     * values; otherwise all the fields are equal to given values.
+     * <p>
+     * The Index View on exactly the query fields is used if it is READY, and
+     * found with a single-partition read of its metadata. Otherwise, for an
+     * equality query, the Index View whose longest run of leading fields is
+     * contained in the query fields is used, and the query fields that are
+     * not among them are checked against the primary DB records. For a range
+     * query, the leading fields of the Index View must be the other query
+     * fields, in any order, followed by the range field. Among equally good
+     * Index Views, the one with the fewest fields is used, since its records
+     * are the smallest.
      */
-    private String getAvailableIndexName(String schemaName,
-                                         List<String> indexFieldNames) {
-        Set<IndexMetadata> metadatas = getIndexMetadatas();
-        String indexName = "";
-        for (IndexMetadata metadata : metadatas) {
-            if (!metadata.getSchemaName().equals(schemaName)) {
+    private QueryPlan planQuery(List<String> fieldNames,
+                                boolean range,
+                                String schemaName) {
+        if (fieldNames.isEmpty()) {
+            throw new IllegalArgumentException("No query fields");
+        }
+        List<String> equalityFields = range ?
+            fieldNames.subList(0, fieldNames.size() - 1) : fieldNames;
+        String rangeFieldName =
+            range ? fieldNames.get(fieldNames.size() - 1) : null;
+
+        IndexMetadata exact =
+            getIndexMetadata(getIndexName(schemaName, fieldNames));
+        if (exact != null && isQueryable(exact)) {
+            return new QueryPlan(exact, fieldNames, equalityFields.size(),
+                                 rangeFieldName);
+        }
+
+        IndexMetadata best = null;
+        int bestMatched = 0;
+        for (IndexMetadata metadata : getIndexMetadatas()) {
+            if (!metadata.getSchemaName().equals(schemaName) ||
+                !isQueryable(metadata)) {
                 continue;
             }
             List<String> list = metadata.getIndexFieldNames();
-            if (indexFieldNames.size() > 0 &&
-                list.size() > indexFieldNames.size() &&
-                indexFieldNames.equals
-                (list.subList(0, indexFieldNames.size()))) {
-                indexName = metadata.getIndexName();
+            int matched = 0;
+            if (range) {
+                matched = equalityFields.size();
+                if (list.size() <= matched ||
+                    !list.get(matched).equals(rangeFieldName) ||
+                    !new HashSet<String>(list.subList(0, matched)).equals
+                    (new HashSet<String>(equalityFields))) {
+                    continue;
+                }
+            } else {
+                while (matched < list.size() &&
+                       equalityFields.contains(list.get(matched))) {
+                    matched++;
+                }
+                if (matched == 0) {
+                    continue;
+                }
+            }
+            if (best == null ||
+                matched > bestMatched ||
+                (matched == bestMatched &&
+                 (list.size() < best.getIndexFieldNames().size() ||
+                  (list.size() == best.getIndexFieldNames().size() &&
+                   list.toString().compareTo
+                   (best.getIndexFieldNames().toString()) < 0)))) {
+                best = metadata;
+                bestMatched = matched;
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+        return new QueryPlan(best, fieldNames, bestMatched, rangeFieldName);
+    }
+
+    /**
+     * Returns the plan of an equality query, as used by {@link
+     * #getPrimaryKV}, or null if no Index View can be used.
+     */
+    public QueryPlan getQueryPlan(List<String> indexFieldNames,
+                                  List<Object> indexFieldValues,
+                                  String schemaName) {
+        QueryPlan plan = planQuery(indexFieldNames, false, schemaName);
+        if (plan != null) {
+            estimateQuery(plan, indexFieldValues, null, null, false);
+        }
+        return plan;
+    }
+
+    /**
+     * Returns the plan of a range query on the last of the given fields, as
+     * used by {@link #getPrimaryKVRange}, or null if no Index View can be
+     * used.
+     */
+    public QueryPlan getRangeQueryPlan(List<String> indexFieldNames,
+                                       List<Object> prefixValues,
+                                       Object start,
+                                       Object end,
+                                       String schemaName) {
+        QueryPlan plan = planQuery(indexFieldNames, true, schemaName);
+        if (plan != null) {
+            estimateQuery(plan, prefixValues, start, end, false);
+        }
+        return plan;
+    }
+
+    /**
+     * Returns the plan of a query for the fieldNames fields of the records,
+     * as used by {@link #getProjectedKV}, or null if no Index View can be
+     * used.
+     */
+    public QueryPlan getProjectedQueryPlan(List<String> indexFieldNames,
+                                           List<Object> indexFieldValues,
+                                           List<String> fieldNames,
+                                           String schemaName) {
+        QueryPlan plan = planQuery(indexFieldNames, false, schemaName);
+        if (plan != null) {
+            estimateQuery(plan, indexFieldValues, null, null,
+                          isCovering(plan, fieldNames));
+        }
+        return plan;
+    }
+
+    /**
+     * Returns whether the fieldNames fields of the results of a plan can be
+     * read from the Index View records.
+     */
+    private static boolean isCovering(QueryPlan plan,
+                                      List<String> fieldNames) {
+        return plan.getResidualFieldNames().isEmpty() &&
+            plan.getIndex().getProjectedFieldNames().containsAll(fieldNames);
+    }
+
+    /**
+     * Estimates the costs of a plan from the statistics of its Index View,
+     * if it has any, and chooses a parallel scan if it is cheaper. The
+     * primary DB records are not read by a covering plan.
+     * <p>
+     * The statistics only count Index View records, so the number of Index
+     * View records stands in for the number of primary DB records a scan
+     * reads. This is a lower bound: the scan also reads the records under
+     * the parent key that are not indexed, e.g. those of other schemas, and
+     * so it may be chosen when it is in fact the more expensive plan. No
+     * scan cost is estimated if the parent key of the schema is not set,
+     * since a scan is then not allowed.
+     */
+    private void estimateQuery(QueryPlan plan,
+                               List<Object> values,
+                               Object start,
+                               Object end,
+                               boolean covering) {
+        IndexMetadata metadata = plan.getIndex();
+        IndexStatistics stats = getIndexStatistics(metadata.getIndexName());
+        if (stats == null) {
+            return;
+        }
+        IndexKeyEncoder encoder = getKeyEncoder(metadata);
+        List<String> prefix = encoder.encode(plan.getMatchedValues(values));
+        double estimated;
+        if (plan.getRangeFieldName() == null) {
+            estimated = stats.estimateEquals(prefix);
+        } else {
+            int position = prefix.size();
+            estimated = stats.estimateRange
+                (prefix,
+                 (start == null) ? null : encoder.encode(position, start),
+                 (end == null) ? null : encoder.encode(position, end));
+        }
+        double indexCost = estimated *
+            (INDEX_RECORD_COST + (covering ? 0 : PRIMARY_FETCH_COST));
+        /* The Index View record count is a proxy for the scan size. */
+        double scanCost =
+            primaryParentKeys.containsKey(metadata.getSchemaName()) ?
+            stats.getRecordCount() : -1;
+        plan.setEstimates(estimated, stats.getRecordCount(), indexCost,
+                          scanCost);
+    }
+
+    /**
+     * Returns a parallel scan of the primary DB records of the schema of a
+     * plan whose query fields have the given values, and whose range field,
+     * if any, is between start and end.
+     */
+    private ParallelScanIterator<KeyValueVersion>
+        scanPrimaryKV(QueryPlan plan,
+                      List<Object> values,
+                      Object start,
+                      boolean startInclusive,
+                      Object end,
+                      boolean endInclusive) {
+
+        String schemaName = plan.getSchemaName();
+        List<String> fieldNames = plan.getQueryFieldNames();
+        RecordFilter filter = new RecordFilter
+            (schemaName, fieldNames, values,
+             createKeyEncoder(plan.getIndex().getIndexName(), schemaName,
+                              fieldNames),
+             start, startInclusive, end, endInclusive);
+        ParallelScanIterator<KeyValueVersion> psIt =
+            kvstore.storeIterator(Direction.UNORDERED,
+                                  0, /* batchSize */
+                                  primaryParentKeys.get(schemaName),
+                                  null /* subRange */,
+                                  null, /* depth */
+                                  null, /* consistency */
+                                  0, /* timeout */
+                                  null,
+                                  storeIteratorConfig);
+        return new FilteredScan(psIt, filter);
+    }
+
+    /**
+     * Returns an iterator over the keys of the Index View records of a plan
+     * whose leading fields have the given query values, and whose next field
+     * is in subRange if it is not null. A plan with leading field values is
+     * read from a single partition with a multiGetKeys on their parent Key,
+     * and a range over the first field is read by a store iterator.
+     */
+    private Iterator<Key> scanIndexKeys(QueryPlan plan,
+                                        List<Object> values,
+                                        KeyRange subRange) {
+        Key parentKey = getIndexViewKey(getKeyEncoder(plan.getIndex()),
+                                        plan.getMatchedValues(values), null);
+        if (plan.isSinglePartition()) {
+            return kvstore.multiGetKeysIterator(Direction.FORWARD,
+                                                0, /* batchSize */
+                                                parentKey,
+                                                subRange,
+                                                null /* depth */);
+        }
+        return kvstore.storeKeysIterator(Direction.UNORDERED,
+                                         0, /* batchSize */
+                                         parentKey,
+                                         subRange,
+                                         null, /* depth */
+                                         null, /* consistency */
+                                         0, /* timeout */
+                                         null,
+                                         storeIteratorConfig);
+    }
+
+    /**
+     * Returns an iterator over the Index View records of an equality query
+     * plan, like {@link #scanIndexKeys}.
+     */
+    private Iterator<KeyValueVersion> scanIndex(QueryPlan plan,
+                                                List<Object> values) {
+        Key parentKey = getIndexViewKey(getKeyEncoder(plan.getIndex()),
+                                        plan.getMatchedValues(values), null);
+        if (plan.isSinglePartition()) {
+            return kvstore.multiGetIterator(Direction.FORWARD,
+                                            0, /* batchSize */
+                                            parentKey,
+                                            null, /* subRange */
+                                            null /* depth */);
+        }
+        return kvstore.storeIterator(Direction.UNORDERED,
+                                     0, /* batchSize */
+                                     parentKey,
+                                     null, /* subRange */
+                                     null, /* depth */
+                                     null, /* consistency */
+                                     0, /* timeout */
+                                     null,
+                                     storeIteratorConfig);
+    }
+
+    /* Closes an index scan if it is a store iterator. */
+    private static void closeScan(Iterator<?> it) {
+        if (it instanceof ParallelScanIterator) {
+            ((ParallelScanIterator<?>) it).close();
+        }
+    }
+
+    /**
+     * Returns the filter for the query fields of a plan that are not read
+     * from the Index View, or null if there are none.
+     */
+    private RecordFilter getResidualFilter(QueryPlan plan,
+                                           List<Object> values) {
+        if (plan.getResidualFieldNames().isEmpty()) {
+            return null;
+        }
+        IndexMetadata metadata = plan.getIndex();
+        return new RecordFilter(metadata.getSchemaName(),
+                                plan.getResidualFieldNames(),
+                                plan.getResidualValues(values),
+                                createKeyEncoder(metadata.getIndexName(),
+                                                 metadata.getSchemaName(),
+                                                 plan.getResidualFieldNames()),
+                                null, false, null, false);
+    }
+
+    /**
+     * Returns the Key encoder of an index, creating it if needed.
+     */
+    private IndexKeyEncoder getKeyEncoder(String indexName,
+                                          String schemaName,
+                                          List<String> indexFieldNames) {
+        IndexKeyEncoder encoder = keyEncoders.get(indexName);
+        if (encoder == null) {
+            encoder = createKeyEncoder(indexName, schemaName, indexFieldNames);
+
+            /*
+             * An encoder without the schema writes all values with toString,
+             * so it is only used until the schema is known.
+             */
+            if (binding.getSchema(schemaName) != null) {
+                keyEncoders.put(indexName, encoder);
+            }
+        }
+        return encoder;
+    }
+
+    /* Creates an encoder of the values of the given fields. */
+    private IndexKeyEncoder createKeyEncoder(String indexName,
+                                             String schemaName,
+                                             List<String> fieldNames) {
+        Map<String, String> formats = dateFormats.get(schemaName);
+        return new IndexKeyEncoder
+            (indexName, binding.getSchema(schemaName), fieldNames,
+             (formats == null) ?
+             Collections.<String, String>emptyMap() : formats);
+    }
+
+    private IndexKeyEncoder getKeyEncoder(IndexMetadata metadata) {
+        return getKeyEncoder(metadata.getIndexName(),
+                             metadata.getSchemaName(),
+                             metadata.getIndexFieldNames());
+    }
+
+    /**
+     * Returns the projection of a covering index, creating it if needed, or
+     * null if the index has no projected fields.
+     */
+    private IndexProjection getProjection(String indexName,
+                                          String schemaName,
+                                          List<String> projectedFieldNames) {
+        if (projectedFieldNames.isEmpty()) {
+            return null;
+        }
+
+        /* An index may be dropped and built again with other fields. */
+        IndexProjection projection = projections.get(indexName);
+        if (projection == null ||
+            !projection.getFieldNames().equals(projectedFieldNames)) {
+            Schema schema = binding.getSchema(schemaName);
+            if (schema == null) {
+                throw new IllegalStateException
+                    ("Unknown schema of covering index: " + schemaName);
             }
+            projection = new IndexProjection(schema, projectedFieldNames);
+            projections.put(indexName, projection);
         }
+        return projection;
+    }
+
+    private IndexProjection getProjection(IndexMetadata metadata) {
+        return getProjection(metadata.getIndexName(),
+                             metadata.getSchemaName(),
+                             metadata.getProjectedFieldNames());
+    }
 
-        return indexName;
+    /**
+     * Returns the Value of the Index View record of a primary DB Value: its
+     * projected fields, or an empty Value if the index is not covering.
+     */
+    private Value getIndexViewValue(IndexMetadata metadata,
+                                    Value primaryValue) {
+        IndexProjection projection = getProjection(metadata);
+        if (projection == null) {
+            return Value.EMPTY_VALUE;
+        }
+        return projection.toValue(binding.toFields
+                                  (primaryValue, projection.getFieldNames()));
     }
 
-    /* Returns an Index View Key. */
-    private Key getIndexViewKey(String indexName,
+    /**
+     * Puts an Index View record. A key-only record is only created if it is
+     * missing, while the record of a covering index is overwritten, since
+     * its projected fields may have changed.
+     */
+    private void putIndexViewRecord(Key secondaryKey, Value indexValue) {
+        if (indexValue.getValue().length == 0) {
+            kvstore.putIfAbsent(secondaryKey, Value.EMPTY_VALUE);
+        } else {
+            kvstore.put(secondaryKey, indexValue);
+        }
+    }
+
+    /* Returns the parent Key of all the Index View records of an index. */
+    private Key getIndexViewParentKey(String indexName) {
+        List<String> majorPath = new ArrayList<String>();
+        majorPath.add(INDEX_KEY_PREFIX);
+        majorPath.add(indexName);
+        return Key.createKey(majorPath);
+    }
+
+    /**
+     * Returns an Index View Key. The value of the first index field is the
+     * last component of the major path, and the values of the other fields
+     * and the primary key, if not null, form the minor path. With fewer
+     * values than index fields, returns the parent Key of the records whose
+     * leading fields have those values.
+     */
+    private Key getIndexViewKey(IndexKeyEncoder encoder,
                                 List<Object> indexFieldValues,
                                 String primaryKey) {
         List<String> majorPath = new ArrayList<String>();
         majorPath.add(INDEX_KEY_PREFIX);
-        majorPath.add(indexName);
-        if (indexFieldValues != null) {
-            for (Object value : indexFieldValues) {
-                majorPath.add(value.toString());
+        majorPath.add(encoder.getIndexName());
+        List<String> minorPath = new ArrayList<String>();
+        if (indexFieldValues != null && !indexFieldValues.isEmpty()) {
+            List<String> components = encoder.encode(indexFieldValues);
+            majorPath.add(components.get(0));
+            minorPath.addAll(components.subList(1, components.size()));
+        }
+        if (primaryKey != null) {
+            minorPath.add(primaryKey);
+        }
+
+        return Key.createKey(majorPath, minorPath);
+    }
+
+    /* Returns the encoded index field values of an Index View Key. */
+    private static List<String> getIndexFieldComponents(Key indexKey) {
+        List<String> minorPath = indexKey.getMinorPath();
+        List<String> result = new ArrayList<String>(minorPath.size());
+        result.add(indexKey.getMajorPath().get(2));
+        result.addAll(minorPath.subList(0, minorPath.size() - 1));
+        return result;
+    }
+
+    /* Returns the primary key referred to by an Index View Key. */
+    private static Key getPrimaryKey(Key indexKey) {
+        List<String> minorPath = indexKey.getMinorPath();
+        return Key.fromString(minorPath.get(minorPath.size() - 1));
+    }
+
+    /**
+     * The build threads of one call to buildIndexesInternal.
+     * <p>
+     * Each batch of primary DB records is decoded with the projection of
+     * {@link Binding#toFields(Value, String, List)}, and its Index View Keys
+     * are grouped by major path. A group of several Keys, which occurs when
+     * records share the values of the index fields, is written with a single
+     * execute call, and other Keys are written with putIfAbsent. The store
+     * has no bulk put across major paths, so throughput comes from the
+     * number of build threads writing in parallel.
+     */
+    private final class IndexBuild {
+        private final IndexKeyEncoder encoder;
+        private final IndexProjection projection;
+        private final List<String> indexFieldNames;
+
+        /* The index fields followed by the projected fields. */
+        private final List<String> recordFieldNames;
+        private final String schemaName;
+        private final BuildProgress progress;
+        private final ThreadPoolExecutor executor;
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicReference<RuntimeException> failure =
+            new AtomicReference<RuntimeException>();
+
+        IndexBuild(String indexName,
+                   List<String> indexFieldNames,
+                   List<String> projectedFieldNames,
+                   String schemaName,
+                   BuildProgress progress) {
+            this.encoder =
+                getKeyEncoder(indexName, schemaName, indexFieldNames);
+            this.projection =
+                getProjection(indexName, schemaName, projectedFieldNames);
+            this.indexFieldNames = indexFieldNames;
+            recordFieldNames = new ArrayList<String>(indexFieldNames);
+            recordFieldNames.addAll(projectedFieldNames);
+            this.schemaName = schemaName;
+            this.progress = progress;
+
+            final int nThreads = buildThreads;
+            final AtomicInteger threadNumber = new AtomicInteger();
+            executor = new ThreadPoolExecutor
+                (nThreads, nThreads, 0, TimeUnit.MILLISECONDS,
+                 new ArrayBlockingQueue<Runnable>
+                 (nThreads * BUILD_QUEUED_BATCHES_PER_THREAD),
+                 new ThreadFactory() {
+                     @Override
+                     public Thread newThread(Runnable r) {
+                         Thread t = new Thread(r, "IndexBuild-" +
+                                               threadNumber.incrementAndGet());
+                         t.setDaemon(true);
+                         return t;
+                     }
+                 },
+                 new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+
+        boolean isFailed() {
+            return failure.get() != null;
+        }
+
+        void submit(final List<KeyValueVersion> batch) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (isFailed()) {
+                        return;
+                    }
+                    try {
+                        indexBatch(batch);
+                    } catch (RuntimeException e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Stops the build threads after a failure of the iteration.
+         */
+        void abort() {
+            executor.shutdownNow();
+        }
+
+        /**
+         * Waits for the queued batches to be indexed, and returns the number
+         * of records indexed or rethrows the first failure of a build
+         * thread.
+         */
+        long finish() {
+            executor.shutdown();
+            try {
+                while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                    /* Keep waiting: the batches hold records being indexed. */
+                }
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Index build interrupted", e);
+            }
+            RuntimeException e = failure.get();
+            if (e != null) {
+                throw e;
             }
+            return count.get();
         }
 
-        if (primaryKey == null) {
-            return Key.createKey(majorPath);
+        private void indexBatch(List<KeyValueVersion> batch) {
+            Map<List<String>, Map<Key, Value>> groups =
+                new HashMap<List<String>, Map<Key, Value>>();
+            int nIndexFields = indexFieldNames.size();
+            int indexed = 0;
+            for (KeyValueVersion kvv : batch) {
+
+                /*
+                 * Gets the value list of given index and projected fields, or
+                 * null if the Value is not Avro data of the given schema name.
+                 */
+                List<Object> fieldValues = binding.toFields
+                    (kvv.getValue(), schemaName, recordFieldNames);
+                if (fieldValues == null) {
+                    continue;
+                }
+
+                /* Generates the Key and Value of the Index View KV pair. */
+                Key secondaryKey = getIndexViewKey
+                    (encoder, fieldValues.subList(0, nIndexFields),
+                     kvv.getKey().toString());
+                Value indexValue = (projection == null) ?
+                    Value.EMPTY_VALUE :
+                    projection.toValue(fieldValues.subList
+                                       (nIndexFields, fieldValues.size()));
+                Map<Key, Value> group =
+                    groups.get(secondaryKey.getMajorPath());
+                if (group == null) {
+                    group = new HashMap<Key, Value>(2);
+                    groups.put(secondaryKey.getMajorPath(), group);
+                }
+                group.put(secondaryKey, indexValue);
+                indexed++;
+            }
+
+            /* Creates the records of the Index View. */
+            OperationFactory factory = kvstore.getOperationFactory();
+            for (Map<Key, Value> group : groups.values()) {
+                if (group.size() == 1) {
+                    Entry<Key, Value> entry =
+                        group.entrySet().iterator().next();
+                    kvstore.putIfAbsent(entry.getKey(), entry.getValue());
+                    continue;
+                }
+                List<Operation> ops = new ArrayList<Operation>(group.size());
+                for (Entry<Key, Value> entry : group.entrySet()) {
+                    ops.add(factory.createPutIfAbsent
+                            (entry.getKey(), entry.getValue(), null, false));
+                }
+                try {
+                    kvstore.execute(ops);
+                } catch (OperationExecutionException e) {
+                    /* Not expected: no operation aborts the sequence. */
+                    throw new IllegalStateException(e);
+                }
+            }
+            count.addAndGet(indexed);
+            progress.recordsIndexed(indexed);
+        }
+    }
+
+    /**
+     * Checks the field values of primary DB records: the query fields of a
+     * plan that are not read from the Index View, or all the query fields of
+     * a parallel scan. The field after those with values, if any, is the
+     * range field, whose value must be between start and end. Values are
+     * compared in their Index View encoding, so that they match as they
+     * would in an Index View.
+     */
+    private final class RecordFilter {
+
+        private final String schemaName;
+        private final List<String> fieldNames;
+        private final IndexKeyEncoder encoder;
+        private final List<String> expected;
+
+        /* The encoded bounds of the range field, or null. */
+        private final String start;
+        private final boolean startInclusive;
+        private final String end;
+        private final boolean endInclusive;
+
+        RecordFilter(String schemaName,
+                     List<String> fieldNames,
+                     List<Object> values,
+                     IndexKeyEncoder encoder,
+                     Object start,
+                     boolean startInclusive,
+                     Object end,
+                     boolean endInclusive) {
+            this.schemaName = schemaName;
+            this.fieldNames = fieldNames;
+            this.encoder = encoder;
+            expected = encoder.encode(values);
+            int position = values.size();
+            this.start = (start == null) ?
+                null : encoder.encode(position, start);
+            this.startInclusive = startInclusive;
+            this.end = (end == null) ? null : encoder.encode(position, end);
+            this.endInclusive = endInclusive;
+        }
+
+        boolean accept(Value value) {
+            List<Object> values =
+                binding.toFields(value, schemaName, fieldNames);
+            if (values == null) {
+                return false;
+            }
+            for (int i = 0; i < values.size(); i++) {
+                Object fieldValue = values.get(i);
+                if (fieldValue == null) {
+                    return false;
+                }
+                String encoded = encoder.encode(i, fieldValue);
+                if (i < expected.size()) {
+                    if (!encoded.equals(expected.get(i))) {
+                        return false;
+                    }
+                    continue;
+                }
+                if (start != null) {
+                    int cmp = encoded.compareTo(start);
+                    if (cmp < 0 || (cmp == 0 && !startInclusive)) {
+                        return false;
+                    }
+                }
+                if (end != null) {
+                    int cmp = encoded.compareTo(end);
+                    if (cmp > 0 || (cmp == 0 && !endInclusive)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Returns the primary DB records of a parallel scan that are accepted by
+     * a filter.
+     */
+    private static final class FilteredScan
+        implements ParallelScanIterator<KeyValueVersion> {
+
+        private final ParallelScanIterator<KeyValueVersion> scan;
+        private final RecordFilter filter;
+        private KeyValueVersion next;
+
+        FilteredScan(ParallelScanIterator<KeyValueVersion> scan,
+                     RecordFilter filter) {
+            this.scan = scan;
+            this.filter = filter;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && scan.hasNext()) {
+                KeyValueVersion kvv = scan.next();
+                if (!isIndexOrMetadata(kvv.getKey()) &&
+                    filter.accept(kvv.getValue())) {
+                    next = kvv;
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public KeyValueVersion next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            KeyValueVersion result = next;
+            next = null;
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            scan.close();
+        }
+
+        @Override
+        public List<DetailedMetrics> getPartitionMetrics() {
+            return scan.getPartitionMetrics();
+        }
+
+        @Override
+        public List<DetailedMetrics> getShardMetrics() {
+            return scan.getShardMetrics();
+        }
+    }
+
+    /**
+     * Reads the primary DB records referred to by a stream of Index View
+     * keys with a store iterator over the primary keys.
+     * <p>
+     * The store iterator returns the records at or below each parent key, so
+     * the primary keys that have been requested and not yet returned are
+     * tracked, and records that were not requested, or were already returned
+     * for another parent key, are skipped. Only the keys in flight are held.
+     * Records rejected by the residual filter of the query, if any, are also
+     * skipped.
+     */
+    private final class PrimaryFetch
+        implements ParallelScanIterator<KeyValueVersion> {
+
+        private final Iterator<Key> indexKeys;
+        private final RecordFilter filter;
+        private final Set<Key> pending =
+            Collections.newSetFromMap(new ConcurrentHashMap<Key, Boolean>());
+        private ParallelScanIterator<KeyValueVersion> fetch;
+        private KeyValueVersion next;
+
+        PrimaryFetch(Iterator<Key> indexKeys, RecordFilter filter) {
+            this.indexKeys = indexKeys;
+            this.filter = filter;
+        }
+
+        void open() {
+
+            /* Maps each Index View key to the primary key it refers to. */
+            Iterator<Key> primaryKeys = new Iterator<Key>() {
+                @Override
+                public boolean hasNext() {
+                    return indexKeys.hasNext();
+                }
+
+                @Override
+                public Key next() {
+                    Key indexKey = indexKeys.next();
+                    Key primaryKey = getPrimaryKey(indexKey);
+                    pending.add(primaryKey);
+                    primaryLookups.incrementAndGet();
+                    return primaryKey;
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+            fetch = kvstore.storeIterator(primaryKeys,
+                                          0, /* batchSize */
+                                          null, /* subRange */
+                                          Depth.PARENT_AND_CHILDREN,
+                                          null, /* consistency */
+                                          0, /* timeout */
+                                          null,
+                                          fetchIteratorConfig);
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && fetch.hasNext()) {
+                KeyValueVersion kvv = fetch.next();
+                if (pending.remove(kvv.getKey()) &&
+                    (filter == null || filter.accept(kvv.getValue()))) {
+                    next = kvv;
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public KeyValueVersion next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            KeyValueVersion result = next;
+            next = null;
+            return result;
         }
 
-        return Key.createKey(majorPath, primaryKey);
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            if (fetch != null) {
+                fetch.close();
+            }
+            closeScan(indexKeys);
+        }
+
+        @Override
+        public List<DetailedMetrics> getPartitionMetrics() {
+            return fetch.getPartitionMetrics();
+        }
+
+        @Override
+        public List<DetailedMetrics> getShardMetrics() {
+            return fetch.getShardMetrics();
+        }
     }
 
     /**
      * An enum for the current status of an Index View.
      */
     enum IndexState {
-        BUILDING, DELETING, READY;
+        BUILDING, BUILDING_ONLINE, DRAINING, DELETING, READY;
     }
 
     /**
@@ -956,8 +2951,10 @@ public class IndexViewService {
         @Override
         public String toString() {
             return "IndexMetadata [indexFieldNames=" + indexFieldNames +
+                ", projectedFieldNames=" + projectedFieldNames +
                 ", schemaName=" + schemaName +
-                ", indexState=" + indexState + "]";
+                ", indexState=" + indexState +
+                ", formatVersion=" + formatVersion + "]";
         }
 
         /* Index name */
@@ -966,20 +2963,30 @@ public class IndexViewService {
         /* A list holding index field names */
         private final List<String> indexFieldNames;
 
+        /* Fields stored in the Index View records, empty if none. */
+        private final List<String> projectedFieldNames;
+
         /* Schema name */
         private final String schemaName;
 
         /* The current status */
         private final IndexState indexState;
 
+        /* The format of the Index View records, 0 if not recorded */
+        private final int formatVersion;
+
         IndexMetadata(String indexName,
                       String schemaName,
                       List<String> indexFieldNames,
-                      IndexState indexState) {
+                      List<String> projectedFieldNames,
+                      IndexState indexState,
+                      int formatVersion) {
             this.indexName = indexName;
             this.indexFieldNames = indexFieldNames;
+            this.projectedFieldNames = projectedFieldNames;
             this.schemaName = schemaName;
             this.indexState = indexState;
+            this.formatVersion = formatVersion;
         }
 
         String getIndexName() {
@@ -990,6 +2997,10 @@ public class IndexViewService {
             return indexFieldNames;
         }
 
+        List<String> getProjectedFieldNames() {
+            return projectedFieldNames;
+        }
+
         String getSchemaName() {
             return schemaName;
         }
@@ -997,5 +3008,393 @@ public class IndexViewService {
         IndexState getIndexState() {
             return indexState;
         }
+
+        int getFormatVersion() {
+            return formatVersion;
+        }
+
+        /**
+         * Returns whether the Index View records are in the format of this
+         * version of the class.
+         */
+        boolean isCurrentFormat() {
+            return formatVersion == INDEX_FORMAT_VERSION;
+        }
+    }
+
+    /**
+     * The ways in which a query reads the primary DB records.
+     */
+    public enum AccessMethod {
+
+        /**
+         * Reads the Index View records with the query values of the leading
+         * fields from a single partition, and then the primary DB records
+         * they refer to.
+         */
+        INDEX_LOOKUP,
+
+        /**
+         * Reads the Index View records in a range of values, and then the
+         * primary DB records they refer to.
+         */
+        INDEX_RANGE,
+
+        /**
+         * Reads all the primary DB records of the schema with a parallel
+         * scan, and checks their field values.
+         */
+        PARALLEL_SCAN;
+    }
+
+    /**
+     * The plan of a query: the Index View it reads and how. The values of the
+     * leading fields of the Index View are taken from the query, and the
+     * records with those values are read from a single partition with a
+     * multiGetKeys, so the cost of the query depends on the number of
+     * records that match them, not on the size of the Index View. A range
+     * query reads a KeyRange of the field that follows them, and across all
+     * partitions if there are none. The query fields that are not leading
+     * fields of the Index View are checked against the primary DB records.
+     * <p>
+     * If the Index View has statistics, computed when it is built or by
+     * {@link #analyzeIndexes}, the number of Index View records the query
+     * reads is estimated from them, and the cost of reading them and the
+     * primary DB records they refer to is compared with the cost of a
+     * parallel scan of all the records of the schema. The cheaper one is
+     * used, so that a query that matches a large part of the records does
+     * not read them one at a time. A parallel scan is only considered if the
+     * parent key of the records has been set with {@link
+     * #setPrimaryParentKey}, since otherwise it would read the whole store.
+     * The statistics do not count the primary DB records, so the cost of the
+     * scan is estimated from the number of Index View records, which
+     * underestimates it if the parent key holds records that are not
+     * indexed.
+     */
+    public static final class QueryPlan {
+
+        private final IndexMetadata index;
+        private final List<String> queryFieldNames;
+        private final List<String> matchedFieldNames;
+        private final String rangeFieldName;
+
+        /* The query position of the value of each matched field. */
+        private final int[] matchedPositions;
+
+        /* The query fields that are not matched, and their positions. */
+        private final List<String> residualFieldNames;
+        private final int[] residualPositions;
+
+        /* The estimates of the planner, or -1 if there are none. */
+        private AccessMethod accessMethod;
+        private double estimatedRecords = -1;
+        private long recordCount = -1;
+        private double indexCost = -1;
+        private double scanCost = -1;
+
+        QueryPlan(IndexMetadata index,
+                  List<String> queryFieldNames,
+                  int matched,
+                  String rangeFieldName) {
+            this.index = index;
+            this.queryFieldNames = Collections.unmodifiableList
+                (new ArrayList<String>(queryFieldNames));
+            this.rangeFieldName = rangeFieldName;
+            matchedFieldNames = Collections.unmodifiableList
+                (new ArrayList<String>
+                 (index.getIndexFieldNames().subList(0, matched)));
+            matchedPositions = new int[matched];
+            for (int i = 0; i < matched; i++) {
+                matchedPositions[i] =
+                    queryFieldNames.indexOf(matchedFieldNames.get(i));
+            }
+            int nEquality = queryFieldNames.size() -
+                ((rangeFieldName == null) ? 0 : 1);
+            List<String> residual = new ArrayList<String>();
+            List<Integer> positions = new ArrayList<Integer>();
+            for (int i = 0; i < nEquality; i++) {
+                if (!matchedFieldNames.contains(queryFieldNames.get(i))) {
+                    residual.add(queryFieldNames.get(i));
+                    positions.add(i);
+                }
+            }
+            residualFieldNames = Collections.unmodifiableList(residual);
+            residualPositions = new int[positions.size()];
+            for (int i = 0; i < residualPositions.length; i++) {
+                residualPositions[i] = positions.get(i);
+            }
+            accessMethod = (rangeFieldName == null) ?
+                AccessMethod.INDEX_LOOKUP : AccessMethod.INDEX_RANGE;
+        }
+
+        /**
+         * Sets the estimates of the planner, and chooses a parallel scan if
+         * it is cheaper. The scan cost is -1 if a scan is not allowed.
+         */
+        void setEstimates(double estimatedIndexRecords,
+                          long indexRecordCount,
+                          double estimatedIndexCost,
+                          double estimatedScanCost) {
+            estimatedRecords = estimatedIndexRecords;
+            recordCount = indexRecordCount;
+            indexCost = estimatedIndexCost;
+            scanCost = estimatedScanCost;
+            if (scanCost >= 0 && scanCost < indexCost) {
+                accessMethod = AccessMethod.PARALLEL_SCAN;
+            }
+        }
+
+        IndexMetadata getIndex() {
+            return index;
+        }
+
+        List<String> getQueryFieldNames() {
+            return queryFieldNames;
+        }
+
+        /* Returns the values of the matched fields, in index order. */
+        List<Object> getMatchedValues(List<Object> queryValues) {
+            List<Object> result =
+                new ArrayList<Object>(matchedPositions.length);
+            for (int position : matchedPositions) {
+                result.add(queryValues.get(position));
+            }
+            return result;
+        }
+
+        /* Returns the values of the residual fields. */
+        List<Object> getResidualValues(List<Object> queryValues) {
+            List<Object> result =
+                new ArrayList<Object>(residualPositions.length);
+            for (int position : residualPositions) {
+                result.add(queryValues.get(position));
+            }
+            return result;
+        }
+
+        public AccessMethod getAccessMethod() {
+            return accessMethod;
+        }
+
+        /**
+         * Returns the fields of the Index View used by the query, or whose
+         * statistics were used to choose a parallel scan.
+         */
+        public List<String> getIndexFieldNames() {
+            return index.getIndexFieldNames();
+        }
+
+        public String getSchemaName() {
+            return index.getSchemaName();
+        }
+
+        /**
+         * Returns the leading fields of the Index View whose values are given
+         * by the query.
+         */
+        public List<String> getMatchedFieldNames() {
+            return matchedFieldNames;
+        }
+
+        /**
+         * Returns the field whose range of values is read, or null for an
+         * equality query.
+         */
+        public String getRangeFieldName() {
+            return rangeFieldName;
+        }
+
+        /**
+         * Returns the query fields that are checked against the primary DB
+         * records, since they are not leading fields of the Index View.
+         */
+        public List<String> getResidualFieldNames() {
+            return residualFieldNames;
+        }
+
+        /**
+         * Returns whether the query reads all the fields of the Index View,
+         * so that every record read is a result.
+         */
+        public boolean isCompleteIndex() {
+            return residualFieldNames.isEmpty() &&
+                matchedFieldNames.size() +
+                ((rangeFieldName == null) ? 0 : 1) ==
+                index.getIndexFieldNames().size();
+        }
+
+        /**
+         * Returns whether the Index View records are read from a single
+         * partition.
+         */
+        public boolean isSinglePartition() {
+            return !matchedFieldNames.isEmpty();
+        }
+
+        /**
+         * Returns the estimated number of Index View records read by the
+         * query, or -1 if the Index View has no statistics.
+         */
+        public double getEstimatedRecords() {
+            return estimatedRecords;
+        }
+
+        /**
+         * Returns the number of Index View records when its statistics were
+         * computed, or -1 if it has none.
+         */
+        public long getRecordCount() {
+            return recordCount;
+        }
+
+        /**
+         * Returns the estimated cost of reading the Index View and the
+         * primary DB records it refers to, or -1 if the Index View has no
+         * statistics. Costs are in units of reading a record with a parallel
+         * scan.
+         */
+        public double getIndexCost() {
+            return indexCost;
+        }
+
+        /**
+         * Returns the estimated cost of a parallel scan of the primary DB
+         * records of the schema, or -1 if the Index View has no statistics
+         * or a scan is not allowed. It is the number of Index View records,
+         * standing in for the number of primary DB records the scan reads.
+         */
+        public double getScanCost() {
+            return scanCost;
+        }
+
+        /**
+         * Returns a description of how the Index View is read.
+         */
+        private String describeIndexRead() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(isSinglePartition() ?
+                      "multiGetKeys" : "storeKeysIterator");
+            sb.append(" on index ").append(getIndexFieldNames());
+            sb.append(" of ").append(getSchemaName());
+            if (isSinglePartition()) {
+                sb.append(", prefix ").append(matchedFieldNames);
+            }
+            if (rangeFieldName != null) {
+                sb.append(", range on ").append(rangeFieldName);
+            }
+            if (!residualFieldNames.isEmpty()) {
+                sb.append(", filter on ").append(residualFieldNames);
+            }
+            return sb.toString();
+        }
+
+        /**
+         * Returns the plan and the estimates it is based on, one per line.
+         */
+        public String explain() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("accessMethod = ").append(accessMethod).append("\n");
+            sb.append("index = ").append(describeIndexRead()).append("\n");
+            if (recordCount < 0) {
+                sb.append("statistics = none");
+                return sb.toString();
+            }
+            sb.append("estimatedIndexRecords = ");
+            sb.append(Math.round(estimatedRecords)).append(" of ");
+            sb.append(recordCount).append("\n");
+            sb.append("indexCost = ").append(Math.round(indexCost));
+            sb.append("\n");
+            sb.append("scanCost = ");
+            sb.append((scanCost < 0) ?
+                      "not allowed" : Long.toString(Math.round(scanCost)));
+            return sb.toString();
+        }
+
+        @Override
+        public String toString() {
+            if (accessMethod == AccessMethod.PARALLEL_SCAN) {
+                return "parallel scan of " + getSchemaName() + " records" +
+                    ", estimated cheaper than " + describeIndexRead();
+            }
+            return describeIndexRead();
+        }
+    }
+
+    /**
+     * The progress of an Index View build. A build by {@link #buildIndexes}
+     * has a single segment.
+     */
+    public static final class BuildProgress {
+
+        /* The number of segments the primary DB is split into. */
+        private final int totalSegments;
+
+        /* The time the build started. */
+        private final long startTime = System.currentTimeMillis();
+
+        /* Segments completed by this build and by an earlier attempt. */
+        private int builtSegments;
+        private int resumedSegments;
+
+        /* Primary DB records indexed by this build. */
+        private long recordCount;
+
+        /* The time taken by the segments completed by this build. */
+        private long buildTime;
+        private long lastSegmentEnd = startTime;
+
+        BuildProgress(int totalSegments) {
+            this.totalSegments = totalSegments;
+        }
+
+        synchronized void segmentDone(boolean resumed) {
+            long now = System.currentTimeMillis();
+            if (resumed) {
+                resumedSegments++;
+            } else {
+                builtSegments++;
+                buildTime += now - lastSegmentEnd;
+            }
+            lastSegmentEnd = now;
+        }
+
+        synchronized void recordsIndexed(long count) {
+            recordCount += count;
+        }
+
+        public int getTotalSegments() {
+            return totalSegments;
+        }
+
+        public synchronized int getCompletedSegments() {
+            return builtSegments + resumedSegments;
+        }
+
+        public synchronized long getRecordCount() {
+            return recordCount;
+        }
+
+        /**
+         * Returns the estimated time in milliseconds until the build
+         * completes, or -1 if no segment has been built yet.
+         */
+        public synchronized long getEstimatedRemainingMillis() {
+            if (builtSegments == 0) {
+                return -1;
+            }
+            return (buildTime / builtSegments) *
+                (totalSegments - getCompletedSegments());
+        }
+
+        @Override
+        public synchronized String toString() {
+            long eta = getEstimatedRemainingMillis();
+            return "BuildProgress [segments=" + getCompletedSegments() +
+                "/" + totalSegments + ", resumedSegments=" +
+                resumedSegments + ", records=" + recordCount +
+                ", elapsed(ms)=" + (System.currentTimeMillis() - startTime) +
+                ", eta(ms)=" + ((eta < 0) ? "unknown" : Long.toString(eta)) +
+                "]";
+        }
     }
 }